@@ -0,0 +1,141 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder events of an export, so a recording of a running server shows them next to the GC and the threads. Only loaded when the JVM has
+ * jdk.jfr, the events are handed around as Object.
+ *
+ * Not in src, it is only compiled by the jfr profile of a JDK 11 or newer, a plugin built with Java 8 has no events.
+ */
+final class JfrEvents implements ExportEvents {
+
+	@Name("org.bimserver.gltf.ExportPhase")
+	@Label("glTF Export Phase")
+	@Category({"BIMserver", "glTF"})
+	@Description("One phase of a glTF export")
+	static class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Allocated")
+		@DataAmount
+		long allocatedBytes;
+	}
+
+	@Name("org.bimserver.gltf.Export")
+	@Label("glTF Export")
+	@Category({"BIMserver", "glTF"})
+	@Description("A glTF export, the output was not served from the result cache")
+	static class ExportEvent extends Event {
+		@Label("Products")
+		int products;
+
+		@Label("Geometries")
+		int geometries;
+
+		@Label("Primitives")
+		int primitives;
+
+		@Label("Accessors")
+		int accessors;
+
+		@Label("Indices")
+		@DataAmount
+		long indicesBytes;
+
+		@Label("Positions")
+		@DataAmount
+		long positionsBytes;
+
+		@Label("Normals")
+		@DataAmount
+		long normalsBytes;
+
+		@Label("Colors")
+		@DataAmount
+		long colorsBytes;
+
+		@Label("Draco")
+		@DataAmount
+		long dracoBytes;
+
+		@Label("JSON")
+		@DataAmount
+		long jsonBytes;
+
+		@Label("Output")
+		@DataAmount
+		long outputBytes;
+	}
+
+	JfrEvents() {
+	}
+
+	@Override
+	public Object beginPhase() {
+		PhaseEvent event = new PhaseEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endPhase(Object phaseEvent, ExportMetrics.Phase phase, long allocatedBytes) {
+		PhaseEvent event = (PhaseEvent) phaseEvent;
+		event.end();
+		if (event.shouldCommit()) {
+			event.phase = phase.name();
+			event.allocatedBytes = allocatedBytes;
+			event.commit();
+		}
+	}
+
+	@Override
+	public Object beginExport() {
+		ExportEvent event = new ExportEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endExport(Object exportEvent, ExportMetrics metrics) {
+		ExportEvent event = (ExportEvent) exportEvent;
+		event.end();
+		if (event.shouldCommit()) {
+			event.products = metrics.getNrProducts();
+			event.geometries = metrics.getNrGeometries();
+			event.primitives = metrics.getNrPrimitives();
+			event.accessors = metrics.getNrAccessors();
+			event.indicesBytes = metrics.getStreamByteLength(ExportMetrics.Stream.INDICES);
+			event.positionsBytes = metrics.getStreamByteLength(ExportMetrics.Stream.POSITIONS);
+			event.normalsBytes = metrics.getStreamByteLength(ExportMetrics.Stream.NORMALS);
+			event.colorsBytes = metrics.getStreamByteLength(ExportMetrics.Stream.COLORS);
+			event.dracoBytes = metrics.getStreamByteLength(ExportMetrics.Stream.DRACO);
+			event.jsonBytes = metrics.getJsonByteLength();
+			event.outputBytes = metrics.getOutputByteLength();
+			event.commit();
+		}
+	}
+}
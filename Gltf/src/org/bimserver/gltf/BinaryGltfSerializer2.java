@@ -21,43 +21,58 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntUnaryOperator;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.bimserver.emf.IfcModelInterface;
 import org.bimserver.geometry.IfcColors;
 import org.bimserver.geometry.Matrix;
+import org.bimserver.models.geometry.Buffer;
 import org.bimserver.models.geometry.GeometryData;
-import org.bimserver.models.geometry.GeometryInfo;
 import org.bimserver.models.ifc2x3tc1.IfcProduct;
 import org.bimserver.plugins.serializers.EmfSerializer;
 import org.bimserver.plugins.serializers.ProgressReporter;
 import org.bimserver.plugins.serializers.SerializerException;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.common.base.Charsets;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.io.LittleEndianDataOutputStream;
 
 /**
  * @author Ruben de Laat
  *
  *         Annoying things about glTF so far: - Total and scene length have to
- *         be computed in advance, so no streaming is possible
+ *         be computed in advance, so the JSON is generated first (with all
+ *         byte offsets precomputed) after which the geometry is streamed
  *
  */
 public class BinaryGltfSerializer2 extends EmfSerializer {
 
-	private static final int FLOAT_VEC_4 = 35666;
-//	private static final int SHORT = 5122;
+	private static final int BYTE = 5120;
+	private static final int SHORT = 5122;
 	private static final int ARRAY_BUFFER = 34962;
 	private static final int ELEMENT_ARRAY_BUFFER = 34963;
 	private static final int MAGIC = 0x46546C67;
+	private static final int UNSIGNED_BYTE = 5121;
 	private static final int UNSIGNED_SHORT = 5123;
+	private static final int UNSIGNED_INT = 5125;
 	private static final int TRIANGLES = 4;
 	private static final int FLOAT = 5126;
 	private static final int JSON_CHUNK = 0x4E4F534A;
@@ -66,16 +81,106 @@ public class BinaryGltfSerializer2 extends EmfSerializer {
 	private static final String GLTF_VERSION = "2.0";
 
 	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
-	private ArrayNode buffers;
-	private ByteBuffer body;
-	private ArrayNode meshes;
-	private ArrayNode accessors;
-	private int accessorCounter = 0;
-	private ArrayNode buffersViews;
-	private ArrayNode defaultSceneNodes;
-	private ArrayNode scenesNode;
-	private ObjectNode gltfNode;
-	private ArrayNode nodes;
+	private static final int JSON_SINK_INITIAL_CAPACITY = 64 * 1024;
+	private static final int JSON_SINK_MAX_RETAINED_CAPACITY = 16 * 1024 * 1024;
+	
+	private static final String EXT_MESH_GPU_INSTANCING = "EXT_mesh_gpu_instancing";
+	private static final int MIN_GPU_INSTANCES = 2;
+	private static final String KHR_MESH_QUANTIZATION = "KHR_mesh_quantization";
+	private static final int QUANTIZED_RANGE = 32767;
+	// 3 shorts, padded to 8 bytes because vertex attributes have to be 4-byte aligned
+	private static final int QUANTIZED_POSITION_STRIDE = 8;
+	// Normals as 3 normalized bytes plus padding, colors as 4 normalized unsigned bytes
+	private static final int COMPACT_NORMAL_STRIDE = 4;
+	private static final int COMPACT_COLOR_STRIDE = 4;
+	private static final double DECOMPOSE_EPSILON = 1e-4;
+	private static final String EXT_MESH_FEATURES = "EXT_mesh_features";
+	private static final String MSFT_LOD = "MSFT_lod";
+	private static final int LOD_MIN_TRIANGLES = 1000;
+	// Per level of detail after the full geometry: the share of the triangles to get down to and the largest error, relative to the diagonal of the geometry
+	private static final float[] LOD_RATIOS = {0.5f, 0.25f, 0.1f};
+	private static final float[] LOD_ERRORS = {0.005f, 0.02f, 0.05f};
+	// A level is only kept when it has at most this share of the triangles of the level before it
+	private static final float LOD_MIN_REDUCTION = 0.8f;
+	// The smallest share of the screen at which every level is drawn, the full geometry first, the last level is drawn down to nothing
+	private static final float[] LOD_SCREEN_COVERAGES = {0.1f, 0.04f, 0.015f};
+	// Batches are cut at this many vertices even with int indices, so a single primitive never becomes unwieldy for a viewer to upload or pick in
+	private static final int MAX_BATCH_VERTICES = 1 << 20;
+	// The feature id of every vertex as a float, exact for all feature counts a batch can have
+	private static final int FEATURE_ID_STRIDE = 4;
+	private static final String EXT_MESHOPT_COMPRESSION = "EXT_meshopt_compression";
+	// The largest element the attribute codec of EXT_meshopt_compression can encode
+	private static final int MESHOPT_MAX_STRIDE = 256;
+	// The compressed bufferViews beyond this go into a temporary file until they are written
+	private static final long MESHOPT_MEMORY_BYTE_LENGTH = 64L * 1024 * 1024;
+	private static final String KHR_DRACO_MESH_COMPRESSION = "KHR_draco_mesh_compression";
+	
+	// Every index type gets its own region/bufferView, the ints come first so all regions stay aligned to their component size without padding in between
+	private static final int[] INDEX_COMPONENT_TYPES = {UNSIGNED_INT, UNSIGNED_SHORT, UNSIGNED_BYTE};
+	private static final int[] INDEX_BYTE_SIZES = {4, 2, 1};
+	private static final int INT_INDICES = 0;
+	private static final int SHORT_INDICES = 1;
+	private static final int BYTE_INDICES = 2;
+	private static final ThreadLocal<ByteSink> JSON_SINK = new ThreadLocal<>();
+	// Part of the key of cached outputs, increase it when the same options give a different output, so outputs of an older version are not used
+	private static final int RESULT_FORMAT = 1;
+	// In MB, keeps the byte length of every segment, and so of every bufferView and every offset within one, below 2 GB
+	private static final int MAX_BUFFER_SIZE = 2047;
+	// The length in the GLB header is an unsigned 32-bit int
+	private static final long MAX_GLB_BYTE_LENGTH = 0xFFFFFFFFL;
+	private static final String ZIP_GLTF_ENTRY = "model.gltf";
+	private static final String ZIP_BUFFER_PREFIX = "model_";
+
+	private GltfDocument gltfDocument;
+	// The binary data of all segments together, the buffer of a GLB
+	private long bodyByteLength;
+	private int instancesRegionByteLength;
+	// The geometries (or parts in batched mode) cut into consecutive ranges with bufferViews of their own
+	private List<Segment> segments;
+	// Set for the zipped output, every segment is then a buffer of its own
+	private boolean splitBuffers;
+	private final List<GeometryData> geometries = new ArrayList<>();
+	// The products of every geometry, indices into the manifest
+	private final List<GltfDocument.IntList> geometryProducts = new ArrayList<>();
+	private GpuInstances[] gpuInstances;
+	private ByteSink instancesData;
+	private int[][] indicesByteLengths;
+	private int[] maxIndices;
+	// The RGBA color of geometries that have the same color on all vertices, null for the others
+	private float[][] uniformColors;
+	private int[] verticesByteLengths;
+	private int[] normalsByteLengths;
+	private int[] colorsByteLengths;
+	private int[] featureIdsByteLengths;
+	// Only set with Draco compression, the compressed primitives of every geometry and their byte length in the Draco region
+	private DracoPrimitive[][] dracoPrimitives;
+	private int[] dracoByteLengths;
+	private float[] localBounds;
+	private MeshSplit[] meshSplits;
+	// The indices of the simplified versions of a geometry, into the vertices of the full geometry, null for geometries without levels of detail
+	private int[][][] lodIndices;
+	// The indices after welding and reordering, null when they are written as BIMserver produced them
+	private int[][] remappedIndices;
+	// For every vertex as written the vertex in the original geometry, null when the vertices are written as they are
+	private int[][] vertexOrders;
+	private final ConversionPipeline conversionPipeline;
+	private final GltfSettings settings;
+	// Shared with the other serializers of the plugin, null when the conversion of geometries is not kept for the next export
+	private final GeometryCache geometryCache;
+	private final String conversionKey;
+	private final ResultCache resultCache;
+	private final ExportMetricsListener metricsListener;
+	private ExportMetrics metrics;
+	private final ExportProgress progress = new ExportProgress();
+	// True for the geometries that were taken from the cache
+	private boolean[] cachedConversions;
+	// Positions of batches are baked into the coordinates of the whole model, 16 bits is not enough for those
+	private final boolean quantizePositions;
+	// Batches are not compressed, Draco does its own quantization
+	private final boolean dracoCompression;
+	// Only set in batched mode, the regions of the binary chunk then have one entry per part instead of per geometry
+	private List<DrawBatch> drawBatches;
+	private List<BatchPart> batchParts;
 	
 	private byte[] vertexColorFragmentShaderBytes;
 	private byte[] vertexColorVertexShaderBytes;
@@ -84,92 +189,445 @@ public class BinaryGltfSerializer2 extends EmfSerializer {
 	
 	float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
 	float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
-	private ArrayNode modelTranslation;
-	private ArrayNode materials;
-	private ObjectNode shaders;
+	private GltfDocument.Node translationNode;
+	// The products that are written, given for a tile of a tileset, built from all products of the model otherwise
+	private ProductManifest manifest;
+	// All products of the model, a model builds a new list every time it is asked
+	private List<IfcProduct> modelProducts;
+	// Set when only part of the model is written, as one tile of a tileset, all tiles then share the same origin
+	private float[] origin;
+	private int instancesBufferView;
 	
 	private final Map<String, Integer> createdMaterials = new HashMap<>();
-	private ArrayNode translationChildrenNode;
 	private int vertexColorIndex;
 
-	public BinaryGltfSerializer2(byte[] vertexColorFragmentShaderBytes, byte[] vertexColorVertexShaderBytes, byte[] materialColorFragmentShaderBytes, byte[] materialColorVertexShaderBytes) {
+	/**
+	 * The products of one geometry that are drawn by a single EXT_mesh_gpu_instancing node
+	 */
+	private static class GpuInstances {
+		// Same order as the products of the geometry
+		boolean[] instanced;
+		final GltfDocument.IntList products = new GltfDocument.IntList();
+		int byteOffset;
+	}
+
+	/**
+	 * One primitive compressed with Draco: the full geometry, one chunk of a split mesh or one level of detail
+	 */
+	private static class DracoPrimitive {
+		byte[] data;
+		int nrIndices;
+		int nrVertices;
+		float[] min;
+		float[] max;
+	}
+
+	/**
+	 * A range of consecutive geometries, or parts in batched mode, with bufferViews of their own. In a GLB the segments follow each other in the one buffer, in
+	 * the zipped output every segment is a buffer of its own. The regions of a segment are in the same order as those of the whole body used to be: indices,
+	 * vertices, normals, colors, feature ids and Draco data, the last segment is followed by the instances and the shaders.
+	 */
+	private static class Segment {
+		// The units [from, to)
+		int from;
+		int to;
+		final int[] indicesByteLengths = new int[INDEX_COMPONENT_TYPES.length];
+		int verticesByteLength;
+		int normalsByteLength;
+		int colorsByteLength;
+		int featureIdsByteLength;
+		int dracoByteLength;
+		// Instances and shaders, only in the last segment
+		int trailingByteLength;
+		int byteLength;
+		int buffer;
+		// Where the segment starts in its buffer
+		long byteOffset;
+		// -1 for regions without a bufferView
+		final int[] indicesBufferViews = new int[INDEX_COMPONENT_TYPES.length];
+		int verticesBufferView = -1;
+		int normalsBufferView = -1;
+		int colorsBufferView = -1;
+		int featureIdsBufferView = -1;
+
+		int getIndicesRegionByteLength() {
+			int byteLength = 0;
+			for (int indicesByteLength : indicesByteLengths) {
+				byteLength += indicesByteLength;
+			}
+			// Padding after the short and byte indices makes sure the float bufferViews that follow are 4-byte aligned
+			return align(byteLength);
+		}
+
+		int getNormalsOffset() {
+			return getIndicesRegionByteLength() + verticesByteLength;
+		}
+
+		int getColorsOffset() {
+			return getNormalsOffset() + normalsByteLength;
+		}
+
+		int getFeatureIdsOffset() {
+			return getColorsOffset() + colorsByteLength;
+		}
+
+		int getDracoOffset() {
+			return getFeatureIdsOffset() + featureIdsByteLength;
+		}
+
+		/**
+		 * @return Where the instances and shaders of the last segment start
+		 */
+		int getTrailingOffset() {
+			return getDracoOffset() + dracoByteLength;
+		}
+	}
+
+	/**
+	 * One primitive of the batched output, the parts of all products with the same material, until the batch has as many vertices as it can index
+	 */
+	private static class DrawBatch {
+		// The index of the first part of this batch, the parts of a batch are consecutive
+		int firstPart;
+		int material;
+		boolean colors;
+		int nrVertices;
+		int nrIndices;
+		int indexType;
+		// Feature id i is the product at index i
+		final GltfDocument.IntList products = new GltfDocument.IntList();
+		final float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		final float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+	}
+
+	/**
+	 * The geometry of one product in a batch, the whole geometry or one chunk of a split mesh
+	 */
+	private static class BatchPart {
+		DrawBatch batch;
+		int geometryIndex;
+		int product;
+		// -1 for a geometry that is not split
+		int chunk;
+		int nrVertices;
+		int nrIndices;
+		// The index of the first vertex of this part in the batch
+		int vertexBase;
+		int featureId;
+		double[] matrix;
+		// Column-major 3x3, turns the normals the same way as the positions, also for non-uniform scales
+		double[] normalMatrix;
+		// The transformation mirrors, the triangles have to be turned around to keep facing outward
+		boolean mirrored;
+		final float[] bounds = new float[6];
+	}
+
+	/**
+	 * @param forkJoinPool Pool to convert the products on, or null to convert them on the calling thread. Both give byte-identical output
+	 * @param geometryCache Cache for the conversion of geometries between exports, or null
+	 * @param resultCache Cache for complete outputs per revision, or null
+	 * @param metricsListener Receives the metrics of every export that is not served from the result cache, or null
+	 * @param settings The options of the plugin
+	 */
+	public BinaryGltfSerializer2(byte[] vertexColorFragmentShaderBytes, byte[] vertexColorVertexShaderBytes, byte[] materialColorFragmentShaderBytes, byte[] materialColorVertexShaderBytes, ForkJoinPool forkJoinPool, GeometryCache geometryCache, ResultCache resultCache, ExportMetricsListener metricsListener, GltfSettings settings) {
 		this.vertexColorFragmentShaderBytes = vertexColorFragmentShaderBytes;
 		this.vertexColorVertexShaderBytes = vertexColorVertexShaderBytes;
 		this.materialColorFragmentShaderBytes = materialColorFragmentShaderBytes;
 		this.materialColorVertexShaderBytes = materialColorVertexShaderBytes;
+		this.conversionPipeline = new ConversionPipeline(forkJoinPool, progress);
+		this.settings = settings;
+		this.geometryCache = geometryCache;
+		this.resultCache = resultCache;
+		this.metricsListener = metricsListener;
+		this.conversionKey = settings.getConversionKey();
+		this.dracoCompression = settings.dracoCompression && !settings.batchByMaterial;
+		this.quantizePositions = settings.quantizePositions && !settings.batchByMaterial && !dracoCompression;
 	}
 
 	@Override
 	protected boolean write(OutputStream outputStream, ProgressReporter progressReporter) throws SerializerException {
-		gltfNode = OBJECT_MAPPER.createObjectNode();
-
-		buffers = OBJECT_MAPPER.createArrayNode();
-		meshes = OBJECT_MAPPER.createArrayNode();
-		buffersViews = OBJECT_MAPPER.createArrayNode();
-		scenesNode = OBJECT_MAPPER.createArrayNode();
-		accessors = OBJECT_MAPPER.createArrayNode();
-		nodes = OBJECT_MAPPER.createArrayNode();
-		materials = OBJECT_MAPPER.createArrayNode();
-		shaders = OBJECT_MAPPER.createObjectNode();
-		
-		gltfNode.set("meshes", meshes);
-		gltfNode.set("bufferViews", buffersViews);
-		gltfNode.set("scenes", scenesNode);
-		gltfNode.set("accessors", accessors);
-		gltfNode.set("nodes", nodes);
-		gltfNode.set("buffers", buffers);
-		gltfNode.set("materials", materials);
-//		gltfNode.set("shaders", shaders);
-		
-		createVertexColorMaterial();
+		progress.start(progressReporter);
+		try {
+			String resultKey = getResultKey();
+			if (resultKey == null) {
+				writeGlb(outputStream);
+				return false;
+			}
+			resultCache.write(resultKey, outputStream, this::writeGlb);
+		} catch (IOException e) {
+			throw new SerializerException(e);
+		} catch (CancellationException e) {
+			throw cancelled(e);
+		}
+		return false;
+	}
+
+	/**
+	 * Stops the export that is running, from any thread. The threads of the export stop between two products and write() fails with a SerializerException.
+	 */
+	public void cancel() {
+		progress.cancel();
+	}
+
+	/**
+	 * Drops what the export has built up so far, the serializer is not used again after it has been cancelled
+	 */
+	private SerializerException cancelled(CancellationException e) {
+		gltfDocument = null;
+		manifest = null;
+		geometries.clear();
+		geometryProducts.clear();
+		meshSplits = null;
+		lodIndices = null;
+		remappedIndices = null;
+		vertexOrders = null;
+		dracoPrimitives = null;
+		instancesData = null;
+		drawBatches = null;
+		batchParts = null;
+		conversionPipeline.releaseBuffers();
+		// The exception may have been recreated by the pool without a message
+		return new SerializerException("The export has been cancelled", e);
+	}
+
+	/**
+	 * @return The name of the cached output, or null when the output cannot be cached: tiles, and models that are not a stored revision
+	 */
+	private String getResultKey() {
+		if (resultCache == null || manifest != null || model.getModelMetaData() == null) {
+			return null;
+		}
+		long revisionId = model.getModelMetaData().getRevisionId();
+		if (revisionId <= 0) {
+			return null;
+		}
+		// The oids of the products tell a query on part of a revision apart from the whole revision, and from other queries with as many products. The oids of
+		// their geometry change when the geometry of the revision is generated again.
+		List<IfcProduct> products = getModelProducts();
+		long[] oids = new long[products.size()];
+		long[] geometryOids = new long[products.size()];
+		for (int i=0; i<oids.length; i++) {
+			IfcProduct product = products.get(i);
+			oids[i] = product.getOid();
+			geometryOids[i] = product.getGeometry() != null ? product.getGeometry().getOid() : -1;
+		}
+		Arrays.sort(oids);
+		Arrays.sort(geometryOids);
+		byte[] options = (RESULT_FORMAT + "," + resultCache.getIdentity() + "," + model.getModelMetaData().getName() + "," + settings.getOutputKey()).getBytes(StandardCharsets.UTF_8);
+		ByteBuffer name = ByteBuffer.allocate(options.length + oids.length * 16);
+		name.put(options);
+		name.asLongBuffer().put(oids).put(geometryOids);
+		return revisionId + "-" + model.getPackageMetaData().getSchema().name() + "-" + UUID.nameUUIDFromBytes(name.array());
+	}
 
+	private void writeGlb(OutputStream outputStream) throws SerializerException {
 		try {
 			LittleEndianDataOutputStream dataOutputStream = new LittleEndianDataOutputStream(outputStream);
 
-			generateSceneAndBody();
+			generateDocument();
+			// The compressed sizes end up in the JSON, so the binary data is compressed before anything is written
+			try (MeshoptViews meshoptViews = settings.meshoptCompression ? compressBody() : null) {
+				// The JSON chunk is complete at this point, all byte offsets have been computed upfront, so the binary chunk can be streamed
+				ByteSink sceneSink = getJsonSink();
+				long totalLength;
+				try {
+					startPhase(ExportMetrics.Phase.JSON);
+					JsonGenerator jsonGenerator = OBJECT_MAPPER.getFactory().createGenerator(sceneSink, JsonEncoding.UTF8);
+					gltfDocument.write(jsonGenerator);
+					jsonGenerator.close();
+					metrics.jsonByteLength = sceneSink.size();
+					
+					totalLength = 12 + 8 + align(sceneSink.size()) + 8 + align(gltfDocument.buffers.get(0).byteLength);
+					if (totalLength > MAX_GLB_BYTE_LENGTH) {
+						throw new SerializerException("The model needs " + totalLength + " bytes, a GLB file can have at most " + MAX_GLB_BYTE_LENGTH + " bytes, use the zipped glTF serializer instead");
+					}
+					writeHeader(dataOutputStream, totalLength);
+					writeScene(dataOutputStream, sceneSink);
+					endPhase();
+				} finally {
+					releaseJsonSink(sceneSink);
+				}
+				startPhase(ExportMetrics.Phase.BODY);
+				progress.startStage("Writing", gltfDocument.buffers.get(0).byteLength);
+				writeBody(dataOutputStream, meshoptViews);
+				dataOutputStream.flush();
+				endPhase();
+				finishMetrics(totalLength);
+			}
+		} catch (IOException e) {
+			throw new SerializerException(e);
+		}
+	}
 
-//			StringWriter stringWriter = new StringWriter();
-//			OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValue(stringWriter, gltfNode);
-//			System.out.println(stringWriter);
+	/**
+	 * Writes only the given products, moved by the given origin instead of the center of their own bounds, so the tiles of a tileset line up
+	 */
+	void writeTile(IfcModelInterface model, ProductManifest manifest, float[] origin, OutputStream outputStream) throws SerializerException {
+		this.model = model;
+		this.manifest = manifest;
+		this.origin = origin;
+		write(outputStream, null);
+	}
 
-			byte[] sceneBytes = gltfNode.toString().getBytes(Charsets.UTF_8);
-			writeHeader(dataOutputStream, 12, 8 + sceneBytes.length + (sceneBytes.length % 4 == 0 ? 0 : 4 - sceneBytes.length % 4), 8 + body.capacity() + (body.capacity() % 4 == 4 ? 0 : 4 - body.capacity() % 4));
-			writeScene(dataOutputStream, sceneBytes);
-			writeBody(dataOutputStream, body.array());
-			dataOutputStream.flush();
+	/**
+	 * Writes the model as a zip with a glTF file and a .bin file per segment next to it, for models that do not fit in a GLB
+	 */
+	void writeZip(IfcModelInterface model, OutputStream outputStream, ProgressReporter progressReporter) throws SerializerException {
+		this.model = model;
+		splitBuffers = true;
+		progress.start(progressReporter);
+		try {
+			generateDocument();
+			try (MeshoptViews meshoptViews = settings.meshoptCompression ? compressBody() : null) {
+				CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+				ZipOutputStream zipOutputStream = new ZipOutputStream(countingOutputStream);
+				startPhase(ExportMetrics.Phase.JSON);
+				zipOutputStream.putNextEntry(new ZipEntry(ZIP_GLTF_ENTRY));
+				CountingOutputStream jsonOutputStream = new CountingOutputStream(zipOutputStream);
+				JsonGenerator jsonGenerator = OBJECT_MAPPER.getFactory().createGenerator(jsonOutputStream, JsonEncoding.UTF8);
+				jsonGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+				gltfDocument.write(jsonGenerator);
+				jsonGenerator.close();
+				zipOutputStream.closeEntry();
+				metrics.jsonByteLength = jsonOutputStream.getCount();
+				endPhase();
+	
+				startPhase(ExportMetrics.Phase.BODY);
+				long byteLength = 0;
+				for (GltfDocument.Buffer buffer : gltfDocument.buffers) {
+					if (buffer.uri != null) {
+						byteLength += buffer.byteLength;
+					}
+				}
+				progress.startStage("Writing", byteLength);
+				LittleEndianDataOutputStream dataOutputStream = new LittleEndianDataOutputStream(zipOutputStream);
+				for (int bufferIndex=0; bufferIndex<gltfDocument.buffers.size(); bufferIndex++) {
+					GltfDocument.Buffer buffer = gltfDocument.buffers.get(bufferIndex);
+					// The meshopt fallback buffers have no data
+					if (buffer.uri != null) {
+						zipOutputStream.putNextEntry(new ZipEntry(buffer.uri));
+						writeBuffer(dataOutputStream, bufferIndex, meshoptViews);
+						dataOutputStream.flush();
+						zipOutputStream.closeEntry();
+					}
+				}
+				// Not closed, the output stream belongs to the caller
+				zipOutputStream.finish();
+				endPhase();
+				finishMetrics(countingOutputStream.getCount());
+			}
 		} catch (IOException e) {
 			throw new SerializerException(e);
+		} catch (CancellationException e) {
+			throw cancelled(e);
 		}
-		return false;
 	}
 
-	private void createModelNode() {
-		ObjectNode translationNode = OBJECT_MAPPER.createObjectNode();
-		modelTranslation = OBJECT_MAPPER.createArrayNode();
+	/**
+	 * Builds the JSON and computes the layout of the binary data, nothing is written yet. A serializer generates its document only once.
+	 */
+	GltfDocument generateDocument() throws SerializerException {
+		metrics = new ExportMetrics();
+		gltfDocument = new GltfDocument();
 		
-		translationChildrenNode = OBJECT_MAPPER.createArrayNode();
-		translationNode.set("children", translationChildrenNode);
-		translationNode.set("translation", modelTranslation);
-		ObjectNode rotationNode = OBJECT_MAPPER.createObjectNode();
-		
-		ArrayNode rotation = OBJECT_MAPPER.createArrayNode();
-		ArrayNode rotationChildrenNode = OBJECT_MAPPER.createArrayNode();
+		createVertexColorMaterial();
 
-		nodes.add(translationNode);
-		
-		rotationChildrenNode.add(nodes.size() - 1);
-		rotationNode.set("children", rotationChildrenNode);
-		rotationNode.set("rotation", rotation);
+		generateScene();
+		return gltfDocument;
+	}
+
+	/**
+	 * @return The metrics of the last export, null before the first one
+	 */
+	ExportMetrics getMetrics() {
+		return metrics;
+	}
+
+	private void startPhase(ExportMetrics.Phase phase) {
+		metrics.startPhase(phase, conversionPipeline.getWorkerAllocatedBytes());
+	}
+
+	private void endPhase() {
+		metrics.endPhase(conversionPipeline.getWorkerAllocatedBytes());
+	}
+
+	/**
+	 * Counts what ended up in the output and hands the metrics to the listener
+	 */
+	private void finishMetrics(long outputByteLength) {
+		for (GltfDocument.IntList products : geometryProducts) {
+			metrics.nrProducts += products.size();
+		}
+		metrics.nrGeometries = geometries.size();
+		metrics.nrMeshes = gltfDocument.meshes.size();
+		for (GltfDocument.Mesh mesh : gltfDocument.meshes) {
+			metrics.nrPrimitives += mesh.primitives.length;
+		}
+		metrics.nrAccessors = gltfDocument.accessors.size();
+		metrics.nrBufferViews = gltfDocument.bufferViews.size();
+		metrics.nrBuffers = gltfDocument.buffers.size();
+		metrics.nrNodes = gltfDocument.nodes.size();
+		metrics.nrMaterials = gltfDocument.materials.size();
+		for (Segment segment : segments) {
+			metrics.addStreamByteLength(ExportMetrics.Stream.INDICES, segment.getIndicesRegionByteLength());
+			metrics.addStreamByteLength(ExportMetrics.Stream.POSITIONS, segment.verticesByteLength);
+			metrics.addStreamByteLength(ExportMetrics.Stream.NORMALS, segment.normalsByteLength);
+			metrics.addStreamByteLength(ExportMetrics.Stream.COLORS, segment.colorsByteLength);
+			metrics.addStreamByteLength(ExportMetrics.Stream.FEATURE_IDS, segment.featureIdsByteLength);
+			metrics.addStreamByteLength(ExportMetrics.Stream.DRACO, segment.dracoByteLength);
+		}
+		metrics.addStreamByteLength(ExportMetrics.Stream.INSTANCES, instancesRegionByteLength);
+		metrics.addStreamByteLength(ExportMetrics.Stream.SHADERS, vertexColorFragmentShaderBytes.length + vertexColorVertexShaderBytes.length + materialColorFragmentShaderBytes.length + materialColorVertexShaderBytes.length);
+		metrics.outputByteLength = outputByteLength;
+		metrics.finish();
+		if (metricsListener != null) {
+			metricsListener.exportFinished(metrics);
+		}
+	}
+
+	private List<IfcProduct> getModelProducts() {
+		if (modelProducts == null) {
+			modelProducts = model.getAllWithSubTypes(IfcProduct.class);
+		}
+		return modelProducts;
+	}
+
+	/**
+	 * The JSON chunk easily runs into tens of MB, the sink is kept per thread so consecutive exports don't have to grow a new one every time
+	 */
+	private static ByteSink getJsonSink() {
+		ByteSink sink = JSON_SINK.get();
+		if (sink == null) {
+			sink = new ByteSink(JSON_SINK_INITIAL_CAPACITY);
+		} else {
+			// Taken out while in use, a nested export on the same thread simply gets its own sink
+			JSON_SINK.remove();
+		}
+		sink.reset();
+		return sink;
+	}
+
+	private static void releaseJsonSink(ByteSink sink) {
+		if (sink.capacity() <= JSON_SINK_MAX_RETAINED_CAPACITY) {
+			sink.reset();
+			JSON_SINK.set(sink);
+		}
+	}
+
+	private void createModelNode() {
+		translationNode = new GltfDocument.Node();
+		translationNode.children = new GltfDocument.IntList();
 		
-		float[] quat = normalizeQuaternion(new float[]{1, 0 , 0, -1f});
+		GltfDocument.Node rotationNode = new GltfDocument.Node();
+		rotationNode.children = new GltfDocument.IntList();
+
+		gltfDocument.nodes.add(translationNode);
 		
-		rotation.add(quat[0]);
-		rotation.add(quat[1]);
-		rotation.add(quat[2]);
-		rotation.add(quat[3]);
+		rotationNode.children.add(gltfDocument.nodes.size() - 1);
+		rotationNode.rotation = normalizeQuaternion(new float[]{1, 0 , 0, -1f});
 		
-		nodes.add(rotationNode);
-		defaultSceneNodes.add(nodes.size() - 1);
+		gltfDocument.nodes.add(rotationNode);
+		gltfDocument.sceneNodes.add(gltfDocument.nodes.size() - 1);
 	}
 	
 	public float len2(float[] input) {
@@ -188,879 +646,2266 @@ public class BinaryGltfSerializer2 extends EmfSerializer {
 		return input;
 	}
 
-	private void generateSceneAndBody() throws SerializerException {
-		int totalBodyByteLength = 0;
-		int totalIndicesByteLength = 0;
-		int totalVerticesByteLength = 0;
-		int totalNormalsByteLength = 0;
-		int totalColorsByteLength = 0;
-
-		int maxIndexValues = 16389;
-
-		for (IfcProduct ifcProduct : model.getAllWithSubTypes(IfcProduct.class)) {
-			GeometryInfo geometryInfo = ifcProduct.getGeometry();
-			if (!ifcProduct.eClass().getName().equals("IfcOpeningElement") && geometryInfo != null && geometryInfo.getData().getVertices().getData().length > 0) {
-				GeometryData data = geometryInfo.getData();
-				int nrIndicesBytes = data.getIndices().getData().length;
-
-				totalIndicesByteLength += nrIndicesBytes / 2;
-				if (nrIndicesBytes > 4 * maxIndexValues) {
-					int nrIndices = nrIndicesBytes / 4;
-					totalVerticesByteLength += nrIndices * 3 * 4;				
-					totalNormalsByteLength += nrIndices * 3 * 4;				
-					if (data.getColorsQuantized() != null) {
-						totalColorsByteLength += nrIndices * 4 * 4;
-					}
-				} else {
-					totalVerticesByteLength += data.getVertices().getData().length;
-					totalNormalsByteLength += data.getNormals().getData().length;
-					if (data.getColorsQuantized() != null) {
-						totalColorsByteLength += data.getColorsQuantized().getData().length;
-					}
-				}
+	private void generateScene() throws SerializerException {
+		startPhase(ExportMetrics.Phase.ANALYSIS);
+		if (manifest == null) {
+			manifest = ProductManifest.build(getModelProducts(), progress);
+		}
+		// Per material key, null for geometries with colors of their own
+		Map<String, Map<Long, Integer>> geometryIndices = new HashMap<>();
+		for (int product=0; product<manifest.size(); product++) {
+			// Products that point at the same GeometryData share one mesh, the geometry is only written once for every material it is drawn with
+			GeometryData data = manifest.getGeometry(product);
+			Map<Long, Integer> materialGeometryIndices = geometryIndices.computeIfAbsent(getMaterialKey(data, product), materialKey -> new HashMap<>());
+			Integer geometryIndex = materialGeometryIndices.get(data.getOid());
+			if (geometryIndex == null) {
+				geometryIndex = geometries.size();
+				materialGeometryIndices.put(data.getOid(), geometryIndex);
+				geometries.add(data);
+				geometryProducts.add(new GltfDocument.IntList());
 			}
+			geometryProducts.get(geometryIndex).add(product);
+		}
+		if (settings.deduplicateGeometry) {
+			deduplicateGeometries();
 		}
-		totalBodyByteLength = totalIndicesByteLength + totalVerticesByteLength + totalNormalsByteLength + totalColorsByteLength;
-
-		body = ByteBuffer.allocate(totalBodyByteLength + materialColorFragmentShaderBytes.length + materialColorVertexShaderBytes.length + vertexColorFragmentShaderBytes.length + vertexColorVertexShaderBytes.length);
-		body.order(ByteOrder.LITTLE_ENDIAN);
 		
-		ByteBuffer newIndicesBuffer = ByteBuffer.allocate(totalIndicesByteLength);
-		newIndicesBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		int positionStride = quantizePositions ? QUANTIZED_POSITION_STRIDE : 12;
+		int normalStride = settings.compactAttributes ? COMPACT_NORMAL_STRIDE : 12;
 		
-		ByteBuffer newVerticesBuffer = ByteBuffer.allocate(totalVerticesByteLength);
-		newVerticesBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		// Checked here and not while streaming, once the header has been written there is no way to report a failure cleanly anymore
+		maxIndices = new int[geometries.size()];
+		uniformColors = new float[geometries.size()][];
+		meshSplits = new MeshSplit[geometries.size()];
+		lodIndices = new int[geometries.size()][][];
+		remappedIndices = new int[geometries.size()][];
+		vertexOrders = new int[geometries.size()][];
+		localBounds = new float[geometries.size() * 6];
+		dracoPrimitives = dracoCompression ? new DracoPrimitive[geometries.size()][] : null;
+		cachedConversions = new boolean[geometries.size()];
+		progress.startStage("Converting geometry", geometries.size());
+		try {
+			conversionPipeline.forEach(geometries.size(), geometryIndex -> {
+				if (!loadConversion(geometryIndex)) {
+					analyzeMesh(geometryIndex);
+				}
+				progress.advance(1);
+			});
+		} catch (IllegalArgumentException e) {
+			throw new SerializerException(e);
+		}
+		endPhase();
 		
-		ByteBuffer newNormalsBuffer = ByteBuffer.allocate(totalNormalsByteLength);
-		newNormalsBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		startPhase(ExportMetrics.Phase.SIZING);
+		// The byte length of every geometry (or part of a batch) in every region, these give the offsets at which they can be converted independently of each other
+		if (settings.batchByMaterial) {
+			planBatches(normalStride);
+		} else if (dracoCompression) {
+			encodeDracoPrimitives();
+		} else {
+			computeByteLengths(positionStride, normalStride);
+		}
+		endPhase();
+		startPhase(ExportMetrics.Phase.BOUNDS);
+		progress.startStage("Computing bounds", geometries.size());
+		// The bounds are needed for the accessors and for the dequantization of the instances, scanning the vertices is independent per geometry
+		conversionPipeline.forEach(geometries.size(), geometryIndex -> {
+			if (!cachedConversions[geometryIndex]) {
+				computeLocalBounds(geometryIndex);
+			}
+			progress.advance(1);
+		});
+		endPhase();
+		startPhase(ExportMetrics.Phase.SCENE);
+		if (geometryCache != null) {
+			// Everything that is done per geometry is done at this point
+			conversionPipeline.forEach(geometries.size(), geometryIndex -> {
+				if (!cachedConversions[geometryIndex]) {
+					storeConversion(geometryIndex);
+				}
+			});
+		}
+		if (quantizePositions || (settings.compactAttributes && !dracoCompression)) {
+			// Byte normals and short positions are only valid with this extension
+			addRequiredExtension(KHR_MESH_QUANTIZATION);
+		}
 		
-		ByteBuffer newColorsBuffer = ByteBuffer.allocate(totalColorsByteLength);
-		newColorsBuffer.order(ByteOrder.LITTLE_ENDIAN);
-
-		int indicesBufferView = createBufferView(totalIndicesByteLength, 0, ELEMENT_ARRAY_BUFFER, -1);
-		int verticesBufferView = createBufferView(totalVerticesByteLength, totalIndicesByteLength, ARRAY_BUFFER, 12);
-		int normalsBufferView = createBufferView(totalNormalsByteLength, totalIndicesByteLength + totalVerticesByteLength, ARRAY_BUFFER, 12);
-		int colorsBufferView = -1;
+		// Batches bake the transformations into the positions, there is nothing left to instance
+		instancesRegionByteLength = settings.gpuInstancing && drawBatches == null ? createGpuInstances() : 0;
+		planSegments();
+
+		Segment segment = segments.get(0);
+		Segment lastSegment = segments.get(segments.size() - 1);
+		createSegmentBufferViews(segment, positionStride, normalStride);
+		instancesBufferView = instancesRegionByteLength == 0 ? -1 : createBufferView(lastSegment.buffer, instancesRegionByteLength, lastSegment.byteOffset + lastSegment.getTrailingOffset(), -1, -1);
 		
-		scenesNode.add(createDefaultScene());
-		gltfNode.put("scene", 0);
 		createModelNode();
 
-		for (IfcProduct ifcProduct : model.getAllWithSubTypes(IfcProduct.class)) {
-			GeometryInfo geometryInfo = ifcProduct.getGeometry();
-			if (!ifcProduct.eClass().getName().equals("IfcOpeningElement") && geometryInfo != null) {
-				ByteBuffer matrixByteBuffer = ByteBuffer.wrap(ifcProduct.getGeometry().getTransformation());
-				matrixByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-				DoubleBuffer doubleBuffer = matrixByteBuffer.asDoubleBuffer();
-				float[] matrix = new float[16];
-				for (int i=0; i<doubleBuffer.capacity(); i++) {
-					matrix[i] = (float) doubleBuffer.get();
-				}
-
-				updateExtends(geometryInfo, matrix);
-			}
+		if (origin == null) {
+			endPhase();
+			startPhase(ExportMetrics.Phase.BOUNDS);
+			manifest.computeBounds(conversionPipeline, progress, settings.exactBounds);
+			manifest.updateExtends(min, max);
+			endPhase();
+			startPhase(ExportMetrics.Phase.SCENE);
 		}
 		
-		float[] offsets = getOffsets();
+		float[] offsets = origin != null ? origin : getOffsets();
 		
 		// This will "normalize" the model by moving it's axis-aligned bounding box center to the 0-point. This will always be the wrong position, but at least the building will be close to the 0-point
-		modelTranslation.add(-offsets[0]);
-		modelTranslation.add(-offsets[1]);
-		modelTranslation.add(-offsets[2]);
-
-		for (IfcProduct ifcProduct : model.getAllWithSubTypes(IfcProduct.class)) {
-			GeometryInfo geometryInfo = ifcProduct.getGeometry();
-			if (!ifcProduct.eClass().getName().equals("IfcOpeningElement") && geometryInfo != null && geometryInfo.getData().getVertices().getData().length > 0) {
-				int startPositionIndices = newIndicesBuffer.position();
-				int startPositionVertices = newVerticesBuffer.position();
-				int startPositionNormals = newNormalsBuffer.position();
-				int startPositionColors = newColorsBuffer.position();
-				
-				GeometryData data = geometryInfo.getData();
-				
-				ByteBuffer indicesBuffer = ByteBuffer.wrap(data.getIndices().getData());
-				indicesBuffer.order(ByteOrder.LITTLE_ENDIAN);
-				IntBuffer indicesIntBuffer = indicesBuffer.asIntBuffer();
-				
-				ByteBuffer verticesBuffer = ByteBuffer.wrap(data.getVertices().getData());
-				verticesBuffer.order(ByteOrder.LITTLE_ENDIAN);
-				FloatBuffer verticesFloatBuffer = verticesBuffer.asFloatBuffer();
-				
-				ByteBuffer normalsBuffer = ByteBuffer.wrap(data.getNormals().getData());
-				normalsBuffer.order(ByteOrder.LITTLE_ENDIAN);
-				FloatBuffer normalsFloatBuffer = normalsBuffer.asFloatBuffer();
-
-				FloatBuffer materialsFloatBuffer = null;
-				if (data.getColorsQuantized() != null) {
-					ByteBuffer materialsBuffer = ByteBuffer.wrap(data.getColorsQuantized().getData());
-					materialsBuffer.order(ByteOrder.LITTLE_ENDIAN);
-					materialsFloatBuffer = materialsBuffer.asFloatBuffer();
+		translationNode.translation = new float[]{-offsets[0], -offsets[1], -offsets[2]};
+
+		// Only the JSON is built here, the byte offsets advance exactly as writeBody will write the converted geometry later on, relative to the bufferViews of a segment
+		if (drawBatches != null) {
+			addBatches(normalStride);
+		} else {
+			int segmentIndex = 0;
+			int[] startPositionIndices = new int[INDEX_COMPONENT_TYPES.length];
+			int startPositionVertices = 0;
+			int startPositionNormals = 0;
+			int startPositionColors = 0;
+			long startPositionDraco = segment.byteOffset + segment.getDracoOffset();
+
+			for (int geometryIndex=0; geometryIndex<geometries.size(); geometryIndex++) {
+				progress.checkCancelled();
+				if (geometryIndex == segment.to) {
+					checkSegment(segment, startPositionIndices, startPositionVertices, startPositionNormals, startPositionColors, startPositionDraco);
+					segment = segments.get(++segmentIndex);
+					createSegmentBufferViews(segment, positionStride, normalStride);
+					Arrays.fill(startPositionIndices, 0);
+					startPositionVertices = 0;
+					startPositionNormals = 0;
+					startPositionColors = 0;
+					startPositionDraco = segment.byteOffset + segment.getDracoOffset();
 				}
+				int product = geometryProducts.get(geometryIndex).get(0);
+				GeometryData data = geometries.get(geometryIndex);
+			
+				MeshSplit meshSplit = meshSplits[geometryIndex];
+				if (dracoCompression) {
+					startPositionDraco = addDracoMeshes(geometryIndex, product, segment.buffer, startPositionDraco);
+				} else if (meshSplit != null) {
+					GltfDocument.Primitive[] primitives = new GltfDocument.Primitive[meshSplit.getNrChunks()];
 				
-				if (data.getIndices().getData().length > 4 * maxIndexValues) {
-					int totalNrIndices = indicesIntBuffer.capacity();
-					int nrParts = (totalNrIndices + maxIndexValues - 1) / maxIndexValues;
-					
-					ArrayNode primitivesNode = OBJECT_MAPPER.createArrayNode();
-					
-					for (int part=0; part<nrParts; part++) {
-						startPositionIndices = newIndicesBuffer.position();
-						startPositionVertices = newVerticesBuffer.position();
-						startPositionNormals = newNormalsBuffer.position();
-						startPositionColors = newColorsBuffer.position();
-
-						short indexCounter = 0;
-						int upto = Math.min((part + 1) * maxIndexValues, totalNrIndices);
-						for (int i=part * maxIndexValues; i<upto; i++) {
-							newIndicesBuffer.putShort(indexCounter++);
-						}
+					for (int chunk=0; chunk<meshSplit.getNrChunks(); chunk++) {
+						int nrIndices = meshSplit.getNrIndices(chunk);
+						int nrVertices = meshSplit.getNrVertices(chunk);
 
 						int[] min = new int[]{0};
-						int[] max = new int[]{upto};
-						
-						int nrVertices = upto - part * maxIndexValues;
-						
-						for (int i=part * maxIndexValues; i<upto; i+=3) {
-							int oldIndex1 = indicesIntBuffer.get(i);
-							int oldIndex2 = indicesIntBuffer.get(i+1);
-							int oldIndex3 = indicesIntBuffer.get(i+2);
-							
-							newVerticesBuffer.putFloat(verticesFloatBuffer.get(oldIndex1 * 3));
-							newVerticesBuffer.putFloat(verticesFloatBuffer.get(oldIndex1 * 3 + 1));
-							newVerticesBuffer.putFloat(verticesFloatBuffer.get(oldIndex1 * 3 + 2));
-							newVerticesBuffer.putFloat(verticesFloatBuffer.get(oldIndex2 * 3));
-							newVerticesBuffer.putFloat(verticesFloatBuffer.get(oldIndex2 * 3 + 1));
-							newVerticesBuffer.putFloat(verticesFloatBuffer.get(oldIndex2 * 3 + 2));
-							newVerticesBuffer.putFloat(verticesFloatBuffer.get(oldIndex3 * 3));
-							newVerticesBuffer.putFloat(verticesFloatBuffer.get(oldIndex3 * 3 + 1));
-							newVerticesBuffer.putFloat(verticesFloatBuffer.get(oldIndex3 * 3 + 2));
-						}
-						for (int i=part * maxIndexValues; i<upto; i+=3) {
-							int oldIndex1 = indicesIntBuffer.get(i);
-							int oldIndex2 = indicesIntBuffer.get(i+1);
-							int oldIndex3 = indicesIntBuffer.get(i+2);
-							
-							newNormalsBuffer.putFloat(normalsFloatBuffer.get(oldIndex1 * 3));
-							newNormalsBuffer.putFloat(normalsFloatBuffer.get(oldIndex1 * 3 + 1));
-							newNormalsBuffer.putFloat(normalsFloatBuffer.get(oldIndex1 * 3 + 2));
-							newNormalsBuffer.putFloat(normalsFloatBuffer.get(oldIndex2 * 3));
-							newNormalsBuffer.putFloat(normalsFloatBuffer.get(oldIndex2 * 3 + 1));
-							newNormalsBuffer.putFloat(normalsFloatBuffer.get(oldIndex2 * 3 + 2));
-							newNormalsBuffer.putFloat(normalsFloatBuffer.get(oldIndex3 * 3));
-							newNormalsBuffer.putFloat(normalsFloatBuffer.get(oldIndex3 * 3 + 1));
-							newNormalsBuffer.putFloat(normalsFloatBuffer.get(oldIndex3 * 3 + 2));
-						}
-						if (materialsFloatBuffer != null) {
-							for (int i=part * maxIndexValues; i<upto; i+=3) {
-								int oldIndex1 = indicesIntBuffer.get(i);
-								int oldIndex2 = indicesIntBuffer.get(i+1);
-								int oldIndex3 = indicesIntBuffer.get(i+2);
-								
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex1 * 4));
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex1 * 4 + 1));
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex1 * 4 + 2));
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex1 * 4 + 3));
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex2 * 4));
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex2 * 4 + 1));
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex2 * 4 + 2));
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex2 * 4 + 3));
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex3 * 4));
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex3 * 4 + 1));
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex3 * 4 + 2));
-								newColorsBuffer.putFloat(materialsFloatBuffer.get(oldIndex3 * 4 + 3));
-							}
-						}
-						
-						ObjectNode primitiveNode = OBJECT_MAPPER.createObjectNode();
-						
-						int indicesAccessor = addIndicesAccessor(ifcProduct, indicesBufferView, startPositionIndices, nrVertices / 3, min, max);
-						int verticesAccessor = addVerticesAccessor(ifcProduct, verticesBufferView, startPositionVertices, nrVertices);
-						int normalsAccessor = addNormalsAccessor(ifcProduct, normalsBufferView, startPositionNormals, nrVertices);
+						int[] max = new int[]{nrVertices - 1};
+						int indexType = getIndexType(nrVertices - 1);
+					
+						GltfDocument.Primitive primitive = new GltfDocument.Primitive();
+					
+						int indicesAccessor = addIndicesAccessor(segment.indicesBufferViews[indexType], startPositionIndices[indexType], INDEX_COMPONENT_TYPES[indexType], nrIndices, min, max);
+						int verticesAccessor = addVerticesAccessor(geometryIndex, segment.verticesBufferView, startPositionVertices, nrVertices, meshSplit.getMin(chunk), meshSplit.getMax(chunk));
+						int normalsAccessor = addNormalsAccessor(segment.normalsBufferView, startPositionNormals, nrVertices);
 						int colorAccessor = -1;
-						if (data.getColorsQuantized() != null) {
-							if (colorsBufferView == -1) {
-								colorsBufferView = createBufferView(totalColorsByteLength, totalIndicesByteLength + totalVerticesByteLength + totalNormalsByteLength, ARRAY_BUFFER, 16);
+						if (hasVertexColors(geometryIndex)) {
+							if (segment.colorsBufferView == -1) {
+								segment.colorsBufferView = createColorsBufferView(segment);
 							}
-							colorAccessor = addColorsAccessor(ifcProduct, colorsBufferView, startPositionColors, 16);
+							colorAccessor = addColorsAccessor(segment.colorsBufferView, startPositionColors, nrVertices);
 						}
-						primitivesNode.add(primitiveNode);
-						
-						primitiveNode.put("indices", indicesAccessor);
-						primitiveNode.put("mode", TRIANGLES);
-						ObjectNode attributesNode = OBJECT_MAPPER.createObjectNode();
-						primitiveNode.set("attributes", attributesNode);
-						attributesNode.put("NORMAL", normalsAccessor);
-						attributesNode.put("POSITION", verticesAccessor);
+						primitives[chunk] = primitive;
+					
+						primitive.indices = indicesAccessor;
+						primitive.mode = TRIANGLES;
+						primitive.normal = normalsAccessor;
+						primitive.position = verticesAccessor;
 						if (colorAccessor != -1) {
-//							attributesNode.put("COLOR_0", colorAccessor);
-							primitiveNode.put("material", vertexColorIndex);
+							primitive.color = colorAccessor;
+							primitive.material = vertexColorIndex;
 						} else {
-							primitiveNode.put("material", createOrGetMaterial(ifcProduct.eClass().getName(), IfcColors.getDefaultColor(ifcProduct.eClass().getName())));
-						}
-					}
-					
-					int meshId = addMesh(ifcProduct, primitivesNode);
-					int nodeId = addNode(meshId, ifcProduct);
-					translationChildrenNode.add(nodeId);
-				} else {
-					int maxVal = 0;
-					for (int i=0; i<indicesIntBuffer.capacity(); i++) {
-						int index = indicesIntBuffer.get(i);
-						if (index > Short.MAX_VALUE) {
-							throw new SerializerException("Index too large to store as short " + index);
+							primitive.material = getMaterial(geometryIndex, product);
 						}
-						newIndicesBuffer.putShort((short)(index));
-						if (index > maxVal) {
-							maxVal = index;
+
+						startPositionIndices[indexType] += nrIndices * INDEX_BYTE_SIZES[indexType];
+						startPositionVertices += nrVertices * positionStride;
+						startPositionNormals += nrVertices * normalStride;
+						if (colorAccessor != -1) {
+							startPositionColors += nrVertices * getColorStride(data);
 						}
 					}
-					
+				
+					int meshId = addMesh(primitives);
+					addNodes(geometryIndex, meshId, null);
+				} else {
 					int[] min = new int[]{0};
-					int[] max = new int[]{maxVal};
+					int[] max = new int[]{maxIndices[geometryIndex]};
+					int indexType = getIndexType(maxIndices[geometryIndex]);
 
-					newVerticesBuffer.put(data.getVertices().getData());
-					newNormalsBuffer.put(data.getNormals().getData());
-					if (data.getColorsQuantized() != null) {
-						newColorsBuffer.put(data.getColorsQuantized().getData());
-					}
-					
-					int totalNrIndices = indicesIntBuffer.capacity();
-					
-					ArrayNode primitivesNode = OBJECT_MAPPER.createArrayNode();
-					
-					ObjectNode primitiveNode = OBJECT_MAPPER.createObjectNode();
-					
-					int indicesAccessor = addIndicesAccessor(ifcProduct, indicesBufferView, startPositionIndices, totalNrIndices, min, max);
-					int verticesAccessor = addVerticesAccessor(ifcProduct, verticesBufferView, startPositionVertices, data.getVertices().getData().length / 12);
-					int normalsAccessor = addNormalsAccessor(ifcProduct, normalsBufferView, startPositionNormals, data.getNormals().getData().length / 12);
+					int totalNrIndices = getIndices(geometryIndex).capacity();
+				
+					GltfDocument.Primitive primitive = new GltfDocument.Primitive();
+				
+					int indicesAccessor = addIndicesAccessor(segment.indicesBufferViews[indexType], startPositionIndices[indexType], INDEX_COMPONENT_TYPES[indexType], totalNrIndices, min, max);
+					int verticesAccessor = addVerticesAccessor(geometryIndex, segment.verticesBufferView, startPositionVertices, getNrVertices(geometryIndex), getLocalMin(geometryIndex), getLocalMax(geometryIndex));
+					int normalsAccessor = addNormalsAccessor(segment.normalsBufferView, startPositionNormals, getNrVertices(geometryIndex));
 					int colorAccessor = -1;
-					if (data.getColorsQuantized() != null) {
-						if (colorsBufferView == -1) {
-							colorsBufferView = createBufferView(totalColorsByteLength, totalIndicesByteLength + totalVerticesByteLength + totalNormalsByteLength, ARRAY_BUFFER, 16);
+					if (hasVertexColors(geometryIndex)) {
+						if (segment.colorsBufferView == -1) {
+							segment.colorsBufferView = createColorsBufferView(segment);
 						}
-						colorAccessor = addColorsAccessor(ifcProduct, colorsBufferView, startPositionColors, data.getVertices().getData().length / 12);
+						colorAccessor = addColorsAccessor(segment.colorsBufferView, startPositionColors, getNrVertices(geometryIndex));
 					}
-					primitivesNode.add(primitiveNode);
-					
-					primitiveNode.put("indices", indicesAccessor);
-					primitiveNode.put("mode", TRIANGLES);
-					ObjectNode attributesNode = OBJECT_MAPPER.createObjectNode();
-					primitiveNode.set("attributes", attributesNode);
-					attributesNode.put("NORMAL", normalsAccessor);
-					attributesNode.put("POSITION", verticesAccessor);
+					primitive.indices = indicesAccessor;
+					primitive.mode = TRIANGLES;
+					primitive.normal = normalsAccessor;
+					primitive.position = verticesAccessor;
 					if (colorAccessor != -1) {
-						attributesNode.put("COLOR_0", colorAccessor);
-						primitiveNode.put("material", vertexColorIndex);
+						primitive.color = colorAccessor;
+						primitive.material = vertexColorIndex;
 					} else {
-						primitiveNode.put("material", createOrGetMaterial(ifcProduct.eClass().getName(), IfcColors.getDefaultColor(ifcProduct.eClass().getName())));
+						primitive.material = getMaterial(geometryIndex, product);
+					}
+				
+					int meshId = addMesh(new GltfDocument.Primitive[]{primitive});
+					startPositionIndices[indexType] += totalNrIndices * INDEX_BYTE_SIZES[indexType];
+					int[] lodMeshIds = addLodMeshes(geometryIndex, primitive, segment.indicesBufferViews[indexType], startPositionIndices[indexType], indexType);
+					addNodes(geometryIndex, meshId, lodMeshIds);
+
+					startPositionIndices[indexType] += getNrLodIndices(geometryIndex) * INDEX_BYTE_SIZES[indexType];
+					startPositionVertices += getNrVertices(geometryIndex) * positionStride;
+					startPositionNormals += getNrVertices(geometryIndex) * normalStride;
+					if (hasVertexColors(geometryIndex)) {
+						startPositionColors += getNrVertices(geometryIndex) * getColorStride(data);
 					}
-					
-					int meshId = addMesh(ifcProduct, primitivesNode);
-					int nodeId = addNode(meshId, ifcProduct);
-					translationChildrenNode.add(nodeId);
 				}
 			}
+			checkSegment(segment, startPositionIndices, startPositionVertices, startPositionNormals, startPositionColors, startPositionDraco);
 		}
-		
-		if (newIndicesBuffer.position() != newIndicesBuffer.capacity()) {
-			throw new SerializerException("Not all space used");
-		}
-		if (newVerticesBuffer.position() != newVerticesBuffer.capacity()) {
-			throw new SerializerException("Not all space used");
-		}
-		if (newNormalsBuffer.position() != newNormalsBuffer.capacity()) {
-			throw new SerializerException("Not all space used");
-		}
-		if (newColorsBuffer.position() != newColorsBuffer.capacity()) {
-			throw new SerializerException("Not all space used");
-		}
-		
-		newIndicesBuffer.position(0);
-		newVerticesBuffer.position(0);
-		newNormalsBuffer.position(0);
-		newColorsBuffer.position(0);
-		
-		body.put(newIndicesBuffer);
-		body.put(newVerticesBuffer);
-		body.put(newNormalsBuffer);
-		body.put(newColorsBuffer);
 
-		int vertexColorFragmentShaderBufferViewName = createBufferView(vertexColorFragmentShaderBytes.length, body.position(), -1, -1);
-		body.put(vertexColorFragmentShaderBytes);
+		long shaderPosition = lastSegment.byteOffset + lastSegment.getTrailingOffset() + instancesRegionByteLength;
+		
+		createBufferView(lastSegment.buffer, vertexColorFragmentShaderBytes.length, shaderPosition, -1, -1);
+		shaderPosition += vertexColorFragmentShaderBytes.length;
 
-		int vertexColorVertexShaderBufferViewName = createBufferView(vertexColorVertexShaderBytes.length, body.position(), -1, -1);
-		body.put(vertexColorVertexShaderBytes);
+		createBufferView(lastSegment.buffer, vertexColorVertexShaderBytes.length, shaderPosition, -1, -1);
+		shaderPosition += vertexColorVertexShaderBytes.length;
 
-		int materialColorFragmentShaderBufferViewName = createBufferView(materialColorFragmentShaderBytes.length, body.position(), -1, -1);
-		body.put(materialColorFragmentShaderBytes);
+		createBufferView(lastSegment.buffer, materialColorFragmentShaderBytes.length, shaderPosition, -1, -1);
+		shaderPosition += materialColorFragmentShaderBytes.length;
 		
-		int materialColorVertexShaderBufferViewName = createBufferView(materialColorVertexShaderBytes.length, body.position(), -1, -1);
-		body.put(materialColorVertexShaderBytes);
+		createBufferView(lastSegment.buffer, materialColorVertexShaderBytes.length, shaderPosition, -1, -1);
 		
-//		gltfNode.set("animations", createAnimations());
-		gltfNode.set("asset", createAsset());
-//		gltfNode.set("programs", createPrograms());
-		gltfNode.put("scene", 0);
-//		gltfNode.set("skins", createSkins());
-//		gltfNode.set("techniques", createTechniques());
-
-//		createVertexColorShaders(vertexColorFragmentShaderBufferViewName, vertexColorVertexShaderBufferViewName);
-//		createMaterialColorShaders(materialColorFragmentShaderBufferViewName, materialColorVertexShaderBufferViewName);
+		gltfDocument.version = GLTF_VERSION;
 		
-		addBuffer(body.capacity());
+		if (splitBuffers) {
+			for (int segmentIndex=0; segmentIndex<segments.size(); segmentIndex++) {
+				addBuffer(segments.get(segmentIndex).byteLength).uri = ZIP_BUFFER_PREFIX + segmentIndex + ".bin";
+			}
+		} else {
+			addBuffer(bodyByteLength);
+		}
 
-//		ArrayNode extensions = OBJECT_MAPPER.createArrayNode();
-//		extensions.add("KHR_binary_glTF");
-//		gltfNode.set("extensionsUsed", extensions);
+		if (settings.meshoptCompression) {
+			setMeshoptCompression(normalStride);
+		}
+		endPhase();
 	}
 
-	private float[] getOffsets() {
-		float[] changes = new float[3];
-		for (int i=0; i<3; i++) {
-			changes[i] = (max[i] - min[i]) / 2.0f + min[i];
+	/**
+	 * Cuts the geometries, or the parts in batched mode, into segments of at most the maximum buffer size. Parts are only cut between batches, the parts of a
+	 * batch share its accessors. A geometry that is larger than the maximum gets a segment of its own.
+	 */
+	private void planSegments() throws SerializerException {
+		if (settings.maxBufferSize < 1 || settings.maxBufferSize > MAX_BUFFER_SIZE) {
+			throw new SerializerException("The maximum buffer size has to be between 1 and " + MAX_BUFFER_SIZE + " MB");
 		}
-		return changes;
-	}
-	
-	private void updateExtends(GeometryInfo geometryInfo, float[] matrix) {
-		ByteBuffer verticesByteBufferBuffer = ByteBuffer.wrap(geometryInfo.getData().getVertices().getData());
-		verticesByteBufferBuffer.order(ByteOrder.LITTLE_ENDIAN);
-		FloatBuffer floatBuffer = verticesByteBufferBuffer.asFloatBuffer();
-		for (int i=0; i<floatBuffer.capacity(); i+=3) {
-			float[] input = new float[]{floatBuffer.get(i), floatBuffer.get(i + 1), floatBuffer.get(i + 2), 1};
-			float[] output = new float[4];
-			Matrix.multiplyMV(output, 0, matrix, 0, input, 0);
-			for (int j=0; j<3; j++) {
-				float value = output[j];
-				if (value > max[j]) {
-					max[j] = value;
-				}
-				if (value < min[j]) {
-					min[j] = value;
-				}
+		// Only known to be the last segment at the end, so every segment keeps room for these
+		int trailingByteLength = instancesRegionByteLength + vertexColorFragmentShaderBytes.length + vertexColorVertexShaderBytes.length + materialColorFragmentShaderBytes.length + materialColorVertexShaderBytes.length;
+		long maxByteLength = settings.maxBufferSize * 1024L * 1024L - trailingByteLength;
+		segments = new ArrayList<>();
+		Segment segment = new Segment();
+		long byteLength = 0;
+		int nrUnits = verticesByteLengths.length;
+		for (int unit=0; unit<nrUnits; unit++) {
+			long unitByteLength = (long) verticesByteLengths[unit] + normalsByteLengths[unit] + colorsByteLengths[unit] + featureIdsByteLengths[unit] + (dracoByteLengths != null ? dracoByteLengths[unit] : 0);
+			for (int indexType=0; indexType<INDEX_COMPONENT_TYPES.length; indexType++) {
+				unitByteLength += indicesByteLengths[indexType][unit];
+			}
+			// Up to 3 bytes of padding follow the indices
+			if (unit > segment.from && byteLength + unitByteLength + 3 > maxByteLength && (drawBatches == null || batchParts.get(unit).batch != batchParts.get(unit - 1).batch)) {
+				segment.to = unit;
+				segments.add(segment);
+				segment = new Segment();
+				segment.from = unit;
+				byteLength = 0;
+			}
+			if (byteLength + unitByteLength + 3 + trailingByteLength > Integer.MAX_VALUE) {
+				throw new SerializerException("The geometry of a single product does not fit in a buffer");
+			}
+			for (int indexType=0; indexType<INDEX_COMPONENT_TYPES.length; indexType++) {
+				segment.indicesByteLengths[indexType] += indicesByteLengths[indexType][unit];
+			}
+			segment.verticesByteLength += verticesByteLengths[unit];
+			segment.normalsByteLength += normalsByteLengths[unit];
+			segment.colorsByteLength += colorsByteLengths[unit];
+			segment.featureIdsByteLength += featureIdsByteLengths[unit];
+			if (dracoByteLengths != null) {
+				segment.dracoByteLength += dracoByteLengths[unit];
 			}
+			byteLength += unitByteLength;
+		}
+		segment.to = nrUnits;
+		segment.trailingByteLength = trailingByteLength;
+		segments.add(segment);
+
+		bodyByteLength = 0;
+		for (int segmentIndex=0; segmentIndex<segments.size(); segmentIndex++) {
+			segment = segments.get(segmentIndex);
+			segment.byteLength = segment.getTrailingOffset() + segment.trailingByteLength;
+			segment.buffer = splitBuffers ? segmentIndex : 0;
+			// All lengths but the shaders are multiples of 4, so every segment that follows another one starts aligned
+			segment.byteOffset = splitBuffers ? 0 : bodyByteLength;
+			bodyByteLength += segment.byteLength;
 		}
 	}
 
-	private int addNode(int meshId, IfcProduct ifcProduct) {
-		ObjectNode nodeNode = OBJECT_MAPPER.createObjectNode();
-
-		ArrayNode matrixArray = OBJECT_MAPPER.createArrayNode();
-		ByteBuffer matrixByteBuffer = ByteBuffer.wrap(ifcProduct.getGeometry().getTransformation());
-		matrixByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-		DoubleBuffer doubleBuffer = matrixByteBuffer.asDoubleBuffer();
-		double[] buffer = new double[16];
-		for (int i = 0; i < 16; i++) {
-			double d= doubleBuffer.get(i);
-			matrixArray.add(d);
-			buffer[i] = d;
+	/**
+	 * Creates the bufferViews of the regions of a segment, in the order of the regions. Without batches the colors only get a bufferView once a geometry with
+	 * vertex colors is added.
+	 */
+	private void createSegmentBufferViews(Segment segment, int positionStride, int normalStride) {
+		long indicesBufferViewOffset = segment.byteOffset;
+		for (int indexType=0; indexType<INDEX_COMPONENT_TYPES.length; indexType++) {
+			segment.indicesBufferViews[indexType] = segment.indicesByteLengths[indexType] == 0 ? -1 : createBufferView(segment.buffer, segment.indicesByteLengths[indexType], indicesBufferViewOffset, ELEMENT_ARRAY_BUFFER, -1);
+			indicesBufferViewOffset += segment.indicesByteLengths[indexType];
 		}
-        String GUID = ifcProduct.getGlobalId();
-        ObjectNode extrasNode = OBJECT_MAPPER.createObjectNode();
-        nodeNode.set("extras", extrasNode);
-        extrasNode.put("ifcID", GUID);
-		nodeNode.put("mesh", meshId);
-		if (!Matrix.isIdentity(buffer)) {
-			nodeNode.set("matrix", matrixArray);
+		// With Draco every primitive gets a bufferView of its own in the Draco region, the attribute regions are empty
+		if (!dracoCompression) {
+			segment.verticesBufferView = createBufferView(segment.buffer, segment.verticesByteLength, segment.byteOffset + segment.getIndicesRegionByteLength(), ARRAY_BUFFER, positionStride);
+			segment.normalsBufferView = createBufferView(segment.buffer, segment.normalsByteLength, segment.byteOffset + segment.getNormalsOffset(), ARRAY_BUFFER, normalStride);
+		}
+		if (drawBatches != null) {
+			if (segment.colorsByteLength > 0) {
+				segment.colorsBufferView = createColorsBufferView(segment);
+			}
+			segment.featureIdsBufferView = createBufferView(segment.buffer, segment.featureIdsByteLength, segment.byteOffset + segment.getFeatureIdsOffset(), ARRAY_BUFFER, FEATURE_ID_STRIDE);
 		}
-		nodes.add(nodeNode);
-
-		return nodes.size() - 1;
 	}
 
-	private ObjectNode createDefaultScene() {
-		ObjectNode sceneNode = OBJECT_MAPPER.createObjectNode();
-
-		defaultSceneNodes = OBJECT_MAPPER.createArrayNode();
-
-		sceneNode.set("nodes", defaultSceneNodes);
-
-		return sceneNode;
+	private int createColorsBufferView(Segment segment) {
+		return createBufferView(segment.buffer, segment.colorsByteLength, segment.byteOffset + segment.getColorsOffset(), ARRAY_BUFFER, settings.compactAttributes ? COMPACT_COLOR_STRIDE : 16);
 	}
 
-//	private int createBufferView(int byteLength, int byteOffset, int byteStride) {
-//		return createBufferView(byteLength, byteOffset, -1, byteStride);
-//	}
-	
-	private int createBufferView(int byteLength, int byteOffset, int target, int byteStride) {
-		ObjectNode bufferViewNode = OBJECT_MAPPER.createObjectNode();
-
-		bufferViewNode.put("buffer", 0);
-		bufferViewNode.put("byteLength", byteLength);
-		bufferViewNode.put("byteOffset", byteOffset);
-		if (byteStride != -1) {
-			bufferViewNode.put("byteStride", byteStride);
-		}
-		if (target != -1) {
-			bufferViewNode.put("target", target);
+	/**
+	 * Checks that the accessors of a segment end exactly where its regions end
+	 */
+	private void checkSegment(Segment segment, int[] startPositionIndices, int startPositionVertices, int startPositionNormals, int startPositionColors, long startPositionDraco) throws SerializerException {
+		if (!Arrays.equals(startPositionIndices, segment.indicesByteLengths) || startPositionVertices != segment.verticesByteLength || startPositionNormals != segment.normalsByteLength || startPositionColors != segment.colorsByteLength || startPositionDraco != segment.byteOffset + segment.getTrailingOffset()) {
+			throw new SerializerException("Not all space used");
 		}
-
-		buffersViews.add(bufferViewNode);
-
-		return buffersViews.size() - 1;
 	}
 
-	private int addNormalsAccessor(IfcProduct ifcProduct, int bufferViewIndex, int byteOffset, int count) throws SerializerException {
-		if (count <= 0) {
-			throw new SerializerException("Count <= 0");
+	/**
+	 * Marks the bufferViews that are compressed with EXT_meshopt_compression. Byte indices are left as they are, the codecs only take 2 and 4 byte indices, and so are the shaders.
+	 * The location of the compressed data is only known after compressBody.
+	 */
+	private void setMeshoptCompression(int normalStride) {
+		boolean compressed = false;
+		Set<Integer> normalsBufferViews = new HashSet<>();
+		for (Segment segment : segments) {
+			for (int indexType : new int[] {INT_INDICES, SHORT_INDICES}) {
+				int bufferViewIndex = segment.indicesBufferViews[indexType];
+				if (bufferViewIndex != -1) {
+					GltfDocument.BufferView bufferView = gltfDocument.bufferViews.get(bufferViewIndex);
+					int count = bufferView.byteLength / INDEX_BYTE_SIZES[indexType];
+					bufferView.meshopt = createMeshoptCompression(count % 3 == 0 ? GltfDocument.MeshoptCompression.TRIANGLES : GltfDocument.MeshoptCompression.INDICES, INDEX_BYTE_SIZES[indexType], count, null);
+					compressed = true;
+				}
+			}
+			normalsBufferViews.add(segment.normalsBufferView);
 		}
-
-		ObjectNode accessor = OBJECT_MAPPER.createObjectNode();
-		accessor.put("bufferView", bufferViewIndex);
-		accessor.put("byteOffset", byteOffset);
-//		accessor.put("byteStride", 12);
-		accessor.put("componentType", FLOAT);
-		accessor.put("count", count);
-		accessor.put("type", "VEC3");
-
-		ArrayNode min = OBJECT_MAPPER.createArrayNode();
-		min.add(-1d);
-		min.add(-1d);
-		min.add(-1d);
-		ArrayNode max = OBJECT_MAPPER.createArrayNode();
-		max.add(1);
-		max.add(1);
-		max.add(1);
-
-//		accessor.set("min", min);
-//		accessor.set("max", max);
-
-		accessors.add(accessor);
-
-		return accessors.size() - 1;
-	}
-
-	private int addColorsAccessor(IfcProduct ifcProduct, int bufferViewIndex, int byteOffset, int count) {
-		ObjectNode accessor = OBJECT_MAPPER.createObjectNode();
-		accessor.put("bufferView", bufferViewIndex);
-		accessor.put("byteOffset", byteOffset);
-//		accessor.put("byteStride", 16);
-		accessor.put("componentType", FLOAT);
-		accessor.put("count", count);
-		accessor.put("type", "VEC4");
-		
-//		ArrayNode min = OBJECT_MAPPER.createArrayNode();
-//		min.add(-1d);
-//		min.add(-1d);
-//		min.add(-1d);
-//		ArrayNode max = OBJECT_MAPPER.createArrayNode();
-//		max.add(1);
-//		max.add(1);
-//		max.add(1);
-//		
-//		accessor.set("min", min);
-//		accessor.set("max", max);
-		
-		accessors.add(accessor);
-		
-		return accessors.size() - 1;
-	}
-
-	private int addVerticesAccessor(IfcProduct ifcProduct, int bufferViewIndex, int startPosition, int count) throws SerializerException {
-		if (count <= 0) {
-			throw new SerializerException("Count <= 0");
+		for (int bufferViewIndex = 0; bufferViewIndex < gltfDocument.bufferViews.size(); bufferViewIndex++) {
+			GltfDocument.BufferView bufferView = gltfDocument.bufferViews.get(bufferViewIndex);
+			if (bufferView.byteLength == 0) {
+				continue;
+			}
+			if (bufferView.target == ARRAY_BUFFER && bufferView.byteStride % 4 == 0 && bufferView.byteStride <= MESHOPT_MAX_STRIDE) {
+				String filter = null;
+				if (normalsBufferViews.contains(bufferViewIndex)) {
+					filter = normalStride == COMPACT_NORMAL_STRIDE ? GltfDocument.MeshoptCompression.OCTAHEDRAL : GltfDocument.MeshoptCompression.EXPONENTIAL;
+				}
+				bufferView.meshopt = createMeshoptCompression(GltfDocument.MeshoptCompression.ATTRIBUTES, bufferView.byteStride, bufferView.byteLength / bufferView.byteStride, filter);
+				compressed = true;
+			} else if (bufferViewIndex == instancesBufferView && bufferView.byteLength % 4 == 0) {
+				// Translations, rotations and scales are all floats, element by element
+				bufferView.meshopt = createMeshoptCompression(GltfDocument.MeshoptCompression.ATTRIBUTES, 4, bufferView.byteLength / 4, null);
+				compressed = true;
+			}
 		}
-		if (count * 12 == 9000) {
-			System.out.println();
+		if (compressed) {
+			if (settings.meshoptFallback) {
+				addUsedExtension(EXT_MESHOPT_COMPRESSION);
+			} else {
+				addRequiredExtension(EXT_MESHOPT_COMPRESSION);
+			}
 		}
-		GeometryData data = ifcProduct.getGeometry().getData();
-		ByteBuffer verticesBuffer = ByteBuffer.wrap(data.getVertices().getData());
+	}
 
-		ObjectNode accessor = OBJECT_MAPPER.createObjectNode();
-		accessor.put("bufferView", bufferViewIndex);
-		accessor.put("byteOffset", startPosition);
-//		accessor.put("byteStride", 12);
-		accessor.put("componentType", FLOAT);
-		accessor.put("count", count);
-		accessor.put("type", "VEC3");
+	private GltfDocument.MeshoptCompression createMeshoptCompression(String mode, int byteStride, int count, String filter) {
+		GltfDocument.MeshoptCompression meshopt = new GltfDocument.MeshoptCompression();
+		meshopt.mode = mode;
+		meshopt.byteStride = byteStride;
+		meshopt.count = count;
+		meshopt.filter = filter;
+		return meshopt;
+	}
 
-		verticesBuffer.order(ByteOrder.LITTLE_ENDIAN);
-		float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
-		float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
-		for (int i = 0; i < verticesBuffer.capacity(); i += 12) {
-			for (int j = 0; j < 3; j++) {
-				float val = verticesBuffer.getFloat(i + (j * 4));
-				if (val > max[j]) {
-					max[j] = val;
+	/**
+	 * Converts the binary data once and compresses every bufferView in the background as soon as it is complete. The compressed data goes into the buffer of
+	 * the bufferView: after the uncompressed data with a fallback, otherwise together with the bufferViews that are not compressed, the compressed ones then
+	 * point into a fallback buffer without data. Every buffer has a fallback buffer of its own, after all buffers with data.
+	 * 
+	 * @return The data of the bufferViews that have to be written after the uncompressed data, or instead of it without a fallback, to be closed by the caller
+	 */
+	private MeshoptViews compressBody() throws IOException, SerializerException {
+		startPhase(ExportMetrics.Phase.COMPRESSION);
+		progress.startStage("Compressing", bodyByteLength);
+		int nrBuffers = gltfDocument.buffers.size();
+		int nrBufferViews = gltfDocument.bufferViews.size();
+		MeshoptViews views = new MeshoptViews(nrBufferViews, MESHOPT_MEMORY_BYTE_LENGTH);
+		try {
+			for (int bufferIndex = 0; bufferIndex < nrBuffers; bufferIndex++) {
+				MeshoptCompressor compressor = new MeshoptCompressor(gltfDocument.bufferViews, bufferIndex, conversionPipeline, !settings.meshoptFallback, views);
+				LittleEndianDataOutputStream compressorOutputStream = new LittleEndianDataOutputStream(compressor);
+				writeBufferData(compressorOutputStream, bufferIndex);
+				compressorOutputStream.flush();
+				try {
+					compressor.finish();
+				} catch (CancellationException e) {
+					// Not a failure of the compression, passed on as it is
+					throw e;
+				} catch (IllegalArgumentException | IllegalStateException e) {
+					throw new SerializerException(e);
 				}
-				if (val < min[j]) {
-					min[j] = val;
+	
+				GltfDocument.Buffer buffer = gltfDocument.buffers.get(bufferIndex);
+				long position = settings.meshoptFallback ? align(buffer.byteLength) : 0;
+				for (int bufferViewIndex = 0; bufferViewIndex < nrBufferViews; bufferViewIndex++) {
+					GltfDocument.BufferView bufferView = gltfDocument.bufferViews.get(bufferViewIndex);
+					if (bufferView.buffer != bufferIndex || !views.contains(bufferViewIndex)) {
+						continue;
+					}
+					position = align(position);
+					if (bufferView.meshopt != null) {
+						bufferView.meshopt.buffer = bufferIndex;
+						bufferView.meshopt.byteOffset = position;
+						bufferView.meshopt.byteLength = views.getByteLength(bufferViewIndex);
+						if (!settings.meshoptFallback) {
+							bufferView.buffer = gltfDocument.buffers.size();
+						}
+					} else {
+						bufferView.byteOffset = position;
+					}
+					position += views.getByteLength(bufferViewIndex);
+				}
+				if (!settings.meshoptFallback) {
+					addBuffer(buffer.byteLength).meshoptFallback = true;
 				}
+				buffer.byteLength = position;
 			}
+		} catch (IOException | SerializerException | RuntimeException e) {
+			views.close();
+			throw e;
 		}
-		
-		ArrayNode minNode = OBJECT_MAPPER.createArrayNode();
-		minNode.add(min[0]);
-		minNode.add(min[1]);
-		minNode.add(min[2]);
-		ArrayNode maxNode = OBJECT_MAPPER.createArrayNode();
-		maxNode.add(max[0]);
-		maxNode.add(max[1]);
-		maxNode.add(max[2]);
-
-		accessor.set("min", minNode);
-		accessor.set("max", maxNode);
-
-		accessors.add(accessor);
-
-		return accessors.size() - 1;
+		endPhase();
+		return views;
 	}
 
-	private int addIndicesAccessor(IfcProduct ifcProduct, int bufferViewIndex, int offsetBytes, int count, int[] min, int[] max) throws SerializerException {
-		if (count <= 0) {
-			throw new SerializerException(count + " <= 0");
-		}
+	/**
+	 * Writes the binary chunk of a GLB, its one buffer
+	 * 
+	 * @param meshoptViews The bufferViews from compressBody, or null without compression
+	 */
+	private void writeBody(LittleEndianDataOutputStream dataOutputStream, MeshoptViews meshoptViews) throws IOException, SerializerException {
+		long byteLength = gltfDocument.buffers.get(0).byteLength;
+		// Unsigned, the length has been checked against the GLB maximum before anything was written
+		dataOutputStream.writeInt((int) align(byteLength));
+		dataOutputStream.writeInt(BINARY_CHUNK);
 
-		ObjectNode accessor = OBJECT_MAPPER.createObjectNode();
-		accessor.put("bufferView", bufferViewIndex);
-		accessor.put("byteOffset", offsetBytes);
-//		accessor.put("byteStride", 0);
-		accessor.put("componentType", UNSIGNED_SHORT);
-		accessor.put("count", count);
-		accessor.put("type", "SCALAR");
+		writeBuffer(dataOutputStream, 0, meshoptViews);
 		
-//		ArrayNode minArray = OBJECT_MAPPER.createArrayNode();
-//		ArrayNode maxArray = OBJECT_MAPPER.createArrayNode();
-//		
-//		for (int i=0; i<min.length; i++) {
-//			minArray.add(min[i]);
-//			maxArray.add(max[i]);
-//		}
-//		
-//		accessor.set("min", minArray);
-//		accessor.set("max", maxArray);
-
-		accessors.add(accessor);
-
-		return accessors.size() - 1;
-	}
-
-	private int addMesh(IfcProduct ifcProduct, ArrayNode primitivesNode) {
-		ObjectNode meshNode = OBJECT_MAPPER.createObjectNode();
-		meshNode.set("primitives", primitivesNode);
-		meshes.add(meshNode);
-		return meshes.size() - 1;
+		writePadding(dataOutputStream, (int) (align(byteLength) - byteLength));
 	}
 
-	private void addBuffer(int byteLength) {
-		ObjectNode bufferNode = OBJECT_MAPPER.createObjectNode();
-
-		bufferNode.put("byteLength", byteLength);
-//		bufferNode.put("uri", "data:,");
-
-		buffers.add(bufferNode);
+	/**
+	 * Writes one buffer, the uncompressed data unless it was replaced by compressed data without a fallback, followed by the compressed data
+	 * 
+	 * @param meshoptViews The bufferViews from compressBody, or null without compression
+	 */
+	private void writeBuffer(LittleEndianDataOutputStream dataOutputStream, int bufferIndex, MeshoptViews meshoptViews) throws IOException, SerializerException {
+		long position = 0;
+		if (meshoptViews == null || settings.meshoptFallback) {
+			position = writeBufferData(dataOutputStream, bufferIndex);
+		}
+		if (meshoptViews != null) {
+			for (int bufferViewIndex = 0; bufferViewIndex < gltfDocument.bufferViews.size(); bufferViewIndex++) {
+				if (meshoptViews.contains(bufferViewIndex)) {
+					GltfDocument.BufferView bufferView = gltfDocument.bufferViews.get(bufferViewIndex);
+					if ((bufferView.meshopt != null ? bufferView.meshopt.buffer : bufferView.buffer) != bufferIndex) {
+						continue;
+					}
+					long byteOffset = bufferView.meshopt != null ? bufferView.meshopt.byteOffset : bufferView.byteOffset;
+					int padding = writePadding(dataOutputStream, (int) (byteOffset - position));
+					meshoptViews.write(bufferViewIndex, dataOutputStream);
+					position += padding + meshoptViews.getByteLength(bufferViewIndex);
+					progress.advance(padding + meshoptViews.getByteLength(bufferViewIndex));
+				}
+			}
+		}
+		checkRegion(position, gltfDocument.buffers.get(bufferIndex).byteLength);
 	}
 
-	private JsonNode createAnimations() {
-		return OBJECT_MAPPER.createArrayNode();
+	/**
+	 * Streams the uncompressed data of the segments in a buffer
+	 * 
+	 * @return The number of bytes written
+	 */
+	long writeBufferData(LittleEndianDataOutputStream dataOutputStream, int bufferIndex) throws IOException, SerializerException {
+		long written = 0;
+		for (Segment segment : segments) {
+			if (segment.buffer == bufferIndex) {
+				writeSegmentData(dataOutputStream, segment);
+				written += segment.byteLength;
+			}
+		}
+		return written;
 	}
 
-	private JsonNode createTechniques() {
-		ObjectNode techniques = OBJECT_MAPPER.createObjectNode();
-
-		techniques.set("vertexColorTechnique", createVertexColorTechnique());
-		techniques.set("materialColorTechnique", createMaterialColorTechnique());
-
-		return techniques;
-	}
+	/**
+	 * Streams the uncompressed data of a segment, one region (bufferView) at a time. Every product is converted again when its region is written, in batches of a few MB, so the geometry of the whole model is never on the heap
+	 */
+	private void writeSegmentData(LittleEndianDataOutputStream dataOutputStream, Segment segment) throws IOException, SerializerException {
+		int from = segment.from;
+		int to = segment.to;
+		try {
+			long written = 0;
+			for (int indexType=0; indexType<INDEX_COMPONENT_TYPES.length; indexType++) {
+				int regionIndexType = indexType;
+				if (drawBatches != null) {
+					written += conversionPipeline.writeRegion(dataOutputStream, indicesByteLengths[indexType], from, to, (partIndex, slice) -> convertPartIndices(partIndex, regionIndexType, slice));
+				} else {
+					written += conversionPipeline.writeRegion(dataOutputStream, indicesByteLengths[indexType], from, to, (geometryIndex, slice) -> convertIndices(geometryIndex, regionIndexType, slice));
+				}
+			}
+			int padding = writePadding(dataOutputStream, segment.getIndicesRegionByteLength() - (int)written);
+			progress.advance(padding);
+			written += padding;
+			checkRegion(written, segment.getIndicesRegionByteLength());
+	
+			if (drawBatches != null) {
+				written = conversionPipeline.writeRegion(dataOutputStream, verticesByteLengths, from, to, (partIndex, slice) -> convertPartPositions(partIndex, slice));
+			} else if (quantizePositions) {
+				written = conversionPipeline.writeRegion(dataOutputStream, verticesByteLengths, from, to, (geometryIndex, slice) -> convertQuantizedPositions(geometryIndex, slice));
+			} else {
+				written = conversionPipeline.writeRegion(dataOutputStream, verticesByteLengths, from, to, (geometryIndex, slice) -> convertVertexAttribute(geometryIndex, geometries.get(geometryIndex).getVertices(), slice));
+			}
+			checkRegion(written, segment.verticesByteLength);
+	
+			if (drawBatches != null) {
+				written = conversionPipeline.writeRegion(dataOutputStream, normalsByteLengths, from, to, (partIndex, slice) -> convertPartNormals(partIndex, slice));
+			} else if (settings.compactAttributes) {
+				written = conversionPipeline.writeRegion(dataOutputStream, normalsByteLengths, from, to, (geometryIndex, slice) -> convertCompactNormals(geometryIndex, slice));
+			} else {
+				written = conversionPipeline.writeRegion(dataOutputStream, normalsByteLengths, from, to, (geometryIndex, slice) -> convertVertexAttribute(geometryIndex, geometries.get(geometryIndex).getNormals(), slice));
+			}
+			checkRegion(written, segment.normalsByteLength);
+			
+			if (drawBatches != null) {
+				written = conversionPipeline.writeRegion(dataOutputStream, colorsByteLengths, from, to, (partIndex, slice) -> convertPartColors(partIndex, slice));
+			} else if (settings.compactAttributes) {
+				written = conversionPipeline.writeRegion(dataOutputStream, colorsByteLengths, from, to, (geometryIndex, slice) -> convertCompactColors(geometryIndex, slice));
+			} else {
+				written = conversionPipeline.writeRegion(dataOutputStream, colorsByteLengths, from, to, (geometryIndex, slice) -> convertVertexAttribute(geometryIndex, geometries.get(geometryIndex).getColorsQuantized(), slice));
+			}
+			checkRegion(written, segment.colorsByteLength);
+			
+			written = conversionPipeline.writeRegion(dataOutputStream, featureIdsByteLengths, from, to, (partIndex, slice) -> convertPartFeatureIds(partIndex, slice));
+			checkRegion(written, segment.featureIdsByteLength);
+			
+			if (dracoCompression) {
+				written = conversionPipeline.writeRegion(dataOutputStream, dracoByteLengths, from, to, (geometryIndex, slice) -> putDracoPrimitives(geometryIndex, slice));
+				checkRegion(written, segment.dracoByteLength);
+			}
+			
+			if (segment.trailingByteLength > 0 && instancesData != null) {
+				instancesData.writeTo(dataOutputStream);
+			}
+		} catch (CancellationException e) {
+			throw e;
+		} catch (IllegalStateException e) {
+			throw new SerializerException(e);
+		}
+		
+		if (segment.trailingByteLength > 0) {
+			dataOutputStream.write(vertexColorFragmentShaderBytes);
+			dataOutputStream.write(vertexColorVertexShaderBytes);
+			dataOutputStream.write(materialColorFragmentShaderBytes);
+			dataOutputStream.write(materialColorVertexShaderBytes);
+			progress.advance(segment.trailingByteLength);
+		}
+	}
+	
+	private void checkRegion(long written, long expected) throws SerializerException {
+		if (written != expected) {
+			throw new SerializerException("Not all space used");
+		}
+	}
+
+	/**
+	 * Writes the indices of the primitives of one product that use the given index type
+	 */
+	private void convertIndices(int geometryIndex, int indexType, ByteBuffer newIndicesBuffer) {
+		IntBuffer indicesIntBuffer = getIndices(geometryIndex);
+		
+		MeshSplit meshSplit = meshSplits[geometryIndex];
+		if (meshSplit != null) {
+			meshSplit.remap(indicesIntBuffer, (chunk, localIndices, nrIndices, vertices, nrVertices) -> {
+				if (getIndexType(nrVertices - 1) == indexType) {
+					for (int i=0; i<nrIndices; i++) {
+						putIndex(newIndicesBuffer, indexType, localIndices[i]);
+					}
+				}
+			});
+		} else if (getIndexType(maxIndices[geometryIndex]) == indexType) {
+			int totalNrIndices = indicesIntBuffer.capacity();
+			for (int i=0; i<totalNrIndices; i++) {
+				putIndex(newIndicesBuffer, indexType, indicesIntBuffer.get(i));
+			}
+			if (lodIndices[geometryIndex] != null) {
+				for (int[] levelIndices : lodIndices[geometryIndex]) {
+					for (int index : levelIndices) {
+						putIndex(newIndicesBuffer, indexType, index);
+					}
+				}
+			}
+		}
+	}
 
-	private ObjectNode createMaterialColorTechnique() {
-		ObjectNode technique = OBJECT_MAPPER.createObjectNode();
+	/**
+	 * @return The indices of a geometry in the order they are written
+	 */
+	private IntBuffer getIndices(int geometryIndex) {
+		if (remappedIndices[geometryIndex] != null) {
+			return IntBuffer.wrap(remappedIndices[geometryIndex]);
+		}
+		ByteBuffer indicesBuffer = ByteBuffer.wrap(geometries.get(geometryIndex).getIndices().getData());
+		indicesBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		return indicesBuffer.asIntBuffer();
+	}
 
-		ObjectNode attributes = OBJECT_MAPPER.createObjectNode();
-		ObjectNode parameters = OBJECT_MAPPER.createObjectNode();
-		ObjectNode states = OBJECT_MAPPER.createObjectNode();
-		ObjectNode uniforms = OBJECT_MAPPER.createObjectNode();
+	/**
+	 * @return The number of vertices of a geometry as it is written, before a split
+	 */
+	private int getNrVertices(int geometryIndex) {
+		if (vertexOrders[geometryIndex] != null) {
+			return vertexOrders[geometryIndex].length;
+		}
+		return geometries.get(geometryIndex).getVertices().getData().length / 12;
+	}
 
-		attributes.put("a_normal", "normal");
-		attributes.put("a_position", "position");
+	/**
+	 * @return XYZ of the vertices of a geometry in the order they are written, before a split
+	 */
+	private float[] getPositions(int geometryIndex) {
+		ByteBuffer verticesBuffer = ByteBuffer.wrap(geometries.get(geometryIndex).getVertices().getData());
+		verticesBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer vertices = verticesBuffer.asFloatBuffer();
+		float[] positions = new float[getNrVertices(geometryIndex) * 3];
+		int[] vertexOrder = vertexOrders[geometryIndex];
+		if (vertexOrder == null) {
+			vertices.get(positions);
+		} else {
+			for (int i=0; i<positions.length; i++) {
+				positions[i] = vertices.get(vertexOrder[i / 3] * 3 + i % 3);
+			}
+		}
+		return positions;
+	}
 
-		ObjectNode diffuse = OBJECT_MAPPER.createObjectNode();
-		diffuse.put("type", 35666);
-		parameters.set("diffuse", diffuse);
+	/**
+	 * @return XYZ of the normals of a geometry in the order they are written, before a split
+	 */
+	private float[] getNormals(int geometryIndex) {
+		ByteBuffer normalsBuffer = ByteBuffer.wrap(geometries.get(geometryIndex).getNormals().getData());
+		normalsBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer normalsFloatBuffer = normalsBuffer.asFloatBuffer();
+		float[] normals = new float[getNrVertices(geometryIndex) * 3];
+		int[] vertexOrder = vertexOrders[geometryIndex];
+		if (vertexOrder == null) {
+			normalsFloatBuffer.get(normals);
+		} else {
+			for (int i=0; i<normals.length; i++) {
+				normals[i] = normalsFloatBuffer.get(vertexOrder[i / 3] * 3 + i % 3);
+			}
+		}
+		return normals;
+	}
+
+	/**
+	 * @return RGBA bytes of the colors of a geometry in the order they are written, before a split
+	 */
+	private byte[] getCompactColors(int geometryIndex) {
+		VertexEncoder encoder = getCompactColorEncoder(geometries.get(geometryIndex));
+		int nrVertices = getNrVertices(geometryIndex);
+		ByteBuffer colorsBuffer = ByteBuffer.allocate(nrVertices * COMPACT_COLOR_STRIDE);
+		int[] vertexOrder = vertexOrders[geometryIndex];
+		for (int i=0; i<nrVertices; i++) {
+			encoder.put(colorsBuffer, vertexOrder == null ? i : vertexOrder[i]);
+		}
+		return colorsBuffer.array();
+	}
 
-		ObjectNode modelViewMatrix = OBJECT_MAPPER.createObjectNode();
-		modelViewMatrix.put("semantic", "MODELVIEW");
-		modelViewMatrix.put("type", 35676);
-		parameters.set("modelViewMatrix", modelViewMatrix);
+	private static void putIndex(ByteBuffer buffer, int indexType, int index) {
+		switch (indexType) {
+		case INT_INDICES:
+			buffer.putInt(index);
+			break;
+		case SHORT_INDICES:
+			buffer.putShort((short)index);
+			break;
+		default:
+			buffer.put((byte)index);
+		}
+	}
 
-		ObjectNode normal = OBJECT_MAPPER.createObjectNode();
-		normal.put("semantic", "NORMAL");
-		normal.put("type", 35665);
-		parameters.set("normal", normal);
+	/**
+	 * The smallest index type that can hold maxIndex. The maximum value of every type is the primitive restart value, which glTF does not allow as index.
+	 */
+	private static int getIndexType(int maxIndex) {
+		if (maxIndex < 0xFF) {
+			return BYTE_INDICES;
+		} else if (maxIndex < 0xFFFF) {
+			return SHORT_INDICES;
+		}
+		return INT_INDICES;
+	}
 
-		ObjectNode normalMatrix = OBJECT_MAPPER.createObjectNode();
-		normalMatrix.put("semantic", "MODELVIEWINVERSETRANSPOSE");
-		normalMatrix.put("type", 35675);
-		parameters.set("normalMatrix", normalMatrix);
+	/**
+	 * Writes one vertex, identified by its index in the original mesh
+	 */
+	private interface VertexEncoder {
+		void put(ByteBuffer buffer, int vertex);
+	}
 
-		ObjectNode position = OBJECT_MAPPER.createObjectNode();
-		position.put("semantic", "POSITION");
-		position.put("type", 35665);
-		parameters.set("position", position);
+	/**
+	 * Encodes all vertices of a geometry in the order they are written, split mesh vertices are written chunk by chunk in the order the chunks use them
+	 */
+	private void convertVertices(int geometryIndex, ByteBuffer newAttributeBuffer, VertexEncoder encoder) {
+		MeshSplit meshSplit = meshSplits[geometryIndex];
+		if (meshSplit == null) {
+			int nrVertices = getNrVertices(geometryIndex);
+			int[] vertexOrder = vertexOrders[geometryIndex];
+			for (int i=0; i<nrVertices; i++) {
+				encoder.put(newAttributeBuffer, vertexOrder == null ? i : vertexOrder[i]);
+			}
+			return;
+		}
+		int[] vertexOrder = vertexOrders[geometryIndex];
+		meshSplit.remap(getIndices(geometryIndex), (chunk, localIndices, nrIndices, vertices, nrVertices) -> {
+			for (int i=0; i<nrVertices; i++) {
+				encoder.put(newAttributeBuffer, vertexOrder == null ? vertices[i] : vertexOrder[vertices[i]]);
+			}
+		});
+	}
 
-		ObjectNode projectionMatrix = OBJECT_MAPPER.createObjectNode();
-		projectionMatrix.put("semantic", "PROJECTION");
-		projectionMatrix.put("type", 35676);
-		parameters.set("projectionMatrix", projectionMatrix);
+	/**
+	 * Copies the vertices, normals or colors of one geometry as they are
+	 */
+	private void convertVertexAttribute(int geometryIndex, Buffer attribute, ByteBuffer newAttributeBuffer) {
+		byte[] attributeData = attribute.getData();
+		if (meshSplits[geometryIndex] == null && vertexOrders[geometryIndex] == null) {
+			newAttributeBuffer.put(attributeData);
+			return;
+		}
+		int stride = attributeData.length / (geometries.get(geometryIndex).getVertices().getData().length / 12);
+		convertVertices(geometryIndex, newAttributeBuffer, (buffer, vertex) -> buffer.put(attributeData, vertex * stride, stride));
+	}
 
-		ObjectNode shininess = OBJECT_MAPPER.createObjectNode();
-		shininess.put("type", 5126);
-		parameters.set("shininess", shininess);
+	private void convertQuantizedPositions(int geometryIndex, ByteBuffer newPositionsBuffer) {
+		ByteBuffer verticesBuffer = ByteBuffer.wrap(geometries.get(geometryIndex).getVertices().getData());
+		verticesBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer verticesFloatBuffer = verticesBuffer.asFloatBuffer();
+		float[] dequantization = getDequantization(geometryIndex);
+		convertVertices(geometryIndex, newPositionsBuffer, (buffer, vertex) -> putQuantizedPosition(buffer, verticesFloatBuffer, vertex, dequantization));
+	}
 
-		ObjectNode specular = OBJECT_MAPPER.createObjectNode();
-		specular.put("type", 35666);
-		parameters.set("specular", specular);
+	private void convertCompactNormals(int geometryIndex, ByteBuffer newNormalsBuffer) {
+		ByteBuffer normalsBuffer = ByteBuffer.wrap(geometries.get(geometryIndex).getNormals().getData());
+		normalsBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer normalsFloatBuffer = normalsBuffer.asFloatBuffer();
+		convertVertices(geometryIndex, newNormalsBuffer, (buffer, vertex) -> {
+			for (int j=0; j<3; j++) {
+				float value = Math.max(-1f, Math.min(1f, normalsFloatBuffer.get(vertex * 3 + j)));
+				buffer.put((byte)Math.round(value * 127f));
+			}
+			buffer.put((byte)0);
+		});
+	}
 
-		technique.put("program", "materialColorProgram");
+	private void convertCompactColors(int geometryIndex, ByteBuffer newColorsBuffer) {
+		convertVertices(geometryIndex, newColorsBuffer, getCompactColorEncoder(geometries.get(geometryIndex)));
+	}
 
-		ArrayNode statesEnable = OBJECT_MAPPER.createArrayNode();
-		statesEnable.add(2929);
-		statesEnable.add(2884);
-		states.set("enable", statesEnable);
+	/**
+	 * Colors that are already 4 bytes per vertex are copied, float colors are converted to bytes
+	 */
+	private static VertexEncoder getCompactColorEncoder(GeometryData data) {
+		byte[] colorsData = data.getColorsQuantized().getData();
+		if (getSourceColorStride(data) == COMPACT_COLOR_STRIDE) {
+			return (buffer, vertex) -> buffer.put(colorsData, vertex * COMPACT_COLOR_STRIDE, COMPACT_COLOR_STRIDE);
+		}
+		ByteBuffer colorsBuffer = ByteBuffer.wrap(colorsData);
+		colorsBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer colorsFloatBuffer = colorsBuffer.asFloatBuffer();
+		return (buffer, vertex) -> {
+			for (int j=0; j<4; j++) {
+				float value = Math.max(0f, Math.min(1f, colorsFloatBuffer.get(vertex * 4 + j)));
+				buffer.put((byte)Math.round(value * 255f));
+			}
+		};
+	}
 
-		uniforms.put("u_diffuse", "diffuse");
-		uniforms.put("u_modelViewMatrix", "modelViewMatrix");
-		uniforms.put("u_normalMatrix", "normalMatrix");
-		uniforms.put("u_projectionMatrix", "projectionMatrix");
-		uniforms.put("u_shininess", "shininess");
-		uniforms.put("u_specular", "specular");
+	/**
+	 * @return The number of bytes per vertex of the colors as they are written
+	 */
+	private int getColorStride(GeometryData data) {
+		return settings.compactAttributes ? COMPACT_COLOR_STRIDE : getSourceColorStride(data);
+	}
 
-		technique.set("attributes", attributes);
-		technique.set("parameters", parameters);
-		technique.set("states", states);
-		technique.set("uniforms", uniforms);
-		
-		return technique;
-	}
-
-	private ObjectNode createVertexColorTechnique() {
-		ObjectNode technique = OBJECT_MAPPER.createObjectNode();
-
-		ObjectNode attributes = OBJECT_MAPPER.createObjectNode();
-		ObjectNode parameters = OBJECT_MAPPER.createObjectNode();
-		ObjectNode states = OBJECT_MAPPER.createObjectNode();
-		ObjectNode uniforms = OBJECT_MAPPER.createObjectNode();
-
-		attributes.put("a_normal", "normal");
-		attributes.put("a_position", "position");
-		attributes.put("a_color", "color");
-
-		ObjectNode modelViewMatrix = OBJECT_MAPPER.createObjectNode();
-		modelViewMatrix.put("semantic", "MODELVIEW");
-		modelViewMatrix.put("type", 35676);
-		parameters.set("modelViewMatrix", modelViewMatrix);
-
-		ObjectNode normal = OBJECT_MAPPER.createObjectNode();
-		normal.put("semantic", "NORMAL");
-		normal.put("type", 35665);
-		parameters.set("normal", normal);
-
-		ObjectNode normalMatrix = OBJECT_MAPPER.createObjectNode();
-		normalMatrix.put("semantic", "MODELVIEWINVERSETRANSPOSE");
-		normalMatrix.put("type", 35675);
-		parameters.set("normalMatrix", normalMatrix);
-
-		ObjectNode position = OBJECT_MAPPER.createObjectNode();
-		position.put("semantic", "POSITION");
-		position.put("type", 35665);
-		parameters.set("position", position);
-
-		ObjectNode color = OBJECT_MAPPER.createObjectNode();
-		color.put("semantic", "COLOR");
-		color.put("type", FLOAT_VEC_4);
-		parameters.set("color", color);
-
-		ObjectNode projectionMatrix = OBJECT_MAPPER.createObjectNode();
-		projectionMatrix.put("semantic", "PROJECTION");
-		projectionMatrix.put("type", 35676);
-		parameters.set("projectionMatrix", projectionMatrix);
-
-		technique.put("program", "vertexColorProgram");
-
-		ArrayNode statesEnable = OBJECT_MAPPER.createArrayNode();
-		statesEnable.add(2929);
-		statesEnable.add(2884);
-		states.set("enable", statesEnable);
-
-		uniforms.put("u_modelViewMatrix", "modelViewMatrix");
-		uniforms.put("u_normalMatrix", "normalMatrix");
-		uniforms.put("u_projectionMatrix", "projectionMatrix");
-
-		technique.set("attributes", attributes);
-		technique.set("parameters", parameters);
-		technique.set("states", states);
-		technique.set("uniforms", uniforms);
-		
-		return technique;
+	private static int getSourceColorStride(GeometryData data) {
+		return data.getColorsQuantized().getData().length / (data.getVertices().getData().length / 12);
 	}
 
-	private JsonNode createSkins() {
-		return OBJECT_MAPPER.createArrayNode();
+	private static void putQuantizedPosition(ByteBuffer buffer, FloatBuffer vertices, int vertex, float[] dequantization) {
+		for (int j=0; j<3; j++) {
+			buffer.putShort((short)quantize(vertices.get(vertex * 3 + j), dequantization, j));
+		}
+		buffer.putShort((short)0);
 	}
 
-	private void createVertexColorShaders(String fragmentShaderBufferViewName, String vertexShaderBufferViewName) {
-		ObjectNode fragmentShaderExtensions = OBJECT_MAPPER.createObjectNode();
-		ObjectNode fragmentShaderBinary = OBJECT_MAPPER.createObjectNode();
-		fragmentShaderExtensions.set("KHR_binary_glTF", fragmentShaderBinary);
-		fragmentShaderBinary.put("bufferView", fragmentShaderBufferViewName);
+	private static int quantize(float value, float[] dequantization, int component) {
+		int quantized = Math.round((value - dequantization[component]) / dequantization[3]);
+		return Math.max(-QUANTIZED_RANGE, Math.min(QUANTIZED_RANGE, quantized));
+	}
 
-		ObjectNode fragmentShader = OBJECT_MAPPER.createObjectNode();
-		fragmentShader.put("type", 35632);
-		fragmentShader.put("uri", "data:,");
-		fragmentShader.set("extensions", fragmentShaderExtensions);
+	/**
+	 * The quantized positions of a geometry are relative to the center of its bounds, with one scale for all axes so the normals are not affected
+	 * 
+	 * @return The center (3) and the scale (1) that turn the quantized positions back into the original ones
+	 */
+	private float[] getDequantization(int geometryIndex) {
+		float[] dequantization = new float[4];
+		float maxHalfExtent = 0;
+		for (int j=0; j<3; j++) {
+			float min = localBounds[geometryIndex * 6 + j];
+			float max = localBounds[geometryIndex * 6 + 3 + j];
+			dequantization[j] = (min + max) / 2f;
+			maxHalfExtent = Math.max(maxHalfExtent, (max - min) / 2f);
+		}
+		dequantization[3] = maxHalfExtent > 0 ? maxHalfExtent / QUANTIZED_RANGE : 1f;
+		return dequantization;
+	}
 
-		ObjectNode vertexShaderExtensions = OBJECT_MAPPER.createObjectNode();
-		ObjectNode vertexShaderBinary = OBJECT_MAPPER.createObjectNode();
-		vertexShaderExtensions.set("KHR_binary_glTF", vertexShaderBinary);
-		vertexShaderBinary.put("bufferView", vertexShaderBufferViewName);
+	/**
+	 * @return The product transformation followed by the dequantization of the positions of the geometry
+	 */
+	private double[] getNodeMatrix(int geometryIndex, int product) {
+		double[] matrix = manifest.getMatrix(product);
+		if (!quantizePositions) {
+			return matrix;
+		}
+		float[] dequantization = getDequantization(geometryIndex);
+		double[] result = new double[16];
+		for (int row=0; row<4; row++) {
+			for (int column=0; column<3; column++) {
+				result[column * 4 + row] = matrix[column * 4 + row] * dequantization[3];
+			}
+			result[12 + row] = matrix[row] * dequantization[0] + matrix[4 + row] * dequantization[1] + matrix[8 + row] * dequantization[2] + matrix[12 + row];
+		}
+		return result;
+	}
 
-		ObjectNode vertexShader = OBJECT_MAPPER.createObjectNode();
-		vertexShader.put("type", 35633);
-		vertexShader.put("uri", "data:,");
-		vertexShader.set("extensions", vertexShaderExtensions);
+	/**
+	 * Folds the dequantization into the translation/rotation/scale of an instance: t' = t + R(S * center), S' = S * scale
+	 */
+	private void addDequantization(float[] transformation, float[] dequantization) {
+		double qx = transformation[3], qy = transformation[4], qz = transformation[5], qw = transformation[6];
+		double vx = transformation[7] * dequantization[0];
+		double vy = transformation[8] * dequantization[1];
+		double vz = transformation[9] * dequantization[2];
+		// v + 2 * q.xyz x (q.xyz x v + w * v)
+		double cx = qy * vz - qz * vy + qw * vx;
+		double cy = qz * vx - qx * vz + qw * vy;
+		double cz = qx * vy - qy * vx + qw * vz;
+		transformation[0] += vx + 2 * (qy * cz - qz * cy);
+		transformation[1] += vy + 2 * (qz * cx - qx * cz);
+		transformation[2] += vz + 2 * (qx * cy - qy * cx);
+		for (int j=7; j<10; j++) {
+			transformation[j] *= dequantization[3];
+		}
+	}
 
-		shaders.set("vertexColorFragmentShader", fragmentShader);
-		shaders.set("vertexColorVertexShader", vertexShader);
+	/**
+	 * The byte lengths of every geometry in every region, in geometry order
+	 */
+	private void computeByteLengths(int positionStride, int normalStride) {
+		indicesByteLengths = new int[INDEX_COMPONENT_TYPES.length][geometries.size()];
+		verticesByteLengths = new int[geometries.size()];
+		normalsByteLengths = new int[geometries.size()];
+		colorsByteLengths = new int[geometries.size()];
+		featureIdsByteLengths = new int[geometries.size()];
+		for (int geometryIndex=0; geometryIndex<geometries.size(); geometryIndex++) {
+			GeometryData data = geometries.get(geometryIndex);
+			int nrIndices = getIndices(geometryIndex).capacity();
+
+			MeshSplit meshSplit = meshSplits[geometryIndex];
+			if (meshSplit != null) {
+				for (int chunk=0; chunk<meshSplit.getNrChunks(); chunk++) {
+					int indexType = getIndexType(meshSplit.getNrVertices(chunk) - 1);
+					indicesByteLengths[indexType][geometryIndex] += meshSplit.getNrIndices(chunk) * INDEX_BYTE_SIZES[indexType];
+				}
+			} else {
+				int indexType = getIndexType(maxIndices[geometryIndex]);
+				// The levels of detail use the vertices of the full geometry, so also the same index type
+				indicesByteLengths[indexType][geometryIndex] = (nrIndices + getNrLodIndices(geometryIndex)) * INDEX_BYTE_SIZES[indexType];
+			}
+			// A split mesh has more vertices than the original, the ones shared by chunks are duplicated
+			int nrVertices = meshSplit != null ? meshSplit.getTotalNrVertices() : getNrVertices(geometryIndex);
+			verticesByteLengths[geometryIndex] = nrVertices * positionStride;
+			normalsByteLengths[geometryIndex] = nrVertices * normalStride;
+			if (hasVertexColors(geometryIndex)) {
+				colorsByteLengths[geometryIndex] = nrVertices * getColorStride(data);
+			}
+		}
 	}
 
-	private void createMaterialColorShaders(String fragmentShaderBufferViewName, String vertexShaderBufferViewName) {
-		ObjectNode fragmentShaderExtensions = OBJECT_MAPPER.createObjectNode();
-		ObjectNode fragmentShaderBinary = OBJECT_MAPPER.createObjectNode();
-		fragmentShaderExtensions.set("KHR_binary_glTF", fragmentShaderBinary);
-		fragmentShaderBinary.put("bufferView", fragmentShaderBufferViewName);
+	/**
+	 * Compresses every geometry with Draco: the full geometry or every chunk of a split mesh, followed by every level of detail, is a primitive of its own.
+	 * All data is in the Draco region, the byte length of a geometry there is that of its primitives, each padded to 4 bytes.
+	 */
+	private void encodeDracoPrimitives() throws SerializerException {
+		indicesByteLengths = new int[INDEX_COMPONENT_TYPES.length][geometries.size()];
+		verticesByteLengths = new int[geometries.size()];
+		normalsByteLengths = new int[geometries.size()];
+		colorsByteLengths = new int[geometries.size()];
+		featureIdsByteLengths = new int[geometries.size()];
+		dracoByteLengths = new int[geometries.size()];
+		progress.startStage("Compressing geometry", geometries.size());
+		try {
+			conversionPipeline.forEach(geometries.size(), geometryIndex -> {
+				// Geometries from the cache have their primitives already
+				if (dracoPrimitives[geometryIndex] == null) {
+					dracoPrimitives[geometryIndex] = encodeDraco(geometryIndex);
+				}
+				for (DracoPrimitive primitive : dracoPrimitives[geometryIndex]) {
+					dracoByteLengths[geometryIndex] += align(primitive.data.length);
+				}
+				progress.advance(1);
+			});
+		} catch (IllegalArgumentException e) {
+			throw new SerializerException(e);
+		}
+		addRequiredExtension(KHR_DRACO_MESH_COMPRESSION);
+	}
 
-		ObjectNode fragmentShader = OBJECT_MAPPER.createObjectNode();
-		fragmentShader.put("type", 35632);
-		fragmentShader.put("uri", "data:,");
-		fragmentShader.set("extensions", fragmentShaderExtensions);
+	private DracoPrimitive[] encodeDraco(int geometryIndex) {
+		float[] positions = getPositions(geometryIndex);
+		float[] normals = getNormals(geometryIndex);
+		byte[] colors = hasVertexColors(geometryIndex) ? getCompactColors(geometryIndex) : null;
+		IntBuffer indicesIntBuffer = getIndices(geometryIndex);
+		List<DracoPrimitive> primitives = new ArrayList<>();
+
+		MeshSplit meshSplit = meshSplits[geometryIndex];
+		if (meshSplit != null) {
+			meshSplit.remap(indicesIntBuffer, (chunk, localIndices, nrIndices, vertices, nrVertices) -> {
+				primitives.add(encodeDracoPrimitive(localIndices, nrIndices, vertices, nrVertices, positions, normals, colors));
+			});
+		} else {
+			int[] indices = new int[indicesIntBuffer.capacity()];
+			indicesIntBuffer.get(indices);
+			primitives.add(encodeDracoPrimitive(indices, indices.length, null, getNrVertices(geometryIndex), positions, normals, colors));
+			if (lodIndices[geometryIndex] != null) {
+				// A Draco primitive has its own vertices, a level of detail only gets the ones it still uses
+				for (int[] levelIndices : lodIndices[geometryIndex]) {
+					int[] indicesCopy = levelIndices.clone();
+					int[] vertices = MeshWelder.compact(indicesCopy, getNrVertices(geometryIndex));
+					primitives.add(encodeDracoPrimitive(indicesCopy, indicesCopy.length, vertices, vertices.length, positions, normals, colors));
+				}
+			}
+		}
 
-		ObjectNode vertexShaderExtensions = OBJECT_MAPPER.createObjectNode();
-		ObjectNode vertexShaderBinary = OBJECT_MAPPER.createObjectNode();
-		vertexShaderExtensions.set("KHR_binary_glTF", vertexShaderBinary);
-		vertexShaderBinary.put("bufferView", vertexShaderBufferViewName);
+		return primitives.toArray(new DracoPrimitive[primitives.size()]);
+	}
 
-		ObjectNode vertexShader = OBJECT_MAPPER.createObjectNode();
-		vertexShader.put("type", 35633);
-		vertexShader.put("uri", "data:,");
-		vertexShader.set("extensions", vertexShaderExtensions);
+	/**
+	 * @param vertices For every vertex of the primitive the vertex of the geometry, or null when the primitive has all vertices of the geometry
+	 */
+	private DracoPrimitive encodeDracoPrimitive(int[] indices, int nrIndices, int[] vertices, int nrVertices, float[] positions, float[] normals, byte[] colors) {
+		DracoPrimitive primitive = new DracoPrimitive();
+		float[] primitivePositions = gather(positions, vertices, nrVertices, 3);
+		primitive.data = DracoEncoder.encodeMesh(indices, nrIndices, primitivePositions, gather(normals, vertices, nrVertices, 3), colors == null ? null : gather(colors, vertices, nrVertices, COMPACT_COLOR_STRIDE), settings.dracoPositionBits, settings.dracoNormalBits);
+		primitive.nrIndices = nrIndices;
+		primitive.nrVertices = nrVertices;
+		// The accessor bounds have to be those of the decoded positions
+		float[] bounds = DracoEncoder.getDecodedBounds(primitivePositions, settings.dracoPositionBits);
+		primitive.min = Arrays.copyOfRange(bounds, 0, 3);
+		primitive.max = Arrays.copyOfRange(bounds, 3, 6);
+		return primitive;
+	}
 
-		shaders.set("materialColorFragmentShader", fragmentShader);
-		shaders.set("materialColorVertexShader", vertexShader);
+	private static float[] gather(float[] values, int[] vertices, int nrVertices, int stride) {
+		if (vertices == null) {
+			return values;
+		}
+		float[] result = new float[nrVertices * stride];
+		for (int i=0; i<nrVertices; i++) {
+			System.arraycopy(values, vertices[i] * stride, result, i * stride, stride);
+		}
+		return result;
+	}
+
+	private static byte[] gather(byte[] values, int[] vertices, int nrVertices, int stride) {
+		if (vertices == null) {
+			return values;
+		}
+		byte[] result = new byte[nrVertices * stride];
+		for (int i=0; i<nrVertices; i++) {
+			System.arraycopy(values, vertices[i] * stride, result, i * stride, stride);
+		}
+		return result;
 	}
-	
-	private ObjectNode createPrograms() {
-		ObjectNode programs = OBJECT_MAPPER.createObjectNode();
 
-		programs.set("vertexColorProgram", createVertexColorsPrograms());
-		programs.set("materialColorProgram", createMaterialColorsPrograms());
+	private void putDracoPrimitives(int geometryIndex, ByteBuffer newDracoBuffer) {
+		for (DracoPrimitive primitive : dracoPrimitives[geometryIndex]) {
+			newDracoBuffer.put(primitive.data);
+			for (int i=primitive.data.length; i<align(primitive.data.length); i++) {
+				newDracoBuffer.put((byte)0);
+			}
+		}
+	}
 
-		return programs;
+	/**
+	 * Adds the mesh of a geometry compressed with Draco, a split mesh has a primitive per chunk, every level of detail has a mesh of its own
+	 * 
+	 * @return The position in the buffer after the Draco data of the geometry
+	 */
+	private long addDracoMeshes(int geometryIndex, int product, int buffer, long startPosition) throws SerializerException {
+		DracoPrimitive[] primitives = dracoPrimitives[geometryIndex];
+		int nrPrimitives = meshSplits[geometryIndex] != null ? primitives.length : 1;
+		GltfDocument.Primitive[] meshPrimitives = new GltfDocument.Primitive[nrPrimitives];
+		for (int i=0; i<nrPrimitives; i++) {
+			meshPrimitives[i] = addDracoPrimitive(geometryIndex, product, primitives[i], buffer, startPosition);
+			startPosition += align(primitives[i].data.length);
+		}
+		int meshId = addMesh(meshPrimitives);
+
+		int[] lodMeshIds = null;
+		if (primitives.length > nrPrimitives) {
+			lodMeshIds = new int[primitives.length - nrPrimitives];
+			for (int i=nrPrimitives; i<primitives.length; i++) {
+				lodMeshIds[i - nrPrimitives] = addMesh(new GltfDocument.Primitive[]{addDracoPrimitive(geometryIndex, product, primitives[i], buffer, startPosition)});
+				startPosition += align(primitives[i].data.length);
+			}
+			addUsedExtension(MSFT_LOD);
+		}
+		addNodes(geometryIndex, meshId, lodMeshIds);
+		return startPosition;
 	}
 
-	private JsonNode createVertexColorsPrograms() {
-		ObjectNode program = OBJECT_MAPPER.createObjectNode();
-		ArrayNode attributes = OBJECT_MAPPER.createArrayNode();
+	/**
+	 * The accessors of a Draco primitive have no bufferView, they only describe what the decoder produces
+	 */
+	private GltfDocument.Primitive addDracoPrimitive(int geometryIndex, int product, DracoPrimitive dracoPrimitive, int buffer, long startPosition) throws SerializerException {
+		GltfDocument.Primitive primitive = new GltfDocument.Primitive();
+		primitive.dracoBufferView = createBufferView(buffer, dracoPrimitive.data.length, startPosition, -1, -1);
+		int indexType = getIndexType(dracoPrimitive.nrVertices - 1);
+		primitive.indices = addIndicesAccessor(-1, 0, INDEX_COMPONENT_TYPES[indexType], dracoPrimitive.nrIndices, null, null);
+		primitive.mode = TRIANGLES;
+		primitive.position = addVerticesAccessor(geometryIndex, -1, 0, dracoPrimitive.nrVertices, dracoPrimitive.min, dracoPrimitive.max);
+		primitive.normal = addNormalsAccessor(-1, 0, dracoPrimitive.nrVertices);
+		if (hasVertexColors(geometryIndex)) {
+			primitive.color = addColorsAccessor(-1, 0, dracoPrimitive.nrVertices);
+			primitive.material = vertexColorIndex;
+		} else {
+			primitive.material = getMaterial(geometryIndex, product);
+		}
+		return primitive;
+	}
 
-		program.set("attributes", attributes);
-		attributes.add("a_normal");
-		attributes.add("a_position");
-		attributes.add("a_color");
+	/**
+	 * Groups the parts of all products by material into batches, cut where a batch would get more vertices than its indices can address. The byte lengths of
+	 * every part in every region are stored in part order, which is the order of the batches.
+	 */
+	private void planBatches(int normalStride) {
+		Map<Integer, List<BatchPart>> partsByMaterial = new LinkedHashMap<>();
+		for (int geometryIndex=0; geometryIndex<geometries.size(); geometryIndex++) {
+			GeometryData data = geometries.get(geometryIndex);
+			MeshSplit meshSplit = meshSplits[geometryIndex];
+			GltfDocument.IntList products = geometryProducts.get(geometryIndex);
+			for (int i=0; i<products.size(); i++) {
+				int product = products.get(i);
+				int material = hasVertexColors(geometryIndex) ? vertexColorIndex : getMaterial(geometryIndex, product);
+				List<BatchPart> parts = partsByMaterial.computeIfAbsent(material, key -> new ArrayList<>());
+				double[] matrix = manifest.getMatrix(product);
+				double[] normalMatrix = getNormalMatrix(matrix);
+				int nrChunks = meshSplit == null ? 1 : meshSplit.getNrChunks();
+				for (int chunk=0; chunk<nrChunks; chunk++) {
+					BatchPart part = new BatchPart();
+					part.geometryIndex = geometryIndex;
+					part.product = product;
+					part.chunk = meshSplit == null ? -1 : chunk;
+					part.nrVertices = meshSplit == null ? getNrVertices(geometryIndex) : meshSplit.getNrVertices(chunk);
+					part.nrIndices = meshSplit == null ? getIndices(geometryIndex).capacity() : meshSplit.getNrIndices(chunk);
+					part.matrix = matrix;
+					part.normalMatrix = normalMatrix;
+					part.mirrored = getDeterminant(matrix) < 0;
+					parts.add(part);
+				}
+			}
+		}
 
-		program.put("fragmentShader", "vertexColorFragmentShader");
-		program.put("vertexShader", "vertexColorVertexShader");
-		
-		return program;
+		int maxVertices = settings.unsignedIntIndices ? MAX_BATCH_VERTICES : MeshSplit.MAX_VERTICES;
+		drawBatches = new ArrayList<>();
+		batchParts = new ArrayList<>();
+		for (Map.Entry<Integer, List<BatchPart>> entry : partsByMaterial.entrySet()) {
+			DrawBatch batch = null;
+			for (BatchPart part : entry.getValue()) {
+				// A part that is larger than a batch on its own still gets a batch
+				if (batch == null || (batch.nrVertices > 0 && batch.nrVertices + part.nrVertices > maxVertices)) {
+					batch = new DrawBatch();
+					batch.firstPart = batchParts.size();
+					batch.material = entry.getKey();
+					batch.colors = entry.getKey() == vertexColorIndex;
+					drawBatches.add(batch);
+				}
+				// The chunks of a split mesh are consecutive, they are the same feature
+				if (batch.products.size() == 0 || batch.products.get(batch.products.size() - 1) != part.product) {
+					batch.products.add(part.product);
+				}
+				part.batch = batch;
+				part.featureId = batch.products.size() - 1;
+				part.vertexBase = batch.nrVertices;
+				batch.nrVertices += part.nrVertices;
+				batch.nrIndices += part.nrIndices;
+				batchParts.add(part);
+			}
+		}
+
+		conversionPipeline.forEach(batchParts.size(), partIndex -> computePartBounds(batchParts.get(partIndex)));
+
+		int nrParts = batchParts.size();
+		indicesByteLengths = new int[INDEX_COMPONENT_TYPES.length][nrParts];
+		verticesByteLengths = new int[nrParts];
+		normalsByteLengths = new int[nrParts];
+		colorsByteLengths = new int[nrParts];
+		featureIdsByteLengths = new int[nrParts];
+		for (int partIndex=0; partIndex<nrParts; partIndex++) {
+			BatchPart part = batchParts.get(partIndex);
+			DrawBatch batch = part.batch;
+			batch.indexType = getIndexType(batch.nrVertices - 1);
+			for (int j=0; j<3; j++) {
+				batch.min[j] = Math.min(batch.min[j], part.bounds[j]);
+				batch.max[j] = Math.max(batch.max[j], part.bounds[3 + j]);
+			}
+			indicesByteLengths[batch.indexType][partIndex] = part.nrIndices * INDEX_BYTE_SIZES[batch.indexType];
+			verticesByteLengths[partIndex] = part.nrVertices * 12;
+			normalsByteLengths[partIndex] = part.nrVertices * normalStride;
+			if (batch.colors) {
+				colorsByteLengths[partIndex] = part.nrVertices * (settings.compactAttributes ? COMPACT_COLOR_STRIDE : 16);
+			}
+			featureIdsByteLengths[partIndex] = part.nrVertices * FEATURE_ID_STRIDE;
+		}
+		if (!drawBatches.isEmpty()) {
+			addUsedExtension(EXT_MESH_FEATURES);
+		}
+	}
+
+	/**
+	 * The cofactor matrix of the upper 3x3 of a column-major transformation, the columns are the cross products of the columns of the transformation. That is
+	 * the inverse transpose times the determinant, only the sign of the determinant matters because the normals are normalized again.
+	 */
+	private static double[] getNormalMatrix(double[] matrix) {
+		double[] normalMatrix = new double[9];
+		for (int column=0; column<3; column++) {
+			int a = ((column + 1) % 3) * 4;
+			int b = ((column + 2) % 3) * 4;
+			normalMatrix[column * 3] = matrix[a + 1] * matrix[b + 2] - matrix[a + 2] * matrix[b + 1];
+			normalMatrix[column * 3 + 1] = matrix[a + 2] * matrix[b] - matrix[a] * matrix[b + 2];
+			normalMatrix[column * 3 + 2] = matrix[a] * matrix[b + 1] - matrix[a + 1] * matrix[b];
+		}
+		if (getDeterminant(matrix) < 0) {
+			for (int j=0; j<9; j++) {
+				normalMatrix[j] = -normalMatrix[j];
+			}
+		}
+		return normalMatrix;
 	}
 
-	private JsonNode createMaterialColorsPrograms() {
-		ObjectNode program = OBJECT_MAPPER.createObjectNode();
-		ArrayNode attributes = OBJECT_MAPPER.createArrayNode();
+	/**
+	 * @return The determinant of the upper 3x3 of a column-major transformation, negative when it mirrors
+	 */
+	private static double getDeterminant(double[] matrix) {
+		return matrix[0] * (matrix[5] * matrix[10] - matrix[6] * matrix[9]) - matrix[4] * (matrix[1] * matrix[10] - matrix[2] * matrix[9]) + matrix[8] * (matrix[1] * matrix[6] - matrix[2] * matrix[5]);
+	}
 
-		program.set("attributes", attributes);
-		attributes.add("a_normal");
-		attributes.add("a_position");
+	/**
+	 * The bounds of the transformed vertices of a part, as they will be written
+	 */
+	private void computePartBounds(BatchPart part) {
+		ByteBuffer verticesBuffer = ByteBuffer.wrap(geometries.get(part.geometryIndex).getVertices().getData());
+		verticesBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer vertices = verticesBuffer.asFloatBuffer();
+		float[] bounds = part.bounds;
+		for (int j=0; j<3; j++) {
+			bounds[j] = Float.MAX_VALUE;
+			bounds[3 + j] = -Float.MAX_VALUE;
+		}
+		ByteBuffer position = ByteBuffer.allocate(12);
+		position.order(ByteOrder.LITTLE_ENDIAN);
+		convertPartVertices(part, position, (buffer, vertex) -> {
+			putTransformedPosition(buffer, vertices, vertex, part.matrix);
+			for (int j=0; j<3; j++) {
+				float value = buffer.getFloat(j * 4);
+				bounds[j] = Math.min(bounds[j], value);
+				bounds[3 + j] = Math.max(bounds[3 + j], value);
+			}
+			buffer.clear();
+		});
+	}
 
-		program.put("fragmentShader", "materialColorFragmentShader");
-		program.put("vertexShader", "materialColorVertexShader");
+	/**
+	 * Adds one mesh with a primitive per batch and the node that draws it, the accessors follow the parts in the same order as writeBody writes them. A batch
+	 * is never cut by a segment, the accessors of a batch use the bufferViews of the segment that has its parts.
+	 */
+	private void addBatches(int normalStride) throws SerializerException {
+		if (drawBatches.isEmpty()) {
+			return;
+		}
+		int colorStride = settings.compactAttributes ? COMPACT_COLOR_STRIDE : 16;
+		int segmentIndex = 0;
+		Segment segment = segments.get(0);
+		int[] startPositionIndices = new int[INDEX_COMPONENT_TYPES.length];
+		int startVertex = 0;
+		int startColorVertex = 0;
+		GltfDocument.Primitive[] primitives = new GltfDocument.Primitive[drawBatches.size()];
+		for (int batchIndex=0; batchIndex<drawBatches.size(); batchIndex++) {
+			DrawBatch batch = drawBatches.get(batchIndex);
+			int indexType = batch.indexType;
+			if (batch.firstPart >= segment.to) {
+				checkSegment(segment, startPositionIndices, startVertex * 12, startVertex * normalStride, startColorVertex * colorStride, segment.byteOffset + segment.getTrailingOffset());
+				segment = segments.get(++segmentIndex);
+				createSegmentBufferViews(segment, 12, normalStride);
+				Arrays.fill(startPositionIndices, 0);
+				startVertex = 0;
+				startColorVertex = 0;
+			}
 
-		return program;
+			GltfDocument.Primitive primitive = new GltfDocument.Primitive();
+			primitive.indices = addIndicesAccessor(segment.indicesBufferViews[indexType], startPositionIndices[indexType], INDEX_COMPONENT_TYPES[indexType], batch.nrIndices, null, null);
+			primitive.mode = TRIANGLES;
+			primitive.position = addVerticesAccessor(-1, segment.verticesBufferView, startVertex * 12, batch.nrVertices, batch.min, batch.max);
+			primitive.normal = addNormalsAccessor(segment.normalsBufferView, startVertex * normalStride, batch.nrVertices);
+			if (batch.colors) {
+				primitive.color = addColorsAccessor(segment.colorsBufferView, startColorVertex * colorStride, batch.nrVertices);
+				startColorVertex += batch.nrVertices;
+			}
+			primitive.material = batch.material;
+			primitive.featureIds = addFeatureIdsAccessor(segment.featureIdsBufferView, startVertex * FEATURE_ID_STRIDE, batch.nrVertices);
+			primitive.featureCount = batch.products.size();
+			primitive.ifcIds = new ArrayList<>(batch.products.size());
+			for (int i=0; i<batch.products.size(); i++) {
+				primitive.ifcIds.add(manifest.getGlobalId(batch.products.get(i)));
+			}
+			primitives[batchIndex] = primitive;
+
+			startPositionIndices[indexType] += batch.nrIndices * INDEX_BYTE_SIZES[indexType];
+			startVertex += batch.nrVertices;
+		}
+		checkSegment(segment, startPositionIndices, startVertex * 12, startVertex * normalStride, startColorVertex * colorStride, segment.byteOffset + segment.getTrailingOffset());
+
+		GltfDocument.Node node = new GltfDocument.Node();
+		node.mesh = addMesh(primitives);
+		gltfDocument.nodes.add(node);
+		translationNode.children.add(gltfDocument.nodes.size() - 1);
 	}
-	
-	private int createOrGetMaterial(String name, float[] colors) {
-		if (createdMaterials.containsKey(name)) {
-			return createdMaterials.get(name);
+
+	private int addFeatureIdsAccessor(int bufferViewIndex, int byteOffset, int count) {
+		GltfDocument.Accessor accessor = new GltfDocument.Accessor();
+		accessor.bufferView = bufferViewIndex;
+		accessor.byteOffset = byteOffset;
+		accessor.componentType = FLOAT;
+		accessor.count = count;
+		accessor.type = "SCALAR";
+
+		gltfDocument.accessors.add(accessor);
+
+		return gltfDocument.accessors.size() - 1;
+	}
+
+	/**
+	 * Encodes the vertices of one part in the order they are written, for a chunk in the order the chunk uses them
+	 */
+	private void convertPartVertices(BatchPart part, ByteBuffer newAttributeBuffer, VertexEncoder encoder) {
+		if (part.chunk == -1) {
+			int[] vertexOrder = vertexOrders[part.geometryIndex];
+			for (int i=0; i<part.nrVertices; i++) {
+				encoder.put(newAttributeBuffer, vertexOrder == null ? i : vertexOrder[i]);
+			}
+			return;
 		}
-		ObjectNode material = OBJECT_MAPPER.createObjectNode();
+		int[] vertexOrder = vertexOrders[part.geometryIndex];
+		meshSplits[part.geometryIndex].remap(getIndices(part.geometryIndex), (chunk, localIndices, nrIndices, vertices, nrVertices) -> {
+			if (chunk == part.chunk) {
+				for (int i=0; i<nrVertices; i++) {
+					encoder.put(newAttributeBuffer, vertexOrder == null ? vertices[i] : vertexOrder[vertices[i]]);
+				}
+			}
+		});
+	}
 
-		material.put("name", name + "Material");
-//		material.put("technique", "materialColorTechnique");
+	/**
+	 * Writes the indices of one part, offset by the vertices of the parts before it in the batch
+	 */
+	private void convertPartIndices(int partIndex, int indexType, ByteBuffer newIndicesBuffer) {
+		BatchPart part = batchParts.get(partIndex);
+		IntBuffer indicesIntBuffer = getIndices(part.geometryIndex);
+		if (part.chunk == -1) {
+			putPartIndices(newIndicesBuffer, indexType, part, part.nrIndices, i -> indicesIntBuffer.get(i));
+		} else {
+			meshSplits[part.geometryIndex].remap(indicesIntBuffer, (chunk, localIndices, nrIndices, vertices, nrVertices) -> {
+				if (chunk == part.chunk) {
+					putPartIndices(newIndicesBuffer, indexType, part, nrIndices, i -> localIndices[i]);
+				}
+			});
+		}
+	}
+
+	private static void putPartIndices(ByteBuffer buffer, int indexType, BatchPart part, int nrIndices, IntUnaryOperator indices) {
+		for (int i=0; i<nrIndices; i++) {
+			// Swapping the last two vertices of every triangle turns it around
+			int source = part.mirrored && i % 3 != 0 && i - i % 3 + 2 < nrIndices ? (i % 3 == 1 ? i + 1 : i - 1) : i;
+			putIndex(buffer, indexType, part.vertexBase + indices.applyAsInt(source));
+		}
+	}
 
-		ObjectNode values = OBJECT_MAPPER.createObjectNode();
+	private void convertPartPositions(int partIndex, ByteBuffer newPositionsBuffer) {
+		BatchPart part = batchParts.get(partIndex);
+		ByteBuffer verticesBuffer = ByteBuffer.wrap(geometries.get(part.geometryIndex).getVertices().getData());
+		verticesBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer vertices = verticesBuffer.asFloatBuffer();
+		convertPartVertices(part, newPositionsBuffer, (buffer, vertex) -> putTransformedPosition(buffer, vertices, vertex, part.matrix));
+	}
+
+	private static void putTransformedPosition(ByteBuffer buffer, FloatBuffer vertices, int vertex, double[] matrix) {
+		double x = vertices.get(vertex * 3);
+		double y = vertices.get(vertex * 3 + 1);
+		double z = vertices.get(vertex * 3 + 2);
+		for (int j=0; j<3; j++) {
+			buffer.putFloat((float)(matrix[j] * x + matrix[4 + j] * y + matrix[8 + j] * z + matrix[12 + j]));
+		}
+	}
+
+	private void convertPartNormals(int partIndex, ByteBuffer newNormalsBuffer) {
+		BatchPart part = batchParts.get(partIndex);
+		ByteBuffer normalsBuffer = ByteBuffer.wrap(geometries.get(part.geometryIndex).getNormals().getData());
+		normalsBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer normals = normalsBuffer.asFloatBuffer();
+		double[] normalMatrix = part.normalMatrix;
+		convertPartVertices(part, newNormalsBuffer, (buffer, vertex) -> {
+			double x = normals.get(vertex * 3);
+			double y = normals.get(vertex * 3 + 1);
+			double z = normals.get(vertex * 3 + 2);
+			double nx = normalMatrix[0] * x + normalMatrix[3] * y + normalMatrix[6] * z;
+			double ny = normalMatrix[1] * x + normalMatrix[4] * y + normalMatrix[7] * z;
+			double nz = normalMatrix[2] * x + normalMatrix[5] * y + normalMatrix[8] * z;
+			double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			for (int j=0; j<3; j++) {
+				double component = j == 0 ? nx : j == 1 ? ny : nz;
+				float value = length > 0 ? (float)(component / length) : 0f;
+				if (settings.compactAttributes) {
+					buffer.put((byte)Math.round(Math.max(-1f, Math.min(1f, value)) * 127f));
+				} else {
+					buffer.putFloat(value);
+				}
+			}
+			if (settings.compactAttributes) {
+				buffer.put((byte)0);
+			}
+		});
+	}
+
+	/**
+	 * Colors of batches are always written in the same format, float or compact, whatever the format of the colors of the geometry
+	 */
+	private void convertPartColors(int partIndex, ByteBuffer newColorsBuffer) {
+		BatchPart part = batchParts.get(partIndex);
+		GeometryData data = geometries.get(part.geometryIndex);
+		ByteBuffer colorsBuffer = ByteBuffer.wrap(data.getColorsQuantized().getData());
+		colorsBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		boolean byteColors = getSourceColorStride(data) == COMPACT_COLOR_STRIDE;
+		convertPartVertices(part, newColorsBuffer, (buffer, vertex) -> {
+			for (int j=0; j<4; j++) {
+				float value = byteColors ? (colorsBuffer.get(vertex * 4 + j) & 0xFF) / 255f : colorsBuffer.getFloat((vertex * 4 + j) * 4);
+				if (settings.compactAttributes) {
+					buffer.put((byte)Math.round(Math.max(0f, Math.min(1f, value)) * 255f));
+				} else {
+					buffer.putFloat(value);
+				}
+			}
+		});
+	}
 
-		ArrayNode diffuse = OBJECT_MAPPER.createArrayNode();
-		for (int i=0; i<4; i++) {
-			diffuse.add(colors[i]);
+	private void convertPartFeatureIds(int partIndex, ByteBuffer newFeatureIdsBuffer) {
+		BatchPart part = batchParts.get(partIndex);
+		for (int i=0; i<part.nrVertices; i++) {
+			newFeatureIdsBuffer.putFloat(part.featureId);
 		}
-//		diffuse.add(0.8000000119209291);
-//		diffuse.add(0);
-//		diffuse.add(0);
-//		diffuse.add(1);
+	}
 
-		ArrayNode specular = OBJECT_MAPPER.createArrayNode();
-		specular.add(0.20000000298023218);
-		specular.add(0.20000000298023218);
-		specular.add(0.20000000298023218);
+	private boolean hasVertexColors(int geometryIndex) {
+		return geometries.get(geometryIndex).getColorsQuantized() != null && uniformColors[geometryIndex] == null;
+	}
 
-		values.set("diffuse", diffuse);
-		values.set("specular", specular);
-		values.put("shininess", 256);
+	/**
+	 * @return The RGBA color when all vertices have exactly the same color, otherwise null
+	 */
+	private static float[] getUniformColor(GeometryData data) {
+		byte[] colorsData = data.getColorsQuantized().getData();
+		int stride = getSourceColorStride(data);
+		if (stride == 0) {
+			return null;
+		}
+		for (int i=stride; i<colorsData.length; i+=stride) {
+			for (int j=0; j<stride; j++) {
+				if (colorsData[i + j] != colorsData[j]) {
+					return null;
+				}
+			}
+		}
+		ByteBuffer colorsBuffer = ByteBuffer.wrap(colorsData);
+		colorsBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		float[] color = new float[4];
+		for (int j=0; j<4; j++) {
+			if (stride == COMPACT_COLOR_STRIDE) {
+				color[j] = (colorsData[j] & 0xFF) / 255f;
+			} else {
+				color[j] = colorsBuffer.getFloat(j * 4);
+			}
+		}
+		return color;
+	}
 
-//		material.set("values", values);
+	/**
+	 * @return The type whose default material the product is drawn with, null when the geometry has colors of its own. Products with different keys cannot share a
+	 * mesh, it has only one material.
+	 */
+	private String getMaterialKey(GeometryData data, int product) {
+		return data.getColorsQuantized() == null ? manifest.getType(product) : null;
+	}
 
-		materials.add(material);
+	/**
+	 * The material of a primitive without vertex colors, geometries with a uniform color share a material per RGBA value, all others get the default material of their type
+	 */
+	private int getMaterial(int geometryIndex, int product) {
+		float[] uniformColor = uniformColors[geometryIndex];
+		if (uniformColor != null) {
+			int rgba = 0;
+			for (float component : uniformColor) {
+				rgba = (rgba << 8) | Math.round(Math.max(0f, Math.min(1f, component)) * 255f);
+			}
+			// Keyed by the 8-bit value, colors that only differ below that are the same color in the output anyway
+			return createOrGetMaterial(String.format("Color%08X", rgba), uniformColor);
+		}
+		return createOrGetMaterial(manifest.getType(product), IfcColors.getDefaultColor(manifest.getType(product)));
+	}
+
+	/**
+	 * Restores what analyzeMesh, computeLocalBounds and the Draco encoder did for a geometry in an earlier export with the same options
+	 * 
+	 * @return false when the cache does not have the geometry
+	 */
+	private boolean loadConversion(int geometryIndex) {
+		if (geometryCache == null) {
+			return false;
+		}
+		GeometryData data = geometries.get(geometryIndex);
+		ByteBuffer entry = geometryCache.get(data.getOid(), conversionKey);
+		if (entry == null) {
+			return false;
+		}
+		// Guards against a GeometryData that was changed under the same oid
+		if (entry.getInt() != data.getIndices().getData().length || entry.getInt() != data.getVertices().getData().length) {
+			geometryCache.reject(data.getOid(), conversionKey);
+			return false;
+		}
+		maxIndices[geometryIndex] = entry.getInt();
+		uniformColors[geometryIndex] = GeometryCache.getFloats(entry);
+		if (entry.getInt() == 1) {
+			meshSplits[geometryIndex] = MeshSplit.read(entry);
+		}
+		int nrLevels = entry.getInt();
+		if (nrLevels != -1) {
+			lodIndices[geometryIndex] = new int[nrLevels][];
+			for (int level=0; level<nrLevels; level++) {
+				lodIndices[geometryIndex][level] = GeometryCache.getInts(entry);
+			}
+		}
+		remappedIndices[geometryIndex] = GeometryCache.getInts(entry);
+		vertexOrders[geometryIndex] = GeometryCache.getInts(entry);
+		System.arraycopy(GeometryCache.getFloats(entry), 0, localBounds, geometryIndex * 6, 6);
+		int nrDracoPrimitives = entry.getInt();
+		if (nrDracoPrimitives != -1) {
+			dracoPrimitives[geometryIndex] = new DracoPrimitive[nrDracoPrimitives];
+			for (int i=0; i<nrDracoPrimitives; i++) {
+				DracoPrimitive primitive = new DracoPrimitive();
+				primitive.data = GeometryCache.getBytes(entry);
+				primitive.nrIndices = entry.getInt();
+				primitive.nrVertices = entry.getInt();
+				primitive.min = GeometryCache.getFloats(entry);
+				primitive.max = GeometryCache.getFloats(entry);
+				dracoPrimitives[geometryIndex][i] = primitive;
+			}
+		}
+		cachedConversions[geometryIndex] = true;
+		return true;
+	}
+
+	/**
+	 * Keeps the conversion of a geometry for the next export, in the same order as loadConversion reads it
+	 */
+	private void storeConversion(int geometryIndex) {
+		GeometryData data = geometries.get(geometryIndex);
+		GeometryCache.EntryWriter writer = new GeometryCache.EntryWriter();
+		writer.putInt(data.getIndices().getData().length);
+		writer.putInt(data.getVertices().getData().length);
+		writer.putInt(maxIndices[geometryIndex]);
+		writer.putFloats(uniformColors[geometryIndex]);
+		MeshSplit meshSplit = meshSplits[geometryIndex];
+		writer.putInt(meshSplit != null ? 1 : 0);
+		if (meshSplit != null) {
+			meshSplit.write(writer);
+		}
+		int[][] levels = lodIndices[geometryIndex];
+		writer.putInt(levels != null ? levels.length : -1);
+		if (levels != null) {
+			for (int[] levelIndices : levels) {
+				writer.putInts(levelIndices);
+			}
+		}
+		writer.putInts(remappedIndices[geometryIndex]);
+		writer.putInts(vertexOrders[geometryIndex]);
+		writer.putFloats(Arrays.copyOfRange(localBounds, geometryIndex * 6, geometryIndex * 6 + 6));
+		DracoPrimitive[] primitives = dracoPrimitives != null ? dracoPrimitives[geometryIndex] : null;
+		writer.putInt(primitives != null ? primitives.length : -1);
+		if (primitives != null) {
+			for (DracoPrimitive primitive : primitives) {
+				writer.putBytes(primitive.data);
+				writer.putInt(primitive.nrIndices);
+				writer.putInt(primitive.nrVertices);
+				writer.putFloats(primitive.min);
+				writer.putFloats(primitive.max);
+			}
+		}
+		geometryCache.put(data.getOid(), conversionKey, writer);
+	}
+
+	/**
+	 * Validates the indices of a product and stores the largest one, meshes that need int indices are split into chunks with short indices when those are not allowed
+	 */
+	private void analyzeMesh(int geometryIndex) {
+		GeometryData data = geometries.get(geometryIndex);
+		ByteBuffer indicesBuffer = ByteBuffer.wrap(data.getIndices().getData());
+		indicesBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		IntBuffer indicesIntBuffer = indicesBuffer.asIntBuffer();
+		int nrVertices = data.getVertices().getData().length / 12;
 		
-		createdMaterials.put(name, materials.size() - 1);
+		int maxIndex = 0;
+		for (int i=0; i<indicesIntBuffer.capacity(); i++) {
+			int index = indicesIntBuffer.get(i);
+			if (index < 0 || index >= nrVertices) {
+				throw new IllegalArgumentException("Index out of range " + index);
+			}
+			if (index > maxIndex) {
+				maxIndex = index;
+			}
+		}
+		maxIndices[geometryIndex] = maxIndex;
 		
-		return materials.size() - 1;
+		if (settings.collapseUniformColors && data.getColorsQuantized() != null) {
+			uniformColors[geometryIndex] = getUniformColor(data);
+		}
+		
+		if (settings.weldVertices && weldVertices(geometryIndex, indicesIntBuffer)) {
+			// From here on the geometry is the welded one, its vertices are numbered in order of first use
+			indicesIntBuffer = getIndices(geometryIndex);
+			maxIndices[geometryIndex] = getNrVertices(geometryIndex) - 1;
+		}
+		
+		if (!settings.unsignedIntIndices && getIndexType(maxIndices[geometryIndex]) == INT_INDICES) {
+			meshSplits[geometryIndex] = MeshSplit.split(indicesIntBuffer, FloatBuffer.wrap(getPositions(geometryIndex)), MeshSplit.MAX_VERTICES);
+		}
+		
+		// Batches have no node per product to switch, the chunks of a split mesh would each need their own levels
+		if (settings.generateLods && !settings.batchByMaterial && meshSplits[geometryIndex] == null && indicesIntBuffer.capacity() / 3 >= LOD_MIN_TRIANGLES) {
+			// The normals tell the seams that a collapse may cross from the hard edges it may not
+			float[] normals = data.getNormals() != null && data.getNormals().getData().length == data.getVertices().getData().length ? getNormals(geometryIndex) : null;
+			lodIndices[geometryIndex] = simplify(getPositions(geometryIndex), normals, indicesIntBuffer);
+		}
+		
+		if (settings.optimizeVertexCache) {
+			optimizeIndices(geometryIndex, indicesIntBuffer);
+		}
 	}
 
-	private void createVertexColorMaterial() {
-		ObjectNode defaultMaterial = OBJECT_MAPPER.createObjectNode();
+	/**
+	 * Welds the vertices of a geometry and removes degenerate and duplicate triangles. A geometry of which no triangle would be left is written as it is.
+	 * 
+	 * @return true when the geometry was welded
+	 */
+	private boolean weldVertices(int geometryIndex, IntBuffer indicesIntBuffer) {
+		GeometryData data = geometries.get(geometryIndex);
+		int nrVertices = data.getVertices().getData().length / 12;
+		int[] indices = new int[indicesIntBuffer.capacity()];
+		indicesIntBuffer.duplicate().get(indices);
+		float[] positions = getPositions(geometryIndex);
+		float[] normals = null;
+		if (data.getNormals() != null && data.getNormals().getData().length == nrVertices * 12) {
+			ByteBuffer normalsBuffer = ByteBuffer.wrap(data.getNormals().getData());
+			normalsBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			normals = new float[nrVertices * 3];
+			normalsBuffer.asFloatBuffer().get(normals);
+		}
+		byte[] colors = hasVertexColors(geometryIndex) ? data.getColorsQuantized().getData() : null;
+		int colorStride = colors != null ? getSourceColorStride(data) : 0;
+		
+		float positionTolerance = (float)(getDiagonal(positions) * settings.weldPositionTolerance);
+		float minNormalDot = (float)Math.cos(Math.toRadians(settings.weldNormalTolerance));
+		int[] welded = MeshWelder.weld(indices, positions, normals, colors, colorStride, positionTolerance, minNormalDot);
+		if (welded.length == 0) {
+			return false;
+		}
+		vertexOrders[geometryIndex] = MeshWelder.compact(welded, nrVertices);
+		remappedIndices[geometryIndex] = welded;
+		return true;
+	}
+
+	private static float getDiagonal(float[] positions) {
+		float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for (int i=0; i<positions.length; i++) {
+			min[i % 3] = Math.min(min[i % 3], positions[i]);
+			max[i % 3] = Math.max(max[i % 3], positions[i]);
+		}
+		return (float)Math.sqrt((max[0] - min[0]) * (max[0] - min[0]) + (max[1] - min[1]) * (max[1] - min[1]) + (max[2] - min[2]) * (max[2] - min[2]));
+	}
+
+	/**
+	 * Reorders the triangles of a geometry and its levels of detail for the vertex cache, and optionally for overdraw, and then the vertices in order of first use.
+	 * The triangles of a split mesh are only reordered within their chunk, so the chunks and their vertices stay the same. Chunks already number their vertices
+	 * in order of first use.
+	 */
+	private void optimizeIndices(int geometryIndex, IntBuffer indicesIntBuffer) {
+		int nrVertices = getNrVertices(geometryIndex);
+		int[] indices = new int[indicesIntBuffer.capacity()];
+		float[] positions = settings.optimizeOverdraw ? getPositions(geometryIndex) : null;
+		
+		MeshSplit meshSplit = meshSplits[geometryIndex];
+		if (meshSplit != null) {
+			float[] allPositions = positions;
+			int[] chunkStart = new int[1];
+			meshSplit.remap(indicesIntBuffer, (chunk, localIndices, nrIndices, vertices, nrChunkVertices) -> {
+				int[] chunkIndices = VertexCacheOptimizer.optimizeVertexCache(Arrays.copyOf(localIndices, nrIndices), nrChunkVertices);
+				for (int i=0; i<nrIndices; i++) {
+					chunkIndices[i] = vertices[chunkIndices[i]];
+				}
+				if (allPositions != null) {
+					chunkIndices = VertexCacheOptimizer.optimizeOverdraw(chunkIndices, allPositions);
+				}
+				System.arraycopy(chunkIndices, 0, indices, chunkStart[0], nrIndices);
+				chunkStart[0] += nrIndices;
+			});
+			remappedIndices[geometryIndex] = indices;
+			return;
+		}
+		
+		IntBuffer allIndices = indicesIntBuffer.duplicate();
+		allIndices.clear();
+		allIndices.get(indices);
+		int[] optimized = VertexCacheOptimizer.optimizeVertexCache(indices, nrVertices);
+		if (positions != null) {
+			optimized = VertexCacheOptimizer.optimizeOverdraw(optimized, positions);
+		}
+		remappedIndices[geometryIndex] = optimized;
+		
+		int[] vertexOrder = VertexCacheOptimizer.optimizeVertexFetch(optimized, nrVertices);
+		int[][] levels = lodIndices[geometryIndex];
+		if (levels != null) {
+			int[] newNumbers = new int[nrVertices];
+			for (int vertex=0; vertex<nrVertices; vertex++) {
+				newNumbers[vertexOrder[vertex]] = vertex;
+			}
+			for (int level=0; level<levels.length; level++) {
+				int[] levelIndices = VertexCacheOptimizer.optimizeVertexCache(levels[level], nrVertices);
+				for (int i=0; i<levelIndices.length; i++) {
+					levelIndices[i] = newNumbers[levelIndices[i]];
+				}
+				levels[level] = levelIndices;
+			}
+		}
+		// The order so far is the one of the welded geometry
+		int[] previousOrder = vertexOrders[geometryIndex];
+		if (previousOrder != null) {
+			for (int vertex=0; vertex<nrVertices; vertex++) {
+				vertexOrder[vertex] = previousOrder[vertexOrder[vertex]];
+			}
+		}
+		vertexOrders[geometryIndex] = vertexOrder;
+	}
+
+	/**
+	 * Simplifies a geometry level after level, every level starts from the one before it. Stops at the first level that does not remove enough triangles.
+	 * 
+	 * @return The indices of every level that was kept, or null when there are none
+	 */
+	private static int[][] simplify(float[] positions, float[] normals, IntBuffer indicesIntBuffer) {
+		int[] indices = new int[indicesIntBuffer.capacity()];
+		IntBuffer allIndices = indicesIntBuffer.duplicate();
+		allIndices.clear();
+		allIndices.get(indices);
+		float diagonal = getDiagonal(positions);
+		
+		List<int[]> levels = new ArrayList<>();
+		int[] previous = indices;
+		for (int level=0; level<LOD_RATIOS.length; level++) {
+			int target = (int)(indices.length / 3 * LOD_RATIOS[level]) * 3;
+			int[] simplified = MeshSimplifier.simplify(previous, positions, normals, target, diagonal * LOD_ERRORS[level]);
+			if (simplified.length == 0 || simplified.length > previous.length * LOD_MIN_REDUCTION) {
+				break;
+			}
+			levels.add(simplified);
+			previous = simplified;
+		}
+		return levels.isEmpty() ? null : levels.toArray(new int[levels.size()][]);
+	}
+
+	/**
+	 * @return The number of indices of all levels of detail of a geometry together
+	 */
+	private int getNrLodIndices(int geometryIndex) {
+		int nrIndices = 0;
+		if (lodIndices[geometryIndex] != null) {
+			for (int[] levelIndices : lodIndices[geometryIndex]) {
+				nrIndices += levelIndices.length;
+			}
+		}
+		return nrIndices;
+	}
+
+	/**
+	 * Adds a mesh per level of detail, the primitive is the one of the full geometry with only the indices replaced
+	 * 
+	 * @return The mesh of every level, or null when the geometry has no levels of detail
+	 */
+	private int[] addLodMeshes(int geometryIndex, GltfDocument.Primitive primitive, int indicesBufferView, int startPositionIndices, int indexType) throws SerializerException {
+		int[][] levels = lodIndices[geometryIndex];
+		if (levels == null) {
+			return null;
+		}
+		int[] meshIds = new int[levels.length];
+		for (int level=0; level<levels.length; level++) {
+			GltfDocument.Primitive lodPrimitive = new GltfDocument.Primitive();
+			lodPrimitive.indices = addIndicesAccessor(indicesBufferView, startPositionIndices, INDEX_COMPONENT_TYPES[indexType], levels[level].length, null, null);
+			lodPrimitive.mode = primitive.mode;
+			lodPrimitive.normal = primitive.normal;
+			lodPrimitive.position = primitive.position;
+			lodPrimitive.color = primitive.color;
+			lodPrimitive.material = primitive.material;
+			meshIds[level] = addMesh(new GltfDocument.Primitive[]{lodPrimitive});
+			startPositionIndices += levels[level].length * INDEX_BYTE_SIZES[indexType];
+		}
+		addUsedExtension(MSFT_LOD);
+		return meshIds;
+	}
+
+	/**
+	 * Adds a node per level of detail with the transformation of the given node, the node lists them with MSFT_lod. The level nodes are not part of the scene
+	 * themselves, viewers without the extension just draw the full geometry.
+	 */
+	private void addLodNodes(int nodeIndex, int[] lodMeshIds) {
+		GltfDocument.Node node = gltfDocument.nodes.get(nodeIndex);
+		node.lodIds = new GltfDocument.IntList();
+		for (int meshId : lodMeshIds) {
+			GltfDocument.Node lodNode = new GltfDocument.Node();
+			lodNode.mesh = meshId;
+			lodNode.ifcId = node.ifcId;
+			lodNode.ifcIds = node.ifcIds;
+			lodNode.matrix = node.matrix;
+			lodNode.instanceTranslation = node.instanceTranslation;
+			lodNode.instanceRotation = node.instanceRotation;
+			lodNode.instanceScale = node.instanceScale;
+			gltfDocument.nodes.add(lodNode);
+			node.lodIds.add(gltfDocument.nodes.size() - 1);
+		}
+		// The coverages of the full geometry and all levels but the last, then 0 so the last level is drawn down to nothing however many levels were kept
+		float[] screenCoverage = new float[lodMeshIds.length + 1];
+		System.arraycopy(LOD_SCREEN_COVERAGES, 0, screenCoverage, 0, lodMeshIds.length);
+		screenCoverage[lodMeshIds.length] = 0;
+		node.screenCoverage = screenCoverage;
+	}
+
+	private float[] getOffsets() {
+		float[] changes = new float[3];
+		for (int i=0; i<3; i++) {
+			changes[i] = (max[i] - min[i]) / 2.0f + min[i];
+		}
+		return changes;
+	}
+	
+	/**
+	 * Merges geometries with exactly the same content, the products of the duplicates move to the first geometry with that content
+	 */
+	private void deduplicateGeometries() {
+		String[] materialKeys = new String[geometries.size()];
+		for (int geometryIndex=0; geometryIndex<materialKeys.length; geometryIndex++) {
+			// All products of a geometry have the same key
+			materialKeys[geometryIndex] = getMaterialKey(geometries.get(geometryIndex), geometryProducts.get(geometryIndex).get(0));
+		}
+		int[] canonical = GeometryDeduplicator.deduplicate(geometries, materialKeys, conversionPipeline);
+		List<GeometryData> uniqueGeometries = new ArrayList<>();
+		List<GltfDocument.IntList> uniqueGeometryProducts = new ArrayList<>();
+		int[] newIndices = new int[canonical.length];
+		for (int geometryIndex=0; geometryIndex<canonical.length; geometryIndex++) {
+			if (canonical[geometryIndex] == geometryIndex) {
+				newIndices[geometryIndex] = uniqueGeometries.size();
+				uniqueGeometries.add(geometries.get(geometryIndex));
+				uniqueGeometryProducts.add(geometryProducts.get(geometryIndex));
+			} else {
+				GltfDocument.IntList products = geometryProducts.get(geometryIndex);
+				for (int i=0; i<products.size(); i++) {
+					uniqueGeometryProducts.get(newIndices[canonical[geometryIndex]]).add(products.get(i));
+				}
+			}
+		}
+		geometries.clear();
+		geometries.addAll(uniqueGeometries);
+		geometryProducts.clear();
+		geometryProducts.addAll(uniqueGeometryProducts);
+	}
+
+	/**
+	 * Adds the nodes of all products of a geometry, they all point at the same mesh
+	 * 
+	 * @param lodMeshIds The meshes of the levels of detail of the geometry, or null
+	 */
+	private void addNodes(int geometryIndex, int meshId, int[] lodMeshIds) {
+		GltfDocument.IntList products = geometryProducts.get(geometryIndex);
+		GpuInstances instances = gpuInstances == null ? null : gpuInstances[geometryIndex];
+		for (int i=0; i<products.size(); i++) {
+			if (instances == null || !instances.instanced[i]) {
+				int nodeIndex = addNode(geometryIndex, meshId, products.get(i));
+				if (lodMeshIds != null) {
+					addLodNodes(nodeIndex, lodMeshIds);
+				}
+				translationNode.children.add(nodeIndex);
+			}
+		}
+		if (instances != null) {
+			int nodeIndex = addGpuInstancesNode(meshId, instances);
+			if (lodMeshIds != null) {
+				addLodNodes(nodeIndex, lodMeshIds);
+			}
+			translationNode.children.add(nodeIndex);
+		}
+	}
+
+	private int addGpuInstancesNode(int meshId, GpuInstances instances) {
+		int count = instances.products.size();
 		
-//		defaultMaterial.put("technique", "vertexColorTechnique");
+		GltfDocument.Node node = new GltfDocument.Node();
+		node.mesh = meshId;
+		node.ifcIds = new ArrayList<>(count);
+		for (int i=0; i<count; i++) {
+			node.ifcIds.add(manifest.getGlobalId(instances.products.get(i)));
+		}
+		node.instanceTranslation = addInstanceAccessor(instances.byteOffset, count, "VEC3");
+		node.instanceRotation = addInstanceAccessor(instances.byteOffset + count * 12, count, "VEC4");
+		node.instanceScale = addInstanceAccessor(instances.byteOffset + count * 28, count, "VEC3");
+		gltfDocument.nodes.add(node);
 		
-//		ObjectNode values = OBJECT_MAPPER.createObjectNode();
+		return gltfDocument.nodes.size() - 1;
+	}
+
+	private int addInstanceAccessor(int byteOffset, int count, String type) {
+		GltfDocument.Accessor accessor = new GltfDocument.Accessor();
+		accessor.bufferView = instancesBufferView;
+		accessor.byteOffset = byteOffset;
+		accessor.componentType = FLOAT;
+		accessor.count = count;
+		accessor.type = type;
 		
-//		defaultMaterial.set("values", values);
+		gltfDocument.accessors.add(accessor);
 		
-		materials.add(defaultMaterial);
-		vertexColorIndex = materials.size() - 1;
+		return gltfDocument.accessors.size() - 1;
 	}
 
-	private JsonNode createAsset() {
-		ObjectNode asset = OBJECT_MAPPER.createObjectNode();
-		asset.put("version", GLTF_VERSION);
-		// TODO add the optional fields
-		return asset;
+	/**
+	 * Groups the products of every geometry that is used more than once and whose transformation can be written as translation/rotation/scale, and writes those
+	 * per instance in the order translations, rotations, scales.
+	 * 
+	 * @return The byte length of all instance data
+	 */
+	private int createGpuInstances() {
+		gpuInstances = new GpuInstances[geometries.size()];
+		instancesData = new ByteSink(1024);
+		for (int geometryIndex=0; geometryIndex<geometries.size(); geometryIndex++) {
+			GltfDocument.IntList products = geometryProducts.get(geometryIndex);
+			if (products.size() < MIN_GPU_INSTANCES) {
+				continue;
+			}
+			GpuInstances instances = new GpuInstances();
+			instances.instanced = new boolean[products.size()];
+			List<float[]> transformations = new ArrayList<>();
+			for (int i=0; i<products.size(); i++) {
+				float[] transformation = decomposeTransformation(manifest.getMatrix(products.get(i)));
+				if (transformation != null) {
+					if (quantizePositions) {
+						addDequantization(transformation, getDequantization(geometryIndex));
+					}
+					instances.instanced[i] = true;
+					instances.products.add(products.get(i));
+					transformations.add(transformation);
+				}
+			}
+			if (instances.products.size() < MIN_GPU_INSTANCES) {
+				continue;
+			}
+			instances.byteOffset = instancesData.size();
+			ByteBuffer buffer = ByteBuffer.allocate(transformations.size() * 40);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			for (int[] range : new int[][]{{0, 3}, {3, 7}, {7, 10}}) {
+				for (float[] transformation : transformations) {
+					for (int j=range[0]; j<range[1]; j++) {
+						buffer.putFloat(transformation[j]);
+					}
+				}
+			}
+			instancesData.write(buffer.array(), 0, buffer.capacity());
+			gpuInstances[geometryIndex] = instances;
+		}
+		if (instancesData.size() > 0) {
+			// Without the extension a viewer would silently show only one of the instances
+			addRequiredExtension(EXT_MESH_GPU_INSTANCING);
+		}
+		return instancesData.size();
+	}
+
+	private void addUsedExtension(String extension) {
+		if (!gltfDocument.extensionsUsed.contains(extension)) {
+			gltfDocument.extensionsUsed.add(extension);
+		}
 	}
 
-	private void writeHeader(LittleEndianDataOutputStream dataOutputStream, int headerLength, int sceneLength, int bodyLength) throws IOException {
+	private void addRequiredExtension(String extension) {
+		if (!gltfDocument.extensionsUsed.contains(extension)) {
+			gltfDocument.extensionsUsed.add(extension);
+			gltfDocument.extensionsRequired.add(extension);
+		}
+	}
+
+	/**
+	 * Splits a column-major affine transformation into a translation, a rotation quaternion and a scale
+	 * 
+	 * @return The translation (3), rotation (4) and scale (3), or null when the transformation also shears, projects or mirrors
+	 */
+	static float[] decomposeTransformation(double[] matrix) {
+		if (Math.abs(matrix[3]) > DECOMPOSE_EPSILON || Math.abs(matrix[7]) > DECOMPOSE_EPSILON || Math.abs(matrix[11]) > DECOMPOSE_EPSILON || Math.abs(matrix[15] - 1) > DECOMPOSE_EPSILON) {
+			return null;
+		}
+		double[] scale = new double[3];
+		// r[column * 3 + row]
+		double[] r = new double[9];
+		for (int column=0; column<3; column++) {
+			double x = matrix[column * 4];
+			double y = matrix[column * 4 + 1];
+			double z = matrix[column * 4 + 2];
+			scale[column] = Math.sqrt(x * x + y * y + z * z);
+			if (scale[column] < 1e-12) {
+				return null;
+			}
+			r[column * 3] = x / scale[column];
+			r[column * 3 + 1] = y / scale[column];
+			r[column * 3 + 2] = z / scale[column];
+		}
+		double determinant = r[0] * (r[4] * r[8] - r[5] * r[7]) - r[3] * (r[1] * r[8] - r[2] * r[7]) + r[6] * (r[1] * r[5] - r[2] * r[4]);
+		if (determinant < 0) {
+			// Mirrored, viewers flip the winding order for a node with a negative scale but not for an instance, the product gets a node of its own
+			return null;
+		}
+		double dot01 = r[0] * r[3] + r[1] * r[4] + r[2] * r[5];
+		double dot02 = r[0] * r[6] + r[1] * r[7] + r[2] * r[8];
+		double dot12 = r[3] * r[6] + r[4] * r[7] + r[5] * r[8];
+		if (Math.abs(dot01) > DECOMPOSE_EPSILON || Math.abs(dot02) > DECOMPOSE_EPSILON || Math.abs(dot12) > DECOMPOSE_EPSILON) {
+			return null;
+		}
+		
+		// Element (row, column) of the rotation matrix
+		double m00 = r[0], m10 = r[1], m20 = r[2];
+		double m01 = r[3], m11 = r[4], m21 = r[5];
+		double m02 = r[6], m12 = r[7], m22 = r[8];
+		double qx, qy, qz, qw;
+		double trace = m00 + m11 + m22;
+		if (trace > 0) {
+			double s = 0.5 / Math.sqrt(trace + 1.0);
+			qw = 0.25 / s;
+			qx = (m21 - m12) * s;
+			qy = (m02 - m20) * s;
+			qz = (m10 - m01) * s;
+		} else if (m00 > m11 && m00 > m22) {
+			double s = 2.0 * Math.sqrt(1.0 + m00 - m11 - m22);
+			qw = (m21 - m12) / s;
+			qx = 0.25 * s;
+			qy = (m01 + m10) / s;
+			qz = (m02 + m20) / s;
+		} else if (m11 > m22) {
+			double s = 2.0 * Math.sqrt(1.0 + m11 - m00 - m22);
+			qw = (m02 - m20) / s;
+			qx = (m01 + m10) / s;
+			qy = 0.25 * s;
+			qz = (m12 + m21) / s;
+		} else {
+			double s = 2.0 * Math.sqrt(1.0 + m22 - m00 - m11);
+			qw = (m10 - m01) / s;
+			qx = (m02 + m20) / s;
+			qy = (m12 + m21) / s;
+			qz = 0.25 * s;
+		}
+		double length = Math.sqrt(qx * qx + qy * qy + qz * qz + qw * qw);
+		return new float[]{
+			(float)matrix[12], (float)matrix[13], (float)matrix[14],
+			(float)(qx / length), (float)(qy / length), (float)(qz / length), (float)(qw / length),
+			(float)scale[0], (float)scale[1], (float)scale[2]
+		};
+	}
+
+	private int addNode(int geometryIndex, int meshId, int product) {
+		GltfDocument.Node node = new GltfDocument.Node();
+
+		double[] buffer = getNodeMatrix(geometryIndex, product);
+		node.ifcId = manifest.getGlobalId(product);
+		node.mesh = meshId;
+		if (!Matrix.isIdentity(buffer)) {
+			node.matrix = buffer;
+		}
+		gltfDocument.nodes.add(node);
+
+		return gltfDocument.nodes.size() - 1;
+	}
+
+	private int createBufferView(int buffer, int byteLength, long byteOffset, int target, int byteStride) {
+		GltfDocument.BufferView bufferView = new GltfDocument.BufferView();
+
+		bufferView.buffer = buffer;
+		bufferView.byteLength = byteLength;
+		bufferView.byteOffset = byteOffset;
+		bufferView.byteStride = byteStride;
+		bufferView.target = target;
+
+		gltfDocument.bufferViews.add(bufferView);
+
+		return gltfDocument.bufferViews.size() - 1;
+	}
+
+	private int addNormalsAccessor(int bufferViewIndex, int byteOffset, int count) throws SerializerException {
+		if (count <= 0) {
+			throw new SerializerException("Count <= 0");
+		}
+
+		GltfDocument.Accessor accessor = new GltfDocument.Accessor();
+		accessor.bufferView = bufferViewIndex;
+		accessor.byteOffset = byteOffset;
+		if (settings.compactAttributes && !dracoCompression) {
+			accessor.componentType = BYTE;
+			accessor.normalized = true;
+		} else {
+			accessor.componentType = FLOAT;
+		}
+		accessor.count = count;
+		accessor.type = "VEC3";
+
+		gltfDocument.accessors.add(accessor);
+
+		return gltfDocument.accessors.size() - 1;
+	}
+
+	private int addColorsAccessor(int bufferViewIndex, int byteOffset, int count) {
+		GltfDocument.Accessor accessor = new GltfDocument.Accessor();
+		accessor.bufferView = bufferViewIndex;
+		accessor.byteOffset = byteOffset;
+		// Draco colors are always bytes, the quantized colors of BIMserver are bytes already
+		if (settings.compactAttributes || dracoCompression) {
+			accessor.componentType = UNSIGNED_BYTE;
+			accessor.normalized = true;
+		} else {
+			accessor.componentType = FLOAT;
+		}
+		accessor.count = count;
+		accessor.type = "VEC4";
+		
+		gltfDocument.accessors.add(accessor);
+		
+		return gltfDocument.accessors.size() - 1;
+	}
+
+	private int addVerticesAccessor(int geometryIndex, int bufferViewIndex, int startPosition, int count, float[] min, float[] max) throws SerializerException {
+		if (count <= 0) {
+			throw new SerializerException("Count <= 0");
+		}
+
+		GltfDocument.Accessor accessor = new GltfDocument.Accessor();
+		accessor.bufferView = bufferViewIndex;
+		accessor.byteOffset = startPosition;
+		accessor.count = count;
+		accessor.type = "VEC3";
+
+		if (quantizePositions) {
+			// Quantization is monotonic, so the bounds of the quantized values are the quantized bounds
+			float[] dequantization = getDequantization(geometryIndex);
+			accessor.componentType = SHORT;
+			accessor.min = new float[3];
+			accessor.max = new float[3];
+			for (int j=0; j<3; j++) {
+				accessor.min[j] = quantize(min[j], dequantization, j);
+				accessor.max[j] = quantize(max[j], dequantization, j);
+			}
+		} else {
+			accessor.componentType = FLOAT;
+			accessor.min = min;
+			accessor.max = max;
+		}
+
+		gltfDocument.accessors.add(accessor);
+
+		return gltfDocument.accessors.size() - 1;
+	}
+
+	private float[] getLocalMin(int geometryIndex) {
+		return new float[]{localBounds[geometryIndex * 6], localBounds[geometryIndex * 6 + 1], localBounds[geometryIndex * 6 + 2]};
+	}
+
+	private float[] getLocalMax(int geometryIndex) {
+		return new float[]{localBounds[geometryIndex * 6 + 3], localBounds[geometryIndex * 6 + 4], localBounds[geometryIndex * 6 + 5]};
+	}
+
+	/**
+	 * Stores the min and max of the untransformed vertices of a product in localBounds
+	 */
+	private void computeLocalBounds(int geometryIndex) {
+		GeometryData data = geometries.get(geometryIndex);
+		ByteBuffer verticesBuffer = ByteBuffer.wrap(data.getVertices().getData());
+		verticesBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		// Welding leaves vertices out, the accessor bounds have to be the ones of the vertices that are written
+		int[] vertexOrder = vertexOrders[geometryIndex];
+		int nrVertices = getNrVertices(geometryIndex);
+		for (int vertex = 0; vertex < nrVertices; vertex++) {
+			int i = (vertexOrder == null ? vertex : vertexOrder[vertex]) * 12;
+			for (int j = 0; j < 3; j++) {
+				float val = verticesBuffer.getFloat(i + (j * 4));
+				if (val > max[j]) {
+					max[j] = val;
+				}
+				if (val < min[j]) {
+					min[j] = val;
+				}
+			}
+		}
+		for (int j = 0; j < 3; j++) {
+			localBounds[geometryIndex * 6 + j] = min[j];
+			localBounds[geometryIndex * 6 + 3 + j] = max[j];
+		}
+	}
+
+	private int addIndicesAccessor(int bufferViewIndex, int offsetBytes, int componentType, int count, int[] min, int[] max) throws SerializerException {
+		if (count <= 0) {
+			throw new SerializerException(count + " <= 0");
+		}
+
+		GltfDocument.Accessor accessor = new GltfDocument.Accessor();
+		accessor.bufferView = bufferViewIndex;
+		accessor.byteOffset = offsetBytes;
+		accessor.componentType = componentType;
+		accessor.count = count;
+		accessor.type = "SCALAR";
+
+		gltfDocument.accessors.add(accessor);
+
+		return gltfDocument.accessors.size() - 1;
+	}
+
+	private int addMesh(GltfDocument.Primitive[] primitives) {
+		GltfDocument.Mesh mesh = new GltfDocument.Mesh();
+		mesh.primitives = primitives;
+		gltfDocument.meshes.add(mesh);
+		return gltfDocument.meshes.size() - 1;
+	}
+
+	private GltfDocument.Buffer addBuffer(long byteLength) {
+		GltfDocument.Buffer buffer = new GltfDocument.Buffer();
+		buffer.byteLength = byteLength;
+		gltfDocument.buffers.add(buffer);
+		return buffer;
+	}
+
+	private int createOrGetMaterial(String name, float[] colors) {
+		if (createdMaterials.containsKey(name)) {
+			return createdMaterials.get(name);
+		}
+		GltfDocument.Material material = new GltfDocument.Material();
+
+		material.name = name + "Material";
+		material.baseColorFactor = colors;
+
+		gltfDocument.materials.add(material);
+		
+		createdMaterials.put(name, gltfDocument.materials.size() - 1);
+		
+		return gltfDocument.materials.size() - 1;
+	}
+
+	private void createVertexColorMaterial() {
+		GltfDocument.Material defaultMaterial = new GltfDocument.Material();
+		
+		gltfDocument.materials.add(defaultMaterial);
+		vertexColorIndex = gltfDocument.materials.size() - 1;
+	}
+
+	private void writeHeader(LittleEndianDataOutputStream dataOutputStream, long totalLength) throws IOException {
 		dataOutputStream.writeInt(MAGIC);
 		dataOutputStream.writeInt(FORMAT_VERSION);
-		dataOutputStream.writeInt(headerLength + sceneLength + bodyLength);
+		// Unsigned, up to MAX_GLB_BYTE_LENGTH
+		dataOutputStream.writeInt((int) totalLength);
 	}
 
-	private void writeBody(LittleEndianDataOutputStream dataOutputStream, byte[] body) throws IOException {
-		int rest = body.length % 4 == 0 ? 0 : 4 - (body.length % 4);
-		dataOutputStream.writeInt(body.length + rest); // Align to 4-bytes
-		dataOutputStream.writeInt(BINARY_CHUNK);
-		dataOutputStream.write(body);
-		if (rest > 0) {
-			dataOutputStream.write(pad(rest, (char)0));
+	private int writePadding(LittleEndianDataOutputStream dataOutputStream, int length) throws IOException {
+		if (length > 0) {
+			dataOutputStream.write(pad(length, (char)0));
 		}
+		return length;
 	}
 	
+	private static int align(int length) {
+		return length % 4 == 0 ? length : length + 4 - (length % 4);
+	}
+
+	private static long align(long length) {
+		return length % 4 == 0 ? length : length + 4 - (length % 4);
+	}
+
 	private byte[] pad(int length, char c) {
 		byte[] result = new byte[length];
 		for (int i=0; i<length; i++) {
@@ -1069,11 +2914,11 @@ public class BinaryGltfSerializer2 extends EmfSerializer {
 		return result;
 	}
 
-	private void writeScene(LittleEndianDataOutputStream dataOutputStream, byte[] scene) throws IOException {
-		int rest = scene.length % 4 == 0 ? 0 : 4 - (scene.length % 4);
-		dataOutputStream.writeInt(scene.length + rest);  // Align to 4-bytes
+	private void writeScene(LittleEndianDataOutputStream dataOutputStream, ByteSink scene) throws IOException {
+		int rest = scene.size() % 4 == 0 ? 0 : 4 - (scene.size() % 4);
+		dataOutputStream.writeInt(scene.size() + rest);  // Align to 4-bytes
 		dataOutputStream.writeInt(JSON_CHUNK);
-		dataOutputStream.write(scene);
+		scene.writeTo(dataOutputStream);
 		if (rest > 0) {
 			dataOutputStream.write(pad(rest, ' '));
 		}
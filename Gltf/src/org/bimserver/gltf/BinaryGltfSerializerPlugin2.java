@@ -1,29 +1,35 @@
-package org.bimserver.gltf;
-
-/******************************************************************************
- * Copyright (C) 2009-2018  BIMserver.org
- * 
- * This program is free software: you can redistribute it and/or modify
- * it under the terms of the GNU Affero General Public License as
- * published by the Free Software Foundation, either version 3 of the
- * License, or (at your option) any later version.
- * 
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU Affero General Public License for more details.
- * 
- * You should have received a copy of the GNU Affero General Public License
- * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
- *****************************************************************************/
-
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 import org.bimserver.emf.Schema;
+import org.bimserver.models.store.ObjectDefinition;
 import org.bimserver.plugins.PluginConfiguration;
 import org.bimserver.plugins.PluginContext;
 import org.bimserver.plugins.SchemaName;
@@ -37,6 +43,10 @@ public class BinaryGltfSerializerPlugin2 extends AbstractSerializerPlugin {
 	private byte[] vertexColorVertexShaderBytes;
 	private byte[] materialColorFragmentShaderBytes;
 	private byte[] materialColorVertexShaderBytes;
+	
+	// Shared with the other glTF 2 plugins
+	private PluginResources resources;
+	private final List<ExportMetricsListener> metricsListeners = new CopyOnWriteArrayList<>();
 
 	@Override
 	public void init(PluginContext pluginContext) throws PluginException {
@@ -53,11 +63,75 @@ public class BinaryGltfSerializerPlugin2 extends AbstractSerializerPlugin {
 		} catch (IOException e) {
 			throw new PluginException(e);
 		}
+		Properties versionProperties = new Properties();
+		try (InputStream inputStream = Files.newInputStream(pluginContext.getRootPath().resolve("plugin/version.properties"))) {
+			versionProperties.load(inputStream);
+		} catch (IOException e) {
+			throw new PluginException(e);
+		}
+		String version = versionProperties.getProperty("version") + "," + versionProperties.getProperty("build.date");
+		resources = PluginResources.get(pluginContext.getPluginManager().getTempDir(), version);
 	}
 
 	@Override
 	public Serializer createSerializer(PluginConfiguration plugin) {
-		return new BinaryGltfSerializer2(vertexColorFragmentShaderBytes, vertexColorVertexShaderBytes, materialColorFragmentShaderBytes, materialColorVertexShaderBytes);
+		return createGltfSerializer(GltfSettings.fromConfiguration(plugin), true);
+	}
+
+	/**
+	 * @param cacheResults False for serializers that never write a whole model as one GLB, the result cache would only take up space
+	 */
+	BinaryGltfSerializer2 createGltfSerializer(GltfSettings settings, boolean cacheResults) {
+		GeometryCache cache = null;
+		if (settings.conversionCacheSize > 0) {
+			cache = resources.getGeometryCache();
+			cache.setMaxByteSize(settings.conversionCacheSize * 1024L * 1024L);
+		}
+		ResultCache results = cacheResults && settings.resultCacheSize > 0 ? resources.getResultCache(settings.resultCacheSize * 1024L * 1024L) : null;
+		return new BinaryGltfSerializer2(vertexColorFragmentShaderBytes, vertexColorVertexShaderBytes, materialColorFragmentShaderBytes, materialColorVertexShaderBytes, resources.getForkJoinPool(), cache, results, this::exportFinished, settings);
+	}
+
+	ForkJoinPool getForkJoinPool() {
+		return resources.getForkJoinPool();
+	}
+
+	/**
+	 * Receives the metrics of the exports of all serializers of this plugin from now on
+	 */
+	public void addMetricsListener(ExportMetricsListener metricsListener) {
+		metricsListeners.add(metricsListener);
+	}
+
+	public void removeMetricsListener(ExportMetricsListener metricsListener) {
+		metricsListeners.remove(metricsListener);
+	}
+
+	private void exportFinished(ExportMetrics metrics) {
+		for (ExportMetricsListener metricsListener : metricsListeners) {
+			metricsListener.exportFinished(metrics);
+		}
+	}
+
+	/**
+	 * @return The conversion cache of the glTF 2 serializers, with its hit and miss statistics
+	 */
+	GeometryCache getGeometryCache() {
+		return resources.getGeometryCache();
+	}
+
+	/**
+	 * @return The cache of complete outputs of the glTF 2 serializers, with its hit and miss statistics, null when no serializer has used it yet or its
+	 * directory cannot be written
+	 */
+	ResultCache getResultCache() {
+		return resources.getResultCache();
+	}
+
+	@Override
+	public ObjectDefinition getSettingsDefinition() {
+		ObjectDefinition objectDefinition = super.getSettingsDefinition();
+		GltfSettings.addParameters(objectDefinition);
+		return objectDefinition;
 	}
 
 	@Override
@@ -0,0 +1,83 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable, unsynchronized byte buffer that can be reset and reused. Unlike
+ * ByteArrayOutputStream the content can be written out without copying it
+ * first.
+ */
+class ByteSink extends OutputStream {
+
+	private byte[] buffer;
+	private int size;
+
+	public ByteSink(int initialCapacity) {
+		buffer = new byte[initialCapacity];
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(size + 1);
+		buffer[size++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(size + len);
+		System.arraycopy(b, off, buffer, size, len);
+		size += len;
+	}
+
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity < 0) {
+			throw new OutOfMemoryError("ByteSink cannot grow beyond 2GB");
+		}
+		if (minCapacity > buffer.length) {
+			int newCapacity = Math.max(buffer.length * 2, minCapacity);
+			if (newCapacity < 0) {
+				newCapacity = Integer.MAX_VALUE - 8;
+			}
+			buffer = Arrays.copyOf(buffer, newCapacity);
+		}
+	}
+
+	public void writeTo(OutputStream outputStream) throws IOException {
+		outputStream.write(buffer, 0, size);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return buffer.length;
+	}
+
+	public byte[] array() {
+		return buffer;
+	}
+
+	public void reset() {
+		size = 0;
+	}
+}
@@ -0,0 +1,287 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs the per-product work of the serializer, on a ForkJoinPool when one is
+ * given and on the calling thread otherwise.
+ *
+ * A region of the binary chunk is written in batches of consecutive products.
+ * Every product of a batch is converted into its own slice of the batch
+ * buffer, at an offset that follows from the byte lengths computed upfront,
+ * so the order in which the slices are filled does not matter and the output
+ * is byte-identical to the sequential path.
+ *
+ * What the pool threads allocate while they work for the pipeline is
+ * counted, the calling thread is left to the caller.
+ *
+ * Every product checks first whether the export has been cancelled, and every
+ * batch that has been written counts as progress in bytes.
+ */
+class ConversionPipeline {
+
+	/**
+	 * Converts one product into the given little-endian slice, which has
+	 * exactly the byte length announced for that product
+	 */
+	interface SliceConverter {
+		void convert(int productIndex, ByteBuffer slice);
+	}
+
+	private static final int DEFAULT_BATCH_BYTE_LENGTH = 8 * 1024 * 1024;
+	private static final int MIN_TASK_BYTE_LENGTH = 256 * 1024;
+	private static final int MIN_TASK_SIZE = 64;
+
+	private final ForkJoinPool forkJoinPool;
+	private final int batchByteLength;
+	private final LongAdder workerAllocatedBytes = new LongAdder();
+	private final ExportProgress progress;
+	private ByteBuffer batchBuffer;
+
+	public ConversionPipeline(ForkJoinPool forkJoinPool, ExportProgress progress) {
+		this(forkJoinPool, DEFAULT_BATCH_BYTE_LENGTH, progress);
+	}
+
+	public ConversionPipeline(ForkJoinPool forkJoinPool, int batchByteLength, ExportProgress progress) {
+		this.forkJoinPool = forkJoinPool;
+		this.batchByteLength = batchByteLength;
+		this.progress = progress;
+	}
+
+	public boolean isParallel() {
+		return forkJoinPool != null && forkJoinPool.getParallelism() > 1;
+	}
+
+	/**
+	 * Runs the action for every index in [0, size), the action must only
+	 * write to state owned by that index
+	 *
+	 * @throws CancellationException When the export is cancelled, the indices that have not started yet are skipped
+	 */
+	public void forEach(int size, IntConsumer action) {
+		if (!isParallel() || size < MIN_TASK_SIZE * 2) {
+			for (int i = 0; i < size; i++) {
+				progress.checkCancelled();
+				action.accept(i);
+			}
+		} else {
+			forkJoinPool.invoke(new ForEachTask(0, size, action, Thread.currentThread(), workerAllocatedBytes, progress));
+		}
+	}
+
+	/**
+	 * Starts a task in the background, or runs it right away on the calling
+	 * thread when the pipeline is sequential. join() on the result waits for
+	 * it and rethrows what it threw.
+	 */
+	public <T> ForkJoinTask<T> submit(Callable<T> task) {
+		Thread caller = Thread.currentThread();
+		ForkJoinTask<T> forkJoinTask = ForkJoinTask.adapt(() -> {
+			// Tasks that are still queued when the export is cancelled end right away
+			progress.checkCancelled();
+			if (Thread.currentThread() == caller) {
+				return task.call();
+			}
+			long allocatedBytes = ExportMetrics.getCurrentThreadAllocatedBytes();
+			try {
+				return task.call();
+			} finally {
+				addWorkerAllocatedBytes(workerAllocatedBytes, allocatedBytes);
+			}
+		});
+		if (isParallel()) {
+			forkJoinPool.execute(forkJoinTask);
+		} else {
+			forkJoinTask.invoke();
+		}
+		return forkJoinTask;
+	}
+
+	/**
+	 * Converts and writes the products [start, end) of a region. Products with
+	 * a byte length of 0 are skipped.
+	 *
+	 * @return The number of bytes written
+	 */
+	public long writeRegion(OutputStream outputStream, int[] byteLengths, int start, int end, SliceConverter converter) throws IOException {
+		long written = 0;
+		int from = start;
+		while (from < end) {
+			// A product that does not fit in a batch gets a batch of its own
+			int to = from;
+			int length = 0;
+			while (to < end && (to == from || (long) length + byteLengths[to] <= batchByteLength)) {
+				length += byteLengths[to++];
+			}
+			int[] offsets = new int[to - from + 1];
+			for (int i = from; i < to; i++) {
+				offsets[i - from + 1] = offsets[i - from] + byteLengths[i];
+			}
+			ByteBuffer batch = getBatchBuffer(length);
+			if (isParallel() && length > MIN_TASK_BYTE_LENGTH && to - from > 1) {
+				forkJoinPool.invoke(new ConvertTask(batch, from, from, to, offsets, converter, Thread.currentThread(), workerAllocatedBytes, progress));
+			} else {
+				convertRange(batch, from, from, to, offsets, converter, progress);
+			}
+			outputStream.write(batch.array(), 0, length);
+			progress.advance(length);
+			written += length;
+			from = to;
+		}
+		return written;
+	}
+
+	private static void convertRange(ByteBuffer batch, int batchStart, int from, int to, int[] offsets, SliceConverter converter, ExportProgress progress) {
+		for (int i = from; i < to; i++) {
+			progress.checkCancelled();
+			int start = offsets[i - batchStart];
+			int end = offsets[i - batchStart + 1];
+			if (start == end) {
+				continue;
+			}
+			ByteBuffer slice = batch.duplicate();
+			slice.order(ByteOrder.LITTLE_ENDIAN);
+			slice.limit(end);
+			slice.position(start);
+			converter.convert(i, slice);
+			if (slice.hasRemaining()) {
+				throw new IllegalStateException("Not all space used");
+			}
+		}
+	}
+
+	/**
+	 * @return The bytes allocated by pool threads for this pipeline since it was created, -1 when the JVM cannot measure allocations
+	 */
+	public long getWorkerAllocatedBytes() {
+		return ExportMetrics.getCurrentThreadAllocatedBytes() == -1 ? -1 : workerAllocatedBytes.sum();
+	}
+
+	/**
+	 * @param allocatedBytes What the current thread had allocated when it started working for the pipeline
+	 */
+	private static void addWorkerAllocatedBytes(LongAdder workerAllocatedBytes, long allocatedBytes) {
+		if (allocatedBytes != -1) {
+			workerAllocatedBytes.add(ExportMetrics.getCurrentThreadAllocatedBytes() - allocatedBytes);
+		}
+	}
+
+	private ByteBuffer getBatchBuffer(int capacity) {
+		if (batchBuffer == null || batchBuffer.capacity() < capacity) {
+			batchBuffer = ByteBuffer.allocate(capacity);
+		}
+		return batchBuffer;
+	}
+
+	/**
+	 * Drops the batch buffer, the next region that is written allocates a new one
+	 */
+	public void releaseBuffers() {
+		batchBuffer = null;
+	}
+
+	private static class ConvertTask extends RecursiveAction {
+		private static final long serialVersionUID = 5244227592536735101L;
+		private final ByteBuffer batch;
+		private final int batchStart;
+		private final int from;
+		private final int to;
+		private final int[] offsets;
+		private final SliceConverter converter;
+		private final Thread caller;
+		private final LongAdder workerAllocatedBytes;
+		private final ExportProgress progress;
+
+		ConvertTask(ByteBuffer batch, int batchStart, int from, int to, int[] offsets, SliceConverter converter, Thread caller, LongAdder workerAllocatedBytes, ExportProgress progress) {
+			this.batch = batch;
+			this.batchStart = batchStart;
+			this.from = from;
+			this.to = to;
+			this.offsets = offsets;
+			this.converter = converter;
+			this.caller = caller;
+			this.workerAllocatedBytes = workerAllocatedBytes;
+			this.progress = progress;
+		}
+
+		@Override
+		protected void compute() {
+			int byteLength = offsets[to - batchStart] - offsets[from - batchStart];
+			if (to - from == 1 || byteLength <= MIN_TASK_BYTE_LENGTH) {
+				long allocatedBytes = Thread.currentThread() == caller ? -1 : ExportMetrics.getCurrentThreadAllocatedBytes();
+				try {
+					convertRange(batch, batchStart, from, to, offsets, converter, progress);
+				} finally {
+					addWorkerAllocatedBytes(workerAllocatedBytes, allocatedBytes);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ConvertTask(batch, batchStart, from, middle, offsets, converter, caller, workerAllocatedBytes, progress), new ConvertTask(batch, batchStart, middle, to, offsets, converter, caller, workerAllocatedBytes, progress));
+			}
+		}
+	}
+
+	private static class ForEachTask extends RecursiveAction {
+		private static final long serialVersionUID = -3313702733342474413L;
+		private final int from;
+		private final int to;
+		private final IntConsumer action;
+		private final Thread caller;
+		private final LongAdder workerAllocatedBytes;
+		private final ExportProgress progress;
+
+		ForEachTask(int from, int to, IntConsumer action, Thread caller, LongAdder workerAllocatedBytes, ExportProgress progress) {
+			this.from = from;
+			this.to = to;
+			this.action = action;
+			this.caller = caller;
+			this.workerAllocatedBytes = workerAllocatedBytes;
+			this.progress = progress;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= MIN_TASK_SIZE) {
+				long allocatedBytes = Thread.currentThread() == caller ? -1 : ExportMetrics.getCurrentThreadAllocatedBytes();
+				try {
+					for (int i = from; i < to; i++) {
+						progress.checkCancelled();
+						action.accept(i);
+					}
+				} finally {
+					addWorkerAllocatedBytes(workerAllocatedBytes, allocatedBytes);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ForEachTask(from, middle, action, caller, workerAllocatedBytes, progress), new ForEachTask(middle, to, action, caller, workerAllocatedBytes, progress));
+			}
+		}
+	}
+}
@@ -0,0 +1,513 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+
+import java.util.Arrays;
+
+/**
+ * Encoder for the Draco bitstream (version 2.2) of KHR_draco_mesh_compression,
+ * compatible with the decoders of the Draco library.
+ *
+ * Meshes are written with the sequential connectivity, the points keep their
+ * order so the decoded mesh has exactly the vertices and triangles that were
+ * given. Positions and normals are quantized, every attribute is predicted
+ * from the point before it (difference prediction with the wrap transform)
+ * and the corrections are entropy coded with rANS, just like the indices.
+ */
+class DracoEncoder {
+
+	// The unique ids of the attributes, the KHR_draco_mesh_compression object of a primitive maps the glTF attributes to these
+	static final int POSITION_ID = 0;
+	static final int NORMAL_ID = 1;
+	static final int COLOR_ID = 2;
+
+	private static final byte[] MAGIC = {'D', 'R', 'A', 'C', 'O'};
+	private static final int MAJOR_VERSION = 2;
+	private static final int MINOR_VERSION = 2;
+	private static final int TRIANGULAR_MESH = 1;
+	private static final int MESH_SEQUENTIAL_ENCODING = 0;
+	private static final int SEQUENTIAL_COMPRESSED_INDICES = 0;
+	private static final int SEQUENTIAL_UNCOMPRESSED_INDICES = 1;
+
+	private static final int POSITION = 0;
+	private static final int NORMAL = 1;
+	private static final int COLOR = 2;
+	private static final int DT_UINT8 = 2;
+	private static final int DT_FLOAT32 = 9;
+	private static final int SEQUENTIAL_ATTRIBUTE_ENCODER_INTEGER = 1;
+	private static final int SEQUENTIAL_ATTRIBUTE_ENCODER_QUANTIZATION = 2;
+	private static final int PREDICTION_DIFFERENCE = 0;
+	private static final int PREDICTION_TRANSFORM_WRAP = 1;
+
+	private static final int SYMBOL_CODING_TAGGED = 0;
+	private static final int SYMBOL_CODING_RAW = 1;
+	// The raw scheme has a probability per symbol value, larger values always use the tagged scheme
+	private static final int MAX_RAW_ENCODING_BIT_LENGTH = 18;
+	// The tags are the bit lengths of the values, their rANS coder is always created for 5-bit symbols
+	private static final int TAG_SYMBOLS_BIT_LENGTH = 5;
+	private static final int MAX_TAG_SYMBOL_BIT_LENGTH = 32;
+
+	private DracoEncoder() {
+	}
+
+	/**
+	 * Encodes a triangle mesh with the attributes POSITION, NORMAL and, when colors is not null, COLOR_0 as normalized unsigned bytes
+	 *
+	 * @param indices The first nrIndices are the triangles
+	 * @param positions XYZ per point
+	 * @param normals XYZ per point
+	 * @param colors RGBA per point, or null
+	 * @param positionBits The quantization bits of the positions, over the largest extent of the mesh
+	 * @param normalBits The quantization bits of the normals
+	 */
+	static byte[] encodeMesh(int[] indices, int nrIndices, float[] positions, float[] normals, byte[] colors, int positionBits, int normalBits) {
+		if (positionBits < 1 || positionBits > 30 || normalBits < 1 || normalBits > 30) {
+			throw new IllegalArgumentException("Quantization bits have to be between 1 and 30");
+		}
+		byte[] result = encodeMesh(indices, nrIndices, positions, normals, colors, positionBits, normalBits, true);
+		// The decoder rejects meshes with fewer bytes after the counts than 3 per triangle, which entropy coded indices of a very regular mesh can get below
+		if (result.length - getConnectivityStart(nrIndices, positions.length / 3) < nrIndices) {
+			result = encodeMesh(indices, nrIndices, positions, normals, colors, positionBits, normalBits, false);
+		}
+		return result;
+	}
+
+	/**
+	 * The bounds of the positions as the decoder produces them. All axes share the step size of the largest extent, so the decoded positions can be a
+	 * little outside the original bounds.
+	 *
+	 * @return XYZ of the minimum followed by XYZ of the maximum
+	 */
+	static float[] getDecodedBounds(float[] positions, int positionBits) {
+		Quantization quantization = new Quantization(positions, 3, positionBits);
+		float delta = quantization.range / ((1 << positionBits) - 1);
+		float[] bounds = new float[6];
+		for (int c = 0; c < 3; c++) {
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for (int i = c; i < quantization.values.length; i += 3) {
+				min = Math.min(min, quantization.values[i]);
+				max = Math.max(max, quantization.values[i]);
+			}
+			bounds[c] = min * delta + quantization.min[c];
+			bounds[3 + c] = max * delta + quantization.min[c];
+		}
+		return bounds;
+	}
+
+	private static int getConnectivityStart(int nrIndices, int nrPoints) {
+		ByteSink counts = new ByteSink(16);
+		writeVarint(counts, nrIndices / 3);
+		writeVarint(counts, nrPoints);
+		return MAGIC.length + 6 + counts.size();
+	}
+
+	private static byte[] encodeMesh(int[] indices, int nrIndices, float[] positions, float[] normals, byte[] colors, int positionBits, int normalBits, boolean compressIndices) {
+		int nrPoints = positions.length / 3;
+		ByteSink out = new ByteSink(64 + nrIndices + nrPoints * 4);
+		out.write(MAGIC, 0, MAGIC.length);
+		out.write(MAJOR_VERSION);
+		out.write(MINOR_VERSION);
+		out.write(TRIANGULAR_MESH);
+		out.write(MESH_SEQUENTIAL_ENCODING);
+		writeShort(out, 0);
+
+		writeVarint(out, nrIndices / 3);
+		writeVarint(out, nrPoints);
+		if (compressIndices) {
+			out.write(SEQUENTIAL_COMPRESSED_INDICES);
+			// Every index as the difference with the index before it, the sign in the lowest bit
+			int[] symbols = new int[nrIndices];
+			int lastIndex = 0;
+			for (int i = 0; i < nrIndices; i++) {
+				int difference = indices[i] - lastIndex;
+				symbols[i] = difference < 0 ? (-difference << 1) | 1 : difference << 1;
+				lastIndex = indices[i];
+			}
+			encodeSymbols(out, symbols, nrIndices, 1);
+		} else {
+			out.write(SEQUENTIAL_UNCOMPRESSED_INDICES);
+			for (int i = 0; i < nrIndices; i++) {
+				if (nrPoints < (1 << 8)) {
+					out.write(indices[i]);
+				} else if (nrPoints < (1 << 16)) {
+					writeShort(out, indices[i]);
+				} else if (nrPoints < (1 << 21)) {
+					writeVarint(out, indices[i]);
+				} else {
+					writeInt(out, indices[i]);
+				}
+			}
+		}
+
+		// One attributes encoder with all attributes, in the order of the points
+		out.write(1);
+		writeVarint(out, colors != null ? 3 : 2);
+		writeAttribute(out, POSITION, DT_FLOAT32, 3, false, POSITION_ID);
+		writeAttribute(out, NORMAL, DT_FLOAT32, 3, false, NORMAL_ID);
+		if (colors != null) {
+			writeAttribute(out, COLOR, DT_UINT8, 4, true, COLOR_ID);
+		}
+		out.write(SEQUENTIAL_ATTRIBUTE_ENCODER_QUANTIZATION);
+		out.write(SEQUENTIAL_ATTRIBUTE_ENCODER_QUANTIZATION);
+		if (colors != null) {
+			out.write(SEQUENTIAL_ATTRIBUTE_ENCODER_INTEGER);
+		}
+
+		// The values of all attributes come first, the decoder needs the quantization parameters only after that
+		Quantization positionQuantization = new Quantization(positions, 3, positionBits);
+		Quantization normalQuantization = new Quantization(normals, 3, normalBits);
+		encodeIntegerValues(out, positionQuantization.values, 3);
+		encodeIntegerValues(out, normalQuantization.values, 3);
+		if (colors != null) {
+			int[] colorValues = new int[nrPoints * 4];
+			for (int i = 0; i < colorValues.length; i++) {
+				colorValues[i] = colors[i] & 0xFF;
+			}
+			encodeIntegerValues(out, colorValues, 4);
+		}
+		positionQuantization.write(out);
+		normalQuantization.write(out);
+		return Arrays.copyOf(out.array(), out.size());
+	}
+
+	private static void writeAttribute(ByteSink out, int type, int dataType, int nrComponents, boolean normalized, int uniqueId) {
+		out.write(type);
+		out.write(dataType);
+		out.write(nrComponents);
+		out.write(normalized ? 1 : 0);
+		writeVarint(out, uniqueId);
+	}
+
+	/**
+	 * Quantizes all components with the same step size, over the largest extent of any component
+	 */
+	private static class Quantization {
+		private final float[] min;
+		private final float range;
+		private final int bits;
+		private final int[] values;
+
+		Quantization(float[] input, int nrComponents, int bits) {
+			this.bits = bits;
+			min = new float[nrComponents];
+			float[] max = new float[nrComponents];
+			for (int c = 0; c < nrComponents; c++) {
+				min[c] = input.length > 0 ? input[c] : 0;
+				max[c] = min[c];
+			}
+			for (int i = nrComponents; i < input.length; i++) {
+				min[i % nrComponents] = Math.min(min[i % nrComponents], input[i]);
+				max[i % nrComponents] = Math.max(max[i % nrComponents], input[i]);
+			}
+			float largest = 0;
+			for (int c = 0; c < nrComponents; c++) {
+				largest = Math.max(largest, max[c] - min[c]);
+			}
+			// All values the same, they all become 0
+			range = largest == 0 ? 1 : largest;
+			float inverseDelta = ((1 << bits) - 1) / range;
+			values = new int[input.length];
+			for (int i = 0; i < input.length; i++) {
+				values[i] = (int) Math.floor((input[i] - min[i % nrComponents]) * inverseDelta + 0.5f);
+			}
+		}
+
+		void write(ByteSink out) {
+			for (float value : min) {
+				writeInt(out, Float.floatToIntBits(value));
+			}
+			writeInt(out, Float.floatToIntBits(range));
+			out.write(bits);
+		}
+	}
+
+	/**
+	 * Writes integer values with the difference prediction, the corrections wrap around within the range of the values so they never need more bits than the values themselves
+	 */
+	private static void encodeIntegerValues(ByteSink out, int[] values, int nrComponents) {
+		out.write(PREDICTION_DIFFERENCE);
+		out.write(PREDICTION_TRANSFORM_WRAP);
+
+		// The decoder rejects a minimum above the maximum, also when there are no values
+		int min = values.length > 0 ? Integer.MAX_VALUE : 0;
+		int max = values.length > 0 ? Integer.MIN_VALUE : 0;
+		for (int value : values) {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		int maxDifference = 1 + max - min;
+		int maxCorrection = maxDifference / 2;
+		int minCorrection = -maxCorrection;
+		if ((maxDifference & 1) == 0) {
+			maxCorrection--;
+		}
+		int[] symbols = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			// The first point is predicted from 0, clamped into the range of the values
+			int predicted = i < nrComponents ? Math.max(min, Math.min(max, 0)) : values[i - nrComponents];
+			int correction = values[i] - predicted;
+			if (correction < minCorrection) {
+				correction += maxDifference;
+			} else if (correction > maxCorrection) {
+				correction -= maxDifference;
+			}
+			symbols[i] = (correction << 1) ^ (correction >> 31);
+		}
+		// Compressed, not the raw values
+		out.write(1);
+		encodeSymbols(out, symbols, symbols.length, nrComponents);
+		writeInt(out, min);
+		writeInt(out, max);
+	}
+
+	/**
+	 * Entropy codes unsigned values. The raw scheme codes the values themselves, the tagged scheme codes the bit length of every group of nrComponents values
+	 * and stores the values with that many bits. The one that is estimated to be smaller is used.
+	 */
+	private static void encodeSymbols(ByteSink out, int[] symbols, int nrValues, int nrComponents) {
+		if (nrValues == 0) {
+			return;
+		}
+		int nrGroups = nrValues / nrComponents;
+		int[] bitLengths = new int[nrGroups];
+		int maxValue = 0;
+		long[] bitLengthFrequencies = new long[MAX_TAG_SYMBOL_BIT_LENGTH + 1];
+		long totalValueBits = 0;
+		for (int group = 0; group < nrGroups; group++) {
+			int groupMax = 0;
+			for (int c = 0; c < nrComponents; c++) {
+				groupMax = Math.max(groupMax, symbols[group * nrComponents + c]);
+			}
+			maxValue = Math.max(maxValue, groupMax);
+			bitLengths[group] = 32 - Integer.numberOfLeadingZeros(Math.max(groupMax, 1));
+			bitLengthFrequencies[bitLengths[group]]++;
+			totalValueBits += bitLengths[group] * nrComponents;
+		}
+		int maxValueBitLength = 32 - Integer.numberOfLeadingZeros(Math.max(maxValue, 1));
+		double taggedBits = getEntropyBits(bitLengthFrequencies) + getTableBits(bitLengthFrequencies) + totalValueBits;
+
+		if (maxValueBitLength <= MAX_RAW_ENCODING_BIT_LENGTH) {
+			long[] frequencies = new long[maxValue + 1];
+			for (int i = 0; i < nrValues; i++) {
+				frequencies[symbols[i]]++;
+			}
+			double rawBits = getEntropyBits(frequencies) + getTableBits(frequencies);
+			if (rawBits <= taggedBits) {
+				out.write(SYMBOL_CODING_RAW);
+				int nrUniqueSymbols = 0;
+				for (long frequency : frequencies) {
+					if (frequency > 0) {
+						nrUniqueSymbols++;
+					}
+				}
+				// Decides the rANS precision of the decoder
+				int uniqueSymbolsBitLength = Math.min(32 - Integer.numberOfLeadingZeros(nrUniqueSymbols), MAX_RAW_ENCODING_BIT_LENGTH);
+				out.write(uniqueSymbolsBitLength);
+				RansSymbolEncoder encoder = new RansSymbolEncoder(frequencies, uniqueSymbolsBitLength, nrValues);
+				encoder.writeTable(out);
+				for (int i = nrValues - 1; i >= 0; i--) {
+					encoder.encode(symbols[i]);
+				}
+				encoder.finish(out);
+				return;
+			}
+		}
+
+		out.write(SYMBOL_CODING_TAGGED);
+		RansSymbolEncoder encoder = new RansSymbolEncoder(bitLengthFrequencies, TAG_SYMBOLS_BIT_LENGTH, nrGroups);
+		encoder.writeTable(out);
+		byte[] valueBits = new byte[(int) ((totalValueBits + 7) / 8)];
+		long bitPosition = 0;
+		for (int group = nrGroups - 1; group >= 0; group--) {
+			encoder.encode(bitLengths[group]);
+		}
+		for (int i = 0; i < nrValues; i++) {
+			int bitLength = bitLengths[i / nrComponents];
+			for (int bit = 0; bit < bitLength; bit++, bitPosition++) {
+				valueBits[(int) (bitPosition >>> 3)] |= ((symbols[i] >>> bit) & 1) << (bitPosition & 7);
+			}
+		}
+		encoder.finish(out);
+		out.write(valueBits, 0, valueBits.length);
+	}
+
+	private static double getEntropyBits(long[] frequencies) {
+		long total = 0;
+		for (long frequency : frequencies) {
+			total += frequency;
+		}
+		double bits = 0;
+		for (long frequency : frequencies) {
+			if (frequency > 0) {
+				bits -= frequency * Math.log((double) frequency / total) / Math.log(2);
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * About one byte per used symbol, runs of unused ones take a byte per 64
+	 */
+	private static double getTableBits(long[] frequencies) {
+		int nrUnique = 0;
+		for (long frequency : frequencies) {
+			if (frequency > 0) {
+				nrUnique++;
+			}
+		}
+		return 8 * (nrUnique + (frequencies.length - nrUnique) / 64 + 2);
+	}
+
+	/**
+	 * rANS coder with the probability table of the Draco symbol coders. Symbols are encoded in reverse, the decoder reads them from the end of the data.
+	 */
+	private static class RansSymbolEncoder {
+		private static final int IO_BASE = 256;
+		private final int precision;
+		private final int lowerBound;
+		private final int[] probabilities;
+		private final int[] cumulative;
+		private final int nrSymbols;
+		private byte[] buffer;
+		private int size;
+		private int state;
+
+		RansSymbolEncoder(long[] frequencies, int uniqueSymbolsBitLength, int nrValues) {
+			int precisionBits = Math.max(12, Math.min(20, (3 * uniqueSymbolsBitLength) / 2));
+			precision = 1 << precisionBits;
+			lowerBound = precision * 4;
+			int last = 0;
+			long total = 0;
+			for (int i = 0; i < frequencies.length; i++) {
+				total += frequencies[i];
+				if (frequencies[i] > 0) {
+					last = i;
+				}
+			}
+			nrSymbols = last + 1;
+			probabilities = new int[nrSymbols];
+			int sum = 0;
+			for (int i = 0; i < nrSymbols; i++) {
+				if (frequencies[i] > 0) {
+					probabilities[i] = Math.max(1, (int) (frequencies[i] * (double) precision / total + 0.5));
+					sum += probabilities[i];
+				}
+			}
+			// Rounding leaves the total a little off, the difference goes to the most likely symbols, no symbol drops below 1
+			while (sum != precision) {
+				int largest = 0;
+				for (int i = 1; i < nrSymbols; i++) {
+					if (probabilities[i] > probabilities[largest]) {
+						largest = i;
+					}
+				}
+				int change = sum < precision ? precision - sum : -Math.min(sum - precision, Math.max(1, (probabilities[largest] - 1) / 2));
+				probabilities[largest] += change;
+				sum += change;
+			}
+			cumulative = new int[nrSymbols];
+			for (int i = 1; i < nrSymbols; i++) {
+				cumulative[i] = cumulative[i - 1] + probabilities[i - 1];
+			}
+			buffer = new byte[Math.max(16, nrValues / 2)];
+			state = lowerBound;
+		}
+
+		void writeTable(ByteSink out) {
+			writeVarint(out, nrSymbols);
+			for (int i = 0; i < nrSymbols; i++) {
+				int probability = probabilities[i];
+				if (probability == 0) {
+					// A run of up to 64 unused symbols in one byte, the last symbol is always used
+					int offset = 0;
+					while (offset < (1 << 6) - 1 && probabilities[i + offset + 1] == 0) {
+						offset++;
+					}
+					out.write((offset << 2) | 3);
+					i += offset;
+				} else {
+					int extraBytes = probability >= (1 << 14) ? 2 : probability >= (1 << 6) ? 1 : 0;
+					out.write((probability << 2) | extraBytes);
+					for (int b = 0; b < extraBytes; b++) {
+						out.write(probability >>> (8 * (b + 1) - 2));
+					}
+				}
+			}
+		}
+
+		void encode(int symbol) {
+			int probability = probabilities[symbol];
+			while (state >= lowerBound / precision * IO_BASE * probability) {
+				put(state & 0xFF);
+				state >>>= 8;
+			}
+			state = (state / probability) * precision + state % probability + cumulative[symbol];
+		}
+
+		void finish(ByteSink out) {
+			int rest = state - lowerBound;
+			if (rest < (1 << 6)) {
+				put(rest);
+			} else if (rest < (1 << 14)) {
+				rest |= 1 << 14;
+				put(rest & 0xFF);
+				put(rest >>> 8);
+			} else if (rest < (1 << 22)) {
+				rest |= 2 << 22;
+				put(rest & 0xFF);
+				put((rest >>> 8) & 0xFF);
+				put(rest >>> 16);
+			} else {
+				rest |= 3 << 30;
+				put(rest & 0xFF);
+				put((rest >>> 8) & 0xFF);
+				put((rest >>> 16) & 0xFF);
+				put(rest >>> 24);
+			}
+			writeVarint(out, size);
+			out.write(buffer, 0, size);
+		}
+
+		private void put(int value) {
+			if (size == buffer.length) {
+				buffer = Arrays.copyOf(buffer, size * 2);
+			}
+			buffer[size++] = (byte) value;
+		}
+	}
+
+	private static void writeVarint(ByteSink out, long value) {
+		while (value >= 0x80) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static void writeShort(ByteSink out, int value) {
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+	}
+
+	private static void writeInt(ByteSink out, int value) {
+		writeShort(out, value);
+		writeShort(out, value >>> 16);
+	}
+}
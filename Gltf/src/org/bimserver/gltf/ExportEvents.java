@@ -0,0 +1,33 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+/**
+ * Reports the phases of an export and the export itself to a profiler while they run. The events are opaque to the caller, every begin is followed by
+ * exactly one end with the event it returned.
+ */
+interface ExportEvents {
+
+	Object beginPhase();
+
+	void endPhase(Object phaseEvent, ExportMetrics.Phase phase, long allocatedBytes);
+
+	Object beginExport();
+
+	void endExport(Object exportEvent, ExportMetrics metrics);
+}
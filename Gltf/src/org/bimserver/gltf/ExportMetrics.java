@@ -0,0 +1,252 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Where the time and memory of one export went, per phase, with the size of
+ * the output per stream of binary data. An export that is served from the
+ * result cache does not produce metrics, every tile of a tileset does.
+ *
+ * Allocated bytes are those of the exporting thread plus those of the pool
+ * threads while they worked for this export, -1 when the JVM cannot measure
+ * them.
+ */
+public final class ExportMetrics {
+
+	public enum Phase {
+		// Collecting the geometries of the products, the deduplication and the analysis of every mesh
+		ANALYSIS,
+		// The byte length of every geometry in every region, including the batching and the Draco encoding
+		SIZING,
+		// The bounds of every geometry and of the whole model
+		BOUNDS,
+		// The accessors, bufferViews, meshes and nodes
+		SCENE,
+		// EXT_meshopt_compression of the binary data
+		COMPRESSION,
+		// Writing the JSON
+		JSON,
+		// Converting the geometry and writing the binary data
+		BODY
+	}
+
+	public enum Stream {
+		INDICES,
+		POSITIONS,
+		NORMALS,
+		COLORS,
+		FEATURE_IDS,
+		DRACO,
+		INSTANCES,
+		SHADERS
+	}
+
+	private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+	private static final boolean ALLOCATIONS = isAllocationMeasurable();
+	// Null when the JVM has no Flight Recorder or the plugin was built without it
+	private static final ExportEvents EVENTS = loadEvents();
+
+	private final Map<Phase, Long> wallNanos = new EnumMap<>(Phase.class);
+	private final Map<Phase, Long> allocatedBytes = new EnumMap<>(Phase.class);
+	private final Map<Stream, Long> streamByteLengths = new EnumMap<>(Stream.class);
+	private final long startNanos = System.nanoTime();
+	private final Object exportEvent = EVENTS != null ? EVENTS.beginExport() : null;
+	private long totalNanos;
+	int nrProducts;
+	int nrGeometries;
+	int nrMeshes;
+	int nrPrimitives;
+	int nrAccessors;
+	int nrBufferViews;
+	int nrBuffers;
+	int nrNodes;
+	int nrMaterials;
+	long jsonByteLength;
+	long outputByteLength;
+
+	// The phase that is running
+	private Phase phase;
+	private long phaseStartNanos;
+	private long phaseStartAllocatedBytes;
+	private long phaseStartWorkerAllocatedBytes;
+	private Object phaseEvent;
+
+	/**
+	 * @param workerAllocatedBytes What the pool threads allocated for this export so far
+	 */
+	void startPhase(Phase phase, long workerAllocatedBytes) {
+		this.phase = phase;
+		phaseEvent = EVENTS != null ? EVENTS.beginPhase() : null;
+		phaseStartAllocatedBytes = getCurrentThreadAllocatedBytes();
+		phaseStartWorkerAllocatedBytes = workerAllocatedBytes;
+		phaseStartNanos = System.nanoTime();
+	}
+
+	/**
+	 * Adds the time and allocations since startPhase to the phase, a phase can run more than once in an export
+	 */
+	void endPhase(long workerAllocatedBytes) {
+		long nanos = System.nanoTime() - phaseStartNanos;
+		long allocated = ALLOCATIONS ? getCurrentThreadAllocatedBytes() - phaseStartAllocatedBytes + workerAllocatedBytes - phaseStartWorkerAllocatedBytes : -1;
+		wallNanos.merge(phase, nanos, Long::sum);
+		allocatedBytes.merge(phase, allocated, Long::sum);
+		if (phaseEvent != null) {
+			EVENTS.endPhase(phaseEvent, phase, allocated);
+		}
+		phase = null;
+		phaseEvent = null;
+	}
+
+	void addStreamByteLength(Stream stream, long byteLength) {
+		streamByteLengths.merge(stream, byteLength, Long::sum);
+	}
+
+	void finish() {
+		totalNanos = System.nanoTime() - startNanos;
+		if (exportEvent != null) {
+			EVENTS.endExport(exportEvent, this);
+		}
+	}
+
+	/**
+	 * @return 0 for a phase that did not run
+	 */
+	public long getWallNanos(Phase phase) {
+		return wallNanos.getOrDefault(phase, 0L);
+	}
+
+	/**
+	 * @return 0 for a phase that did not run, -1 when the JVM cannot measure allocations
+	 */
+	public long getAllocatedBytes(Phase phase) {
+		return ALLOCATIONS ? allocatedBytes.getOrDefault(phase, 0L) : -1;
+	}
+
+	/**
+	 * @return The uncompressed byte length of a stream in the binary data
+	 */
+	public long getStreamByteLength(Stream stream) {
+		return streamByteLengths.getOrDefault(stream, 0L);
+	}
+
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	public int getNrProducts() {
+		return nrProducts;
+	}
+
+	/**
+	 * @return The number of distinct geometries, after the deduplication
+	 */
+	public int getNrGeometries() {
+		return nrGeometries;
+	}
+
+	public int getNrMeshes() {
+		return nrMeshes;
+	}
+
+	public int getNrPrimitives() {
+		return nrPrimitives;
+	}
+
+	public int getNrAccessors() {
+		return nrAccessors;
+	}
+
+	public int getNrBufferViews() {
+		return nrBufferViews;
+	}
+
+	public int getNrBuffers() {
+		return nrBuffers;
+	}
+
+	public int getNrNodes() {
+		return nrNodes;
+	}
+
+	public int getNrMaterials() {
+		return nrMaterials;
+	}
+
+	public long getJsonByteLength() {
+		return jsonByteLength;
+	}
+
+	/**
+	 * @return The number of bytes written, the GLB or the zip
+	 */
+	public long getOutputByteLength() {
+		return outputByteLength;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format("%d ms, %d products, %d geometries, %d primitives, %d accessors, %d bytes", totalNanos / 1000000, nrProducts, nrGeometries, nrPrimitives, nrAccessors, outputByteLength));
+		for (Phase phase : wallNanos.keySet()) {
+			builder.append(String.format(", %s %d ms", phase.name().toLowerCase(), getWallNanos(phase) / 1000000));
+			if (ALLOCATIONS) {
+				builder.append(String.format(" %d MB", getAllocatedBytes(phase) / (1024 * 1024)));
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @return -1 when the JVM cannot measure allocations
+	 */
+	static long getCurrentThreadAllocatedBytes() {
+		if (!ALLOCATIONS) {
+			return -1;
+		}
+		return ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static boolean isAllocationMeasurable() {
+		try {
+			return THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).isThreadAllocatedMemorySupported() && ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).isThreadAllocatedMemoryEnabled();
+		} catch (LinkageError e) {
+			// Not a HotSpot compatible JVM
+			return false;
+		}
+	}
+
+	private static ExportEvents loadEvents() {
+		try {
+			Class.forName("jdk.jfr.Event");
+		} catch (ClassNotFoundException | LinkageError e) {
+			// Java 8 before update 262
+			return null;
+		}
+		try {
+			// Only there when the plugin was built with the jfr profile
+			return Class.forName("org.bimserver.gltf.JfrEvents").asSubclass(ExportEvents.class).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+}
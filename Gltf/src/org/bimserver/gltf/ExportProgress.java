@@ -0,0 +1,114 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bimserver.plugins.serializers.ProgressReporter;
+
+/**
+ * Passes the progress of an export on to the ProgressReporter of BIMserver
+ * and tells the export when it has been cancelled.
+ *
+ * An export goes through stages, every stage has a title and a maximum of its
+ * own: the products or geometries it goes through, or the bytes it writes.
+ * Progress can be added from any thread, the reporter is called when another
+ * percent of the stage is done, by one thread at a time.
+ *
+ * An export is cancelled by cancel() or by interrupting the thread that runs
+ * it. The threads that work for the export check for that between products
+ * and stop with a CancellationException, so an abandoned export gives its
+ * threads and memory back right away instead of running to the end.
+ */
+class ExportProgress {
+
+	private volatile ProgressReporter progressReporter;
+	private volatile Thread exportThread;
+	private volatile boolean cancelled;
+	private final AtomicLong progress = new AtomicLong();
+	private volatile long max;
+	// The reporter is only called when the percentage gets higher than this
+	private volatile int reportedPercentage;
+
+	/**
+	 * Starts reporting to the given reporter, the current thread is the one that runs the export
+	 *
+	 * @param progressReporter Or null, cancellation is still checked then
+	 */
+	void start(ProgressReporter progressReporter) {
+		this.progressReporter = progressReporter;
+		this.exportThread = Thread.currentThread();
+	}
+
+	synchronized void startStage(String title, long max) {
+		checkCancelled();
+		this.max = max;
+		progress.set(0);
+		reportedPercentage = 0;
+		if (progressReporter != null) {
+			progressReporter.setTitle(title);
+			progressReporter.update(0, max);
+		}
+	}
+
+	/**
+	 * Adds to the progress of the current stage, after checking that the export has not been cancelled
+	 */
+	void advance(long amount) {
+		checkCancelled();
+		long done = progress.addAndGet(amount);
+		if (progressReporter != null && max > 0 && done * 100 / max > reportedPercentage) {
+			report(done);
+		}
+	}
+
+	private synchronized void report(long done) {
+		int percentage = (int) (done * 100 / max);
+		// Another thread may have reported a later state in the meantime
+		if (percentage > reportedPercentage) {
+			reportedPercentage = percentage;
+			progressReporter.update(Math.min(done, max), max);
+		}
+	}
+
+	/**
+	 * @throws CancellationException When the export has been cancelled or its thread has been interrupted
+	 */
+	void checkCancelled() {
+		if (cancelled) {
+			throw new CancellationException("The export has been cancelled");
+		}
+		Thread thread = exportThread;
+		if (thread != null && thread.isInterrupted()) {
+			cancelled = true;
+			throw new CancellationException("The export has been cancelled");
+		}
+	}
+
+	/**
+	 * Cancels the export, from any thread
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	boolean isCancelled() {
+		return cancelled;
+	}
+}
@@ -0,0 +1,388 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps the conversion of geometries between exports. Most of a model is the
+ * same from one revision to the next, BIMserver keeps the oid of a
+ * GeometryData as long as it does not change, so a new revision only has to
+ * convert what is new.
+ *
+ * Entries are keyed by the oid and the options that change the conversion.
+ * They are kept outside of the heap, in a few large direct buffers, the
+ * slabs, and the least recently used ones are dropped once the cache holds
+ * more than its maximum number of bytes. The region of a dropped entry is
+ * merged with the free regions next to it and reused, a new entry goes into
+ * the smallest free region it fits in. An entry is only filled and read by
+ * the serializer, this class does not know what is in it.
+ */
+class GeometryCache {
+
+	private static final int SLAB_BYTE_SIZE = 16 * 1024 * 1024;
+	private static final Slab PROBE = new Slab(Long.MIN_VALUE, null);
+	private static final Comparator<Region> BY_LENGTH = Comparator.<Region>comparingInt(region -> region.length).thenComparingLong(region -> region.slab.id).thenComparingInt(region -> region.offset);
+
+	private static final class Slab {
+		private final long id;
+		private final ByteBuffer buffer;
+		// The free regions by offset, free regions next to each other are always merged
+		private final TreeMap<Integer, Region> free = new TreeMap<>();
+
+		Slab(long id, ByteBuffer buffer) {
+			this.id = id;
+			this.buffer = buffer;
+		}
+	}
+
+	private static final class Region {
+		private final Slab slab;
+		private final int offset;
+		private final int length;
+
+		Region(Slab slab, int offset, int length) {
+			this.slab = slab;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static final class Key {
+		private final long oid;
+		private final String options;
+
+		Key(long oid, String options) {
+			this.oid = oid;
+			this.options = options;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return oid == other.oid && options.equals(other.options);
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(oid) * 31 + options.hashCode();
+		}
+	}
+
+	// Access order, the first entry is the least recently used one
+	private final LinkedHashMap<Key, Region> entries = new LinkedHashMap<>(16, 0.75f, true);
+	// The free regions of all slabs, smallest first
+	private final TreeSet<Region> freeRegions = new TreeSet<>(BY_LENGTH);
+	private long maxByteSize;
+	private long byteSize;
+	private long slabsByteSize;
+	private long nextSlabId;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	GeometryCache(long maxByteSize) {
+		this.maxByteSize = maxByteSize;
+	}
+
+	/**
+	 * @return A copy of the entry on the heap, positioned at its start, or null when the cache does not have it. Not the slab itself, its region can be
+	 * given to another entry as soon as this returns.
+	 */
+	synchronized ByteBuffer get(long oid, String options) {
+		Region region = entries.get(new Key(oid, options));
+		if (region == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		byte[] entry = new byte[region.length];
+		ByteBuffer slab = region.slab.buffer.duplicate();
+		slab.position(region.offset);
+		slab.get(entry);
+		return ByteBuffer.wrap(entry);
+	}
+
+	/**
+	 * Counts an entry that was found but could not be used, as a miss instead of a hit
+	 */
+	synchronized void reject(long oid, String options) {
+		Region region = entries.remove(new Key(oid, options));
+		if (region != null) {
+			byteSize -= region.length;
+			free(region);
+		}
+		hits--;
+		misses++;
+	}
+
+	/**
+	 * Copies the content of the writer off-heap. Entries larger than the whole cache are not kept.
+	 */
+	synchronized void put(long oid, String options, EntryWriter writer) {
+		int size = writer.size();
+		if (size > maxByteSize) {
+			return;
+		}
+		Key key = new Key(oid, options);
+		Region previous = entries.remove(key);
+		if (previous != null) {
+			byteSize -= previous.length;
+			free(previous);
+		}
+		while (byteSize + size > maxByteSize) {
+			evictOldest();
+		}
+		Region region;
+		while ((region = allocate(size)) == null) {
+			// No free region is large enough, a new slab as long as they stay within the maximum, otherwise older entries make room
+			int slabByteSize = (int) Math.max(size, Math.min(SLAB_BYTE_SIZE, maxByteSize));
+			if (entries.isEmpty() || slabsByteSize + slabByteSize <= maxByteSize) {
+				addFree(new Region(new Slab(nextSlabId++, ByteBuffer.allocateDirect(slabByteSize)), 0, slabByteSize));
+				slabsByteSize += slabByteSize;
+			} else {
+				evictOldest();
+			}
+		}
+		ByteBuffer slab = region.slab.buffer.duplicate();
+		slab.position(region.offset);
+		slab.put(writer.array(), 0, size);
+		entries.put(key, region);
+		byteSize += size;
+	}
+
+	synchronized void setMaxByteSize(long maxByteSize) {
+		this.maxByteSize = maxByteSize;
+		while (byteSize > maxByteSize) {
+			evictOldest();
+		}
+		// A smaller cache also gives back the slabs it no longer needs
+		List<Region> emptySlabs = new ArrayList<>();
+		for (Region region : freeRegions) {
+			if (region.offset == 0 && region.length == region.slab.buffer.capacity()) {
+				emptySlabs.add(region);
+			}
+		}
+		for (Region region : emptySlabs) {
+			if (slabsByteSize <= maxByteSize) {
+				break;
+			}
+			removeFree(region);
+			slabsByteSize -= region.length;
+		}
+	}
+
+	private void evictOldest() {
+		Iterator<Region> iterator = entries.values().iterator();
+		Region region = iterator.next();
+		iterator.remove();
+		byteSize -= region.length;
+		free(region);
+		evictions++;
+	}
+
+	/**
+	 * Takes the smallest free region the entry fits in, what is left of it stays free
+	 * 
+	 * @return Null when no free region is large enough
+	 */
+	private Region allocate(int size) {
+		Region free = freeRegions.ceiling(new Region(PROBE, 0, size));
+		if (free == null) {
+			return null;
+		}
+		removeFree(free);
+		if (free.length > size) {
+			addFree(new Region(free.slab, free.offset + size, free.length - size));
+		}
+		return new Region(free.slab, free.offset, size);
+	}
+
+	/**
+	 * Gives the region back, merged with the free regions before and after it. A slab that is completely free is dropped when there are more slabs than
+	 * the maximum allows.
+	 */
+	private void free(Region region) {
+		Slab slab = region.slab;
+		int offset = region.offset;
+		int length = region.length;
+		Map.Entry<Integer, Region> before = slab.free.lowerEntry(offset);
+		if (before != null && before.getValue().offset + before.getValue().length == offset) {
+			removeFree(before.getValue());
+			offset = before.getValue().offset;
+			length += before.getValue().length;
+		}
+		Region after = slab.free.get(region.offset + region.length);
+		if (after != null) {
+			removeFree(after);
+			length += after.length;
+		}
+		if (length == slab.buffer.capacity() && slabsByteSize > maxByteSize) {
+			slabsByteSize -= length;
+			return;
+		}
+		addFree(new Region(slab, offset, length));
+	}
+
+	private void addFree(Region region) {
+		region.slab.free.put(region.offset, region);
+		freeRegions.add(region);
+	}
+
+	private void removeFree(Region region) {
+		region.slab.free.remove(region.offset);
+		freeRegions.remove(region);
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	synchronized long getEvictions() {
+		return evictions;
+	}
+
+	synchronized long getByteSize() {
+		return byteSize;
+	}
+
+	synchronized int getNrEntries() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The direct memory the cache holds, the entries and the free regions between them. After the maximum was lowered it can stay above it until
+	 * the slabs that are still in use become empty.
+	 */
+	synchronized long getSlabsByteSize() {
+		return slabsByteSize;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long lookups = hits + misses;
+		return String.format("%d entries, %d of %d bytes, %d hits, %d misses (%.1f%% hits), %d evictions", entries.size(), byteSize, maxByteSize, hits, misses, lookups == 0 ? 0 : 100.0 * hits / lookups, evictions);
+	}
+
+	static int[] getInts(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == -1) {
+			return null;
+		}
+		int[] values = new int[length];
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + length * 4);
+		return values;
+	}
+
+	static float[] getFloats(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == -1) {
+			return null;
+		}
+		float[] values = new float[length];
+		buffer.asFloatBuffer().get(values);
+		buffer.position(buffer.position() + length * 4);
+		return values;
+	}
+
+	static byte[] getBytes(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == -1) {
+			return null;
+		}
+		byte[] values = new byte[length];
+		buffer.get(values);
+		return values;
+	}
+
+	/**
+	 * Collects the content of an entry on the heap. Arrays are written with their length in front, -1 for null.
+	 */
+	static class EntryWriter {
+		private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+		void putInt(int value) {
+			ensureRemaining(4);
+			buffer.putInt(value);
+		}
+
+		void putInts(int[] values) {
+			if (values == null) {
+				putInt(-1);
+				return;
+			}
+			putInt(values.length);
+			ensureRemaining(values.length * 4);
+			buffer.asIntBuffer().put(values);
+			buffer.position(buffer.position() + values.length * 4);
+		}
+
+		void putFloats(float[] values) {
+			if (values == null) {
+				putInt(-1);
+				return;
+			}
+			putInt(values.length);
+			ensureRemaining(values.length * 4);
+			buffer.asFloatBuffer().put(values);
+			buffer.position(buffer.position() + values.length * 4);
+		}
+
+		void putBytes(byte[] values) {
+			if (values == null) {
+				putInt(-1);
+				return;
+			}
+			putInt(values.length);
+			ensureRemaining(values.length);
+			buffer.put(values);
+		}
+
+		int size() {
+			return buffer.position();
+		}
+
+		byte[] array() {
+			return buffer.array();
+		}
+
+		private void ensureRemaining(int length) {
+			if (buffer.remaining() < length) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+				grown.put(buffer.array(), 0, buffer.position());
+				buffer = grown;
+			}
+		}
+	}
+}
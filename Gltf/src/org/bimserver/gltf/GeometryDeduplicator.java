@@ -0,0 +1,180 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+
+/**
+ * Finds GeometryData objects with exactly the same indices, vertices, normals
+ * and colors, and drawn with the same material. BIMserver only shares
+ * GeometryData when it detects the reuse itself, identical shapes of
+ * separately modelled products end up as separate objects.
+ *
+ * The content is hashed with a fast 64-bit hash, candidates with equal hashes
+ * are compared byte for byte, so a hash collision never merges different
+ * geometry.
+ */
+class GeometryDeduplicator {
+
+	private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME_3 = 0x165667B19E3779F9L;
+
+	private GeometryDeduplicator() {
+	}
+
+	/**
+	 * @param materialKeys For every geometry what its material depends on besides its content, or null
+	 * @return For every geometry the index of the first geometry with the same content and material key, which is the geometry itself when it is unique
+	 */
+	static int[] deduplicate(List<GeometryData> geometries, String[] materialKeys, ConversionPipeline conversionPipeline) {
+		int size = geometries.size();
+		long[] hashes = new long[size];
+		conversionPipeline.forEach(size, index -> hashes[index] = hash(geometries.get(index)) ^ (materialKeys[index] == null ? 0 : materialKeys[index].hashCode() * PRIME_1));
+
+		int[] canonical = new int[size];
+		LongIntTable table = new LongIntTable(size);
+		for (int index = 0; index < size; index++) {
+			canonical[index] = index;
+			GeometryData data = geometries.get(index);
+			for (int slot = table.first(hashes[index]); slot != -1; slot = table.next(slot, hashes[index])) {
+				int candidate = table.value(slot);
+				if (Objects.equals(materialKeys[candidate], materialKeys[index]) && contentEquals(geometries.get(candidate), data)) {
+					canonical[index] = candidate;
+					break;
+				}
+			}
+			if (canonical[index] == index) {
+				table.put(hashes[index], index);
+			}
+		}
+		return canonical;
+	}
+
+	static long hash(GeometryData data) {
+		long hash = PRIME_3;
+		hash = hash(hash, data.getIndices());
+		hash = hash(hash, data.getVertices());
+		hash = hash(hash, data.getNormals());
+		hash = hash(hash, data.getColorsQuantized());
+		return hash;
+	}
+
+	private static long hash(long seed, Buffer buffer) {
+		if (buffer == null) {
+			return mix(seed ^ PRIME_2);
+		}
+		byte[] data = buffer.getData();
+		ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+		byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		long hash = seed ^ (data.length * PRIME_1);
+		int i = 0;
+		for (; i + 8 <= data.length; i += 8) {
+			hash = Long.rotateLeft(hash ^ (byteBuffer.getLong(i) * PRIME_2), 31) * PRIME_1;
+		}
+		for (; i < data.length; i++) {
+			hash = Long.rotateLeft(hash ^ ((data[i] & 0xFF) * PRIME_3), 11) * PRIME_1;
+		}
+		return mix(hash);
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= PRIME_2;
+		hash ^= hash >>> 29;
+		hash *= PRIME_3;
+		hash ^= hash >>> 32;
+		return hash;
+	}
+
+	private static boolean contentEquals(GeometryData a, GeometryData b) {
+		return contentEquals(a.getIndices(), b.getIndices()) && contentEquals(a.getVertices(), b.getVertices()) && contentEquals(a.getNormals(), b.getNormals()) && contentEquals(a.getColorsQuantized(), b.getColorsQuantized());
+	}
+
+	private static boolean contentEquals(Buffer a, Buffer b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		return Arrays.equals(a.getData(), b.getData());
+	}
+
+	/**
+	 * Open addressing hash table from long to int with linear probing. Keys may occur more than once, that is how different geometries with the same hash are kept apart.
+	 */
+	static class LongIntTable {
+		private final long[] keys;
+		private final int[] values;
+		private final int mask;
+
+		LongIntTable(int expectedSize) {
+			int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+			keys = new long[capacity];
+			values = new int[capacity];
+			Arrays.fill(values, -1);
+			mask = capacity - 1;
+		}
+
+		void put(long key, int value) {
+			int slot = slot(key);
+			while (values[slot] != -1) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			values[slot] = value;
+		}
+
+		/**
+		 * @return The first slot with the given key, or -1
+		 */
+		int first(long key) {
+			return find(slot(key), key);
+		}
+
+		/**
+		 * @return The next slot after the given one with the same key, or -1
+		 */
+		int next(int slot, long key) {
+			return find((slot + 1) & mask, key);
+		}
+
+		int value(int slot) {
+			return values[slot];
+		}
+
+		private int find(int slot, long key) {
+			while (values[slot] != -1) {
+				if (keys[slot] == key) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		private int slot(long key) {
+			return (int) (key ^ (key >>> 32)) & mask;
+		}
+	}
+}
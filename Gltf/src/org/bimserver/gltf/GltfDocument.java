@@ -0,0 +1,436 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * The glTF JSON as a set of small records with primitive fields. Large models
+ * have millions of accessors, nodes etc., building those as a Jackson tree
+ * costs far more memory and time than writing them with a JsonGenerator.
+ */
+class GltfDocument {
+
+	static class BufferView {
+		int buffer;
+		int byteLength;
+		// Buffers can be larger than 2 GB, a single bufferView never is
+		long byteOffset;
+		int byteStride = -1;
+		int target = -1;
+		// EXT_meshopt_compression, where the compressed version of this bufferView is
+		MeshoptCompression meshopt;
+	}
+
+	/**
+	 * The EXT_meshopt_compression object of a bufferView, filter is null for NONE
+	 */
+	static class MeshoptCompression {
+		static final String ATTRIBUTES = "ATTRIBUTES";
+		static final String TRIANGLES = "TRIANGLES";
+		static final String INDICES = "INDICES";
+		static final String OCTAHEDRAL = "OCTAHEDRAL";
+		static final String EXPONENTIAL = "EXPONENTIAL";
+
+		int buffer;
+		long byteOffset;
+		int byteLength;
+		int byteStride;
+		int count;
+		String mode;
+		String filter;
+	}
+
+	static class Buffer {
+		// Null for the binary chunk of a GLB and for meshopt fallback buffers
+		String uri;
+		long byteLength;
+		// EXT_meshopt_compression, the buffer has no data of its own, viewers without the extension cannot load the bufferViews that point into it
+		boolean meshoptFallback;
+	}
+
+	static class Accessor {
+		int bufferView;
+		int byteOffset;
+		int componentType;
+		boolean normalized;
+		int count;
+		String type;
+		float[] min;
+		float[] max;
+	}
+
+	static class Primitive {
+		int indices = -1;
+		int mode;
+		int normal = -1;
+		int position = -1;
+		int color = -1;
+		int material = -1;
+		// _FEATURE_ID_0 of EXT_mesh_features, feature id i is the product with GlobalId ifcIds[i]
+		int featureIds = -1;
+		int featureCount;
+		List<String> ifcIds;
+		// KHR_draco_mesh_compression, the accessors of the primitive then have no bufferView
+		int dracoBufferView = -1;
+	}
+
+	static class Mesh {
+		Primitive[] primitives;
+	}
+
+	static class Node {
+		int mesh = -1;
+		String ifcId;
+		// The GlobalIds of the products drawn by an EXT_mesh_gpu_instancing node, in instance order
+		List<String> ifcIds;
+		double[] matrix;
+		float[] translation;
+		float[] rotation;
+		IntList children;
+		int instanceTranslation = -1;
+		int instanceRotation = -1;
+		int instanceScale = -1;
+		// The nodes of the levels of detail (MSFT_lod) and the screen coverage of every level, this node itself first
+		IntList lodIds;
+		float[] screenCoverage;
+	}
+
+	static class Material {
+		String name;
+		float[] baseColorFactor;
+	}
+
+	/**
+	 * Minimal growable int array, the model node can easily have 100k+ children
+	 */
+	static class IntList {
+		private int[] values = new int[16];
+		private int size;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int get(int index) {
+			return values[index];
+		}
+	}
+
+	final List<Mesh> meshes = new ArrayList<>();
+	final List<BufferView> bufferViews = new ArrayList<>();
+	final List<Accessor> accessors = new ArrayList<>();
+	final List<Node> nodes = new ArrayList<>();
+	final List<Buffer> buffers = new ArrayList<>();
+	final List<Material> materials = new ArrayList<>();
+	final IntList sceneNodes = new IntList();
+	final List<String> extensionsUsed = new ArrayList<>();
+	final List<String> extensionsRequired = new ArrayList<>();
+	String version;
+
+	void write(JsonGenerator generator) throws IOException {
+		generator.writeStartObject();
+
+		generator.writeArrayFieldStart("meshes");
+		for (Mesh mesh : meshes) {
+			writeMesh(generator, mesh);
+		}
+		generator.writeEndArray();
+
+		generator.writeArrayFieldStart("bufferViews");
+		for (BufferView bufferView : bufferViews) {
+			writeBufferView(generator, bufferView);
+		}
+		generator.writeEndArray();
+
+		generator.writeArrayFieldStart("scenes");
+		generator.writeStartObject();
+		writeIntArray(generator, "nodes", sceneNodes);
+		generator.writeEndObject();
+		generator.writeEndArray();
+
+		generator.writeArrayFieldStart("accessors");
+		for (Accessor accessor : accessors) {
+			writeAccessor(generator, accessor);
+		}
+		generator.writeEndArray();
+
+		generator.writeArrayFieldStart("nodes");
+		for (Node node : nodes) {
+			writeNode(generator, node);
+		}
+		generator.writeEndArray();
+
+		generator.writeArrayFieldStart("buffers");
+		for (Buffer buffer : buffers) {
+			generator.writeStartObject();
+			if (buffer.uri != null) {
+				generator.writeStringField("uri", buffer.uri);
+			}
+			generator.writeNumberField("byteLength", buffer.byteLength);
+			if (buffer.meshoptFallback) {
+				generator.writeObjectFieldStart("extensions");
+				generator.writeObjectFieldStart("EXT_meshopt_compression");
+				generator.writeBooleanField("fallback", true);
+				generator.writeEndObject();
+				generator.writeEndObject();
+			}
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+
+		generator.writeArrayFieldStart("materials");
+		for (Material material : materials) {
+			generator.writeStartObject();
+			if (material.name != null) {
+				generator.writeStringField("name", material.name);
+			}
+			if (material.baseColorFactor != null) {
+				generator.writeObjectFieldStart("pbrMetallicRoughness");
+				writeFloatArray(generator, "baseColorFactor", material.baseColorFactor);
+				generator.writeEndObject();
+				if (material.baseColorFactor[3] < 1f) {
+					generator.writeStringField("alphaMode", "BLEND");
+				}
+			}
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+
+		writeStringArray(generator, "extensionsUsed", extensionsUsed);
+		writeStringArray(generator, "extensionsRequired", extensionsRequired);
+
+		generator.writeNumberField("scene", 0);
+
+		generator.writeObjectFieldStart("asset");
+		generator.writeStringField("version", version);
+		generator.writeEndObject();
+
+		generator.writeEndObject();
+	}
+
+	private void writeMesh(JsonGenerator generator, Mesh mesh) throws IOException {
+		generator.writeStartObject();
+		generator.writeArrayFieldStart("primitives");
+		for (Primitive primitive : mesh.primitives) {
+			generator.writeStartObject();
+			if (primitive.indices != -1) {
+				generator.writeNumberField("indices", primitive.indices);
+			}
+			generator.writeNumberField("mode", primitive.mode);
+			generator.writeObjectFieldStart("attributes");
+			if (primitive.normal != -1) {
+				generator.writeNumberField("NORMAL", primitive.normal);
+			}
+			if (primitive.position != -1) {
+				generator.writeNumberField("POSITION", primitive.position);
+			}
+			if (primitive.color != -1) {
+				generator.writeNumberField("COLOR_0", primitive.color);
+			}
+			if (primitive.featureIds != -1) {
+				generator.writeNumberField("_FEATURE_ID_0", primitive.featureIds);
+			}
+			generator.writeEndObject();
+			if (primitive.material != -1) {
+				generator.writeNumberField("material", primitive.material);
+			}
+			if (primitive.featureIds != -1 || primitive.dracoBufferView != -1) {
+				generator.writeObjectFieldStart("extensions");
+			}
+			if (primitive.featureIds != -1) {
+				generator.writeObjectFieldStart("EXT_mesh_features");
+				generator.writeArrayFieldStart("featureIds");
+				generator.writeStartObject();
+				generator.writeNumberField("featureCount", primitive.featureCount);
+				generator.writeNumberField("attribute", 0);
+				generator.writeEndObject();
+				generator.writeEndArray();
+				generator.writeEndObject();
+			}
+			if (primitive.dracoBufferView != -1) {
+				generator.writeObjectFieldStart("KHR_draco_mesh_compression");
+				generator.writeNumberField("bufferView", primitive.dracoBufferView);
+				generator.writeObjectFieldStart("attributes");
+				generator.writeNumberField("NORMAL", DracoEncoder.NORMAL_ID);
+				generator.writeNumberField("POSITION", DracoEncoder.POSITION_ID);
+				if (primitive.color != -1) {
+					generator.writeNumberField("COLOR_0", DracoEncoder.COLOR_ID);
+				}
+				generator.writeEndObject();
+				generator.writeEndObject();
+			}
+			if (primitive.featureIds != -1 || primitive.dracoBufferView != -1) {
+				generator.writeEndObject();
+			}
+			if (primitive.ifcIds != null) {
+				generator.writeObjectFieldStart("extras");
+				writeStringArray(generator, "ifcIDs", primitive.ifcIds);
+				generator.writeEndObject();
+			}
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+		generator.writeEndObject();
+	}
+
+	private void writeBufferView(JsonGenerator generator, BufferView bufferView) throws IOException {
+		generator.writeStartObject();
+		generator.writeNumberField("buffer", bufferView.buffer);
+		generator.writeNumberField("byteLength", bufferView.byteLength);
+		generator.writeNumberField("byteOffset", bufferView.byteOffset);
+		if (bufferView.byteStride != -1) {
+			generator.writeNumberField("byteStride", bufferView.byteStride);
+		}
+		if (bufferView.target != -1) {
+			generator.writeNumberField("target", bufferView.target);
+		}
+		if (bufferView.meshopt != null) {
+			MeshoptCompression meshopt = bufferView.meshopt;
+			generator.writeObjectFieldStart("extensions");
+			generator.writeObjectFieldStart("EXT_meshopt_compression");
+			generator.writeNumberField("buffer", meshopt.buffer);
+			generator.writeNumberField("byteOffset", meshopt.byteOffset);
+			generator.writeNumberField("byteLength", meshopt.byteLength);
+			generator.writeNumberField("byteStride", meshopt.byteStride);
+			generator.writeNumberField("count", meshopt.count);
+			generator.writeStringField("mode", meshopt.mode);
+			if (meshopt.filter != null) {
+				generator.writeStringField("filter", meshopt.filter);
+			}
+			generator.writeEndObject();
+			generator.writeEndObject();
+		}
+		generator.writeEndObject();
+	}
+
+	private void writeAccessor(JsonGenerator generator, Accessor accessor) throws IOException {
+		generator.writeStartObject();
+		if (accessor.bufferView != -1) {
+			generator.writeNumberField("bufferView", accessor.bufferView);
+			generator.writeNumberField("byteOffset", accessor.byteOffset);
+		}
+		generator.writeNumberField("componentType", accessor.componentType);
+		if (accessor.normalized) {
+			generator.writeBooleanField("normalized", true);
+		}
+		generator.writeNumberField("count", accessor.count);
+		generator.writeStringField("type", accessor.type);
+		if (accessor.min != null) {
+			writeFloatArray(generator, "min", accessor.min);
+			writeFloatArray(generator, "max", accessor.max);
+		}
+		generator.writeEndObject();
+	}
+
+	private void writeNode(JsonGenerator generator, Node node) throws IOException {
+		generator.writeStartObject();
+		if (node.children != null) {
+			writeIntArray(generator, "children", node.children);
+		}
+		if (node.translation != null) {
+			writeFloatArray(generator, "translation", node.translation);
+		}
+		if (node.rotation != null) {
+			writeFloatArray(generator, "rotation", node.rotation);
+		}
+		if (node.ifcId != null || node.ifcIds != null || node.screenCoverage != null) {
+			generator.writeObjectFieldStart("extras");
+			if (node.ifcId != null) {
+				generator.writeStringField("ifcID", node.ifcId);
+			} else if (node.ifcIds != null) {
+				writeStringArray(generator, "ifcIDs", node.ifcIds);
+			}
+			if (node.screenCoverage != null) {
+				writeFloatArray(generator, "MSFT_screencoverage", node.screenCoverage);
+			}
+			generator.writeEndObject();
+		}
+		if (node.mesh != -1) {
+			generator.writeNumberField("mesh", node.mesh);
+		}
+		if (node.matrix != null) {
+			generator.writeArrayFieldStart("matrix");
+			for (double value : node.matrix) {
+				generator.writeNumber(value);
+			}
+			generator.writeEndArray();
+		}
+		if (node.instanceTranslation != -1 || node.lodIds != null) {
+			generator.writeObjectFieldStart("extensions");
+			if (node.instanceTranslation != -1) {
+				generator.writeObjectFieldStart("EXT_mesh_gpu_instancing");
+				generator.writeObjectFieldStart("attributes");
+				generator.writeNumberField("TRANSLATION", node.instanceTranslation);
+				generator.writeNumberField("ROTATION", node.instanceRotation);
+				generator.writeNumberField("SCALE", node.instanceScale);
+				generator.writeEndObject();
+				generator.writeEndObject();
+			}
+			if (node.lodIds != null) {
+				generator.writeObjectFieldStart("MSFT_lod");
+				writeIntArray(generator, "ids", node.lodIds);
+				generator.writeEndObject();
+			}
+			generator.writeEndObject();
+		}
+		generator.writeEndObject();
+	}
+
+	/**
+	 * Written only when there are values, glTF does not allow empty extension arrays
+	 */
+	private void writeStringArray(JsonGenerator generator, String fieldName, List<String> values) throws IOException {
+		if (values.isEmpty()) {
+			return;
+		}
+		generator.writeArrayFieldStart(fieldName);
+		for (String value : values) {
+			generator.writeString(value);
+		}
+		generator.writeEndArray();
+	}
+
+	private void writeIntArray(JsonGenerator generator, String fieldName, IntList values) throws IOException {
+		generator.writeArrayFieldStart(fieldName);
+		for (int i = 0; i < values.size(); i++) {
+			generator.writeNumber(values.get(i));
+		}
+		generator.writeEndArray();
+	}
+
+	private void writeFloatArray(JsonGenerator generator, String fieldName, float[] values) throws IOException {
+		generator.writeArrayFieldStart(fieldName);
+		for (float value : values) {
+			generator.writeNumber(value);
+		}
+		generator.writeEndArray();
+	}
+}
@@ -0,0 +1,304 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import org.bimserver.models.store.BooleanType;
+import org.bimserver.models.store.DoubleType;
+import org.bimserver.models.store.LongType;
+import org.bimserver.models.store.ObjectDefinition;
+import org.bimserver.models.store.ParameterDefinition;
+import org.bimserver.models.store.PrimitiveDefinition;
+import org.bimserver.models.store.PrimitiveEnum;
+import org.bimserver.models.store.StoreFactory;
+import org.bimserver.plugins.PluginConfiguration;
+
+/**
+ * The options of the glTF 2 serializer, as configured on the plugin
+ */
+class GltfSettings {
+
+	static final String UNSIGNED_INT_INDICES = "unsignedIntIndices";
+	static final String GPU_INSTANCING = "gpuInstancing";
+	static final String DEDUPLICATE_GEOMETRY = "deduplicateGeometry";
+	static final String QUANTIZE_POSITIONS = "quantizePositions";
+	static final String COMPACT_ATTRIBUTES = "compactAttributes";
+	static final String COLLAPSE_UNIFORM_COLORS = "collapseUniformColors";
+	static final String BATCH_BY_MATERIAL = "batchByMaterial";
+	static final String GENERATE_LODS = "generateLods";
+	static final String OPTIMIZE_VERTEX_CACHE = "optimizeVertexCache";
+	static final String OPTIMIZE_OVERDRAW = "optimizeOverdraw";
+	static final String WELD_VERTICES = "weldVertices";
+	static final String WELD_POSITION_TOLERANCE = "weldPositionTolerance";
+	static final String WELD_NORMAL_TOLERANCE = "weldNormalTolerance";
+	static final String MESHOPT_COMPRESSION = "meshoptCompression";
+	static final String MESHOPT_FALLBACK = "meshoptFallback";
+	static final String DRACO_COMPRESSION = "dracoCompression";
+	static final String DRACO_POSITION_BITS = "dracoPositionBits";
+	static final String DRACO_NORMAL_BITS = "dracoNormalBits";
+	static final String CONVERSION_CACHE_SIZE = "conversionCacheSize";
+	static final String RESULT_CACHE_SIZE = "resultCacheSize";
+	static final String MAX_BUFFER_SIZE = "maxBufferSize";
+	static final String EXACT_BOUNDS = "exactBounds";
+
+	/**
+	 * When false, meshes with more vertices than UNSIGNED_SHORT indices can address are split into chunks, for viewers without OES_element_index_uint
+	 */
+	boolean unsignedIntIndices = true;
+
+	/**
+	 * When true, the products that share a geometry are drawn by one node with EXT_mesh_gpu_instancing instead of one node per product
+	 */
+	boolean gpuInstancing = false;
+
+	/**
+	 * When true, products with byte for byte the same geometry share one mesh, also when BIMserver stored their geometry as separate GeometryData objects
+	 */
+	boolean deduplicateGeometry = false;
+
+	/**
+	 * When true, positions are written as 16-bit integers relative to the bounds of their mesh (KHR_mesh_quantization), the node matrix turns them back into the original coordinates
+	 */
+	boolean quantizePositions = false;
+
+	/**
+	 * When true, normals are written as normalized bytes (KHR_mesh_quantization) and colors as normalized unsigned bytes, 8 instead of 28 bytes per vertex
+	 */
+	boolean compactAttributes = false;
+
+	/**
+	 * When true, geometries with the same color on every vertex get a material with that color instead of a COLOR_0 attribute
+	 */
+	boolean collapseUniformColors = true;
+
+	/**
+	 * When true, the products are merged per material into a few large primitives with the transformations baked in, every vertex has a feature id
+	 * (EXT_mesh_features) that points at the GlobalId of its product. Replaces GPU instancing and position quantization when both are on.
+	 */
+	boolean batchByMaterial = false;
+
+	/**
+	 * When true, geometries with many triangles get up to three simplified versions, switched by screen coverage with MSFT_lod
+	 */
+	boolean generateLods = false;
+
+	/**
+	 * When true, the triangles of every mesh are reordered for the post-transform vertex cache of the GPU and the vertices in the order the triangles use them.
+	 * The output has the same size and draws the same triangles.
+	 */
+	boolean optimizeVertexCache = false;
+
+	/**
+	 * When true, together with optimizeVertexCache, groups of triangles that face outwards are drawn first, so less of what is hidden behind them is shaded
+	 */
+	boolean optimizeOverdraw = false;
+
+	/**
+	 * When true, vertices at the same position with the same normal and color are merged, degenerate and duplicate triangles removed and unused vertices left out
+	 */
+	boolean weldVertices = false;
+
+	/**
+	 * The distance under which vertices are welded, relative to the diagonal of the bounds of their geometry so it does not depend on the length unit of the model.
+	 * Triangles that are not higher than this are degenerate.
+	 */
+	double weldPositionTolerance = 1e-5;
+
+	/**
+	 * The largest angle in degrees between the normals of vertices that are welded
+	 */
+	double weldNormalTolerance = 1;
+
+	/**
+	 * When true, the indices and vertex attributes in the binary chunk are compressed with EXT_meshopt_compression.
+	 * Positions and colors stay exact, normals are filtered (octahedral for compact normals, 16-bit exponential for float normals) before they are compressed.
+	 */
+	boolean meshoptCompression = false;
+
+	/**
+	 * When true, together with meshoptCompression, the uncompressed data is written as well, so viewers without the extension can still load the file
+	 */
+	boolean meshoptFallback = false;
+
+	/**
+	 * When true, the primitives are compressed with KHR_draco_mesh_compression, with their own quantization of positions and normals. Replaces position quantization
+	 * and compact normals when those are on, colors are always written as normalized bytes. Not used together with batchByMaterial.
+	 */
+	boolean dracoCompression = false;
+
+	/**
+	 * The quantization bits of Draco positions, over the largest extent of every primitive. 14 bits keeps the error under 0.1 mm for a 10 m wall.
+	 */
+	int dracoPositionBits = 14;
+
+	/**
+	 * The quantization bits of Draco normals
+	 */
+	int dracoNormalBits = 10;
+
+	/**
+	 * The size in MB of the cache that keeps the conversion of geometries for the next export, shared by all serializers of the plugin. 0 turns it off.
+	 */
+	int conversionCacheSize = 256;
+
+	/**
+	 * The size in MB of the files on disk that keep complete outputs per revision, shared by all serializers of the plugin, in the temporary directory of the
+	 * server. 0 turns it off.
+	 */
+	int resultCacheSize = 0;
+
+	/**
+	 * The size in MB above which the binary data is cut into parts with bufferViews of their own, so no bufferView gets larger than 2 GB. In the zipped glTF output
+	 * every part is a .bin of its own. At most 2047.
+	 */
+	int maxBufferSize = 1024;
+
+	/**
+	 * Compute the bounds of the products from all their vertices in the coordinates of the model. Otherwise the bounding box of the vertices is transformed, which is
+	 * faster, but larger than the exact bounds for rotated products, so the model is centered slightly differently and the tiles of a tileset are cut differently.
+	 */
+	boolean exactBounds = true;
+
+	static GltfSettings fromConfiguration(PluginConfiguration pluginConfiguration) {
+		GltfSettings settings = new GltfSettings();
+		if (pluginConfiguration != null) {
+			settings.unsignedIntIndices = getBoolean(pluginConfiguration, UNSIGNED_INT_INDICES, settings.unsignedIntIndices);
+			settings.gpuInstancing = getBoolean(pluginConfiguration, GPU_INSTANCING, settings.gpuInstancing);
+			settings.deduplicateGeometry = getBoolean(pluginConfiguration, DEDUPLICATE_GEOMETRY, settings.deduplicateGeometry);
+			settings.quantizePositions = getBoolean(pluginConfiguration, QUANTIZE_POSITIONS, settings.quantizePositions);
+			settings.compactAttributes = getBoolean(pluginConfiguration, COMPACT_ATTRIBUTES, settings.compactAttributes);
+			settings.collapseUniformColors = getBoolean(pluginConfiguration, COLLAPSE_UNIFORM_COLORS, settings.collapseUniformColors);
+			settings.batchByMaterial = getBoolean(pluginConfiguration, BATCH_BY_MATERIAL, settings.batchByMaterial);
+			settings.generateLods = getBoolean(pluginConfiguration, GENERATE_LODS, settings.generateLods);
+			settings.optimizeVertexCache = getBoolean(pluginConfiguration, OPTIMIZE_VERTEX_CACHE, settings.optimizeVertexCache);
+			settings.optimizeOverdraw = getBoolean(pluginConfiguration, OPTIMIZE_OVERDRAW, settings.optimizeOverdraw);
+			settings.weldVertices = getBoolean(pluginConfiguration, WELD_VERTICES, settings.weldVertices);
+			settings.weldPositionTolerance = getDouble(pluginConfiguration, WELD_POSITION_TOLERANCE, settings.weldPositionTolerance);
+			settings.weldNormalTolerance = getDouble(pluginConfiguration, WELD_NORMAL_TOLERANCE, settings.weldNormalTolerance);
+			settings.meshoptCompression = getBoolean(pluginConfiguration, MESHOPT_COMPRESSION, settings.meshoptCompression);
+			settings.meshoptFallback = getBoolean(pluginConfiguration, MESHOPT_FALLBACK, settings.meshoptFallback);
+			settings.dracoCompression = getBoolean(pluginConfiguration, DRACO_COMPRESSION, settings.dracoCompression);
+			settings.dracoPositionBits = getInteger(pluginConfiguration, DRACO_POSITION_BITS, settings.dracoPositionBits);
+			settings.dracoNormalBits = getInteger(pluginConfiguration, DRACO_NORMAL_BITS, settings.dracoNormalBits);
+			settings.conversionCacheSize = getInteger(pluginConfiguration, CONVERSION_CACHE_SIZE, settings.conversionCacheSize);
+			settings.resultCacheSize = getInteger(pluginConfiguration, RESULT_CACHE_SIZE, settings.resultCacheSize);
+			settings.maxBufferSize = getInteger(pluginConfiguration, MAX_BUFFER_SIZE, settings.maxBufferSize);
+			settings.exactBounds = getBoolean(pluginConfiguration, EXACT_BOUNDS, settings.exactBounds);
+		}
+		return settings;
+	}
+
+	static void addParameters(ObjectDefinition objectDefinition) {
+		addBooleanParameter(objectDefinition, UNSIGNED_INT_INDICES, "Unsigned int indices", "Use 32-bit indices for meshes with more than 65535 vertices instead of splitting them", true);
+		addBooleanParameter(objectDefinition, GPU_INSTANCING, "GPU instancing", "Draw products that share their geometry with EXT_mesh_gpu_instancing", false);
+		addBooleanParameter(objectDefinition, DEDUPLICATE_GEOMETRY, "Deduplicate geometry", "Share one mesh between products with identical geometry data", false);
+		addBooleanParameter(objectDefinition, QUANTIZE_POSITIONS, "Quantize positions", "Write positions as 16-bit integers with KHR_mesh_quantization", false);
+		addBooleanParameter(objectDefinition, COMPACT_ATTRIBUTES, "Compact normals and colors", "Write normals and colors as normalized bytes", false);
+		addBooleanParameter(objectDefinition, COLLAPSE_UNIFORM_COLORS, "Collapse uniform colors", "Use a material instead of vertex colors for geometry with one color", true);
+		addBooleanParameter(objectDefinition, BATCH_BY_MATERIAL, "Batch by material", "Merge all products with the same material into shared primitives with per-vertex feature ids", false);
+		addBooleanParameter(objectDefinition, GENERATE_LODS, "Levels of detail", "Add simplified versions of detailed geometry with MSFT_lod", false);
+		addBooleanParameter(objectDefinition, OPTIMIZE_VERTEX_CACHE, "Optimize vertex cache", "Reorder triangles and vertices for the GPU vertex cache", false);
+		addBooleanParameter(objectDefinition, OPTIMIZE_OVERDRAW, "Optimize overdraw", "Also draw outward facing triangles first, needs the vertex cache optimization", false);
+		addBooleanParameter(objectDefinition, WELD_VERTICES, "Weld vertices", "Merge coincident vertices and remove degenerate and duplicate triangles", false);
+		addDoubleParameter(objectDefinition, WELD_POSITION_TOLERANCE, "Weld position tolerance", "Distance under which vertices are merged, relative to the size of their geometry", 1e-5);
+		addDoubleParameter(objectDefinition, WELD_NORMAL_TOLERANCE, "Weld normal tolerance", "Largest angle in degrees between the normals of merged vertices", 1);
+		addBooleanParameter(objectDefinition, MESHOPT_COMPRESSION, "Meshopt compression", "Compress indices and vertex attributes with EXT_meshopt_compression", false);
+		addBooleanParameter(objectDefinition, MESHOPT_FALLBACK, "Meshopt fallback", "Also write the uncompressed data for viewers without EXT_meshopt_compression", false);
+		addBooleanParameter(objectDefinition, DRACO_COMPRESSION, "Draco compression", "Compress the primitives with KHR_draco_mesh_compression", false);
+		addLongParameter(objectDefinition, DRACO_POSITION_BITS, "Draco position bits", "Quantization bits of the positions, between 1 and 30", 14);
+		addLongParameter(objectDefinition, DRACO_NORMAL_BITS, "Draco normal bits", "Quantization bits of the normals, between 1 and 30", 10);
+		addLongParameter(objectDefinition, CONVERSION_CACHE_SIZE, "Conversion cache size", "MB of converted geometry kept off-heap for the next export, 0 turns the cache off", 256);
+		addLongParameter(objectDefinition, RESULT_CACHE_SIZE, "Result cache size", "MB of complete outputs kept on disk per revision, 0 turns the cache off", 0);
+		addLongParameter(objectDefinition, MAX_BUFFER_SIZE, "Maximum buffer size", "MB of binary data per buffer of the zipped glTF output, and per group of bufferViews in a GLB, at most 2047", 1024);
+		addBooleanParameter(objectDefinition, EXACT_BOUNDS, "Exact bounds", "Compute the bounds of the products from all their vertices instead of from their transformed bounding boxes", true);
+	}
+
+	/**
+	 * @return The options that change how a single geometry is converted, geometries converted with other options cannot be taken from the cache
+	 */
+	String getConversionKey() {
+		return unsignedIntIndices + "," + collapseUniformColors + "," + batchByMaterial + "," + generateLods + "," + optimizeVertexCache + "," + optimizeOverdraw + "," + weldVertices + ","
+				+ weldPositionTolerance + "," + weldNormalTolerance + "," + (dracoCompression && !batchByMaterial) + "," + dracoPositionBits + "," + dracoNormalBits;
+	}
+
+	/**
+	 * @return All options that change the output, an output written with other options cannot be taken from the cache
+	 */
+	String getOutputKey() {
+		return getConversionKey() + "," + gpuInstancing + "," + deduplicateGeometry + "," + quantizePositions + "," + compactAttributes + "," + meshoptCompression + "," + meshoptFallback + "," + maxBufferSize + "," + exactBounds;
+	}
+
+	private static boolean getBoolean(PluginConfiguration pluginConfiguration, String key, boolean defaultValue) {
+		Boolean value = pluginConfiguration.getBoolean(key);
+		return value == null ? defaultValue : value;
+	}
+
+	private static double getDouble(PluginConfiguration pluginConfiguration, String key, double defaultValue) {
+		Double value = pluginConfiguration.getDouble(key);
+		return value == null ? defaultValue : value;
+	}
+
+	private static int getInteger(PluginConfiguration pluginConfiguration, String key, int defaultValue) {
+		Integer value = pluginConfiguration.getInteger(key);
+		return value == null ? defaultValue : value;
+	}
+
+	private static void addBooleanParameter(ObjectDefinition objectDefinition, String identifier, String name, String description, boolean defaultValue) {
+		ParameterDefinition parameter = StoreFactory.eINSTANCE.createParameterDefinition();
+		parameter.setIdentifier(identifier);
+		parameter.setName(name);
+		parameter.setDescription(description);
+		parameter.setRequired(false);
+		PrimitiveDefinition type = StoreFactory.eINSTANCE.createPrimitiveDefinition();
+		type.setType(PrimitiveEnum.BIT);
+		parameter.setType(type);
+		BooleanType defaultValueType = StoreFactory.eINSTANCE.createBooleanType();
+		defaultValueType.setValue(defaultValue);
+		parameter.setDefaultValue(defaultValueType);
+		objectDefinition.getParameters().add(parameter);
+	}
+
+	private static void addDoubleParameter(ObjectDefinition objectDefinition, String identifier, String name, String description, double defaultValue) {
+		ParameterDefinition parameter = StoreFactory.eINSTANCE.createParameterDefinition();
+		parameter.setIdentifier(identifier);
+		parameter.setName(name);
+		parameter.setDescription(description);
+		parameter.setRequired(false);
+		PrimitiveDefinition type = StoreFactory.eINSTANCE.createPrimitiveDefinition();
+		type.setType(PrimitiveEnum.DOUBLE);
+		parameter.setType(type);
+		DoubleType defaultValueType = StoreFactory.eINSTANCE.createDoubleType();
+		defaultValueType.setValue(defaultValue);
+		parameter.setDefaultValue(defaultValueType);
+		objectDefinition.getParameters().add(parameter);
+	}
+
+	private static void addLongParameter(ObjectDefinition objectDefinition, String identifier, String name, String description, long defaultValue) {
+		ParameterDefinition parameter = StoreFactory.eINSTANCE.createParameterDefinition();
+		parameter.setIdentifier(identifier);
+		parameter.setName(name);
+		parameter.setDescription(description);
+		parameter.setRequired(false);
+		PrimitiveDefinition type = StoreFactory.eINSTANCE.createPrimitiveDefinition();
+		type.setType(PrimitiveEnum.LONG);
+		parameter.setType(type);
+		LongType defaultValueType = StoreFactory.eINSTANCE.createLongType();
+		defaultValueType.setValue(defaultValue);
+		parameter.setDefaultValue(defaultValueType);
+		objectDefinition.getParameters().add(parameter);
+	}
+}
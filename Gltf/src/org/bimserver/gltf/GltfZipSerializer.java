@@ -0,0 +1,67 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.OutputStream;
+import java.util.function.Supplier;
+
+import org.bimserver.plugins.serializers.EmfSerializer;
+import org.bimserver.plugins.serializers.ProgressReporter;
+import org.bimserver.plugins.serializers.SerializerException;
+
+/**
+ * Writes the model as a zip with model.gltf and its buffers as separate .bin
+ * files. A GLB is limited to 4 GB by the 32 bit lengths in its header, the
+ * separate buffers have no limit on their total size, every buffer stays
+ * below the maximum buffer size of the settings.
+ */
+public class GltfZipSerializer extends EmfSerializer {
+
+	private final Supplier<BinaryGltfSerializer2> gltfSerializers;
+	// The serializer of the export that is running, so it can be cancelled
+	private volatile BinaryGltfSerializer2 gltfSerializer;
+	private volatile boolean cancelled;
+
+	/**
+	 * @param gltfSerializers Creates the serializer that builds the glTF, configured like the glTF 2 serializer
+	 */
+	public GltfZipSerializer(Supplier<BinaryGltfSerializer2> gltfSerializers) {
+		this.gltfSerializers = gltfSerializers;
+	}
+
+	@Override
+	protected boolean write(OutputStream outputStream, ProgressReporter progressReporter) throws SerializerException {
+		gltfSerializer = gltfSerializers.get();
+		if (cancelled) {
+			gltfSerializer.cancel();
+		}
+		gltfSerializer.writeZip(model, outputStream, progressReporter);
+		return false;
+	}
+
+	/**
+	 * Stops the export that is running, from any thread
+	 */
+	public void cancel() {
+		cancelled = true;
+		BinaryGltfSerializer2 serializer = gltfSerializer;
+		if (serializer != null) {
+			serializer.cancel();
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.Arrays;
+
+import org.bimserver.gltf.GeometryDeduplicator.LongIntTable;
+
+/**
+ * Simplifies a triangle mesh with quadric error metrics (Garland and
+ * Heckbert). Every collapse moves a vertex onto one of its neighbours, so the
+ * simplified mesh only needs new indices, it uses the vertices (and their
+ * normals and colors) of the original mesh.
+ *
+ * BIMserver duplicates vertices where the normals change, so the topology
+ * is built from the positions: all vertices at one position, its wedges, move
+ * together and the quadrics are kept per position. Only the positions on an
+ * edge that is open in that topology, a border of the surface, are never
+ * moved. A wedge moves onto the wedge of its own triangles at the new
+ * position, so a collapse along a hard edge keeps it. When a wedge has no
+ * such neighbour the collapse crosses a seam, the wedge takes the wedge with
+ * the closest normal and the collapse costs more the more the normals differ.
+ *
+ * Collapses are done in passes: all candidate edges are sorted by their
+ * error and collapsed cheapest first, a position takes part in at most one
+ * collapse per pass. Everything is kept in primitive arrays.
+ */
+class MeshSimplifier {
+
+	private static final int MAX_PASSES = 32;
+	private static final int QUADRIC_SIZE = 10;
+
+	private final float[] positions;
+	private final float[] normals;
+	// The first vertex at the same position as the vertex, the positions are what collapses and locks work on
+	private final int[] position;
+	// The next vertex at the same position, the wedges of a position form a cycle
+	private final int[] nextWedge;
+	private final boolean[] locked;
+	private final double[] quadrics;
+	private final int[] remap;
+	private final boolean[] touched;
+
+	private MeshSimplifier(int[] indices, float[] positions, float[] normals) {
+		this.positions = positions;
+		this.normals = normals;
+		int nrVertices = positions.length / 3;
+		position = new int[nrVertices];
+		nextWedge = new int[nrVertices];
+		locked = new boolean[nrVertices];
+		quadrics = new double[nrVertices * QUADRIC_SIZE];
+		remap = new int[nrVertices];
+		touched = new boolean[nrVertices];
+		weldPositions();
+		lockOpenEdges(indices);
+		for (int i = 0; i + 2 < indices.length; i += 3) {
+			addPlaneQuadric(position[indices[i]], position[indices[i + 1]], position[indices[i + 2]]);
+		}
+	}
+
+	/**
+	 * @param indices Triangles of the mesh, every 3 indices form a triangle
+	 * @param positions XYZ of every vertex
+	 * @param normals XYZ of every vertex, or null, then every collapse across a seam costs as much as one across a right angle
+	 * @param targetNrIndices The number of indices to get down to, if possible
+	 * @param maxError The largest distance a collapse may move the surface
+	 * @return The indices of the simplified mesh, into the same vertices
+	 */
+	static int[] simplify(int[] indices, float[] positions, float[] normals, int targetNrIndices, float maxError) {
+		return new MeshSimplifier(indices, positions, normals).simplify(indices, targetNrIndices, (double) maxError * maxError);
+	}
+
+	private int[] simplify(int[] indices, int targetNrIndices, double maxError) {
+		int nrIndices = indices.length - indices.length % 3;
+		int[] current = Arrays.copyOf(indices, nrIndices);
+		for (int pass = 0; pass < MAX_PASSES && nrIndices > targetNrIndices; pass++) {
+			int nrCollapses = collapse(current, nrIndices, targetNrIndices, maxError);
+			if (nrCollapses == 0) {
+				break;
+			}
+			nrIndices = applyRemap(current, nrIndices);
+		}
+		return Arrays.copyOf(current, nrIndices);
+	}
+
+	/**
+	 * One pass of collapses, the collapses are recorded in remap
+	 * 
+	 * @return The number of collapses
+	 */
+	private int collapse(int[] indices, int nrIndices, int targetNrIndices, double maxError) {
+		int nrVertices = remap.length;
+		for (int vertex = 0; vertex < nrVertices; vertex++) {
+			remap[vertex] = vertex;
+			touched[vertex] = false;
+		}
+
+		// Vertex to triangle adjacency, for the flip test and to find the wedges to move onto
+		int[] triangleOffsets = new int[nrVertices + 1];
+		for (int i = 0; i < nrIndices; i++) {
+			triangleOffsets[indices[i] + 1]++;
+		}
+		for (int vertex = 0; vertex < nrVertices; vertex++) {
+			triangleOffsets[vertex + 1] += triangleOffsets[vertex];
+		}
+		int[] fill = Arrays.copyOf(triangleOffsets, nrVertices);
+		int[] triangles = new int[nrIndices];
+		for (int i = 0; i < nrIndices; i++) {
+			triangles[fill[indices[i]]++] = i / 3;
+		}
+
+		// Every edge between two positions once, the cheapest direction of the collapse with its error in the upper bits so sorting orders by error
+		long[] edges = getEdges(indices, nrIndices, position);
+		int nrCandidates = 0;
+		long[] candidates = new long[edges.length];
+		int[] candidateFrom = new int[edges.length];
+		int[] candidateTo = new int[edges.length];
+		for (long edge : edges) {
+			int a = (int) (edge >>> 32);
+			int b = (int) edge;
+			double errorAB = getCollapseError(indices, triangles, triangleOffsets, a, b, maxError);
+			double errorBA = getCollapseError(indices, triangles, triangleOffsets, b, a, maxError);
+			double error = Math.min(errorAB, errorBA);
+			if (error > maxError) {
+				continue;
+			}
+			candidateFrom[nrCandidates] = errorAB <= errorBA ? a : b;
+			candidateTo[nrCandidates] = errorAB <= errorBA ? b : a;
+			// Non-negative floats sort the same as their bits
+			candidates[nrCandidates] = ((long) Float.floatToIntBits((float) error) << 32) | nrCandidates;
+			nrCandidates++;
+		}
+		Arrays.sort(candidates, 0, nrCandidates);
+
+		int nrCollapses = 0;
+		// A collapse removes about two triangles, stop once the target is reached
+		int remainingIndices = nrIndices;
+		for (int i = 0; i < nrCandidates && remainingIndices > targetNrIndices; i++) {
+			int candidate = (int) candidates[i];
+			int from = candidateFrom[candidate];
+			int to = candidateTo[candidate];
+			if (touched[from] || touched[to] || flips(indices, triangles, triangleOffsets, from, to)) {
+				continue;
+			}
+			int wedge = from;
+			do {
+				remap[wedge] = getTargetWedge(indices, triangles, triangleOffsets, wedge, to);
+				wedge = nextWedge[wedge];
+			} while (wedge != from);
+			touched[from] = true;
+			touched[to] = true;
+			for (int j = 0; j < QUADRIC_SIZE; j++) {
+				quadrics[to * QUADRIC_SIZE + j] += quadrics[from * QUADRIC_SIZE + j];
+			}
+			nrCollapses++;
+			remainingIndices -= 6;
+		}
+		return nrCollapses;
+	}
+
+	/**
+	 * @return The error of moving the position from onto the position to, Double.MAX_VALUE when from is locked
+	 */
+	private double getCollapseError(int[] indices, int[] triangles, int[] triangleOffsets, int from, int to, double maxError) {
+		if (locked[from]) {
+			return Double.MAX_VALUE;
+		}
+		double error = getError(from, to);
+		if (error > maxError) {
+			return error;
+		}
+		// The largest difference between the normal of a wedge that crosses a seam and the normal it gets, 0 when no wedge does
+		double seam = 0;
+		int wedge = from;
+		do {
+			if (triangleOffsets[wedge] != triangleOffsets[wedge + 1] && getNeighbourWedge(indices, triangles, triangleOffsets, wedge, to) == -1) {
+				seam = Math.max(seam, 1 - getNormalDot(wedge, getClosestWedge(wedge, to)));
+			}
+			wedge = nextWedge[wedge];
+		} while (wedge != from);
+		if (seam == 0) {
+			return error;
+		}
+		// As if the surface moved by the length of the edge when the normals are at a right angle
+		double dx = positions[to * 3] - positions[from * 3];
+		double dy = positions[to * 3 + 1] - positions[from * 3 + 1];
+		double dz = positions[to * 3 + 2] - positions[from * 3 + 2];
+		return error + seam * (dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * @return The vertex the wedge moves onto when its position collapses onto the position to
+	 */
+	private int getTargetWedge(int[] indices, int[] triangles, int[] triangleOffsets, int wedge, int to) {
+		int neighbour = getNeighbourWedge(indices, triangles, triangleOffsets, wedge, to);
+		return neighbour != -1 ? neighbour : getClosestWedge(wedge, to);
+	}
+
+	/**
+	 * @return The wedge at the position to in one of the triangles of the wedge, or -1 when the wedge does not share a triangle with the position
+	 */
+	private int getNeighbourWedge(int[] indices, int[] triangles, int[] triangleOffsets, int wedge, int to) {
+		for (int i = triangleOffsets[wedge]; i < triangleOffsets[wedge + 1]; i++) {
+			int triangle = triangles[i];
+			for (int j = 0; j < 3; j++) {
+				int vertex = indices[triangle * 3 + j];
+				if (position[vertex] == to) {
+					return vertex;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The wedge at the position to with the normal closest to the one of the wedge
+	 */
+	private int getClosestWedge(int wedge, int to) {
+		int closest = to;
+		double closestDot = -Double.MAX_VALUE;
+		int candidate = to;
+		do {
+			double dot = getNormalDot(wedge, candidate);
+			if (dot > closestDot) {
+				closest = candidate;
+				closestDot = dot;
+			}
+			candidate = nextWedge[candidate];
+		} while (candidate != to);
+		return closest;
+	}
+
+	/**
+	 * @return The cosine of the angle between the normals of the vertices, 0 without normals
+	 */
+	private double getNormalDot(int a, int b) {
+		if (normals == null) {
+			return 0;
+		}
+		double ax = normals[a * 3], ay = normals[a * 3 + 1], az = normals[a * 3 + 2];
+		double bx = normals[b * 3], by = normals[b * 3 + 1], bz = normals[b * 3 + 2];
+		double lengths = Math.sqrt((ax * ax + ay * ay + az * az) * (bx * bx + by * by + bz * bz));
+		return lengths == 0 ? 0 : (ax * bx + ay * by + az * bz) / lengths;
+	}
+
+	/**
+	 * @return Whether moving the position from onto the position to turns one of the other triangles of from around, or makes it degenerate
+	 */
+	private boolean flips(int[] indices, int[] triangles, int[] triangleOffsets, int from, int to) {
+		int wedge = from;
+		do {
+			for (int i = triangleOffsets[wedge]; i < triangleOffsets[wedge + 1]; i++) {
+				int triangle = triangles[i];
+				int a = position[remap[indices[triangle * 3]]];
+				int b = position[remap[indices[triangle * 3 + 1]]];
+				int c = position[remap[indices[triangle * 3 + 2]]];
+				if (a == to || b == to || c == to) {
+					// Removed by the collapse
+					continue;
+				}
+				// The normals are u x v, with u and v the edges from the first vertex, before and after the collapse
+				double ux = positions[b * 3] - positions[a * 3], uy = positions[b * 3 + 1] - positions[a * 3 + 1], uz = positions[b * 3 + 2] - positions[a * 3 + 2];
+				double vx = positions[c * 3] - positions[a * 3], vy = positions[c * 3 + 1] - positions[a * 3 + 1], vz = positions[c * 3 + 2] - positions[a * 3 + 2];
+				double beforeX = uy * vz - uz * vy, beforeY = uz * vx - ux * vz, beforeZ = ux * vy - uy * vx;
+				a = a == from ? to : a;
+				b = b == from ? to : b;
+				c = c == from ? to : c;
+				ux = positions[b * 3] - positions[a * 3];
+				uy = positions[b * 3 + 1] - positions[a * 3 + 1];
+				uz = positions[b * 3 + 2] - positions[a * 3 + 2];
+				vx = positions[c * 3] - positions[a * 3];
+				vy = positions[c * 3 + 1] - positions[a * 3 + 1];
+				vz = positions[c * 3 + 2] - positions[a * 3 + 2];
+				double afterX = uy * vz - uz * vy, afterY = uz * vx - ux * vz, afterZ = ux * vy - uy * vx;
+				double dot = beforeX * afterX + beforeY * afterY + beforeZ * afterZ;
+				double lengths = Math.sqrt((beforeX * beforeX + beforeY * beforeY + beforeZ * beforeZ) * (afterX * afterX + afterY * afterY + afterZ * afterZ));
+				if (dot <= 1e-3 * lengths) {
+					return true;
+				}
+			}
+			wedge = nextWedge[wedge];
+		} while (wedge != from);
+		return false;
+	}
+
+	/**
+	 * Applies remap to the indices and drops the triangles that became degenerate, also those with two wedges of one position
+	 * 
+	 * @return The new number of indices
+	 */
+	private int applyRemap(int[] indices, int nrIndices) {
+		int out = 0;
+		for (int i = 0; i < nrIndices; i += 3) {
+			int a = remap[indices[i]];
+			int b = remap[indices[i + 1]];
+			int c = remap[indices[i + 2]];
+			if (position[a] != position[b] && position[b] != position[c] && position[a] != position[c]) {
+				indices[out++] = a;
+				indices[out++] = b;
+				indices[out++] = c;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * @return Every edge between two different positions once as (lower position << 32 | higher position), sorted
+	 */
+	private static long[] getEdges(int[] indices, int nrIndices, int[] position) {
+		long[] edges = new long[nrIndices];
+		int nrEdges = 0;
+		for (int i = 0; i < nrIndices; i += 3) {
+			for (int j = 0; j < 3; j++) {
+				int a = position[indices[i + j]];
+				int b = position[indices[i + (j + 1) % 3]];
+				if (a != b) {
+					edges[nrEdges++] = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+				}
+			}
+		}
+		Arrays.sort(edges, 0, nrEdges);
+		int unique = 0;
+		for (int i = 0; i < nrEdges; i++) {
+			if (i == 0 || edges[i] != edges[i - 1]) {
+				edges[unique++] = edges[i];
+			}
+		}
+		return Arrays.copyOf(edges, unique);
+	}
+
+	/**
+	 * Links the vertices with exactly the same position, the first of them stands for the position
+	 */
+	private void weldPositions() {
+		int nrVertices = position.length;
+		LongIntTable firstVertices = new LongIntTable(nrVertices);
+		for (int vertex = 0; vertex < nrVertices; vertex++) {
+			position[vertex] = vertex;
+			nextWedge[vertex] = vertex;
+			long key = getPositionKey(vertex);
+			for (int slot = firstVertices.first(key); slot != -1; slot = firstVertices.next(slot, key)) {
+				int first = firstVertices.value(slot);
+				if (positions[first * 3] == positions[vertex * 3] && positions[first * 3 + 1] == positions[vertex * 3 + 1] && positions[first * 3 + 2] == positions[vertex * 3 + 2]) {
+					position[vertex] = first;
+					nextWedge[vertex] = nextWedge[first];
+					nextWedge[first] = vertex;
+					break;
+				}
+			}
+			if (position[vertex] == vertex) {
+				firstVertices.put(key, vertex);
+			}
+		}
+	}
+
+	private long getPositionKey(int vertex) {
+		// Adding 0 turns -0 into 0, they are the same position
+		long x = Float.floatToIntBits(positions[vertex * 3] + 0.0f);
+		long y = Float.floatToIntBits(positions[vertex * 3 + 1] + 0.0f);
+		long z = Float.floatToIntBits(positions[vertex * 3 + 2] + 0.0f);
+		return x * 73856093L ^ y * 19349663L ^ z * 83492791L;
+	}
+
+	/**
+	 * Locks the positions of all edges that are used by only one triangle, the borders of the surface
+	 */
+	private void lockOpenEdges(int[] indices) {
+		int nrIndices = indices.length - indices.length % 3;
+		long[] edges = new long[nrIndices];
+		int nrEdges = 0;
+		for (int i = 0; i < nrIndices; i += 3) {
+			for (int j = 0; j < 3; j++) {
+				int a = position[indices[i + j]];
+				int b = position[indices[i + (j + 1) % 3]];
+				if (a != b) {
+					edges[nrEdges++] = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+				}
+			}
+		}
+		Arrays.sort(edges, 0, nrEdges);
+		for (int i = 0; i < nrEdges; i++) {
+			boolean shared = (i > 0 && edges[i] == edges[i - 1]) || (i + 1 < nrEdges && edges[i] == edges[i + 1]);
+			if (!shared) {
+				locked[(int) (edges[i] >>> 32)] = true;
+				locked[(int) edges[i]] = true;
+			}
+		}
+	}
+
+	private void addPlaneQuadric(int a, int b, int c) {
+		double ux = positions[b * 3] - positions[a * 3], uy = positions[b * 3 + 1] - positions[a * 3 + 1], uz = positions[b * 3 + 2] - positions[a * 3 + 2];
+		double vx = positions[c * 3] - positions[a * 3], vy = positions[c * 3 + 1] - positions[a * 3 + 1], vz = positions[c * 3 + 2] - positions[a * 3 + 2];
+		double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+		double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length == 0) {
+			return;
+		}
+		double x = nx / length;
+		double y = ny / length;
+		double z = nz / length;
+		double d = -(x * positions[a * 3] + y * positions[a * 3 + 1] + z * positions[a * 3 + 2]);
+		addPlaneQuadric(a, x, y, z, d);
+		addPlaneQuadric(b, x, y, z, d);
+		addPlaneQuadric(c, x, y, z, d);
+	}
+
+	/**
+	 * Adds the quadric of the plane x * X + y * Y + z * Z + d = 0 to the vertex, in the order of QUADRIC_SIZE entries that evaluate reads
+	 */
+	private void addPlaneQuadric(int vertex, double x, double y, double z, double d) {
+		int q = vertex * QUADRIC_SIZE;
+		quadrics[q] += x * x;
+		quadrics[q + 1] += x * y;
+		quadrics[q + 2] += x * z;
+		quadrics[q + 3] += x * d;
+		quadrics[q + 4] += y * y;
+		quadrics[q + 5] += y * z;
+		quadrics[q + 6] += y * d;
+		quadrics[q + 7] += z * z;
+		quadrics[q + 8] += z * d;
+		quadrics[q + 9] += d * d;
+	}
+
+	/**
+	 * @return The sum of the squared distances of the position of to, to the planes of both vertices
+	 */
+	private double getError(int from, int to) {
+		double x = positions[to * 3];
+		double y = positions[to * 3 + 1];
+		double z = positions[to * 3 + 2];
+		return Math.max(0, evaluate(from * QUADRIC_SIZE, x, y, z) + evaluate(to * QUADRIC_SIZE, x, y, z));
+	}
+
+	private double evaluate(int q, double x, double y, double z) {
+		return quadrics[q] * x * x + 2 * quadrics[q + 1] * x * y + 2 * quadrics[q + 2] * x * z + 2 * quadrics[q + 3] * x
+			+ quadrics[q + 4] * y * y + 2 * quadrics[q + 5] * y * z + 2 * quadrics[q + 6] * y
+			+ quadrics[q + 7] * z * z + 2 * quadrics[q + 8] * z
+			+ quadrics[q + 9];
+	}
+}
@@ -0,0 +1,224 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits an indexed mesh with too many vertices for short indices into
+ * chunks of consecutive triangles that each use at most maxVertices unique
+ * vertices. Vertices stay shared within a chunk, only the vertices used by
+ * more than one chunk are duplicated.
+ *
+ * Only the chunk boundaries, vertex counts and bounds are kept, the remapped
+ * indices and vertex order are derived again by remap() when the geometry is
+ * written.
+ */
+class MeshSplit {
+
+	/**
+	 * 65535 itself is not allowed as an UNSIGNED_SHORT index in glTF, it is the primitive restart value
+	 */
+	static final int MAX_VERTICES = 65535;
+
+	/**
+	 * Receives the remapped geometry of one chunk. The arrays are reused for the next chunk.
+	 */
+	interface ChunkVisitor {
+		void visit(int chunk, int[] localIndices, int nrIndices, int[] vertices, int nrVertices);
+	}
+
+	private final int nrVertices;
+	private final int[] indexStarts;
+	private final int[] vertexCounts;
+	private final float[] bounds;
+
+	private MeshSplit(int nrVertices, int[] indexStarts, int[] vertexCounts, float[] bounds) {
+		this.nrVertices = nrVertices;
+		this.indexStarts = indexStarts;
+		this.vertexCounts = vertexCounts;
+		this.bounds = bounds;
+	}
+
+	/**
+	 * @param indices All indices of the mesh, every 3 form a triangle
+	 * @param vertices XYZ of all vertices of the mesh, used for the bounds of the chunks
+	 */
+	static MeshSplit split(IntBuffer indices, FloatBuffer vertices, int maxVertices) {
+		int nrVertices = vertices.capacity() / 3;
+		int nrIndices = indices.capacity();
+
+		int[] chunkOf = new int[nrVertices];
+		Arrays.fill(chunkOf, -1);
+
+		int[] indexStarts = new int[8];
+		int[] vertexCounts = new int[8];
+		float[] bounds = new float[8 * 6];
+		int nrChunks = 0;
+		int chunkVertexCount = 0;
+
+		for (int i = 0; i < nrIndices; i += 3) {
+			int end = Math.min(i + 3, nrIndices);
+			int needed = 0;
+			for (int j = i; j < end; j++) {
+				int index = indices.get(j);
+				if (index < 0 || index >= nrVertices) {
+					throw new IllegalArgumentException("Index out of range " + index);
+				}
+				if (chunkOf[index] != nrChunks - 1 && !seenBefore(indices, i, j, index)) {
+					needed++;
+				}
+			}
+			if (nrChunks == 0 || chunkVertexCount + needed > maxVertices) {
+				if (nrChunks == indexStarts.length) {
+					indexStarts = Arrays.copyOf(indexStarts, nrChunks * 2);
+					vertexCounts = Arrays.copyOf(vertexCounts, nrChunks * 2);
+					bounds = Arrays.copyOf(bounds, nrChunks * 2 * 6);
+				}
+				indexStarts[nrChunks] = i;
+				for (int k = 0; k < 3; k++) {
+					bounds[nrChunks * 6 + k] = Float.MAX_VALUE;
+					bounds[nrChunks * 6 + 3 + k] = -Float.MAX_VALUE;
+				}
+				nrChunks++;
+				chunkVertexCount = 0;
+			}
+			int chunk = nrChunks - 1;
+			for (int j = i; j < end; j++) {
+				int index = indices.get(j);
+				if (chunkOf[index] != chunk) {
+					chunkOf[index] = chunk;
+					chunkVertexCount++;
+					for (int k = 0; k < 3; k++) {
+						float value = vertices.get(index * 3 + k);
+						if (value < bounds[chunk * 6 + k]) {
+							bounds[chunk * 6 + k] = value;
+						}
+						if (value > bounds[chunk * 6 + 3 + k]) {
+							bounds[chunk * 6 + 3 + k] = value;
+						}
+					}
+				}
+			}
+			vertexCounts[chunk] = chunkVertexCount;
+		}
+
+		int[] starts = Arrays.copyOf(indexStarts, nrChunks + 1);
+		starts[nrChunks] = nrIndices;
+		return new MeshSplit(nrVertices, starts, Arrays.copyOf(vertexCounts, nrChunks), Arrays.copyOf(bounds, nrChunks * 6));
+	}
+
+	/**
+	 * Stores the chunks in a cache entry, read() restores them
+	 */
+	void write(GeometryCache.EntryWriter writer) {
+		writer.putInt(nrVertices);
+		writer.putInts(indexStarts);
+		writer.putInts(vertexCounts);
+		writer.putFloats(bounds);
+	}
+
+	static MeshSplit read(ByteBuffer buffer) {
+		int nrVertices = buffer.getInt();
+		return new MeshSplit(nrVertices, GeometryCache.getInts(buffer), GeometryCache.getInts(buffer), GeometryCache.getFloats(buffer));
+	}
+
+	private static boolean seenBefore(IntBuffer indices, int from, int to, int index) {
+		for (int j = from; j < to; j++) {
+			if (indices.get(j) == index) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	int getNrChunks() {
+		return vertexCounts.length;
+	}
+
+	int getNrIndices(int chunk) {
+		return indexStarts[chunk + 1] - indexStarts[chunk];
+	}
+
+	int getNrVertices(int chunk) {
+		return vertexCounts[chunk];
+	}
+
+	/**
+	 * @return The number of vertices of all chunks together, including the ones duplicated between chunks
+	 */
+	int getTotalNrVertices() {
+		int total = 0;
+		for (int vertexCount : vertexCounts) {
+			total += vertexCount;
+		}
+		return total;
+	}
+
+	/**
+	 * @return The number of vertices of the original mesh
+	 */
+	int getOriginalNrVertices() {
+		return nrVertices;
+	}
+
+	float[] getMin(int chunk) {
+		return Arrays.copyOfRange(bounds, chunk * 6, chunk * 6 + 3);
+	}
+
+	float[] getMax(int chunk) {
+		return Arrays.copyOfRange(bounds, chunk * 6 + 3, chunk * 6 + 6);
+	}
+
+	/**
+	 * Visits the chunks in order. The vertices of a chunk are numbered in order of first use, vertices[localIndex] is the index of that vertex in the original mesh.
+	 */
+	void remap(IntBuffer indices, ChunkVisitor visitor) {
+		int[] chunkOf = new int[nrVertices];
+		Arrays.fill(chunkOf, -1);
+		int[] localIndexOf = new int[nrVertices];
+
+		int maxNrIndices = 0;
+		int maxNrVertices = 0;
+		for (int chunk = 0; chunk < getNrChunks(); chunk++) {
+			maxNrIndices = Math.max(maxNrIndices, getNrIndices(chunk));
+			maxNrVertices = Math.max(maxNrVertices, vertexCounts[chunk]);
+		}
+		int[] localIndices = new int[maxNrIndices];
+		int[] vertices = new int[maxNrVertices];
+
+		for (int chunk = 0; chunk < getNrChunks(); chunk++) {
+			int nrChunkVertices = 0;
+			int start = indexStarts[chunk];
+			int nrChunkIndices = getNrIndices(chunk);
+			for (int i = 0; i < nrChunkIndices; i++) {
+				int index = indices.get(start + i);
+				if (chunkOf[index] != chunk) {
+					chunkOf[index] = chunk;
+					localIndexOf[index] = nrChunkVertices;
+					vertices[nrChunkVertices++] = index;
+				}
+				localIndices[i] = localIndexOf[index];
+			}
+			visitor.visit(chunk, localIndices, nrChunkIndices, vertices, nrChunkVertices);
+		}
+	}
+}
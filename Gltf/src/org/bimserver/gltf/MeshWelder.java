@@ -0,0 +1,201 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.Arrays;
+
+import org.bimserver.gltf.GeometryDeduplicator.LongIntTable;
+
+/**
+ * Cleans up an indexed mesh as BIMserver produces it: coincident vertices
+ * with (nearly) the same normal and the same color are welded into one,
+ * triangles that have become degenerate or occur twice are removed and only
+ * the vertices that are still used are kept.
+ *
+ * The welder hashes the vertices into a grid with cells the size of the
+ * position tolerance, a vertex is compared with the vertices kept so far in
+ * its own and the 26 surrounding cells. Everything is done on primitive
+ * arrays, there is no object per vertex or triangle.
+ */
+class MeshWelder {
+
+	private MeshWelder() {
+	}
+
+	/**
+	 * @param positions XYZ of every vertex
+	 * @param normals XYZ of every vertex, or null
+	 * @param colors The color bytes of every vertex, or null
+	 * @param positionTolerance The distance under which vertices are the same, also the height under which a triangle is degenerate
+	 * @param minNormalDot The cosine of the largest angle between the normals of vertices that are welded
+	 * @return The indices of the remaining triangles, into the vertices that were kept
+	 */
+	static int[] weld(int[] indices, float[] positions, float[] normals, byte[] colors, int colorStride, float positionTolerance, float minNormalDot) {
+		int nrVertices = positions.length / 3;
+		int[] weldedTo = new int[nrVertices];
+		LongIntTable cells = new LongIntTable(nrVertices);
+		float toleranceSquared = positionTolerance * positionTolerance;
+		for (int vertex = 0; vertex < nrVertices; vertex++) {
+			weldedTo[vertex] = vertex;
+			long x = getCell(positions[vertex * 3], positionTolerance);
+			long y = getCell(positions[vertex * 3 + 1], positionTolerance);
+			long z = getCell(positions[vertex * 3 + 2], positionTolerance);
+			// Without a tolerance only equal positions are welded, those are always in the same cell
+			int range = positionTolerance > 0 ? 1 : 0;
+			search: for (long dx = -range; dx <= range; dx++) {
+				for (long dy = -range; dy <= range; dy++) {
+					for (long dz = -range; dz <= range; dz++) {
+						long key = getCellKey(x + dx, y + dy, z + dz);
+						for (int slot = cells.first(key); slot != -1; slot = cells.next(slot, key)) {
+							int candidate = cells.value(slot);
+							if (canWeld(candidate, vertex, positions, normals, colors, colorStride, toleranceSquared, minNormalDot)) {
+								weldedTo[vertex] = candidate;
+								break search;
+							}
+						}
+					}
+				}
+			}
+			if (weldedTo[vertex] == vertex) {
+				cells.put(getCellKey(x, y, z), vertex);
+			}
+		}
+
+		int[] result = new int[indices.length - indices.length % 3];
+		int nrIndices = 0;
+		LongIntTable triangles = new LongIntTable(indices.length / 3);
+		for (int i = 0; i + 3 <= indices.length; i += 3) {
+			int a = weldedTo[indices[i]];
+			int b = weldedTo[indices[i + 1]];
+			int c = weldedTo[indices[i + 2]];
+			if (a == b || b == c || c == a || isDegenerate(a, b, c, positions, positionTolerance)) {
+				continue;
+			}
+			// The same triangle starts at its smallest vertex, the opposite winding is a different triangle, the back of a two-sided face
+			if (b < a && b < c) {
+				int first = a;
+				a = b;
+				b = c;
+				c = first;
+			} else if (c < a && c < b) {
+				int first = a;
+				a = c;
+				c = b;
+				b = first;
+			}
+			long key = getTriangleKey(a, b, c);
+			boolean duplicate = false;
+			for (int slot = triangles.first(key); slot != -1; slot = triangles.next(slot, key)) {
+				int other = triangles.value(slot);
+				if (result[other] == a && result[other + 1] == b && result[other + 2] == c) {
+					duplicate = true;
+					break;
+				}
+			}
+			if (!duplicate) {
+				triangles.put(key, nrIndices);
+				result[nrIndices++] = a;
+				result[nrIndices++] = b;
+				result[nrIndices++] = c;
+			}
+		}
+		return Arrays.copyOf(result, nrIndices);
+	}
+
+	/**
+	 * Renumbers the vertices in order of first use, vertices that are not used anymore are left out. The indices are updated in place.
+	 * 
+	 * @return For every new vertex number the original vertex
+	 */
+	static int[] compact(int[] indices, int nrVertices) {
+		int[] newNumbers = new int[nrVertices];
+		Arrays.fill(newNumbers, -1);
+		int[] vertexOrder = new int[nrVertices];
+		int next = 0;
+		for (int i = 0; i < indices.length; i++) {
+			int vertex = indices[i];
+			if (newNumbers[vertex] == -1) {
+				newNumbers[vertex] = next;
+				vertexOrder[next++] = vertex;
+			}
+			indices[i] = newNumbers[vertex];
+		}
+		return Arrays.copyOf(vertexOrder, next);
+	}
+
+	private static boolean canWeld(int a, int b, float[] positions, float[] normals, byte[] colors, int colorStride, float toleranceSquared, float minNormalDot) {
+		float distanceSquared = 0;
+		for (int j = 0; j < 3; j++) {
+			float delta = positions[a * 3 + j] - positions[b * 3 + j];
+			distanceSquared += delta * delta;
+		}
+		if (distanceSquared > toleranceSquared) {
+			return false;
+		}
+		if (normals != null) {
+			float dot = 0;
+			for (int j = 0; j < 3; j++) {
+				dot += normals[a * 3 + j] * normals[b * 3 + j];
+			}
+			if (dot < minNormalDot) {
+				return false;
+			}
+		}
+		if (colors != null) {
+			for (int j = 0; j < colorStride; j++) {
+				if (colors[a * colorStride + j] != colors[b * colorStride + j]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true when the height of the triangle on its longest edge is not more than the tolerance
+	 */
+	private static boolean isDegenerate(int a, int b, int c, float[] positions, float positionTolerance) {
+		double ux = positions[b * 3] - positions[a * 3], uy = positions[b * 3 + 1] - positions[a * 3 + 1], uz = positions[b * 3 + 2] - positions[a * 3 + 2];
+		double vx = positions[c * 3] - positions[a * 3], vy = positions[c * 3 + 1] - positions[a * 3 + 1], vz = positions[c * 3 + 2] - positions[a * 3 + 2];
+		double wx = vx - ux, wy = vy - uy, wz = vz - uz;
+		double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+		double longestEdgeSquared = Math.max(ux * ux + uy * uy + uz * uz, Math.max(vx * vx + vy * vy + vz * vz, wx * wx + wy * wy + wz * wz));
+		// |u x v| is twice the area, which is the height times the longest edge
+		double crossSquared = nx * nx + ny * ny + nz * nz;
+		return crossSquared <= (double) positionTolerance * positionTolerance * longestEdgeSquared;
+	}
+
+	private static long getCell(float value, float positionTolerance) {
+		if (positionTolerance > 0) {
+			return (long) Math.floor(value / positionTolerance);
+		}
+		// -0 and 0 are the same position
+		return Float.floatToIntBits(value + 0f);
+	}
+
+	private static long getCellKey(long x, long y, long z) {
+		long key = x * 0x9E3779B185EBCA87L;
+		key = Long.rotateLeft(key ^ (y * 0xC2B2AE3D27D4EB4FL), 31);
+		key = Long.rotateLeft(key ^ (z * 0x165667B19E3779F9L), 27);
+		return key ^ (key >>> 29);
+	}
+
+	private static long getTriangleKey(int a, int b, int c) {
+		return getCellKey(a, b, c);
+	}
+}
@@ -0,0 +1,192 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Receives the data of one buffer as it is streamed and cuts it into its
+ * bufferViews. Every bufferView with EXT_meshopt_compression is encoded in
+ * the background as soon as its last byte has arrived, so the encoding of one
+ * region overlaps with the conversion of the next and only the regions that
+ * are still being encoded are kept uncompressed. When they add up to more
+ * than MAX_PENDING_BYTE_LENGTH the stream waits for the oldest one, so a large
+ * model never has all of its uncompressed data on the heap at once.
+ *
+ * The bytes between the bufferViews are padding and are dropped.
+ */
+class MeshoptCompressor extends OutputStream {
+
+	static final long MAX_PENDING_BYTE_LENGTH = 64L * 1024 * 1024;
+
+	private final List<GltfDocument.BufferView> bufferViews;
+	private final ConversionPipeline conversionPipeline;
+	// When false only the compressed bufferViews are kept, the others are written from the stream again
+	private final boolean keepUncompressed;
+	private final Integer[] order;
+	private final MeshoptViews views;
+	// The bufferViews that are being encoded, oldest first, pendingByteLength is their uncompressed size
+	private final Deque<Integer> pending = new ArrayDeque<>();
+	private final ForkJoinTask<?>[] compressed;
+	private long pendingByteLength;
+	private byte[] viewData;
+	private int viewPosition;
+	private long position;
+	private int current;
+
+	/**
+	 * @param buffer Only the bufferViews in this buffer are streamed
+	 * @param views Receives the compressed bufferViews, and the uncompressed ones when they are kept
+	 */
+	MeshoptCompressor(List<GltfDocument.BufferView> bufferViews, int buffer, ConversionPipeline conversionPipeline, boolean keepUncompressed, MeshoptViews views) throws IOException {
+		this.bufferViews = bufferViews;
+		this.conversionPipeline = conversionPipeline;
+		this.keepUncompressed = keepUncompressed;
+		this.views = views;
+		List<Integer> inBuffer = new ArrayList<>();
+		for (int i = 0; i < bufferViews.size(); i++) {
+			if (bufferViews.get(i).buffer == buffer) {
+				inBuffer.add(i);
+			}
+		}
+		order = inBuffer.toArray(new Integer[inBuffer.size()]);
+		compressed = new ForkJoinTask<?>[bufferViews.size()];
+		Arrays.sort(order, Comparator.comparingLong(index -> bufferViews.get(index).byteOffset));
+		startView();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (current == order.length) {
+				// Padding at the end of the chunk
+				position += len;
+				return;
+			}
+			GltfDocument.BufferView bufferView = bufferViews.get(order[current]);
+			if (position < bufferView.byteOffset) {
+				int skipped = (int) Math.min(len, bufferView.byteOffset - position);
+				position += skipped;
+				off += skipped;
+				len -= skipped;
+				continue;
+			}
+			int copied = Math.min(len, viewData.length - viewPosition);
+			System.arraycopy(b, off, viewData, viewPosition, copied);
+			viewPosition += copied;
+			position += copied;
+			off += copied;
+			len -= copied;
+			if (viewPosition == viewData.length) {
+				finishView();
+			}
+		}
+	}
+
+	/**
+	 * Prepares the buffer of the next bufferView, empty bufferViews are finished right away
+	 */
+	private void startView() throws IOException {
+		while (current < order.length) {
+			viewData = new byte[bufferViews.get(order[current]).byteLength];
+			viewPosition = 0;
+			if (viewData.length > 0) {
+				return;
+			}
+			finishView();
+		}
+	}
+
+	private void finishView() throws IOException {
+		int index = order[current];
+		GltfDocument.MeshoptCompression compression = bufferViews.get(index).meshopt;
+		byte[] data = viewData;
+		viewData = null;
+		if (compression != null) {
+			compressed[index] = conversionPipeline.submit(() -> encode(data, compression));
+			pending.add(index);
+			pendingByteLength += data.length;
+			while (pendingByteLength > MAX_PENDING_BYTE_LENGTH) {
+				finishOldest();
+			}
+		} else if (keepUncompressed) {
+			views.add(index, data);
+		}
+		current++;
+		startView();
+	}
+
+	/**
+	 * Waits for the oldest encoding that is still pending and hands its result to the views
+	 */
+	private void finishOldest() throws IOException {
+		int index = pending.remove();
+		pendingByteLength -= bufferViews.get(index).byteLength;
+		views.add(index, (byte[]) compressed[index].join());
+		compressed[index] = null;
+	}
+
+	private static byte[] encode(byte[] data, GltfDocument.MeshoptCompression compression) {
+		if (GltfDocument.MeshoptCompression.ATTRIBUTES.equals(compression.mode)) {
+			if (GltfDocument.MeshoptCompression.OCTAHEDRAL.equals(compression.filter)) {
+				MeshoptEncoder.encodeFilterOctahedral(data, compression.count);
+			} else if (GltfDocument.MeshoptCompression.EXPONENTIAL.equals(compression.filter)) {
+				MeshoptEncoder.encodeFilterExponential(data, MeshoptEncoder.EXPONENTIAL_BITS);
+			}
+			return MeshoptEncoder.encodeVertexBuffer(data, compression.count, compression.byteStride);
+		}
+		int[] indices = new int[compression.count];
+		for (int i = 0; i < indices.length; i++) {
+			if (compression.byteStride == 2) {
+				indices[i] = (data[i * 2] & 0xFF) | (data[i * 2 + 1] & 0xFF) << 8;
+			} else {
+				indices[i] = (data[i * 4] & 0xFF) | (data[i * 4 + 1] & 0xFF) << 8 | (data[i * 4 + 2] & 0xFF) << 16 | (data[i * 4 + 3] & 0xFF) << 24;
+			}
+		}
+		if (GltfDocument.MeshoptCompression.TRIANGLES.equals(compression.mode)) {
+			return MeshoptEncoder.encodeIndexBuffer(indices);
+		}
+		return MeshoptEncoder.encodeIndexSequence(indices);
+	}
+
+	/**
+	 * Waits for the encoding of all bufferViews, afterwards the views contain every bufferView of the buffer, compressed when it has EXT_meshopt_compression,
+	 * except the uncompressed ones that were not kept
+	 */
+	void finish() throws IOException {
+		if (current != order.length) {
+			throw new IllegalStateException("Not all bufferViews written");
+		}
+		while (!pending.isEmpty()) {
+			finishOldest();
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.Arrays;
+
+/**
+ * Encoders for the bitstreams of EXT_meshopt_compression, compatible with the
+ * decoders of meshoptimizer: the attribute codec (version 0), the triangle
+ * and index sequence codecs (version 1) and the octahedral and exponential
+ * filters.
+ *
+ * The input of every method is the content of one bufferView as it would be
+ * written without compression.
+ */
+class MeshoptEncoder {
+
+	/**
+	 * The mantissa bits of the EXPONENTIAL filter, enough for normals to stay within 2^-15 of their direction
+	 */
+	static final int EXPONENTIAL_BITS = 16;
+
+	private static final int VERTEX_HEADER = 0xA0;
+	private static final int INDEX_HEADER = 0xE1;
+	private static final int SEQUENCE_HEADER = 0xD1;
+
+	private static final int BYTE_GROUP_SIZE = 16;
+	private static final int VERTEX_BLOCK_SIZE_BYTES = 8192;
+	private static final int VERTEX_BLOCK_MAX_SIZE = 256;
+	private static final int TAIL_MAX_SIZE = 32;
+
+	// The bit counts a group of 16 bytes can be stored with, by the 2-bit code in the group header
+	private static final int[] GROUP_BITS = {0, 2, 4, 8};
+
+	// The combinations of two vertex FIFO codes that fit in the code byte of a triangle, the decoder reads this table from the end of the stream
+	private static final byte[] CODE_AUX_TABLE = {0x00, 0x76, (byte) 0x87, 0x56, 0x67, 0x78, (byte) 0xA9, (byte) 0x86, 0x65, (byte) 0x89, 0x68, (byte) 0x98, 0x01, 0x69, 0x00, 0x00};
+	private static final int[][] TRIANGLE_INDEX_ORDER = {{0, 1, 2}, {1, 2, 0}, {2, 0, 1}};
+	private static final int FIFO_SIZE = 16;
+	// Vertex FIFO codes from here on mean one less or one more than the last explicitly encoded index
+	private static final int FEC_MAX = 13;
+
+	private MeshoptEncoder() {
+	}
+
+	/**
+	 * Encodes count elements of stride bytes in attribute mode, stride has to be a multiple of 4 and at most 256
+	 */
+	static byte[] encodeVertexBuffer(byte[] data, int count, int stride) {
+		if (stride <= 0 || stride > 256 || stride % 4 != 0) {
+			throw new IllegalArgumentException("Stride " + stride + " cannot be encoded");
+		}
+		int blockSize = Math.min((VERTEX_BLOCK_SIZE_BYTES / stride) & ~(BYTE_GROUP_SIZE - 1), VERTEX_BLOCK_MAX_SIZE);
+		int nrBlocks = (count + blockSize - 1) / blockSize;
+		int headerSize = (blockSize / BYTE_GROUP_SIZE + 3) / 4;
+		byte[] result = new byte[1 + nrBlocks * stride * (headerSize + blockSize) + Math.max(TAIL_MAX_SIZE, stride)];
+		int position = 0;
+		result[position++] = (byte) VERTEX_HEADER;
+
+		// Every byte is delta encoded from the same byte of the element before it, the first element from itself, it is stored at the end
+		byte[] lastElement = count > 0 ? Arrays.copyOf(data, stride) : new byte[stride];
+		byte[] firstElement = lastElement.clone();
+		byte[] deltas = new byte[blockSize];
+		for (int offset = 0; offset < count; offset += blockSize) {
+			int nrElements = Math.min(blockSize, count - offset);
+			int nrAligned = (nrElements + BYTE_GROUP_SIZE - 1) & ~(BYTE_GROUP_SIZE - 1);
+			for (int k = 0; k < stride; k++) {
+				int previous = lastElement[k];
+				for (int i = 0; i < nrElements; i++) {
+					int value = data[(offset + i) * stride + k];
+					int delta = (byte) (value - previous);
+					deltas[i] = (byte) ((delta << 1) ^ (delta >> 7));
+					previous = value;
+				}
+				Arrays.fill(deltas, nrElements, nrAligned, (byte) 0);
+				position = encodeBytes(result, position, deltas, nrAligned);
+			}
+			System.arraycopy(data, (offset + nrElements - 1) * stride, lastElement, 0, stride);
+		}
+
+		// The decoder can read ahead safely because of the padding in front of the first element
+		position += Math.max(0, TAIL_MAX_SIZE - stride);
+		System.arraycopy(firstElement, 0, result, position, stride);
+		position += stride;
+		return Arrays.copyOf(result, position);
+	}
+
+	/**
+	 * Writes groups of 16 bytes with the fewest bits that fit most of their values, the values that do not fit follow the group as whole bytes
+	 */
+	private static int encodeBytes(byte[] result, int position, byte[] buffer, int size) {
+		int header = position;
+		int headerSize = (size / BYTE_GROUP_SIZE + 3) / 4;
+		Arrays.fill(result, header, header + headerSize, (byte) 0);
+		position += headerSize;
+		for (int i = 0; i < size; i += BYTE_GROUP_SIZE) {
+			int bestCode = 3;
+			int bestSize = BYTE_GROUP_SIZE;
+			for (int code = 0; code < 3; code++) {
+				int groupSize = measureGroup(buffer, i, GROUP_BITS[code]);
+				if (groupSize < bestSize) {
+					bestCode = code;
+					bestSize = groupSize;
+				}
+			}
+			int group = i / BYTE_GROUP_SIZE;
+			result[header + group / 4] |= bestCode << ((group % 4) * 2);
+			position = encodeGroup(result, position, buffer, i, GROUP_BITS[bestCode]);
+		}
+		return position;
+	}
+
+	private static int measureGroup(byte[] buffer, int offset, int bits) {
+		if (bits == 0) {
+			for (int k = 0; k < BYTE_GROUP_SIZE; k++) {
+				if (buffer[offset + k] != 0) {
+					return Integer.MAX_VALUE;
+				}
+			}
+			return 0;
+		}
+		int size = BYTE_GROUP_SIZE * bits / 8;
+		int sentinel = (1 << bits) - 1;
+		for (int k = 0; k < BYTE_GROUP_SIZE; k++) {
+			if ((buffer[offset + k] & 0xFF) >= sentinel) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	private static int encodeGroup(byte[] result, int position, byte[] buffer, int offset, int bits) {
+		if (bits == 0) {
+			return position;
+		}
+		if (bits == 8) {
+			System.arraycopy(buffer, offset, result, position, BYTE_GROUP_SIZE);
+			return position + BYTE_GROUP_SIZE;
+		}
+		int valuesPerByte = 8 / bits;
+		int sentinel = (1 << bits) - 1;
+		for (int i = 0; i < BYTE_GROUP_SIZE; i += valuesPerByte) {
+			int packed = 0;
+			for (int k = 0; k < valuesPerByte; k++) {
+				packed = (packed << bits) | Math.min(buffer[offset + i + k] & 0xFF, sentinel);
+			}
+			result[position++] = (byte) packed;
+		}
+		for (int k = 0; k < BYTE_GROUP_SIZE; k++) {
+			if ((buffer[offset + k] & 0xFF) >= sentinel) {
+				result[position++] = buffer[offset + k];
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Encodes a triangle list in triangle mode, indices that reuse an edge or a recent vertex of the triangles before them take a few bits
+	 */
+	static byte[] encodeIndexBuffer(int[] indices) {
+		int nrTriangles = indices.length / 3;
+		// Every triangle takes at most a code byte, an aux byte and three 5-byte varints
+		byte[] result = new byte[1 + nrTriangles * 17 + CODE_AUX_TABLE.length];
+		result[0] = (byte) INDEX_HEADER;
+		int[] edgeFifo = new int[FIFO_SIZE * 2];
+		Arrays.fill(edgeFifo, -1);
+		int[] vertexFifo = new int[FIFO_SIZE];
+		Arrays.fill(vertexFifo, -1);
+		int[] offsets = new int[2];
+		int code = 1;
+		int position = 1 + nrTriangles;
+		int next = 0;
+		int last = 0;
+
+		for (int i = 0; i < nrTriangles * 3; i += 3) {
+			int edge = getEdgeFifo(edgeFifo, indices[i], indices[i + 1], indices[i + 2], offsets[0]);
+			if (edge >= 0 && (edge >> 2) < 15) {
+				// The triangle continues from an edge of an earlier triangle, only the third vertex is encoded
+				int[] order = TRIANGLE_INDEX_ORDER[edge & 3];
+				int a = indices[i + order[0]];
+				int b = indices[i + order[1]];
+				int c = indices[i + order[2]];
+				int fe = edge >> 2;
+				int fc = getVertexFifo(vertexFifo, c, offsets[1]);
+				int fec;
+				if (fc >= 1 && fc < FEC_MAX) {
+					fec = fc;
+				} else if (c == next) {
+					fec = 0;
+					next++;
+				} else {
+					fec = 15;
+				}
+				if (fec == 15 && c + 1 == last) {
+					fec = 13;
+					last = c;
+				}
+				if (fec == 15 && c == last + 1) {
+					fec = 14;
+					last = c;
+				}
+				result[code++] = (byte) ((fe << 4) | fec);
+				if (fec == 15) {
+					position = encodeIndex(result, position, c, last);
+					last = c;
+				}
+				if (fec == 0 || fec >= FEC_MAX) {
+					pushVertexFifo(vertexFifo, c, offsets);
+				}
+				pushEdgeFifo(edgeFifo, c, b, offsets);
+				pushEdgeFifo(edgeFifo, a, c, offsets);
+			} else {
+				int rotation = indices[i + 1] == next ? 1 : indices[i + 2] == next ? 2 : 0;
+				int[] order = TRIANGLE_INDEX_ORDER[rotation];
+				int a = indices[i + order[0]];
+				int b = indices[i + order[1]];
+				int c = indices[i + order[2]];
+
+				// A triangle 0, 1, 2 after other vertices starts the numbering over, as when a new primitive starts in the same bufferView
+				boolean reset = false;
+				if (a == 0 && b == 1 && c == 2 && next > 0) {
+					reset = true;
+					next = 0;
+					Arrays.fill(vertexFifo, -1);
+				}
+				int fb = getVertexFifo(vertexFifo, b, offsets[1]);
+				int fc = getVertexFifo(vertexFifo, c, offsets[1]);
+				int fea = 15;
+				if (a == next) {
+					fea = 0;
+					next++;
+				}
+				int feb = 15;
+				if (fb >= 0 && fb < 14) {
+					feb = fb + 1;
+				} else if (b == next) {
+					feb = 0;
+					next++;
+				}
+				int fec = 15;
+				if (fc >= 0 && fc < 14) {
+					fec = fc + 1;
+				} else if (c == next) {
+					fec = 0;
+					next++;
+				}
+				int codeAux = (feb << 4) | fec;
+				int codeAuxIndex = getCodeAuxIndex(codeAux);
+				if (fea == 0 && codeAuxIndex >= 0 && codeAuxIndex < 14 && !reset) {
+					result[code++] = (byte) (0xF0 | codeAuxIndex);
+				} else {
+					result[code++] = (byte) (0xF0 | 14 | fea);
+					result[position++] = (byte) codeAux;
+				}
+				if (fea == 15) {
+					position = encodeIndex(result, position, a, last);
+					last = a;
+				}
+				if (feb == 15) {
+					position = encodeIndex(result, position, b, last);
+					last = b;
+				}
+				if (fec == 15) {
+					position = encodeIndex(result, position, c, last);
+					last = c;
+				}
+				if (fea == 0 || fea == 15) {
+					pushVertexFifo(vertexFifo, a, offsets);
+				}
+				if (feb == 0 || feb == 15) {
+					pushVertexFifo(vertexFifo, b, offsets);
+				}
+				if (fec == 0 || fec == 15) {
+					pushVertexFifo(vertexFifo, c, offsets);
+				}
+				pushEdgeFifo(edgeFifo, b, a, offsets);
+				pushEdgeFifo(edgeFifo, c, b, offsets);
+				pushEdgeFifo(edgeFifo, a, c, offsets);
+			}
+		}
+
+		// The table is also the padding that lets the decoder read a whole triangle without bounds checks
+		System.arraycopy(CODE_AUX_TABLE, 0, result, position, CODE_AUX_TABLE.length);
+		position += CODE_AUX_TABLE.length;
+		return Arrays.copyOf(result, position);
+	}
+
+	/**
+	 * @return The position in the edge FIFO, most recent first, times 4 plus the rotation of the triangle that starts with that edge, or -1
+	 */
+	private static int getEdgeFifo(int[] edgeFifo, int a, int b, int c, int offset) {
+		for (int i = 0; i < FIFO_SIZE; i++) {
+			int index = (offset - 1 - i) & (FIFO_SIZE - 1);
+			int e0 = edgeFifo[index * 2];
+			int e1 = edgeFifo[index * 2 + 1];
+			if (e0 == a && e1 == b) {
+				return i << 2;
+			}
+			if (e0 == b && e1 == c) {
+				return (i << 2) | 1;
+			}
+			if (e0 == c && e1 == a) {
+				return (i << 2) | 2;
+			}
+		}
+		return -1;
+	}
+
+	private static int getVertexFifo(int[] vertexFifo, int vertex, int offset) {
+		for (int i = 0; i < FIFO_SIZE; i++) {
+			if (vertexFifo[(offset - 1 - i) & (FIFO_SIZE - 1)] == vertex) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void pushEdgeFifo(int[] edgeFifo, int a, int b, int[] offsets) {
+		edgeFifo[offsets[0] * 2] = a;
+		edgeFifo[offsets[0] * 2 + 1] = b;
+		offsets[0] = (offsets[0] + 1) & (FIFO_SIZE - 1);
+	}
+
+	private static void pushVertexFifo(int[] vertexFifo, int vertex, int[] offsets) {
+		vertexFifo[offsets[1]] = vertex;
+		offsets[1] = (offsets[1] + 1) & (FIFO_SIZE - 1);
+	}
+
+	private static int getCodeAuxIndex(int codeAux) {
+		for (int i = 0; i < CODE_AUX_TABLE.length; i++) {
+			if ((CODE_AUX_TABLE[i] & 0xFF) == codeAux) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int encodeIndex(byte[] result, int position, int index, int last) {
+		int delta = index - last;
+		return encodeVByte(result, position, (delta << 1) ^ (delta >> 31));
+	}
+
+	private static int encodeVByte(byte[] result, int position, int value) {
+		do {
+			result[position++] = (byte) ((value & 127) | (Integer.compareUnsigned(value, 127) > 0 ? 128 : 0));
+			value >>>= 7;
+		} while (value != 0);
+		return position;
+	}
+
+	/**
+	 * Encodes any sequence of indices in index mode, every index is a delta from one of two earlier indices
+	 */
+	static byte[] encodeIndexSequence(int[] indices) {
+		byte[] result = new byte[1 + indices.length * 5 + 4];
+		result[0] = (byte) SEQUENCE_HEADER;
+		int position = 1;
+		int[] last = new int[2];
+		int current = 0;
+		for (int index : indices) {
+			// Switches to the other baseline when the delta gets too large for one byte
+			int cd = index - last[current];
+			if (Math.abs(cd) >= 30) {
+				current ^= 1;
+			}
+			int delta = index - last[current];
+			int value = (delta << 1) ^ (delta >> 31);
+			position = encodeVByte(result, position, (value << 1) | current);
+			last[current] = index;
+		}
+		// The 4 zero bytes of the tail
+		return Arrays.copyOf(result, position + 4);
+	}
+
+	/**
+	 * Turns normals stored as 4 signed normalized bytes (x, y, z and a 4th byte that is kept) into the octahedral encoding of the OCTAHEDRAL filter
+	 */
+	static void encodeFilterOctahedral(byte[] data, int count) {
+		for (int i = 0; i < count; i++) {
+			float x = data[i * 4];
+			float y = data[i * 4 + 1];
+			float z = data[i * 4 + 2];
+			float length = Math.abs(x) + Math.abs(y) + Math.abs(z);
+			float scale = length == 0 ? 0 : 1 / length;
+			x *= scale;
+			y *= scale;
+			float u = z >= 0 ? x : (1 - Math.abs(y)) * (x >= 0 ? 1 : -1);
+			float v = z >= 0 ? y : (1 - Math.abs(x)) * (y >= 0 ? 1 : -1);
+			data[i * 4] = (byte) quantizeSnorm(u, 8);
+			data[i * 4 + 1] = (byte) quantizeSnorm(v, 8);
+			data[i * 4 + 2] = (byte) quantizeSnorm(1, 8);
+		}
+	}
+
+	/**
+	 * Replaces every little-endian float by a signed mantissa of the given number of bits and an 8-bit exponent, for the EXPONENTIAL filter
+	 */
+	static void encodeFilterExponential(byte[] data, int bits) {
+		for (int i = 0; i + 4 <= data.length; i += 4) {
+			float value = Float.intBitsToFloat((data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | (data[i + 3] & 0xFF) << 24);
+			// The exponent of frexp, for a mantissa in [0.5, 1)
+			int exponent = value == 0 || !Float.isFinite(value) ? 0 : Math.getExponent(value) + 1;
+			exponent = Math.max(-100, exponent - (bits - 1));
+			float mantissa = Math.scalb(value, -exponent);
+			int encoded = ((int) (mantissa + (mantissa >= 0 ? 0.5f : -0.5f)) & 0xFFFFFF) | (exponent << 24);
+			data[i] = (byte) encoded;
+			data[i + 1] = (byte) (encoded >> 8);
+			data[i + 2] = (byte) (encoded >> 16);
+			data[i + 3] = (byte) (encoded >> 24);
+		}
+	}
+
+	private static int quantizeSnorm(float value, int bits) {
+		float scale = (1 << (bits - 1)) - 1;
+		float clamped = Math.max(-1f, Math.min(1f, value));
+		return (int) (clamped * scale + (clamped >= 0 ? 0.5f : -0.5f));
+	}
+}
@@ -0,0 +1,113 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The bufferViews that are written after the uncompressed data of a buffer,
+ * or instead of it: the compressed ones, and without a fallback also the ones
+ * that are not compressed. Only the first ones are kept on the heap, once
+ * they add up to the memory limit the others go into a temporary file that is
+ * streamed when the buffer is written and deleted on close.
+ */
+class MeshoptViews implements Closeable {
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private final long maxMemoryByteLength;
+	private final byte[][] views;
+	private final long[] fileOffsets;
+	private final int[] byteLengths;
+	private long memoryByteLength;
+	private Path file;
+	private FileChannel channel;
+
+	MeshoptViews(int nrBufferViews, long maxMemoryByteLength) {
+		this.maxMemoryByteLength = maxMemoryByteLength;
+		views = new byte[nrBufferViews][];
+		fileOffsets = new long[nrBufferViews];
+		byteLengths = new int[nrBufferViews];
+		Arrays.fill(byteLengths, -1);
+	}
+
+	void add(int bufferViewIndex, byte[] data) throws IOException {
+		byteLengths[bufferViewIndex] = data.length;
+		if (memoryByteLength + data.length <= maxMemoryByteLength) {
+			views[bufferViewIndex] = data;
+			memoryByteLength += data.length;
+			return;
+		}
+		if (channel == null) {
+			file = Files.createTempFile("gltf-meshopt", ".tmp");
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		fileOffsets[bufferViewIndex] = channel.size();
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, fileOffsets[bufferViewIndex] + buffer.position());
+		}
+	}
+
+	boolean contains(int bufferViewIndex) {
+		return byteLengths[bufferViewIndex] != -1;
+	}
+
+	int getByteLength(int bufferViewIndex) {
+		return byteLengths[bufferViewIndex];
+	}
+
+	void write(int bufferViewIndex, OutputStream outputStream) throws IOException {
+		if (views[bufferViewIndex] != null) {
+			outputStream.write(views[bufferViewIndex]);
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(Math.min(COPY_BUFFER_SIZE, Math.max(byteLengths[bufferViewIndex], 1)));
+		long position = fileOffsets[bufferViewIndex];
+		long end = position + byteLengths[bufferViewIndex];
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int read = channel.read(buffer, position);
+			if (read == -1) {
+				throw new IOException("Temporary file " + file + " ends before bufferView " + bufferViewIndex);
+			}
+			outputStream.write(buffer.array(), 0, read);
+			position += read;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			try {
+				channel.close();
+			} finally {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+}
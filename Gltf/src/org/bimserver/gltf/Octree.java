@@ -0,0 +1,153 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Partitions products into the tiles of a tileset by their bounds. A tile
+ * with too many products is split into eight octants, every product goes to
+ * the octant that holds its center, unless it is larger than half the tile,
+ * those products stay in the tile itself. Tiles are refined by adding the
+ * children, so a large product is drawn as soon as its tile is.
+ */
+class Octree {
+
+	static class Node {
+		// Path from the root, "0" for the root, "0_5" for its sixth octant etc.
+		final String path;
+		// The tight bounds of all products in this tile and below, min (3) and max (3)
+		final float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		// Indices of the products drawn by this tile itself
+		final List<Integer> products = new ArrayList<>();
+		final List<Node> children = new ArrayList<>();
+		// The largest product diagonal below this tile, the error that is made when the children are not drawn
+		float geometricError;
+		// The largest product diagonal in this tile and below
+		float maxDiagonal;
+
+		Node(String path) {
+			this.path = path;
+		}
+	}
+
+	private final float[] productBounds;
+	private final int maxProductsPerTile;
+	private final int maxDepth;
+
+	private Octree(float[] productBounds, int maxProductsPerTile, int maxDepth) {
+		this.productBounds = productBounds;
+		this.maxProductsPerTile = maxProductsPerTile;
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * @param productBounds Min (3) and max (3) of every product, in the coordinates of the model
+	 */
+	static Node build(float[] productBounds, int maxProductsPerTile, int maxDepth) {
+		int nrProducts = productBounds.length / 6;
+		List<Integer> products = new ArrayList<>(nrProducts);
+		float[] cell = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for (int product = 0; product < nrProducts; product++) {
+			products.add(product);
+			include(cell, productBounds, product);
+		}
+		Node root = new Octree(productBounds, maxProductsPerTile, maxDepth).build("0", cell, products, 0);
+		if (nrProducts == 0) {
+			Arrays.fill(root.bounds, 0f);
+		}
+		return root;
+	}
+
+	private Node build(String path, float[] cell, List<Integer> products, int depth) {
+		Node node = new Node(path);
+		for (int product : products) {
+			include(node.bounds, productBounds, product);
+			node.maxDiagonal = Math.max(node.maxDiagonal, diagonal(productBounds, product * 6));
+		}
+		if (products.size() <= maxProductsPerTile || depth >= maxDepth) {
+			node.products.addAll(products);
+			return node;
+		}
+
+		float[] center = new float[3];
+		float[] halfSize = new float[3];
+		for (int j = 0; j < 3; j++) {
+			center[j] = (cell[j] + cell[3 + j]) / 2f;
+			halfSize[j] = (cell[3 + j] - cell[j]) / 2f;
+		}
+		List<List<Integer>> octants = new ArrayList<>(8);
+		for (int octant = 0; octant < 8; octant++) {
+			octants.add(new ArrayList<>());
+		}
+		for (int product : products) {
+			int octant = 0;
+			boolean fits = true;
+			for (int j = 0; j < 3; j++) {
+				float min = productBounds[product * 6 + j];
+				float max = productBounds[product * 6 + 3 + j];
+				if (max - min > halfSize[j]) {
+					fits = false;
+				}
+				if ((min + max) / 2f > center[j]) {
+					octant |= 1 << j;
+				}
+			}
+			if (fits) {
+				octants.get(octant).add(product);
+			} else {
+				node.products.add(product);
+			}
+		}
+
+		for (int octant = 0; octant < 8; octant++) {
+			List<Integer> octantProducts = octants.get(octant);
+			if (octantProducts.isEmpty()) {
+				continue;
+			}
+			float[] octantCell = new float[6];
+			for (int j = 0; j < 3; j++) {
+				boolean upper = (octant & (1 << j)) != 0;
+				octantCell[j] = upper ? center[j] : cell[j];
+				octantCell[3 + j] = upper ? cell[3 + j] : center[j];
+			}
+			Node child = build(path + "_" + octant, octantCell, octantProducts, depth + 1);
+			node.children.add(child);
+			node.geometricError = Math.max(node.geometricError, child.maxDiagonal);
+		}
+		return node;
+	}
+
+	private static void include(float[] bounds, float[] productBounds, int product) {
+		for (int j = 0; j < 3; j++) {
+			bounds[j] = Math.min(bounds[j], productBounds[product * 6 + j]);
+			bounds[3 + j] = Math.max(bounds[3 + j], productBounds[product * 6 + 3 + j]);
+		}
+	}
+
+	static float diagonal(float[] bounds, int offset) {
+		float sum = 0;
+		for (int j = 0; j < 3; j++) {
+			float size = bounds[offset + 3 + j] - bounds[offset + j];
+			sum += size * size;
+		}
+		return (float) Math.sqrt(sum);
+	}
+}
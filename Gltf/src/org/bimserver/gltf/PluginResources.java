@@ -0,0 +1,87 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The threads and caches of the glTF 2 serializers. The server creates an instance of every plugin, BinaryGltfSerializerPlugin2 and the plugins that
+ * extend it all use these instead of having their own.
+ */
+final class PluginResources {
+
+	private static PluginResources instance;
+
+	// The workers are daemon threads
+	private final ForkJoinPool forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	// Sized by the settings of the last serializer that uses it
+	private final GeometryCache geometryCache = new GeometryCache(new GltfSettings().conversionCacheSize * 1024L * 1024L);
+	// Under the home directory of the server, so every server has its own results, which survive a restart
+	private final Path resultCacheDirectory;
+	// The version and build date of the plugin, a new build does not use the results of an older one
+	private final String version;
+	// Created by the first serializer that uses it
+	private ResultCache resultCache;
+
+	private PluginResources(Path resultCacheDirectory, String version) {
+		this.resultCacheDirectory = resultCacheDirectory;
+		this.version = version;
+	}
+
+	/**
+	 * @return The resources of all plugins, created by the first plugin that is initialized
+	 */
+	static synchronized PluginResources get(Path tempDirectory, String version) {
+		if (instance == null) {
+			instance = new PluginResources(tempDirectory.resolve("gltf-results"), version);
+		}
+		return instance;
+	}
+
+	ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+
+	GeometryCache getGeometryCache() {
+		return geometryCache;
+	}
+
+	/**
+	 * @return Null when no serializer has used the cache yet or its directory cannot be written
+	 */
+	synchronized ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Creates the cache the first time it is turned on, the outputs are not cached when its directory cannot be written
+	 */
+	synchronized ResultCache getResultCache(long maxByteSize) {
+		if (resultCache == null) {
+			try {
+				resultCache = new ResultCache(resultCacheDirectory, version, maxByteSize);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+		resultCache.setMaxByteSize(maxByteSize);
+		return resultCache;
+	}
+}
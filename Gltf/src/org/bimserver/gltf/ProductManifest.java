@@ -0,0 +1,314 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.bimserver.models.ifc2x3tc1.IfcProduct;
+
+/**
+ * What the serializer needs of the products of a model, collected in a
+ * single pass over them. The EMF objects of a model are loaded lazily, so
+ * every pass over the products and every navigation from a product to its
+ * geometry costs, the later stages of an export only use these arrays.
+ *
+ * Only the products that are written are in the manifest: products with
+ * geometry that are not openings. A product is its index in the manifest, in
+ * the order of the model.
+ *
+ * The bounds of the products in the coordinates of the model are computed in
+ * parallel and kept, for the extends of the model and for the tiles. They are
+ * either exact, every vertex transformed, or the transformed bounding box of
+ * the vertices, which needs no multiplications per vertex but is larger for
+ * rotated products.
+ */
+class ProductManifest {
+
+	private final int size;
+	private final String[] globalIds;
+	// The name of the EClass, the default material of a product depends on it
+	private final String[] types;
+	private final GeometryData[] geometries;
+	// The vertices of the geometry of every product, for the world bounds
+	private final byte[][] vertices;
+	// Column-major, 16 per product, as BIMserver stores the transformation
+	private final double[] matrices;
+	// The bounds in the coordinates of the model, min (3) and max (3) per product, null until they have been computed
+	private float[] bounds;
+
+	private ProductManifest(int size) {
+		this.size = size;
+		globalIds = new String[size];
+		types = new String[size];
+		geometries = new GeometryData[size];
+		vertices = new byte[size][];
+		matrices = new double[size * 16];
+	}
+
+	/**
+	 * Goes through the products once, this is the only place where the serializer navigates from a product to its geometry
+	 */
+	static ProductManifest build(List<IfcProduct> products, ExportProgress progress) {
+		ProductManifest manifest = new ProductManifest(products.size());
+		int size = 0;
+		progress.startStage("Collecting geometry", products.size());
+		for (IfcProduct ifcProduct : products) {
+			progress.advance(1);
+			String type = ifcProduct.eClass().getName();
+			GeometryInfo geometryInfo = ifcProduct.getGeometry();
+			if (type.equals("IfcOpeningElement") || geometryInfo == null) {
+				continue;
+			}
+			GeometryData data = geometryInfo.getData();
+			byte[] vertices = data.getVertices().getData();
+			if (vertices.length == 0) {
+				continue;
+			}
+			manifest.globalIds[size] = ifcProduct.getGlobalId();
+			manifest.types[size] = type;
+			manifest.geometries[size] = data;
+			manifest.vertices[size] = vertices;
+			ByteBuffer matrixByteBuffer = ByteBuffer.wrap(geometryInfo.getTransformation());
+			matrixByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			matrixByteBuffer.asDoubleBuffer().get(manifest.matrices, size * 16, 16);
+			size++;
+		}
+		return size == products.size() ? manifest : manifest.subset(size);
+	}
+
+	/**
+	 * @return The first products
+	 */
+	private ProductManifest subset(int size) {
+		int[] products = new int[size];
+		for (int product=0; product<size; product++) {
+			products[product] = product;
+		}
+		return subset(products);
+	}
+
+	/**
+	 * @return A manifest with only the given products, in the given order, with their bounds when these have been computed
+	 */
+	ProductManifest subset(int[] products) {
+		ProductManifest subset = new ProductManifest(products.length);
+		if (bounds != null) {
+			subset.bounds = new float[products.length * 6];
+		}
+		for (int i=0; i<products.length; i++) {
+			int product = products[i];
+			subset.globalIds[i] = globalIds[product];
+			subset.types[i] = types[product];
+			subset.geometries[i] = geometries[product];
+			subset.vertices[i] = vertices[product];
+			System.arraycopy(matrices, product * 16, subset.matrices, i * 16, 16);
+			if (bounds != null) {
+				System.arraycopy(bounds, product * 6, subset.bounds, i * 6, 6);
+			}
+		}
+		return subset;
+	}
+
+	/**
+	 * Computes the bounds of every product in the coordinates of the model, every product on its own, so in parallel
+	 *
+	 * @param exact Transform every vertex, otherwise the bounding box of the vertices is transformed
+	 */
+	void computeBounds(ConversionPipeline conversionPipeline, ExportProgress progress, boolean exact) {
+		bounds = new float[size * 6];
+		progress.startStage("Computing the extends of the model", size);
+		conversionPipeline.forEach(size, product -> {
+			if (exact) {
+				computeExactBounds(product);
+			} else {
+				computeTransformedBounds(product);
+			}
+			progress.advance(1);
+		});
+	}
+
+	/**
+	 * The same float math as Matrix.multiplyMV with w = 1, written out so nothing is allocated per vertex
+	 */
+	private void computeExactBounds(int product) {
+		int m = product * 16;
+		float m0 = (float) matrices[m];
+		float m1 = (float) matrices[m + 1];
+		float m2 = (float) matrices[m + 2];
+		float m4 = (float) matrices[m + 4];
+		float m5 = (float) matrices[m + 5];
+		float m6 = (float) matrices[m + 6];
+		float m8 = (float) matrices[m + 8];
+		float m9 = (float) matrices[m + 9];
+		float m10 = (float) matrices[m + 10];
+		float m12 = (float) matrices[m + 12];
+		float m13 = (float) matrices[m + 13];
+		float m14 = (float) matrices[m + 14];
+		float minX = Float.MAX_VALUE;
+		float minY = Float.MAX_VALUE;
+		float minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE;
+		float maxY = -Float.MAX_VALUE;
+		float maxZ = -Float.MAX_VALUE;
+		ByteBuffer buffer = ByteBuffer.wrap(vertices[product]).order(ByteOrder.LITTLE_ENDIAN);
+		int byteLength = vertices[product].length;
+		for (int i=0; i<byteLength; i+=12) {
+			float x = buffer.getFloat(i);
+			float y = buffer.getFloat(i + 4);
+			float z = buffer.getFloat(i + 8);
+			float worldX = m0 * x + m4 * y + m8 * z + m12;
+			float worldY = m1 * x + m5 * y + m9 * z + m13;
+			float worldZ = m2 * x + m6 * y + m10 * z + m14;
+			if (worldX > maxX) {
+				maxX = worldX;
+			}
+			if (worldX < minX) {
+				minX = worldX;
+			}
+			if (worldY > maxY) {
+				maxY = worldY;
+			}
+			if (worldY < minY) {
+				minY = worldY;
+			}
+			if (worldZ > maxZ) {
+				maxZ = worldZ;
+			}
+			if (worldZ < minZ) {
+				minZ = worldZ;
+			}
+		}
+		setBounds(product, minX, minY, minZ, maxX, maxY, maxZ);
+	}
+
+	/**
+	 * Transforms the bounding box of the vertices: per axis the translation, plus for every column of the matrix the smaller and the larger of its products with the
+	 * minimum and the maximum of the box
+	 */
+	private void computeTransformedBounds(int product) {
+		float minX = Float.MAX_VALUE;
+		float minY = Float.MAX_VALUE;
+		float minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE;
+		float maxY = -Float.MAX_VALUE;
+		float maxZ = -Float.MAX_VALUE;
+		ByteBuffer buffer = ByteBuffer.wrap(vertices[product]).order(ByteOrder.LITTLE_ENDIAN);
+		int byteLength = vertices[product].length;
+		for (int i=0; i<byteLength; i+=12) {
+			float x = buffer.getFloat(i);
+			float y = buffer.getFloat(i + 4);
+			float z = buffer.getFloat(i + 8);
+			if (x > maxX) {
+				maxX = x;
+			}
+			if (x < minX) {
+				minX = x;
+			}
+			if (y > maxY) {
+				maxY = y;
+			}
+			if (y < minY) {
+				minY = y;
+			}
+			if (z > maxZ) {
+				maxZ = z;
+			}
+			if (z < minZ) {
+				minZ = z;
+			}
+		}
+		int offset = product * 6;
+		for (int j=0; j<3; j++) {
+			int m = product * 16 + j;
+			float min = (float) matrices[m + 12];
+			float max = min;
+			float column = (float) matrices[m];
+			min += Math.min(column * minX, column * maxX);
+			max += Math.max(column * minX, column * maxX);
+			column = (float) matrices[m + 4];
+			min += Math.min(column * minY, column * maxY);
+			max += Math.max(column * minY, column * maxY);
+			column = (float) matrices[m + 8];
+			min += Math.min(column * minZ, column * maxZ);
+			max += Math.max(column * minZ, column * maxZ);
+			bounds[offset + j] = min;
+			bounds[offset + 3 + j] = max;
+		}
+	}
+
+	private void setBounds(int product, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		int offset = product * 6;
+		bounds[offset] = minX;
+		bounds[offset + 1] = minY;
+		bounds[offset + 2] = minZ;
+		bounds[offset + 3] = maxX;
+		bounds[offset + 4] = maxY;
+		bounds[offset + 5] = maxZ;
+	}
+
+	/**
+	 * Grows min and max to include the bounds of all products, after computeBounds
+	 */
+	void updateExtends(float[] min, float[] max) {
+		for (int product=0; product<size; product++) {
+			for (int j=0; j<3; j++) {
+				if (bounds[product * 6 + j] < min[j]) {
+					min[j] = bounds[product * 6 + j];
+				}
+				if (bounds[product * 6 + 3 + j] > max[j]) {
+					max[j] = bounds[product * 6 + 3 + j];
+				}
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	String getGlobalId(int product) {
+		return globalIds[product];
+	}
+
+	String getType(int product) {
+		return types[product];
+	}
+
+	GeometryData getGeometry(int product) {
+		return geometries[product];
+	}
+
+	/**
+	 * @return A copy of the transformation of the product
+	 */
+	double[] getMatrix(int product) {
+		return Arrays.copyOfRange(matrices, product * 16, product * 16 + 16);
+	}
+
+	/**
+	 * @return min (3) and max (3) of every product, null before computeBounds
+	 */
+	float[] getBounds() {
+		return bounds;
+	}
+}
@@ -0,0 +1,376 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bimserver.plugins.serializers.SerializerException;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Keeps complete outputs on disk, every user that opens a project asks for
+ * the same revision with the same options again.
+ *
+ * A missing output is streamed to the request and written to a file under a
+ * temporary name at the same time, the file is renamed when it is complete,
+ * so a file with the final name is always whole, also after a crash. Only one
+ * request fills a missing file, other requests for the same key wait for it.
+ * The least recently used files are deleted when the files together get
+ * larger than the maximum, the modification time of a file is its last use,
+ * so the order survives a restart.
+ *
+ * The directory has a random id of its own, it is part of the identity that
+ * the keys of the outputs are made with, together with the version of the
+ * plugin.
+ */
+class ResultCache {
+
+	/**
+	 * Writes the output that is cached
+	 */
+	interface Producer {
+		void write(OutputStream outputStream) throws IOException, SerializerException;
+	}
+
+	private static final String EXTENSION = ".cached";
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+	private static final String ID_FILE = "cache.id";
+
+	private final Path directory;
+	private final String identity;
+	// Access order, the first file is the least recently used one, with its size
+	private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, CompletableFuture<Void>> fills = new ConcurrentHashMap<>();
+	private long maxByteSize;
+	private long byteSize;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Takes over the files that are already in the directory. Temporary files are left alone, they can be fills of another process that uses the same directory.
+	 *
+	 * @param version The version of the plugin, outputs of other versions are not used
+	 */
+	ResultCache(Path directory, String version, long maxByteSize) throws IOException {
+		this.directory = directory;
+		this.maxByteSize = maxByteSize;
+		Files.createDirectories(directory);
+		this.identity = version + "," + readId(directory.resolve(ID_FILE));
+		List<Path> existing = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+			for (Path path : stream) {
+				existing.add(path);
+			}
+		}
+		Map<Path, FileTime> lastUses = new HashMap<>();
+		for (Path path : existing) {
+			lastUses.put(path, Files.getLastModifiedTime(path));
+		}
+		existing.sort(Comparator.comparing(lastUses::get));
+		synchronized (this) {
+			for (Path path : existing) {
+				String name = path.getFileName().toString();
+				long size = Files.size(path);
+				files.put(name.substring(0, name.length() - EXTENSION.length()), size);
+				byteSize += size;
+			}
+			evict();
+		}
+	}
+
+	/**
+	 * @return The id of the directory, a new one when it does not have one yet
+	 */
+	private static String readId(Path path) throws IOException {
+		try {
+			Files.write(path, UUID.randomUUID().toString().getBytes(StandardCharsets.US_ASCII), StandardOpenOption.CREATE_NEW);
+		} catch (FileAlreadyExistsException e) {
+			// Created before, or by another process at the same time
+		}
+		return new String(Files.readAllBytes(path), StandardCharsets.US_ASCII).trim();
+	}
+
+	/**
+	 * @return The version of the plugin and the id of the directory, part of every key so outputs of another version or another cache are never used
+	 */
+	String getIdentity() {
+		return identity;
+	}
+
+	/**
+	 * Streams the cached output for the key, or produces it when the cache does not have it yet
+	 *
+	 * @param key Only letters, digits, '-' and '_', it is used as file name
+	 */
+	void write(String key, OutputStream outputStream, Producer producer) throws IOException, SerializerException {
+		while (true) {
+			if (transfer(key, outputStream)) {
+				synchronized (this) {
+					hits++;
+				}
+				return;
+			}
+			CompletableFuture<Void> fill = new CompletableFuture<>();
+			CompletableFuture<Void> running = fills.putIfAbsent(key, fill);
+			if (running != null) {
+				// Another request is producing the same output, when it fails this one tries itself
+				try {
+					running.join();
+				} catch (RuntimeException e) {
+					// Retried below
+				}
+				continue;
+			}
+			try {
+				synchronized (this) {
+					misses++;
+				}
+				fill(key, producer, outputStream);
+				fill.complete(null);
+				return;
+			} catch (IOException | SerializerException | RuntimeException e) {
+				fill.completeExceptionally(e);
+				throw e;
+			} finally {
+				fills.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @return false when the cache does not have the key
+	 */
+	private boolean transfer(String key, OutputStream outputStream) throws IOException {
+		synchronized (this) {
+			if (!files.containsKey(key)) {
+				return false;
+			}
+		}
+		Path path = getPath(key);
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			// Evicted in the meantime
+			return false;
+		}
+		synchronized (this) {
+			// Moves it to the end of the access order
+			files.get(key);
+		}
+		try {
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// Only the order after a restart depends on it
+		}
+		transfer(channel, outputStream);
+		return true;
+	}
+
+	private static void transfer(FileChannel channel, OutputStream outputStream) throws IOException {
+		try {
+			if (outputStream instanceof FileOutputStream) {
+				// File to file, the OS copies without going through the heap
+				FileChannel target = ((FileOutputStream) outputStream).getChannel();
+				long size = channel.size();
+				long position = 0;
+				while (position < size) {
+					position += channel.transferTo(position, size - position, target);
+				}
+			} else {
+				// The streams of BIMserver and servlets only take byte arrays, a channel around them would copy through a buffer of its own
+				ByteStreams.copy(Channels.newInputStream(channel), outputStream);
+			}
+			outputStream.flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Streams the output to the request while it is produced, the copy on disk is only kept when it is complete and fits in the cache
+	 */
+	private void fill(String key, Producer producer, OutputStream outputStream) throws IOException, SerializerException {
+		Path temporary = Files.createTempFile(directory, key, TEMPORARY_EXTENSION);
+		try {
+			FileCopy fileCopy = new FileCopy(outputStream, Files.newOutputStream(temporary), getMaxByteSize());
+			try {
+				producer.write(fileCopy);
+				fileCopy.flush();
+			} finally {
+				fileCopy.closeFile();
+			}
+			if (!fileCopy.isComplete()) {
+				return;
+			}
+			long size = Files.size(temporary);
+			Files.move(temporary, getPath(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			synchronized (this) {
+				Long previous = files.put(key, size);
+				byteSize += size - (previous != null ? previous : 0);
+				evict();
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Writes to the request and to the file, the file is given up when it gets larger than the cache or cannot be written, the request gets its bytes either way
+	 */
+	private static class FileCopy extends OutputStream {
+		private final OutputStream outputStream;
+		private final long maxByteSize;
+		private OutputStream fileOutputStream;
+		private long size;
+		private boolean failed;
+
+		FileCopy(OutputStream outputStream, OutputStream fileOutputStream, long maxByteSize) {
+			this.outputStream = outputStream;
+			this.fileOutputStream = fileOutputStream;
+			this.maxByteSize = maxByteSize;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			outputStream.write(b, off, len);
+			if (failed) {
+				return;
+			}
+			size += len;
+			if (size > maxByteSize) {
+				failed = true;
+				closeFile();
+				return;
+			}
+			try {
+				fileOutputStream.write(b, off, len);
+			} catch (IOException e) {
+				// A full disk only costs the copy
+				failed = true;
+				closeFile();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			outputStream.flush();
+		}
+
+		void closeFile() {
+			if (fileOutputStream == null) {
+				return;
+			}
+			try {
+				fileOutputStream.close();
+			} catch (IOException e) {
+				failed = true;
+			}
+			fileOutputStream = null;
+		}
+
+		/**
+		 * @return true when the file has all bytes that were written
+		 */
+		boolean isComplete() {
+			return !failed;
+		}
+	}
+
+	synchronized long getMaxByteSize() {
+		return maxByteSize;
+	}
+
+	synchronized void setMaxByteSize(long maxByteSize) {
+		this.maxByteSize = maxByteSize;
+		evict();
+	}
+
+	/**
+	 * Deletes the least recently used files, a file that is still being streamed stays readable until it is closed on systems that allow that
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> iterator = files.entrySet().iterator();
+		while (byteSize > maxByteSize && iterator.hasNext()) {
+			Map.Entry<String, Long> entry = iterator.next();
+			try {
+				Files.deleteIfExists(getPath(entry.getKey()));
+			} catch (IOException e) {
+				// Left on disk, the next start takes it over again
+			}
+			byteSize -= entry.getValue();
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	private Path getPath(String key) {
+		return directory.resolve(key + EXTENSION);
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	synchronized long getEvictions() {
+		return evictions;
+	}
+
+	synchronized long getByteSize() {
+		return byteSize;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d files, %d of %d bytes, %d hits, %d misses, %d evictions", files.size(), byteSize, maxByteSize, hits, misses, evictions);
+	}
+}
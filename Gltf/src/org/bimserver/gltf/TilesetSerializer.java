@@ -0,0 +1,190 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.bimserver.models.ifc2x3tc1.IfcProduct;
+import org.bimserver.plugins.serializers.EmfSerializer;
+import org.bimserver.plugins.serializers.ProgressReporter;
+import org.bimserver.plugins.serializers.SerializerException;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes the model as a 3D Tiles 1.1 tileset, a zip with tileset.json and one
+ * glb per tile in tiles/. The tiles are the nodes of an octree over the
+ * bounds of the products, so a viewer only has to load the tiles it can see.
+ *
+ * All tiles are moved by the center of the whole model, the bounding volumes
+ * in tileset.json are in those same coordinates (Z up, the glb content is
+ * Y up as 3D Tiles expects).
+ */
+public class TilesetSerializer extends EmfSerializer {
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private static final String TILESET_VERSION = "1.1";
+	private static final int MAX_PRODUCTS_PER_TILE = 500;
+	private static final int MAX_DEPTH = 8;
+
+	private final Supplier<BinaryGltfSerializer2> tileSerializers;
+	private final GltfSettings settings;
+	private final ExportProgress progress = new ExportProgress();
+	// Only computes the bounds of the products, the tiles are converted by their own serializers
+	private final ConversionPipeline conversionPipeline;
+	// The serializer of the tile that is being written, so it can be cancelled
+	private volatile BinaryGltfSerializer2 tileSerializer;
+
+	/**
+	 * @param tileSerializers Creates the serializer of every tile, configured like the glTF 2 serializer
+	 * @param forkJoinPool The pool that computes the bounds of the products, or null to compute them on the calling thread
+	 */
+	public TilesetSerializer(Supplier<BinaryGltfSerializer2> tileSerializers, ForkJoinPool forkJoinPool, GltfSettings settings) {
+		this.tileSerializers = tileSerializers;
+		this.settings = settings;
+		this.conversionPipeline = new ConversionPipeline(forkJoinPool, progress);
+	}
+
+	@Override
+	protected boolean write(OutputStream outputStream, ProgressReporter progressReporter) throws SerializerException {
+		progress.start(progressReporter);
+		try {
+			return writeTileset(outputStream);
+		} catch (CancellationException e) {
+			throw new SerializerException("The export has been cancelled", e);
+		}
+	}
+
+	/**
+	 * Stops the export that is running, from any thread
+	 */
+	public void cancel() {
+		progress.cancel();
+		BinaryGltfSerializer2 serializer = tileSerializer;
+		if (serializer != null) {
+			serializer.cancel();
+		}
+	}
+
+	private boolean writeTileset(OutputStream outputStream) throws SerializerException {
+		// The tiles get parts of this manifest, they do not go through the model again
+		ProductManifest manifest = ProductManifest.build(model.getAllWithSubTypes(IfcProduct.class), progress);
+		manifest.computeBounds(conversionPipeline, progress, settings.exactBounds);
+		float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		manifest.updateExtends(min, max);
+		float[] origin = new float[3];
+		if (manifest.size() > 0) {
+			for (int j=0; j<3; j++) {
+				origin[j] = (max[j] - min[j]) / 2.0f + min[j];
+			}
+		}
+
+		Octree.Node root = Octree.build(manifest.getBounds(), MAX_PRODUCTS_PER_TILE, MAX_DEPTH);
+		try {
+			ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+			progress.startStage("Writing tiles", manifest.size());
+			writeTiles(zipOutputStream, root, manifest, origin);
+
+			zipOutputStream.putNextEntry(new ZipEntry("tileset.json"));
+			JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(zipOutputStream, JsonEncoding.UTF8);
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			generator.writeStartObject();
+			generator.writeObjectFieldStart("asset");
+			generator.writeStringField("version", TILESET_VERSION);
+			generator.writeEndObject();
+			generator.writeNumberField("geometricError", manifest.size() == 0 ? 0f : Octree.diagonal(root.bounds, 0));
+			generator.writeFieldName("root");
+			writeTile(generator, root, origin);
+			generator.writeEndObject();
+			generator.close();
+			zipOutputStream.closeEntry();
+			// Not closed, the output stream belongs to the caller
+			zipOutputStream.finish();
+		} catch (IOException e) {
+			throw new SerializerException(e);
+		}
+		return false;
+	}
+
+	private void writeTiles(ZipOutputStream zipOutputStream, Octree.Node node, ProductManifest manifest, float[] origin) throws IOException, SerializerException {
+		if (!node.products.isEmpty()) {
+			int[] products = new int[node.products.size()];
+			for (int i=0; i<products.length; i++) {
+				products[i] = node.products.get(i);
+			}
+			ProductManifest tileProducts = manifest.subset(products);
+			zipOutputStream.putNextEntry(new ZipEntry(getContentUri(node)));
+			tileSerializer = tileSerializers.get();
+			if (progress.isCancelled()) {
+				tileSerializer.cancel();
+			}
+			tileSerializer.writeTile(model, tileProducts, origin, zipOutputStream);
+			zipOutputStream.closeEntry();
+			progress.advance(tileProducts.size());
+		}
+		for (Octree.Node child : node.children) {
+			writeTiles(zipOutputStream, child, manifest, origin);
+		}
+	}
+
+	private void writeTile(JsonGenerator generator, Octree.Node node, float[] origin) throws IOException {
+		generator.writeStartObject();
+		generator.writeObjectFieldStart("boundingVolume");
+		generator.writeArrayFieldStart("box");
+		for (int j=0; j<3; j++) {
+			generator.writeNumber((node.bounds[j] + node.bounds[3 + j]) / 2f - origin[j]);
+		}
+		// The half axes, an axis aligned box
+		for (int axis=0; axis<3; axis++) {
+			for (int j=0; j<3; j++) {
+				generator.writeNumber(axis == j ? (node.bounds[3 + j] - node.bounds[j]) / 2f : 0f);
+			}
+		}
+		generator.writeEndArray();
+		generator.writeEndObject();
+		generator.writeNumberField("geometricError", node.geometricError);
+		// The products of a tile are not repeated in its children, the children are added to what is already drawn
+		generator.writeStringField("refine", "ADD");
+		if (!node.products.isEmpty()) {
+			generator.writeObjectFieldStart("content");
+			generator.writeStringField("uri", getContentUri(node));
+			generator.writeEndObject();
+		}
+		if (!node.children.isEmpty()) {
+			generator.writeArrayFieldStart("children");
+			for (Octree.Node child : node.children) {
+				writeTile(generator, child, origin);
+			}
+			generator.writeEndArray();
+		}
+		generator.writeEndObject();
+	}
+
+	private static String getContentUri(Octree.Node node) {
+		return "tiles/" + node.path + ".glb";
+	}
+}
@@ -0,0 +1,49 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import org.bimserver.emf.Schema;
+import org.bimserver.plugins.PluginConfiguration;
+import org.bimserver.plugins.serializers.Serializer;
+
+/**
+ * Same shaders and settings as the glTF 2 serializer, every tile of the tileset is written by one of those
+ */
+public class TilesetSerializerPlugin extends BinaryGltfSerializerPlugin2 {
+
+	@Override
+	public Serializer createSerializer(PluginConfiguration plugin) {
+		GltfSettings settings = GltfSettings.fromConfiguration(plugin);
+		return new TilesetSerializer(() -> createGltfSerializer(settings, false), getForkJoinPool(), settings);
+	}
+
+	@Override
+	public String getDefaultExtension() {
+		return "zip";
+	}
+
+	@Override
+	public String getDefaultContentType() {
+		return "application/zip";
+	}
+
+	@Override
+	public String getOutputFormat(Schema schema) {
+		return "3D_TILES_1_1";
+	}
+}
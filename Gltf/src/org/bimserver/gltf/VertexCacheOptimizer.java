@@ -0,0 +1,351 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.Arrays;
+
+/**
+ * Reorders the triangles and vertices of an indexed mesh for the GPU, the
+ * mesh itself does not change.
+ *
+ * - optimizeVertexCache orders the triangles for the post-transform vertex
+ * cache, with the scoring of Tom Forsyth's "Linear-Speed Vertex Cache
+ * Optimisation". When the cache runs dry it continues at the latest added
+ * vertex that still has triangles left, or else in input order, as
+ * meshoptimizer does, so it stays linear on flat-shaded meshes where that
+ * happens every few triangles.
+ * - optimizeOverdraw then sorts clusters of those triangles so outward facing
+ * parts of the mesh are drawn first (after Sander et al., "Fast
+ * Triangle Reordering for Vertex Locality and Reduced Overdraw"), the
+ * triangles within a cluster keep their order.
+ * - optimizeVertexFetch renumbers the vertices in order of first use.
+ */
+class VertexCacheOptimizer {
+
+	private static final int CACHE_SIZE = 32;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+	// The cache that is simulated to find the clusters for the overdraw sort
+	private static final int CLUSTER_CACHE_SIZE = 16;
+	// How much worse than the whole hard cluster the cache efficiency of a soft cluster may be
+	private static final float CLUSTER_THRESHOLD = 1.05f;
+
+	private VertexCacheOptimizer() {
+	}
+
+	/**
+	 * @return The triangles of the mesh in a cache friendly order
+	 */
+	static int[] optimizeVertexCache(int[] indices, int nrVertices) {
+		int nrTriangles = indices.length / 3;
+		int[] result = new int[nrTriangles * 3];
+		if (nrTriangles == 0) {
+			return result;
+		}
+
+		// Vertex to triangle adjacency, the triangles that are still to be added come first
+		int[] triangleOffsets = new int[nrVertices + 1];
+		for (int i = 0; i < nrTriangles * 3; i++) {
+			triangleOffsets[indices[i] + 1]++;
+		}
+		int[] remaining = new int[nrVertices];
+		for (int vertex = 0; vertex < nrVertices; vertex++) {
+			remaining[vertex] = triangleOffsets[vertex + 1];
+			triangleOffsets[vertex + 1] += triangleOffsets[vertex];
+		}
+		int[] fill = Arrays.copyOf(triangleOffsets, nrVertices);
+		int[] adjacency = new int[nrTriangles * 3];
+		for (int i = 0; i < nrTriangles * 3; i++) {
+			adjacency[fill[indices[i]]++] = i / 3;
+		}
+
+		int[] cachePosition = new int[nrVertices];
+		Arrays.fill(cachePosition, -1);
+		float[] vertexScores = new float[nrVertices];
+		for (int vertex = 0; vertex < nrVertices; vertex++) {
+			vertexScores[vertex] = getVertexScore(-1, remaining[vertex]);
+		}
+		float[] triangleScores = new float[nrTriangles];
+		for (int triangle = 0; triangle < nrTriangles; triangle++) {
+			triangleScores[triangle] = vertexScores[indices[triangle * 3]] + vertexScores[indices[triangle * 3 + 1]] + vertexScores[indices[triangle * 3 + 2]];
+		}
+		boolean[] added = new boolean[nrTriangles];
+
+		int[] cache = new int[CACHE_SIZE + 3];
+		int[] newCache = new int[CACHE_SIZE + 3];
+		int cacheSize = 0;
+		// The vertices of the added triangles, the latest on top
+		int[] deadEndStack = new int[nrTriangles * 3];
+		int deadEndStackSize = 0;
+		int nextUnadded = 0;
+		int bestTriangle = -1;
+		for (int out = 0; out < nrTriangles; out++) {
+			// Nothing in the cache is connected to a triangle that is left, continue with the best triangle of the latest vertex that has any
+			while (bestTriangle == -1 && deadEndStackSize > 0) {
+				int vertex = deadEndStack[--deadEndStackSize];
+				float bestScore = -1;
+				for (int a = triangleOffsets[vertex]; a < triangleOffsets[vertex] + remaining[vertex]; a++) {
+					int triangle = adjacency[a];
+					if (triangleScores[triangle] > bestScore) {
+						bestScore = triangleScores[triangle];
+						bestTriangle = triangle;
+					}
+				}
+			}
+			if (bestTriangle == -1) {
+				// Every vertex that was added is done, take the first triangle that is left in input order
+				while (added[nextUnadded]) {
+					nextUnadded++;
+				}
+				bestTriangle = nextUnadded;
+			}
+
+			added[bestTriangle] = true;
+			int newCacheSize = 0;
+			for (int j = 0; j < 3; j++) {
+				int vertex = indices[bestTriangle * 3 + j];
+				result[out * 3 + j] = vertex;
+				newCache[newCacheSize++] = vertex;
+				deadEndStack[deadEndStackSize++] = vertex;
+				// Move the added triangle past the ones that are left
+				int end = triangleOffsets[vertex] + remaining[vertex];
+				for (int k = triangleOffsets[vertex]; k < end; k++) {
+					if (adjacency[k] == bestTriangle) {
+						adjacency[k] = adjacency[end - 1];
+						adjacency[end - 1] = bestTriangle;
+						break;
+					}
+				}
+				remaining[vertex]--;
+			}
+			for (int k = 0; k < cacheSize; k++) {
+				int vertex = cache[k];
+				if (vertex != result[out * 3] && vertex != result[out * 3 + 1] && vertex != result[out * 3 + 2]) {
+					newCache[newCacheSize++] = vertex;
+				}
+			}
+			int[] swap = cache;
+			cache = newCache;
+			newCache = swap;
+			cacheSize = newCacheSize;
+
+			// Update the scores of the vertices in the cache, and the ones that just dropped out, and find the best triangle connected to them
+			bestTriangle = -1;
+			float bestScore = -1;
+			for (int k = 0; k < cacheSize; k++) {
+				int vertex = cache[k];
+				cachePosition[vertex] = k < CACHE_SIZE ? k : -1;
+				float score = getVertexScore(cachePosition[vertex], remaining[vertex]);
+				float delta = score - vertexScores[vertex];
+				vertexScores[vertex] = score;
+				for (int a = triangleOffsets[vertex]; a < triangleOffsets[vertex] + remaining[vertex]; a++) {
+					int triangle = adjacency[a];
+					triangleScores[triangle] += delta;
+					if (triangleScores[triangle] > bestScore) {
+						bestScore = triangleScores[triangle];
+						bestTriangle = triangle;
+					}
+				}
+			}
+			if (cacheSize > CACHE_SIZE) {
+				cacheSize = CACHE_SIZE;
+			}
+		}
+		return result;
+	}
+
+	private static float getVertexScore(int cachePosition, int remainingTriangles) {
+		if (remainingTriangles == 0) {
+			return -1f;
+		}
+		float score = 0f;
+		if (cachePosition >= 0) {
+			if (cachePosition < 3) {
+				score = LAST_TRIANGLE_SCORE;
+			} else {
+				score = (float) Math.pow(1f - (cachePosition - 3) / (float) (CACHE_SIZE - 3), CACHE_DECAY_POWER);
+			}
+		}
+		return score + VALENCE_BOOST_SCALE * (float) Math.pow(remainingTriangles, -VALENCE_BOOST_POWER);
+	}
+
+	/**
+	 * Sorts clusters of triangles, as found in the vertex cache order, by how much they face away from the center of the mesh
+	 * 
+	 * @param positions XYZ of every vertex
+	 * @return The triangles in the new order
+	 */
+	static int[] optimizeOverdraw(int[] indices, float[] positions) {
+		int nrTriangles = indices.length / 3;
+		FifoCache cache = new FifoCache(positions.length / 3);
+
+		// Hard boundaries, where the cache order starts over on a triangle of which no vertex is in the cache
+		int[] hardStarts = new int[nrTriangles + 1];
+		int nrHardClusters = 0;
+		for (int triangle = 0; triangle < nrTriangles; triangle++) {
+			if (cache.getMisses(indices, triangle) == 3 || triangle == 0) {
+				hardStarts[nrHardClusters++] = triangle;
+			}
+		}
+		hardStarts[nrHardClusters] = nrTriangles;
+
+		// Soft boundaries, a cluster is cut once it is about as cache efficient as the whole hard cluster, starting over costs a few cache misses per cluster
+		int[] clusterStarts = new int[nrTriangles + 1];
+		int nrClusters = 0;
+		for (int hard = 0; hard < nrHardClusters; hard++) {
+			int from = hardStarts[hard];
+			int to = hardStarts[hard + 1];
+			cache.clear();
+			int misses = 0;
+			for (int triangle = from; triangle < to; triangle++) {
+				misses += cache.getMisses(indices, triangle);
+			}
+			float threshold = CLUSTER_THRESHOLD * misses / (to - from);
+
+			clusterStarts[nrClusters++] = from;
+			cache.clear();
+			int runningMisses = 0;
+			int runningTriangles = 0;
+			for (int triangle = from; triangle < to - 1; triangle++) {
+				runningMisses += cache.getMisses(indices, triangle);
+				runningTriangles++;
+				if (runningMisses / (float) runningTriangles <= threshold) {
+					clusterStarts[nrClusters++] = triangle + 1;
+					cache.clear();
+					runningMisses = 0;
+					runningTriangles = 0;
+				}
+			}
+		}
+		clusterStarts[nrClusters] = nrTriangles;
+
+		double[] center = new double[3];
+		for (int i = 0; i < positions.length; i++) {
+			center[i % 3] += positions[i];
+		}
+		for (int j = 0; j < 3; j++) {
+			center[j] /= Math.max(1, positions.length / 3);
+		}
+
+		long[] keys = new long[nrClusters];
+		for (int cluster = 0; cluster < nrClusters; cluster++) {
+			double[] normal = new double[3];
+			double[] centroid = new double[3];
+			double area = 0;
+			for (int triangle = clusterStarts[cluster]; triangle < clusterStarts[cluster + 1]; triangle++) {
+				int a = indices[triangle * 3] * 3;
+				int b = indices[triangle * 3 + 1] * 3;
+				int c = indices[triangle * 3 + 2] * 3;
+				double ux = positions[b] - positions[a], uy = positions[b + 1] - positions[a + 1], uz = positions[b + 2] - positions[a + 2];
+				double vx = positions[c] - positions[a], vy = positions[c + 1] - positions[a + 1], vz = positions[c + 2] - positions[a + 2];
+				double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+				double triangleArea = Math.sqrt(nx * nx + ny * ny + nz * nz);
+				normal[0] += nx;
+				normal[1] += ny;
+				normal[2] += nz;
+				for (int j = 0; j < 3; j++) {
+					centroid[j] += (positions[a + j] + positions[b + j] + positions[c + j]) / 3 * triangleArea;
+				}
+				area += triangleArea;
+			}
+			double dot = 0;
+			double length = Math.sqrt(normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]);
+			if (area > 0 && length > 0) {
+				for (int j = 0; j < 3; j++) {
+					dot += (centroid[j] / area - center[j]) * normal[j] / length;
+				}
+			}
+			// Highest dot first, the float bits made to sort like the float itself
+			int bits = Float.floatToIntBits((float) -dot);
+			bits ^= (bits >> 31) & 0x7FFFFFFF;
+			keys[cluster] = ((long) bits << 32) | cluster;
+		}
+		Arrays.sort(keys);
+
+		int[] result = new int[nrTriangles * 3];
+		int out = 0;
+		for (long key : keys) {
+			int cluster = (int) key;
+			int from = clusterStarts[cluster] * 3;
+			int to = clusterStarts[cluster + 1] * 3;
+			System.arraycopy(indices, from, result, out, to - from);
+			out += to - from;
+		}
+		return result;
+	}
+
+	/**
+	 * Renumbers the vertices in the order the indices first use them, unused vertices go to the end in their original order. The indices are updated in place.
+	 * 
+	 * @return For every new vertex number the original vertex
+	 */
+	static int[] optimizeVertexFetch(int[] indices, int nrVertices) {
+		int[] newNumbers = new int[nrVertices];
+		Arrays.fill(newNumbers, -1);
+		int[] vertexOrder = new int[nrVertices];
+		int next = 0;
+		for (int i = 0; i < indices.length; i++) {
+			int vertex = indices[i];
+			if (newNumbers[vertex] == -1) {
+				newNumbers[vertex] = next;
+				vertexOrder[next++] = vertex;
+			}
+			indices[i] = newNumbers[vertex];
+		}
+		for (int vertex = 0; vertex < nrVertices; vertex++) {
+			if (newNumbers[vertex] == -1) {
+				newNumbers[vertex] = next;
+				vertexOrder[next++] = vertex;
+			}
+		}
+		return vertexOrder;
+	}
+
+	/**
+	 * Simulates a FIFO cache, a vertex is in the cache when fewer than CLUSTER_CACHE_SIZE misses happened since it was loaded
+	 */
+	private static class FifoCache {
+		private final int[] timestamps;
+		private int time = CLUSTER_CACHE_SIZE + 1;
+
+		FifoCache(int nrVertices) {
+			timestamps = new int[nrVertices];
+		}
+
+		void clear() {
+			time += CLUSTER_CACHE_SIZE + 1;
+		}
+
+		/**
+		 * @return The number of vertices of the triangle that were not in the cache
+		 */
+		int getMisses(int[] indices, int triangle) {
+			int misses = 0;
+			for (int j = 0; j < 3; j++) {
+				int vertex = indices[triangle * 3 + j];
+				if (time - timestamps[vertex] > CLUSTER_CACHE_SIZE) {
+					timestamps[vertex] = time++;
+					misses++;
+				}
+			}
+			return misses;
+		}
+	}
+}
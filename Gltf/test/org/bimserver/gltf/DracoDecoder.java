@@ -0,0 +1,376 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoder for the sequential triangle meshes of the Draco bitstream (version
+ * 2.2), ported from the decoders of the Draco library
+ * (MeshSequentialDecoder, the sequential attribute decoders, the difference
+ * prediction with the wrap transform and the rANS symbol decoders). It keeps
+ * the checks of the library on the input, so a mesh that Draco would reject
+ * fails here too.
+ *
+ * Only the parts the encoder writes are supported, anything else is rejected.
+ */
+class DracoDecoder {
+
+	private static final int SYMBOL_CODING_TAGGED = 0;
+	private static final int SYMBOL_CODING_RAW = 1;
+	private static final int TAG_SYMBOLS_BIT_LENGTH = 5;
+
+	/**
+	 * The decoded mesh, the attributes are null when the mesh does not have them
+	 */
+	static class Mesh {
+		int[] indices;
+		float[] positions;
+		float[] normals;
+		byte[] colors;
+		boolean compressedIndices;
+		// The symbol coding of every call to decodeSymbols, in stream order
+		final List<Integer> symbolCodings = new ArrayList<>();
+	}
+
+	private final byte[] data;
+	private final Mesh mesh = new Mesh();
+	private int position;
+
+	private DracoDecoder(byte[] data) {
+		this.data = data;
+	}
+
+	static Mesh decodeMesh(byte[] data) {
+		return new DracoDecoder(data).decode();
+	}
+
+	private Mesh decode() {
+		for (char c : "DRACO".toCharArray()) {
+			check(readByte() == c, "Not a Draco stream");
+		}
+		check(readByte() == 2 && readByte() == 2, "Unsupported version");
+		check(readByte() == 1, "Not a triangular mesh");
+		check(readByte() == 0, "Not the sequential encoding");
+		check(readShort() == 0, "Unsupported flags");
+
+		long nrFaces = readVarint(5);
+		long nrPoints = readVarint(5);
+		check(nrFaces <= 0xFFFFFFFFL / 3, "Too many faces");
+		check(nrFaces <= (data.length - position) / 3, "More faces than the remaining data can hold");
+		int nrIndices = (int) nrFaces * 3;
+		mesh.indices = new int[nrIndices];
+		int connectivity = readByte();
+		if (connectivity == 0) {
+			mesh.compressedIndices = true;
+			int[] symbols = decodeSymbols(nrIndices, 1);
+			int lastIndex = 0;
+			for (int i = 0; i < nrIndices; i++) {
+				int difference = symbols[i] >>> 1;
+				if ((symbols[i] & 1) != 0) {
+					check(difference <= lastIndex, "Negative index");
+					difference = -difference;
+				}
+				mesh.indices[i] = lastIndex + difference;
+				lastIndex = mesh.indices[i];
+			}
+		} else {
+			check(connectivity == 1, "Unknown connectivity method");
+			for (int i = 0; i < nrIndices; i++) {
+				if (nrPoints < (1 << 8)) {
+					mesh.indices[i] = readByte();
+				} else if (nrPoints < (1 << 16)) {
+					mesh.indices[i] = readShort();
+				} else if (nrPoints < (1 << 21)) {
+					mesh.indices[i] = (int) readVarint(5);
+				} else {
+					mesh.indices[i] = readInt();
+				}
+			}
+		}
+		for (int index : mesh.indices) {
+			check(Integer.toUnsignedLong(index) < nrPoints, "Index out of range");
+		}
+
+		check(readByte() == 1, "Expected one attributes decoder");
+		long nrAttributes = readVarint(5);
+		check(nrAttributes > 0 && nrAttributes <= 5L * (data.length - position), "Invalid number of attributes");
+		int[] types = new int[(int) nrAttributes];
+		int[] nrComponents = new int[types.length];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = readByte();
+			int dataType = readByte();
+			nrComponents[i] = readByte();
+			int normalized = readByte();
+			int uniqueId = (int) readVarint(5);
+			check(nrComponents[i] > 0, "No components");
+			// POSITION and NORMAL as floats, COLOR as normalized bytes, the unique ids of the encoder
+			if (types[i] == 0 || types[i] == 1) {
+				check(dataType == 9 && nrComponents[i] == 3 && normalized == 0 && uniqueId == types[i], "Unexpected attribute " + i);
+			} else {
+				check(types[i] == 2 && dataType == 2 && nrComponents[i] == 4 && normalized == 1 && uniqueId == 2, "Unexpected attribute " + i);
+			}
+		}
+		int[] decoderTypes = new int[types.length];
+		for (int i = 0; i < types.length; i++) {
+			decoderTypes[i] = readByte();
+			// Quantization for floats, integer for bytes
+			check(decoderTypes[i] == (types[i] == 2 ? 1 : 2), "Unexpected attribute decoder " + decoderTypes[i]);
+		}
+
+		int[][] values = new int[types.length][];
+		for (int i = 0; i < types.length; i++) {
+			values[i] = decodeIntegerValues((int) nrPoints, nrComponents[i]);
+		}
+		for (int i = 0; i < types.length; i++) {
+			if (decoderTypes[i] == 2) {
+				float[] dequantized = dequantize(values[i], nrComponents[i]);
+				if (types[i] == 0) {
+					mesh.positions = dequantized;
+				} else {
+					mesh.normals = dequantized;
+				}
+			} else {
+				mesh.colors = new byte[values[i].length];
+				for (int v = 0; v < values[i].length; v++) {
+					mesh.colors[v] = (byte) values[i][v];
+				}
+			}
+		}
+		check(position == data.length, "Data after the mesh");
+		return mesh;
+	}
+
+	/**
+	 * SequentialIntegerAttributeDecoder with PredictionSchemeDeltaDecoder and PredictionSchemeWrapDecodingTransform
+	 */
+	private int[] decodeIntegerValues(int nrPoints, int nrComponents) {
+		check(readByte() == 0, "Not the difference prediction");
+		check(readByte() == 1, "Not the wrap transform");
+		check(readByte() == 1, "Not compressed");
+		int nrValues = nrPoints * nrComponents;
+		int[] values = decodeSymbols(nrValues, nrComponents);
+		for (int i = 0; i < nrValues; i++) {
+			values[i] = (values[i] & 1) == 0 ? values[i] >>> 1 : -(values[i] >>> 1) - 1;
+		}
+		int min = readInt();
+		int max = readInt();
+		check(min <= max, "Invalid wrap bounds");
+		long difference = (long) max - min;
+		check(difference < Integer.MAX_VALUE, "Wrap range too large");
+		int maxDifference = 1 + (int) difference;
+		for (int i = 0; i < nrValues; i++) {
+			int predicted = i < nrComponents ? 0 : values[i - nrComponents];
+			predicted = Math.max(min, Math.min(max, predicted));
+			int value = predicted + values[i];
+			if (value > max) {
+				value -= maxDifference;
+			} else if (value < min) {
+				value += maxDifference;
+			}
+			values[i] = value;
+		}
+		return values;
+	}
+
+	/**
+	 * AttributeQuantizationTransform::DecodeParameters and the Dequantizer
+	 */
+	private float[] dequantize(int[] values, int nrComponents) {
+		float[] min = new float[nrComponents];
+		for (int c = 0; c < nrComponents; c++) {
+			min[c] = Float.intBitsToFloat(readInt());
+		}
+		float range = Float.intBitsToFloat(readInt());
+		int bits = readByte();
+		check(bits >= 1 && bits <= 30, "Invalid quantization bits");
+		float delta = range / (float) ((1 << bits) - 1);
+		float[] result = new float[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = (float) values[i] * delta + min[i % nrComponents];
+		}
+		return result;
+	}
+
+	private int[] decodeSymbols(int nrValues, int nrComponents) {
+		int[] result = new int[nrValues];
+		if (nrValues == 0) {
+			return result;
+		}
+		int scheme = readByte();
+		mesh.symbolCodings.add(scheme);
+		if (scheme == SYMBOL_CODING_TAGGED) {
+			RansSymbolDecoder tags = new RansSymbolDecoder(TAG_SYMBOLS_BIT_LENGTH);
+			tags.startDecoding();
+			check(tags.nrSymbols > 0, "Wrong number of symbols");
+			// The values are read bit by bit, least significant first, right after the rANS data of the tags
+			long bitPosition = (long) position * 8;
+			for (int i = 0; i < nrValues; i += nrComponents) {
+				int bitLength = tags.decodeSymbol();
+				for (int c = 0; c < nrComponents; c++) {
+					int value = 0;
+					for (int bit = 0; bit < bitLength; bit++, bitPosition++) {
+						int offset = (int) (bitPosition >>> 3);
+						int b = offset < data.length ? (data[offset] >> (bitPosition & 7)) & 1 : 0;
+						value |= b << bit;
+					}
+					result[i + c] = value;
+				}
+			}
+			tags.endDecoding();
+			position = (int) ((bitPosition + 7) / 8);
+			check(position <= data.length, "Value bits past the end");
+		} else {
+			check(scheme == SYMBOL_CODING_RAW, "Unknown symbol coding " + scheme);
+			int maxBitLength = readByte();
+			check(maxBitLength >= 1 && maxBitLength <= 18, "Invalid symbol bit length " + maxBitLength);
+			RansSymbolDecoder decoder = new RansSymbolDecoder(maxBitLength);
+			check(decoder.nrSymbols > 0, "Wrong number of symbols");
+			decoder.startDecoding();
+			for (int i = 0; i < nrValues; i++) {
+				result[i] = decoder.decodeSymbol();
+			}
+			decoder.endDecoding();
+		}
+		return result;
+	}
+
+	/**
+	 * RAnsSymbolDecoder with its probability table and the AnsDecoder
+	 */
+	private class RansSymbolDecoder {
+		private final int precision;
+		private final int lowerBound;
+		private final int nrSymbols;
+		private final int[] probabilities;
+		private final int[] cumulative;
+		private final int[] lookup;
+		private int start;
+		private int offset;
+		private int state;
+
+		RansSymbolDecoder(int uniqueSymbolsBitLength) {
+			precision = 1 << Math.max(12, Math.min(20, (3 * uniqueSymbolsBitLength) / 2));
+			lowerBound = precision * 4;
+			long count = readVarint(5);
+			check(count / 64 <= data.length - position, "Too many symbols");
+			nrSymbols = (int) count;
+			probabilities = new int[nrSymbols];
+			for (int i = 0; i < nrSymbols; i++) {
+				int probabilityData = readByte();
+				int token = probabilityData & 3;
+				if (token == 3) {
+					int zeros = probabilityData >> 2;
+					check(i + zeros < nrSymbols, "Run of zero probabilities past the last symbol");
+					i += zeros;
+				} else {
+					int probability = probabilityData >> 2;
+					for (int b = 0; b < token; b++) {
+						probability |= readByte() << (8 * (b + 1) - 2);
+					}
+					probabilities[i] = probability;
+				}
+			}
+			cumulative = new int[nrSymbols];
+			lookup = new int[precision];
+			int sum = 0;
+			for (int i = 0; i < nrSymbols; i++) {
+				cumulative[i] = sum;
+				sum += probabilities[i];
+				check(sum <= precision, "Probabilities above the precision");
+				for (int j = cumulative[i]; j < sum; j++) {
+					lookup[j] = i;
+				}
+			}
+			check(nrSymbols == 0 || sum == precision, "Probabilities do not add up to the precision");
+		}
+
+		void startDecoding() {
+			long size = readVarint(10);
+			check(size <= data.length - position, "rANS data past the end");
+			start = position;
+			position += (int) size;
+			check(size >= 1, "No rANS state");
+			int last = data[position - 1] & 0xFF;
+			int prefix = last >> 6;
+			int stateBytes = prefix + 1;
+			check(size >= stateBytes, "Truncated rANS state");
+			offset = (int) size - stateBytes;
+			state = 0;
+			for (int b = stateBytes - 1; b >= 0; b--) {
+				state = (state << 8) | (data[start + offset + b] & 0xFF);
+			}
+			state &= (1 << (8 * stateBytes - 2)) - 1;
+			state += lowerBound;
+			check(Integer.toUnsignedLong(state) < (long) lowerBound * 256, "rANS state too large");
+		}
+
+		int decodeSymbol() {
+			while (state < lowerBound && offset > 0) {
+				state = state * 256 + (data[start + --offset] & 0xFF);
+			}
+			int quotient = state / precision;
+			int remainder = state % precision;
+			int symbol = lookup[remainder];
+			state = quotient * probabilities[symbol] + remainder - cumulative[symbol];
+			return symbol;
+		}
+
+		/**
+		 * Draco ignores the final state, a correct stream ends where the encoder started once the bytes the decoder did not need to renormalize are read
+		 */
+		void endDecoding() {
+			while (state < lowerBound && offset > 0) {
+				state = state * 256 + (data[start + --offset] & 0xFF);
+			}
+			check(state == lowerBound && offset == 0, "rANS data not fully consumed");
+		}
+	}
+
+	private int readByte() {
+		check(position < data.length, "Unexpected end of data");
+		return data[position++] & 0xFF;
+	}
+
+	private int readShort() {
+		return readByte() | readByte() << 8;
+	}
+
+	private int readInt() {
+		return readShort() | readShort() << 16;
+	}
+
+	private long readVarint(int maxBytes) {
+		long value = 0;
+		for (int i = 0; i < maxBytes; i++) {
+			int b = readByte();
+			value |= (long) (b & 0x7F) << (7 * i);
+			if (b < 0x80) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint too long");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalArgumentException(message);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips of the Draco encoder through the ported decoder of the Draco library
+ */
+public class DracoEncoderTest {
+
+	private static final int TAGGED = 0;
+	private static final int RAW = 1;
+
+	@Test
+	public void testCompressedIndices() {
+		Random random = new Random(1);
+		for (int bits : new int[] {8, 11, 16, 24, 30}) {
+			for (boolean colors : new boolean[] {false, true}) {
+				Mesh mesh = grid(random, 40, 30, colors);
+				DracoDecoder.Mesh decoded = assertMesh(mesh, bits, Math.min(bits, 16));
+				assertTrue(decoded.compressedIndices);
+			}
+		}
+		// Few bits leave attributes so small that the indices may be stored either way
+		assertMesh(grid(random, 40, 30, true), 1, 1);
+	}
+
+	@Test
+	public void testUncompressedIndices() {
+		// Attributes that are all the same and a triangle that repeats, the compressed indices would take less than the decoder accepts. The point
+		// counts are at the limits of the byte, short, varint and int index sizes, the triangle uses the last points.
+		for (int nrPoints : new int[] {3, 255, 256, 65535, 65536, (1 << 21) - 1, 1 << 21}) {
+			Mesh mesh = new Mesh(nrPoints, 3000);
+			for (int i = 0; i < mesh.indices.length; i++) {
+				mesh.indices[i] = nrPoints - 3 + i % 3;
+			}
+			Arrays.fill(mesh.positions, 7.5f);
+			for (int i = 0; i < nrPoints; i++) {
+				mesh.normals[i * 3 + 2] = 1;
+			}
+			DracoDecoder.Mesh decoded = assertMesh(mesh, 16, 8);
+			assertFalse("Points " + nrPoints, decoded.compressedIndices);
+		}
+	}
+
+	@Test
+	public void testOneUniqueSymbol() {
+		// Every index is 0 and every attribute the same, all symbols are 0
+		Mesh mesh = new Mesh(1, 3000);
+		mesh.colors = new byte[] {(byte) 200, (byte) 200, (byte) 200, (byte) 200};
+		mesh.normals[1] = -1;
+		DracoDecoder.Mesh decoded = assertMesh(mesh, 14, 10);
+		assertEquals(Arrays.asList(RAW, RAW, RAW), decoded.symbolCodings);
+
+		// The same indices, the random attributes make the stream large enough to keep the indices compressed
+		Random random = new Random(2);
+		mesh = grid(random, 40, 40, true);
+		Arrays.fill(mesh.indices, 0);
+		decoded = assertMesh(mesh, 16, 8);
+		assertTrue(decoded.compressedIndices);
+		assertEquals(RAW, (int) decoded.symbolCodings.get(0));
+
+		// A single triangle
+		mesh = new Mesh(3, 3);
+		mesh.indices = new int[] {0, 1, 2};
+		assertMesh(mesh, 8, 8);
+	}
+
+	@Test
+	public void testLargeSymbols() {
+		// Random positions at 30 bits and random indices over more than 2^18 points give symbols that only the tagged coding can store
+		Random random = new Random(3);
+		int nrPoints = 300000;
+		Mesh mesh = new Mesh(nrPoints, 30000);
+		for (int i = 0; i < mesh.indices.length; i++) {
+			mesh.indices[i] = random.nextInt(nrPoints);
+		}
+		for (int i = 0; i < mesh.positions.length; i++) {
+			mesh.positions[i] = (random.nextFloat() - 0.5f) * 1000;
+			mesh.normals[i] = random.nextFloat() * 2 - 1;
+		}
+		DracoDecoder.Mesh decoded = assertMesh(mesh, 30, 30);
+		assertTrue(decoded.compressedIndices);
+		assertEquals(Arrays.asList(TAGGED, TAGGED, TAGGED), decoded.symbolCodings);
+	}
+
+	@Test
+	public void testManySymbols() {
+		// Just below 2^18 points, the raw coding gets its highest rANS precision
+		Random random = new Random(4);
+		int nrPoints = (1 << 17) + 1000;
+		Mesh mesh = new Mesh(nrPoints, 300000);
+		for (int i = 0; i < mesh.indices.length; i++) {
+			mesh.indices[i] = random.nextInt(nrPoints);
+		}
+		for (int i = 0; i < mesh.positions.length; i++) {
+			mesh.positions[i] = random.nextInt(1 << 12);
+			mesh.normals[i] = random.nextFloat();
+		}
+		DracoDecoder.Mesh decoded = assertMesh(mesh, 12, 8);
+		assertTrue(decoded.compressedIndices);
+		assertTrue(decoded.symbolCodings.contains(RAW));
+	}
+
+	@Test
+	public void testEmpty() {
+		DracoDecoder.Mesh decoded = assertMesh(new Mesh(0, 0), 16, 8);
+		assertEquals(0, decoded.indices.length);
+		assertEquals(0, decoded.positions.length);
+	}
+
+	/**
+	 * A point with one triangle, written out field by field after the Draco bitstream specification. Every symbol is 0, so each rANS stream is a
+	 * single symbol with the full precision of 4096 and a final state at the lower bound, which takes one byte. The quantization range is 0, Draco
+	 * stores 1 instead.
+	 */
+	@Test
+	public void testSpecification() {
+		byte[] expected = bytes(
+				// DRACO, version 2.2, triangular mesh, sequential encoding, no flags
+				0x44, 0x52, 0x41, 0x43, 0x4f, 0x02, 0x02, 0x01, 0x00, 0x00, 0x00,
+				// 1 face, 1 point, compressed indices: raw coding, bit length 1, 1 symbol with probability 4096, 1 byte of rANS data
+				0x01, 0x01, 0x00, 0x01, 0x01, 0x01, 0x01, 0x40, 0x01, 0x00,
+				// 1 attributes decoder with 2 attributes, POSITION and NORMAL as 3 floats with their unique ids, both quantized
+				0x01, 0x02, 0x00, 0x09, 0x03, 0x00, 0x00, 0x01, 0x09, 0x03, 0x00, 0x01, 0x02, 0x02,
+				// The positions: difference prediction, wrap transform, compressed, the symbols as above, wrap bounds 0 and 0
+				0x00, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x40, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+				// The normals, the same
+				0x00, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x40, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+				// Minimum 1, 2, 3, range 1 and 8 bits of the positions
+				0x00, 0x00, 0x80, 0x3f, 0x00, 0x00, 0x00, 0x40, 0x00, 0x00, 0x40, 0x40, 0x00, 0x00, 0x80, 0x3f, 0x08,
+				// Minimum 0, 0, 1, range 1 and 8 bits of the normals
+				0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x80, 0x3f, 0x00, 0x00, 0x80, 0x3f, 0x08);
+		Mesh mesh = new Mesh(1, 1);
+		mesh.positions = new float[] {1, 2, 3};
+		mesh.normals = new float[] {0, 0, 1};
+		assertArrayEquals(expected, DracoEncoder.encodeMesh(mesh.indices, mesh.indices.length, mesh.positions, mesh.normals, null, 8, 8));
+		DracoDecoder.Mesh decoded = DracoDecoder.decodeMesh(expected);
+		assertArrayEquals(mesh.indices, decoded.indices);
+		assertArrayEquals(mesh.positions, decoded.positions, 0);
+		assertArrayEquals(mesh.normals, decoded.normals, 0);
+	}
+
+	/**
+	 * Encodes and decodes the mesh, the indices and colors have to come back exactly, the positions and normals within half a quantization step
+	 */
+	private static DracoDecoder.Mesh assertMesh(Mesh mesh, int positionBits, int normalBits) {
+		byte[] encoded = DracoEncoder.encodeMesh(mesh.indices, mesh.indices.length, mesh.positions, mesh.normals, mesh.colors, positionBits, normalBits);
+		DracoDecoder.Mesh decoded = DracoDecoder.decodeMesh(encoded);
+		assertArrayEquals(mesh.indices, decoded.indices);
+		assertQuantized(mesh.positions, decoded.positions, positionBits);
+		assertQuantized(mesh.normals, decoded.normals, normalBits);
+		if (mesh.colors == null) {
+			assertNull(decoded.colors);
+		} else {
+			assertArrayEquals(mesh.colors, decoded.colors);
+		}
+		return decoded;
+	}
+
+	private static void assertQuantized(float[] expected, float[] decoded, int bits) {
+		assertEquals(expected.length, decoded.length);
+		float range = 0;
+		for (int c = 0; c < 3; c++) {
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			for (int i = c; i < expected.length; i += 3) {
+				min = Math.min(min, expected[i]);
+				max = Math.max(max, expected[i]);
+			}
+			range = Math.max(range, max - min);
+		}
+		float step = range / ((1 << bits) - 1);
+		for (int i = 0; i < expected.length; i++) {
+			// Half a step, and the rounding of the floats the decoder computes with
+			float tolerance = step / 2 + Math.ulp(Math.abs(expected[i]) + range) * 4;
+			assertEquals("Component " + i + " at " + bits + " bits", expected[i], decoded[i], tolerance);
+		}
+	}
+
+	/**
+	 * A grid of width by height quads with jittered positions, random normals and optionally random colors
+	 */
+	private static Mesh grid(Random random, int width, int height, boolean colors) {
+		Mesh mesh = new Mesh((width + 1) * (height + 1), width * height * 2);
+		for (int y = 0; y <= height; y++) {
+			for (int x = 0; x <= width; x++) {
+				int i = y * (width + 1) + x;
+				mesh.positions[i * 3] = x * 2.5f + random.nextFloat() - 100;
+				mesh.positions[i * 3 + 1] = y * 2.5f + random.nextFloat();
+				mesh.positions[i * 3 + 2] = random.nextFloat() * 1000;
+				for (int c = 0; c < 3; c++) {
+					mesh.normals[i * 3 + c] = random.nextFloat() * 2 - 1;
+				}
+			}
+		}
+		int position = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int a = y * (width + 1) + x;
+				int c = a + width + 1;
+				mesh.indices[position++] = a;
+				mesh.indices[position++] = a + 1;
+				mesh.indices[position++] = c + 1;
+				mesh.indices[position++] = a;
+				mesh.indices[position++] = c + 1;
+				mesh.indices[position++] = c;
+			}
+		}
+		if (colors) {
+			mesh.colors = new byte[mesh.positions.length / 3 * 4];
+			random.nextBytes(mesh.colors);
+		}
+		return mesh;
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] result = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = (byte) values[i];
+		}
+		return result;
+	}
+
+	private static class Mesh {
+		int[] indices;
+		float[] positions;
+		float[] normals;
+		byte[] colors;
+
+		Mesh(int nrPoints, int nrTriangles) {
+			indices = new int[nrTriangles * 3];
+			positions = new float[nrPoints * 3];
+			normals = new float[nrPoints * 3];
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.Arrays;
+
+/**
+ * Decoders for the bitstreams of EXT_meshopt_compression, ported from the
+ * reference decoders of meshoptimizer (vertexcodec.cpp, indexcodec.cpp and
+ * vertexfilter.cpp) including their validation of the input, so a stream
+ * they would reject fails here too.
+ */
+class MeshoptDecoder {
+
+	private static final int BYTE_GROUP_SIZE = 16;
+	private static final int BYTE_GROUP_DECODE_LIMIT = 24;
+	private static final int VERTEX_BLOCK_SIZE_BYTES = 8192;
+	private static final int VERTEX_BLOCK_MAX_SIZE = 256;
+	private static final int TAIL_MAX_SIZE = 32;
+
+	private MeshoptDecoder() {
+	}
+
+	static byte[] decodeVertexBuffer(byte[] buffer, int count, int stride) {
+		if (stride <= 0 || stride > 256 || stride % 4 != 0) {
+			throw new IllegalArgumentException("Invalid stride " + stride);
+		}
+		if (buffer.length < 1 + stride) {
+			throw new IllegalArgumentException("Buffer too small");
+		}
+		if ((buffer[0] & 0xF0) != 0xA0 || (buffer[0] & 0x0F) > 0) {
+			throw new IllegalArgumentException("Unsupported header " + (buffer[0] & 0xFF));
+		}
+		byte[] result = new byte[count * stride];
+		byte[] lastVertex = Arrays.copyOfRange(buffer, buffer.length - stride, buffer.length);
+		int blockSize = Math.min((VERTEX_BLOCK_SIZE_BYTES / stride) & ~(BYTE_GROUP_SIZE - 1), VERTEX_BLOCK_MAX_SIZE);
+		int[] position = {1};
+		byte[] deltas = new byte[VERTEX_BLOCK_MAX_SIZE];
+		for (int offset = 0; offset < count; offset += blockSize) {
+			int nrVertices = Math.min(blockSize, count - offset);
+			int nrAligned = (nrVertices + BYTE_GROUP_SIZE - 1) & ~(BYTE_GROUP_SIZE - 1);
+			for (int k = 0; k < stride; k++) {
+				decodeBytes(buffer, position, deltas, nrAligned);
+				int previous = lastVertex[k];
+				for (int i = 0; i < nrVertices; i++) {
+					int delta = deltas[i] & 0xFF;
+					previous = (byte) (((delta >>> 1) ^ -(delta & 1)) + previous);
+					result[(offset + i) * stride + k] = (byte) previous;
+				}
+			}
+			System.arraycopy(result, (offset + nrVertices - 1) * stride, lastVertex, 0, stride);
+		}
+		if (buffer.length - position[0] != Math.max(TAIL_MAX_SIZE, stride)) {
+			throw new IllegalArgumentException("Unexpected tail of " + (buffer.length - position[0]) + " bytes");
+		}
+		return result;
+	}
+
+	private static void decodeBytes(byte[] buffer, int[] position, byte[] deltas, int size) {
+		int header = position[0];
+		int headerSize = (size / BYTE_GROUP_SIZE + 3) / 4;
+		if (buffer.length - header < headerSize) {
+			throw new IllegalArgumentException("Truncated group header");
+		}
+		int data = header + headerSize;
+		for (int i = 0; i < size; i += BYTE_GROUP_SIZE) {
+			if (buffer.length - data < BYTE_GROUP_DECODE_LIMIT) {
+				throw new IllegalArgumentException("Truncated group");
+			}
+			int group = i / BYTE_GROUP_SIZE;
+			int bitsLog2 = (buffer[header + group / 4] >> ((group % 4) * 2)) & 3;
+			if (bitsLog2 == 0) {
+				Arrays.fill(deltas, i, i + BYTE_GROUP_SIZE, (byte) 0);
+			} else if (bitsLog2 == 3) {
+				System.arraycopy(buffer, data, deltas, i, BYTE_GROUP_SIZE);
+				data += BYTE_GROUP_SIZE;
+			} else {
+				int bits = bitsLog2 == 1 ? 2 : 4;
+				int sentinel = (1 << bits) - 1;
+				int valuesPerByte = 8 / bits;
+				int extra = data + BYTE_GROUP_SIZE * bits / 8;
+				for (int k = 0; k < BYTE_GROUP_SIZE; k++) {
+					int packed = buffer[data + k / valuesPerByte] & 0xFF;
+					int value = (packed >> (8 - bits - (k % valuesPerByte) * bits)) & sentinel;
+					deltas[i + k] = value == sentinel ? buffer[extra++] : (byte) value;
+				}
+				data = extra;
+			}
+		}
+		position[0] = data;
+	}
+
+	static int[] decodeIndexBuffer(byte[] buffer, int count) {
+		if (count % 3 != 0) {
+			throw new IllegalArgumentException("Not a triangle list");
+		}
+		if (buffer.length < 1 + count / 3 + 16) {
+			throw new IllegalArgumentException("Buffer too small");
+		}
+		if ((buffer[0] & 0xF0) != 0xE0 || (buffer[0] & 0x0F) > 1) {
+			throw new IllegalArgumentException("Unsupported header " + (buffer[0] & 0xFF));
+		}
+		int fecMax = (buffer[0] & 0x0F) >= 1 ? 13 : 15;
+		int[] result = new int[count];
+		int[] edgeFifo = new int[32];
+		Arrays.fill(edgeFifo, -1);
+		int[] vertexFifo = new int[16];
+		Arrays.fill(vertexFifo, -1);
+		int edgeOffset = 0;
+		int vertexOffset = 0;
+		int next = 0;
+		int last = 0;
+		int code = 1;
+		int[] data = {1 + count / 3};
+		int dataSafeEnd = buffer.length - 16;
+		for (int i = 0; i < count; i += 3) {
+			if (data[0] > dataSafeEnd) {
+				throw new IllegalArgumentException("Data past the code aux table");
+			}
+			int codeTri = buffer[code++] & 0xFF;
+			int a;
+			int b;
+			int c;
+			if (codeTri < 0xF0) {
+				int fe = codeTri >> 4;
+				a = edgeFifo[((edgeOffset - 1 - fe) & 15) * 2];
+				b = edgeFifo[((edgeOffset - 1 - fe) & 15) * 2 + 1];
+				int fec = codeTri & 15;
+				if (fec < fecMax) {
+					c = fec == 0 ? next++ : vertexFifo[(vertexOffset - 1 - fec) & 15];
+					vertexFifo[vertexOffset] = c;
+					vertexOffset = (vertexOffset + (fec == 0 ? 1 : 0)) & 15;
+				} else {
+					c = fec != 15 ? last + (fec - (fec ^ 3)) : decodeIndex(buffer, data, last);
+					last = c;
+					vertexFifo[vertexOffset] = c;
+					vertexOffset = (vertexOffset + 1) & 15;
+				}
+				edgeOffset = pushEdge(edgeFifo, edgeOffset, c, b);
+				edgeOffset = pushEdge(edgeFifo, edgeOffset, a, c);
+			} else {
+				int feb;
+				int fec;
+				if (codeTri < 0xFE) {
+					int codeAux = buffer[dataSafeEnd + (codeTri & 15)] & 0xFF;
+					feb = codeAux >> 4;
+					fec = codeAux & 15;
+					a = next++;
+				} else {
+					int codeAux = buffer[data[0]++] & 0xFF;
+					int fea = codeTri == 0xFE ? 0 : 15;
+					feb = codeAux >> 4;
+					fec = codeAux & 15;
+					if (codeAux == 0) {
+						next = 0;
+					}
+					a = fea == 0 ? next++ : 0;
+					if (fea == 15) {
+						a = last = decodeIndex(buffer, data, last);
+					}
+				}
+				b = feb == 0 ? next++ : vertexFifo[(vertexOffset - feb) & 15];
+				c = fec == 0 ? next++ : vertexFifo[(vertexOffset - fec) & 15];
+				if (feb == 15) {
+					b = last = decodeIndex(buffer, data, last);
+				}
+				if (fec == 15) {
+					c = last = decodeIndex(buffer, data, last);
+				}
+				vertexFifo[vertexOffset] = a;
+				vertexOffset = (vertexOffset + 1) & 15;
+				vertexFifo[vertexOffset] = b;
+				vertexOffset = (vertexOffset + (feb == 0 || feb == 15 ? 1 : 0)) & 15;
+				vertexFifo[vertexOffset] = c;
+				vertexOffset = (vertexOffset + (fec == 0 || fec == 15 ? 1 : 0)) & 15;
+				edgeOffset = pushEdge(edgeFifo, edgeOffset, b, a);
+				edgeOffset = pushEdge(edgeFifo, edgeOffset, c, b);
+				edgeOffset = pushEdge(edgeFifo, edgeOffset, a, c);
+			}
+			result[i] = a;
+			result[i + 1] = b;
+			result[i + 2] = c;
+		}
+		if (data[0] != dataSafeEnd) {
+			throw new IllegalArgumentException("Data does not end at the code aux table");
+		}
+		return result;
+	}
+
+	private static int pushEdge(int[] edgeFifo, int offset, int a, int b) {
+		edgeFifo[offset * 2] = a;
+		edgeFifo[offset * 2 + 1] = b;
+		return (offset + 1) & 15;
+	}
+
+	private static int decodeIndex(byte[] buffer, int[] data, int last) {
+		int value = decodeVByte(buffer, data);
+		return last + ((value >>> 1) ^ -(value & 1));
+	}
+
+	private static int decodeVByte(byte[] buffer, int[] data) {
+		int lead = buffer[data[0]++] & 0xFF;
+		if (lead < 128) {
+			return lead;
+		}
+		int result = lead & 127;
+		int shift = 7;
+		for (int i = 0; i < 4; i++) {
+			int group = buffer[data[0]++] & 0xFF;
+			result |= (group & 127) << shift;
+			shift += 7;
+			if (group < 128) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	static int[] decodeIndexSequence(byte[] buffer, int count) {
+		if (buffer.length < 1 + count + 4) {
+			throw new IllegalArgumentException("Buffer too small");
+		}
+		if ((buffer[0] & 0xF0) != 0xD0 || (buffer[0] & 0x0F) > 1) {
+			throw new IllegalArgumentException("Unsupported header " + (buffer[0] & 0xFF));
+		}
+		int[] result = new int[count];
+		int[] data = {1};
+		int dataSafeEnd = buffer.length - 4;
+		int[] last = new int[2];
+		for (int i = 0; i < count; i++) {
+			if (data[0] >= dataSafeEnd) {
+				throw new IllegalArgumentException("Data past the tail");
+			}
+			int value = decodeVByte(buffer, data);
+			int current = value & 1;
+			value >>>= 1;
+			result[i] = last[current] + ((value >>> 1) ^ -(value & 1));
+			last[current] = result[i];
+		}
+		if (data[0] != dataSafeEnd) {
+			throw new IllegalArgumentException("Data does not end at the tail");
+		}
+		return result;
+	}
+
+	static void decodeFilterOctahedral(byte[] data, int count) {
+		float max = 127;
+		for (int i = 0; i < count; i++) {
+			float x = data[i * 4];
+			float y = data[i * 4 + 1];
+			float z = data[i * 4 + 2] - Math.abs(x) - Math.abs(y);
+			float t = z >= 0 ? 0 : z;
+			x += x >= 0 ? t : -t;
+			y += y >= 0 ? t : -t;
+			float s = max / (float) Math.sqrt(x * x + y * y + z * z);
+			data[i * 4] = (byte) (int) (x * s + (x >= 0 ? 0.5f : -0.5f));
+			data[i * 4 + 1] = (byte) (int) (y * s + (y >= 0 ? 0.5f : -0.5f));
+			data[i * 4 + 2] = (byte) (int) (z * s + (z >= 0 ? 0.5f : -0.5f));
+		}
+	}
+
+	static void decodeFilterExponential(byte[] data) {
+		for (int i = 0; i + 4 <= data.length; i += 4) {
+			int value = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | (data[i + 3] & 0xFF) << 24;
+			int mantissa = (value << 8) >> 8;
+			int exponent = value >> 24;
+			int decoded = Float.floatToRawIntBits(Float.intBitsToFloat((exponent + 127) << 23) * mantissa);
+			data[i] = (byte) decoded;
+			data[i + 1] = (byte) (decoded >> 8);
+			data[i + 2] = (byte) (decoded >> 16);
+			data[i + 3] = (byte) (decoded >> 24);
+		}
+	}
+}
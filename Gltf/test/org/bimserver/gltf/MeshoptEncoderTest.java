@@ -0,0 +1,295 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips of the meshopt encoders through the ported reference decoders
+ */
+public class MeshoptEncoderTest {
+
+	private static final int[] COUNTS = {0, 1, 15, 16, 17, 255, 256, 257, 1000};
+
+	@Test
+	public void testVertexBufferRandom() {
+		Random random = new Random(1);
+		for (int stride = 4; stride <= 256; stride += 4) {
+			for (int count : COUNTS) {
+				byte[] data = new byte[count * stride];
+				random.nextBytes(data);
+				assertVertexBuffer(data, count, stride);
+			}
+		}
+	}
+
+	@Test
+	public void testVertexBufferSmooth() {
+		// Small deltas of varying size, so the groups get stored with 0, 2, 4 and 8 bits
+		Random random = new Random(2);
+		for (int stride : new int[] {4, 8, 12, 16, 20, 64, 256}) {
+			for (int count : COUNTS) {
+				byte[] data = new byte[count * stride];
+				for (int i = stride; i < data.length; i++) {
+					int range = new int[] {0, 1, 3, 7, 60}[(i / stride / 16 + i % stride) % 5];
+					data[i] = (byte) (data[i - stride] + random.nextInt(range * 2 + 1) - range);
+				}
+				assertVertexBuffer(data, count, stride);
+			}
+		}
+		int count = 100000;
+		byte[] positions = new byte[count * 12];
+		for (int i = 0; i < count; i++) {
+			for (int c = 0; c < 3; c++) {
+				int value = (int) (Math.sin(i * 0.001 * (c + 1)) * 1000000);
+				for (int b = 0; b < 4; b++) {
+					positions[i * 12 + c * 4 + b] = (byte) (value >> (b * 8));
+				}
+			}
+		}
+		assertVertexBuffer(positions, count, 12);
+	}
+
+	@Test
+	public void testIndexBufferGrid() {
+		assertIndexBuffer(grid(1, 1, 0));
+		assertIndexBuffer(grid(100, 100, 0));
+		assertIndexBuffer(grid(1000, 3, 0));
+		// Indices that do not start at 0
+		assertIndexBuffer(grid(50, 50, 123456));
+	}
+
+	@Test
+	public void testIndexBufferRestart() {
+		// Primitives in the same bufferView start again at 0, 1, 2
+		int[][] primitives = {strip(100), strip(50), grid(10, 10, 0), strip(30), strip(1)};
+		int[] indices = new int[0];
+		for (int[] primitive : primitives) {
+			indices = Arrays.copyOf(indices, indices.length + primitive.length);
+			System.arraycopy(primitive, 0, indices, indices.length - primitive.length, primitive.length);
+		}
+		assertIndexBuffer(indices);
+	}
+
+	@Test
+	public void testIndexBufferRandom() {
+		Random random = new Random(3);
+		assertIndexBuffer(new int[0]);
+		for (int range : new int[] {1, 3, 16, 100, 65536, Integer.MAX_VALUE}) {
+			for (int nrTriangles : new int[] {1, 2, 17, 1000}) {
+				int[] indices = new int[nrTriangles * 3];
+				for (int i = 0; i < indices.length; i++) {
+					indices[i] = random.nextInt(range);
+				}
+				assertIndexBuffer(indices);
+			}
+		}
+		// Triangles that mostly share vertices with the ones just before them
+		int[] indices = new int[30000];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = Math.max(0, i / 2 + random.nextInt(40) - 20);
+		}
+		assertIndexBuffer(indices);
+	}
+
+	@Test
+	public void testIndexSequence() {
+		Random random = new Random(4);
+		assertArrayEquals(new int[0], MeshoptDecoder.decodeIndexSequence(MeshoptEncoder.encodeIndexSequence(new int[0]), 0));
+		for (int range : new int[] {1, 30, 31, 1000, 1 << 20, 1 << 30}) {
+			int[] indices = new int[5000];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = random.nextInt(range);
+			}
+			assertIndexSequence(indices);
+		}
+		// Two interleaved runs, as in lines and points that alternate between two parts of the vertices
+		int[] indices = new int[5000];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = i % 2 == 0 ? i : 1000000 - i;
+		}
+		assertIndexSequence(indices);
+	}
+
+	@Test
+	public void testFilterOctahedral() {
+		Random random = new Random(5);
+		int count = 10000;
+		byte[] data = new byte[count * 4];
+		for (int i = 0; i < count; i++) {
+			double x = random.nextGaussian();
+			double y = random.nextGaussian();
+			double z = random.nextGaussian();
+			if (i < 6) {
+				// The axes, where the folding of the octahedron has its edges
+				x = i / 2 == 0 ? 1 - i % 2 * 2 : 0;
+				y = i / 2 == 1 ? 1 - i % 2 * 2 : 0;
+				z = i / 2 == 2 ? 1 - i % 2 * 2 : 0;
+			}
+			double length = Math.sqrt(x * x + y * y + z * z);
+			data[i * 4] = (byte) Math.round(x / length * 127);
+			data[i * 4 + 1] = (byte) Math.round(y / length * 127);
+			data[i * 4 + 2] = (byte) Math.round(z / length * 127);
+			data[i * 4 + 3] = (byte) random.nextInt(256);
+		}
+		byte[] decoded = data.clone();
+		MeshoptEncoder.encodeFilterOctahedral(decoded, count);
+		decoded = MeshoptDecoder.decodeVertexBuffer(MeshoptEncoder.encodeVertexBuffer(decoded, count, 4), count, 4);
+		MeshoptDecoder.decodeFilterOctahedral(decoded, count);
+		for (int i = 0; i < count; i++) {
+			double dot = 0;
+			double inputLength = 0;
+			double decodedLength = 0;
+			for (int c = 0; c < 3; c++) {
+				dot += data[i * 4 + c] * decoded[i * 4 + c];
+				inputLength += data[i * 4 + c] * data[i * 4 + c];
+				decodedLength += decoded[i * 4 + c] * decoded[i * 4 + c];
+			}
+			// 8-bit octahedral coordinates keep the direction within about 2 degrees
+			assertTrue("Normal " + i, dot / Math.sqrt(inputLength * decodedLength) > Math.cos(Math.toRadians(2)));
+			assertEquals(data[i * 4 + 3], decoded[i * 4 + 3]);
+		}
+	}
+
+	@Test
+	public void testFilterExponential() {
+		Random random = new Random(6);
+		int count = 10000;
+		float[] values = new float[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = (float) (random.nextGaussian() * Math.pow(2, random.nextInt(40) - 20));
+		}
+		values[0] = 0;
+		values[1] = 1;
+		values[2] = -1;
+		values[3] = Float.MAX_VALUE / 4;
+		byte[] data = new byte[count * 4];
+		for (int i = 0; i < count; i++) {
+			int bits = Float.floatToIntBits(values[i]);
+			for (int b = 0; b < 4; b++) {
+				data[i * 4 + b] = (byte) (bits >> (b * 8));
+			}
+		}
+		MeshoptEncoder.encodeFilterExponential(data, MeshoptEncoder.EXPONENTIAL_BITS);
+		data = MeshoptDecoder.decodeVertexBuffer(MeshoptEncoder.encodeVertexBuffer(data, count, 4), count, 4);
+		MeshoptDecoder.decodeFilterExponential(data);
+		for (int i = 0; i < count; i++) {
+			float decoded = Float.intBitsToFloat((data[i * 4] & 0xFF) | (data[i * 4 + 1] & 0xFF) << 8 | (data[i * 4 + 2] & 0xFF) << 16 | (data[i * 4 + 3] & 0xFF) << 24);
+			// The mantissa has 15 bits besides the sign, rounding is off by at most half of the last one
+			assertEquals("Value " + i, values[i], decoded, Math.abs(values[i]) * Math.scalb(1f, -MeshoptEncoder.EXPONENTIAL_BITS + 1));
+		}
+	}
+
+	/**
+	 * kIndexBuffer and kIndexDataV0 from the tests of meshoptimizer, written by its encoder with version 0 of the format. Version 1 only adds codes
+	 * for explicit indices next to the previous one, none of which occur here, so apart from the version byte the output must be identical.
+	 */
+	@Test
+	public void testIndexBufferReference() {
+		int[] indices = {0, 1, 2, 2, 1, 3, 4, 6, 5, 7, 8, 9};
+		byte[] reference = bytes(0xe0, 0xf0, 0x10, 0xfe, 0xff, 0xf0, 0x0c, 0xff, 0x02, 0x02, 0x02, 0x00, 0x76, 0x87, 0x56, 0x67, 0x78, 0xa9, 0x86, 0x65, 0x89, 0x68,
+				0x98, 0x01, 0x69, 0x00, 0x00);
+		assertArrayEquals(indices, MeshoptDecoder.decodeIndexBuffer(reference, indices.length));
+		byte[] encoded = MeshoptEncoder.encodeIndexBuffer(indices);
+		assertEquals(0xe1, encoded[0] & 0xFF);
+		assertArrayEquals(Arrays.copyOfRange(reference, 1, reference.length), Arrays.copyOfRange(encoded, 1, encoded.length));
+	}
+
+	/**
+	 * kIndexSequence and kIndexSequenceData from the tests of meshoptimizer
+	 */
+	@Test
+	public void testIndexSequenceReference() {
+		int[] indices = {0, 1, 51, 2, 49, 1000};
+		byte[] reference = bytes(0xd1, 0x00, 0x04, 0xcd, 0x01, 0x04, 0x07, 0x98, 0x1f, 0x00, 0x00, 0x00, 0x00);
+		assertArrayEquals(indices, MeshoptDecoder.decodeIndexSequence(reference, indices.length));
+		assertArrayEquals(reference, MeshoptEncoder.encodeIndexSequence(indices));
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] result = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = (byte) values[i];
+		}
+		return result;
+	}
+
+	private static void assertVertexBuffer(byte[] data, int count, int stride) {
+		byte[] encoded = MeshoptEncoder.encodeVertexBuffer(data, count, stride);
+		assertArrayEquals("Stride " + stride + ", count " + count, data, MeshoptDecoder.decodeVertexBuffer(encoded, count, stride));
+	}
+
+	/**
+	 * The triangle codec can rotate the vertices of a triangle, the triangles themselves keep their order and winding
+	 */
+	private static void assertIndexBuffer(int[] indices) {
+		int[] decoded = MeshoptDecoder.decodeIndexBuffer(MeshoptEncoder.encodeIndexBuffer(indices), indices.length);
+		for (int i = 0; i < indices.length; i += 3) {
+			boolean rotation = false;
+			for (int r = 0; r < 3; r++) {
+				rotation |= decoded[i] == indices[i + r] && decoded[i + 1] == indices[i + (r + 1) % 3] && decoded[i + 2] == indices[i + (r + 2) % 3];
+			}
+			assertTrue("Triangle " + i / 3, rotation);
+		}
+	}
+
+	private static void assertIndexSequence(int[] indices) {
+		assertArrayEquals(indices, MeshoptDecoder.decodeIndexSequence(MeshoptEncoder.encodeIndexSequence(indices), indices.length));
+	}
+
+	/**
+	 * Two triangles per quad of a grid of width by height quads, row by row
+	 */
+	private static int[] grid(int width, int height, int first) {
+		int[] indices = new int[width * height * 6];
+		int position = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int a = first + y * (width + 1) + x;
+				int c = a + width + 1;
+				indices[position++] = a;
+				indices[position++] = a + 1;
+				indices[position++] = c + 1;
+				indices[position++] = a;
+				indices[position++] = c + 1;
+				indices[position++] = c;
+			}
+		}
+		return indices;
+	}
+
+	/**
+	 * A triangle strip of nrTriangles as a triangle list, starting with 0, 1, 2
+	 */
+	private static int[] strip(int nrTriangles) {
+		int[] indices = new int[nrTriangles * 3];
+		for (int i = 0; i < nrTriangles; i++) {
+			indices[i * 3] = i % 2 == 0 ? i : i + 1;
+			indices[i * 3 + 1] = i % 2 == 0 ? i + 1 : i;
+			indices[i * 3 + 2] = i + 2;
+		}
+		return indices;
+	}
+}
@@ -0,0 +1,199 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.models.ifc2x3tc1.IfcProduct;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.LittleEndianDataOutputStream;
+
+/**
+ * Measures BinaryGltfSerializer2 on a synthetic model, the whole export and its phases:
+ * 
+ * - write: the whole GLB, as the plugin writes it
+ * - generateDocument: everything before the first byte, the analysis of the meshes, the size pre-pass and the JSON model
+ * - buildManifest: the single pass over the products that collects what the export needs of them
+ * - exactBounds and transformedBounds: the bounds of all products and the extends of the model, from every vertex and from the transformed bounding boxes
+ * - writeBufferData: the conversion of all geometry into the binary data, without compression
+ * - writeJson: the JSON chunk
+ * 
+ * The caches are off, every invocation converts everything. Run with java -jar target/benchmarks.jar, -p changes the parameters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class SerializerBenchmark {
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	@Param({"1000", "10000"})
+	int nrProducts;
+
+	@Param({"4", "32"})
+	int meshSize;
+
+	@Param({"0", "0.8"})
+	double instancingRatio;
+
+	@Param({"0.1"})
+	double vertexColorRatio;
+
+	/**
+	 * default, meshopt, draco or batched
+	 */
+	@Param({"default", "meshopt", "draco", "batched"})
+	String options;
+
+	private byte[][] shaders;
+	private ForkJoinPool forkJoinPool;
+	private IfcModelInterface model;
+	private ProductManifest manifest;
+	// Generated once, for the phases that come after generateDocument
+	private BinaryGltfSerializer2 generated;
+	private GltfDocument document;
+
+	@Setup
+	public void setup() throws Exception {
+		String[] names = {"fragmentcolor", "vertexcolor", "fragmentmaterial", "vertexmaterial"};
+		shaders = new byte[names.length][];
+		for (int i=0; i<names.length; i++) {
+			try (InputStream inputStream = BinaryGltfSerializer2.class.getResourceAsStream("/shaders/" + names[i] + ".shader")) {
+				if (inputStream == null) {
+					throw new IOException("Shader " + names[i] + " not found, the benchmarks need the plugin jar");
+				}
+				shaders[i] = ByteStreams.toByteArray(inputStream);
+			}
+		}
+		// Sized like the pool of the plugin
+		forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+		SyntheticModelGenerator generator = new SyntheticModelGenerator();
+		generator.nrProducts = nrProducts;
+		generator.meshSize = meshSize;
+		generator.instancingRatio = instancingRatio;
+		generator.vertexColorRatio = vertexColorRatio;
+		model = generator.generate();
+		manifest = ProductManifest.build(model.getAllWithSubTypes(IfcProduct.class), new ExportProgress());
+
+		generated = createSerializer();
+		document = generated.generateDocument();
+	}
+
+	@TearDown
+	public void tearDown() {
+		forkJoinPool.shutdown();
+	}
+
+	private BinaryGltfSerializer2 createSerializer() throws Exception {
+		GltfSettings settings = new GltfSettings();
+		settings.conversionCacheSize = 0;
+		settings.resultCacheSize = 0;
+		switch (options) {
+		case "default":
+			break;
+		case "meshopt":
+			settings.meshoptCompression = true;
+			break;
+		case "draco":
+			settings.dracoCompression = true;
+			break;
+		case "batched":
+			settings.batchByMaterial = true;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown options " + options);
+		}
+		BinaryGltfSerializer2 serializer = new BinaryGltfSerializer2(shaders[0], shaders[1], shaders[2], shaders[3], forkJoinPool, null, null, null, settings);
+		serializer.init(model, null, false);
+		return serializer;
+	}
+
+	@Benchmark
+	public void write() throws Exception {
+		createSerializer().writeToOutputStream(ByteStreams.nullOutputStream(), null);
+	}
+
+	@Benchmark
+	public GltfDocument generateDocument() throws Exception {
+		return createSerializer().generateDocument();
+	}
+
+	@Benchmark
+	public ProductManifest buildManifest() {
+		return ProductManifest.build(model.getAllWithSubTypes(IfcProduct.class), new ExportProgress());
+	}
+
+	@Benchmark
+	public void exactBounds(Blackhole blackhole) {
+		computeBounds(blackhole, true);
+	}
+
+	@Benchmark
+	public void transformedBounds(Blackhole blackhole) {
+		computeBounds(blackhole, false);
+	}
+
+	private void computeBounds(Blackhole blackhole, boolean exact) {
+		ExportProgress progress = new ExportProgress();
+		manifest.computeBounds(new ConversionPipeline(forkJoinPool, progress), progress, exact);
+		float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		manifest.updateExtends(min, max);
+		blackhole.consume(min);
+		blackhole.consume(max);
+	}
+
+	@Benchmark
+	public long writeBufferData() throws Exception {
+		return generated.writeBufferData(new LittleEndianDataOutputStream(ByteStreams.nullOutputStream()), 0);
+	}
+
+	@Benchmark
+	public void writeJson() throws Exception {
+		OutputStream outputStream = ByteStreams.nullOutputStream();
+		JsonGenerator jsonGenerator = OBJECT_MAPPER.getFactory().createGenerator(outputStream, JsonEncoding.UTF8);
+		document.write(jsonGenerator);
+		jsonGenerator.close();
+	}
+}
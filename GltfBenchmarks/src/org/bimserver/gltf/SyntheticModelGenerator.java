@@ -0,0 +1,193 @@
+package org.bimserver.gltf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.IfcModelInterfaceException;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.emf.Schema;
+import org.bimserver.ifc.BasicIfcModel;
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryFactory;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.bimserver.models.ifc2x3tc1.Ifc2x3tc1Factory;
+import org.bimserver.models.ifc2x3tc1.Ifc2x3tc1Package;
+import org.bimserver.models.ifc2x3tc1.IfcProduct;
+import org.eclipse.emf.ecore.EClass;
+
+/**
+ * Builds a model with products, geometry infos and geometry data like the
+ * ones BIMserver stores, without a server or an IFC file. The same options
+ * and seed always give the same model, down to the oids, so runs can be
+ * compared between machines and versions.
+ *
+ * Every geometry is a grid of quads with a random height per vertex, welded
+ * and with an index per corner, so it survives the mesh optimizations of the
+ * serializer without collapsing.
+ */
+class SyntheticModelGenerator {
+
+	// The types cycle, so the products get the default colors of a few different materials
+	private static final String[] PRODUCT_TYPES = {"IfcWall", "IfcSlab", "IfcDoor", "IfcWindow", "IfcColumn", "IfcBeam", "IfcFurnishingElement"};
+
+	/**
+	 * The number of products, all of them have geometry
+	 */
+	int nrProducts = 1000;
+
+	/**
+	 * The number of quads along each side of a grid, a geometry has (meshSize + 1)^2 vertices and 2 * meshSize^2 triangles
+	 */
+	int meshSize = 16;
+
+	/**
+	 * The fraction of the products that reuse the geometry of an earlier product with a transformation of their own, like the mapped items of an IFC file
+	 */
+	double instancingRatio = 0.5;
+
+	/**
+	 * The fraction of the geometries with a color per vertex instead of one color for the whole geometry
+	 */
+	double vertexColorRatio = 0.1;
+
+	long seed = 42;
+
+	private long oid;
+
+	IfcModelInterface generate() throws IfcModelInterfaceException, IOException {
+		PackageMetaData packageMetaData = new PackageMetaData(Ifc2x3tc1Package.eINSTANCE, Schema.IFC2X3TC1, Files.createTempDirectory("gltf-benchmarks"));
+		BasicIfcModel model = new BasicIfcModel(packageMetaData, null);
+		Random random = new Random(seed);
+		oid = 1;
+		List<GeometryData> geometries = new ArrayList<>();
+		for (int i=0; i<nrProducts; i++) {
+			GeometryData data;
+			if (!geometries.isEmpty() && random.nextDouble() < instancingRatio) {
+				data = geometries.get(random.nextInt(geometries.size()));
+			} else {
+				data = createGeometryData(model, random, random.nextDouble() < vertexColorRatio);
+				geometries.add(data);
+			}
+
+			GeometryInfo geometryInfo = add(model, GeometryFactory.eINSTANCE.createGeometryInfo());
+			geometryInfo.setData(data);
+			// Spread over a square of about 100 m, turned around Z
+			geometryInfo.setTransformation(toBytes(random.nextDouble() * 100, random.nextDouble() * 100, random.nextInt(10) * 3, random.nextDouble() * Math.PI * 2));
+
+			EClass eClass = (EClass) Ifc2x3tc1Package.eINSTANCE.getEClassifier(PRODUCT_TYPES[i % PRODUCT_TYPES.length]);
+			IfcProduct ifcProduct = add(model, (IfcProduct) Ifc2x3tc1Factory.eINSTANCE.create(eClass));
+			ifcProduct.setGlobalId(String.format("SYNTHETIC%013d", i));
+			ifcProduct.setGeometry(geometryInfo);
+		}
+		return model;
+	}
+
+	private GeometryData createGeometryData(IfcModelInterface model, Random random, boolean vertexColors) throws IfcModelInterfaceException {
+		int nrVertices = (meshSize + 1) * (meshSize + 1);
+		ByteBuffer vertices = allocate(nrVertices * 12);
+		ByteBuffer normals = allocate(nrVertices * 12);
+		ByteBuffer colors = vertexColors ? allocate(nrVertices * 4) : null;
+		float size = 1 + random.nextFloat() * 9;
+		for (int y=0; y<=meshSize; y++) {
+			for (int x=0; x<=meshSize; x++) {
+				float height = random.nextFloat() * 0.1f;
+				vertices.putFloat(x * size / meshSize);
+				vertices.putFloat(y * size / meshSize);
+				vertices.putFloat(height);
+				// Close enough to the surface for a viewer, exact normals do not change the cost of the conversion
+				float nx = (random.nextFloat() - 0.5f) * 0.1f;
+				float ny = (random.nextFloat() - 0.5f) * 0.1f;
+				float length = (float) Math.sqrt(nx * nx + ny * ny + 1);
+				normals.putFloat(nx / length);
+				normals.putFloat(ny / length);
+				normals.putFloat(1 / length);
+				if (colors != null) {
+					colors.put((byte) random.nextInt(256));
+					colors.put((byte) random.nextInt(256));
+					colors.put((byte) random.nextInt(256));
+					colors.put((byte) 255);
+				}
+			}
+		}
+		int nrIndices = meshSize * meshSize * 6;
+		ByteBuffer indices = allocate(nrIndices * 4);
+		for (int y=0; y<meshSize; y++) {
+			for (int x=0; x<meshSize; x++) {
+				int corner = y * (meshSize + 1) + x;
+				int above = corner + meshSize + 1;
+				indices.putInt(corner);
+				indices.putInt(corner + 1);
+				indices.putInt(above + 1);
+				indices.putInt(corner);
+				indices.putInt(above + 1);
+				indices.putInt(above);
+			}
+		}
+
+		GeometryData data = add(model, GeometryFactory.eINSTANCE.createGeometryData());
+		data.setIndices(createBuffer(model, indices));
+		data.setVertices(createBuffer(model, vertices));
+		data.setNormals(createBuffer(model, normals));
+		if (colors != null) {
+			data.setColorsQuantized(createBuffer(model, colors));
+		}
+		return data;
+	}
+
+	private Buffer createBuffer(IfcModelInterface model, ByteBuffer data) throws IfcModelInterfaceException {
+		Buffer buffer = add(model, GeometryFactory.eINSTANCE.createBuffer());
+		buffer.setData(data.array());
+		return buffer;
+	}
+
+	/**
+	 * Gives the object the next oid, the serializer keys its caches and the deduplication of geometry by oid
+	 */
+	private <T extends IdEObject> T add(IfcModelInterface model, T object) throws IfcModelInterfaceException {
+		model.add(oid++, object);
+		return object;
+	}
+
+	private static ByteBuffer allocate(int byteLength) {
+		return ByteBuffer.allocate(byteLength).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return A column-major 4x4 matrix of doubles, like GeometryInfo.getTransformation
+	 */
+	private static byte[] toBytes(double tx, double ty, double tz, double angle) {
+		double cos = Math.cos(angle);
+		double sin = Math.sin(angle);
+		double[] matrix = {cos, sin, 0, 0, -sin, cos, 0, 0, 0, 0, 1, 0, tx, ty, tz, 1};
+		ByteBuffer buffer = allocate(matrix.length * 8);
+		for (double value : matrix) {
+			buffer.putDouble(value);
+		}
+		return buffer.array();
+	}
+}